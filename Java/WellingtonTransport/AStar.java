@@ -13,6 +13,9 @@ public class AStar {
 
     private static String timeOrDistance = "distance";    // way of calculating cost: "time" or "distance"
 
+    private static final Metrics.Phase METRICS = Metrics.phase("astar",
+        "stops settled", "edges relaxed", "stale fringe pops", "fringe peak", "heuristic evaluations");
+
     /**
      * Finds the shortest path between two stops using A* search algorithm.
      * @param start The starting stop.
@@ -31,6 +34,9 @@ public class AStar {
         // Initialize the back-pointer map
         Map<Stop, Edge> backPointer = new HashMap<>();
 
+        long started = Metrics.start();
+        int settled = 0, relaxed = 0, stale = 0, peak = 0, estimates = 1;   // for the metrics
+
         // Initialize the starting node
         PathItem startItem = new PathItem(start, null, 0.0, heuristic(start, goal));
 
@@ -40,18 +46,20 @@ public class AStar {
         // Start the search
         while(!fringe.isEmpty()){
             //Get the node with smallest f value from the fringe
+            peak = Math.max(peak, fringe.size());
             PathItem currentPathItem = fringe.poll();
             Stop currentStop = currentPathItem.getStop();
 
-            //If the node is not visited
-            if(!visited.contains(currentStop)) {
-                // Add the node to the visited set
-                visited.add(currentStop);
-                backPointer.put(currentStop, currentPathItem.getEdge()); // Map the stop to the edge from which it came from
-            }
+            //If the node has already been visited, this is a more costly path to it: skip it
+            if(visited.contains(currentStop)) { stale++; continue; }
+            // Add the node to the visited set
+            visited.add(currentStop);
+            settled++;
+            backPointer.put(currentStop, currentPathItem.getEdge()); // Map the stop to the edge from which it came from
 
             // If the current node is the goal, return the path
             if(currentStop.equals(goal)){
+                if (Metrics.ENABLED) { METRICS.record(started, settled, relaxed, stale, peak, estimates); }
                 return reconstructPath(start, goal, backPointer);
             }
 
@@ -60,6 +68,8 @@ public class AStar {
                 Stop neighbor = edge.toStop();
 
                 if(!visited.contains(neighbor)){
+                    relaxed++;
+                    estimates++;
                     //Calculate the cost of reaching the neighbor form the current node
                     double total = currentPathItem.getCost() + edgeCost(edge); // Cost from start to neighbour
                     double estimate = total + heuristic(neighbor, goal); // Total estimated cost
@@ -71,6 +81,7 @@ public class AStar {
         }
 
         // if we've exhausted all the possible paths and haven't found the goal, return null
+        if (Metrics.ENABLED) { METRICS.record(started, settled, relaxed, stale, peak, estimates); }
         return null;
     }
 
@@ -0,0 +1,325 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * A heat map of how long it takes to get from every part of the map to one destination
+ * (eg, the CBD): the area is divided into a raster of square cells, and each cell has
+ * the time to walk from its centre to a stop no more than maxWalk meters away, then
+ * travel on to the destination, by the quickest such stop.
+ *
+ * The times from the stops to the destination are found with one Dijkstra search
+ * backwards from the destination along the backward edges of a GraphSnapshot, rather
+ * than a search from every cell. Then the raster is filled in square tiles of TILE cells,
+ * in parallel: each tile looks up the stops within walking distance of it in a GridIndex
+ * and spreads each stop's time over the cells in the tile that are close enough to walk
+ * to it, keeping the least time in each cell. Tiles do not share cells, so they need no
+ * locking, and every cell gets the same time as a serial fill would give it.
+ *
+ * The times are in seconds, in rows from north to south; a cell that is not within
+ * walking distance of a stop that can get to the destination has an infinite time.
+ * argb() colours the times for drawing (as a map layer in the Controller), and
+ * writePng() saves them as an image.
+ */
+public class AccessibilityRaster {
+
+    public static final double DEFAULT_CELL_METERS = 100;
+    public static final double DEFAULT_MAX_WALK_METERS = 500;
+    private static final int TILE = 64;   // cells along each side of a tile
+
+    private final GraphSnapshot graph;
+    private final int destination;
+    private final double cellMeters;
+    private final double maxWalk;
+
+    // the area of the raster, and the size of a cell in degrees
+    private final double minLon, maxLon, minLat, maxLat;
+    private final double cellLon, cellLat;
+    private final double metersPerLon, metersPerLat;
+    private final int width, height;
+
+    private final double[] toDestination;   // time from each stop to the destination
+    private final float[] seconds;          // time from each cell, row by row from the north
+    private final double millis;            // for reporting
+
+    /**
+     * Compute the travel times to a destination over an area, filling the raster in parallel.
+     * @param graph The snapshot to travel over (by time).
+     * @param destination The index of the destination stop in the snapshot.
+     * @param region The area to cover: minLon, minLat, maxLon, maxLat (see region(GraphSnapshot, double)).
+     * @param cellMeters The length of the side of each cell.
+     * @param maxWalk The furthest that anyone will walk to a stop (meters).
+     * @param cancelled Polled between tiles; if it becomes true, stops with a CancellationException.
+     */
+    public AccessibilityRaster(GraphSnapshot graph, int destination, double[] region,
+                               double cellMeters, double maxWalk, BooleanSupplier cancelled) {
+        this(graph, destination, region, cellMeters, maxWalk, cancelled, true);
+    }
+
+    AccessibilityRaster(GraphSnapshot graph, int destination, double[] region,
+                        double cellMeters, double maxWalk, BooleanSupplier cancelled, boolean parallel) {
+        long start = System.nanoTime();
+        this.graph = graph;
+        this.destination = destination;
+        this.cellMeters = cellMeters;
+        this.maxWalk = maxWalk;
+        minLon = region[0];
+        minLat = region[1];
+        maxLon = region[2];
+        maxLat = region[3];
+        metersPerLat = GisPoint.SCALE;
+        metersPerLon = GisPoint.SCALE * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        cellLon = cellMeters / metersPerLon;
+        cellLat = cellMeters / metersPerLat;
+        width = Math.max(1, (int) Math.ceil((maxLon - minLon) / cellLon));
+        height = Math.max(1, (int) Math.ceil((maxLat - minLat) / cellLat));
+
+        toDestination = searchBackFrom(destination, cancelled);
+        seconds = new float[width * height];
+        Arrays.fill(seconds, Float.POSITIVE_INFINITY);
+
+        // only the stops that can get to the destination are worth walking to
+        int[] reachable = IntStream.range(0, graph.numStops())
+            .filter(s -> toDestination[s] != Double.POSITIVE_INFINITY).toArray();
+        double[] boxes = new double[4 * reachable.length];
+        for (int i = 0; i < reachable.length; i++) {
+            boxes[4 * i] = boxes[4 * i + 2] = graph.lon(reachable[i]);
+            boxes[4 * i + 1] = boxes[4 * i + 3] = graph.lat(reachable[i]);
+        }
+        GridIndex stops = new GridIndex(boxes);
+
+        int tileCols = (width + TILE - 1) / TILE;
+        int tileRows = (height + TILE - 1) / TILE;
+        IntStream tiles = IntStream.range(0, tileCols * tileRows);
+        (parallel ? tiles.parallel() : tiles).forEach(t -> {
+            if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+            fillTile((t % tileCols) * TILE, (t / tileCols) * TILE, stops, reachable);
+        });
+        millis = (System.nanoTime() - start) / 1e6;
+    }
+
+    /**
+     * The area around all the stops of a snapshot, with a margin for walking to the outer stops
+     * @return minLon, minLat, maxLon, maxLat
+     */
+    public static double[] region(GraphSnapshot graph, double marginMeters) {
+        double[] region = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                           Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int s = 0; s < graph.numStops(); s++) {
+            region[0] = Math.min(region[0], graph.lon(s));
+            region[1] = Math.min(region[1], graph.lat(s));
+            region[2] = Math.max(region[2], graph.lon(s));
+            region[3] = Math.max(region[3], graph.lat(s));
+        }
+        double marginLat = marginMeters / GisPoint.SCALE;
+        double marginLon = marginMeters / (GisPoint.SCALE * Math.cos(Math.toRadians((region[1] + region[3]) / 2)));
+        region[0] -= marginLon;
+        region[1] -= marginLat;
+        region[2] += marginLon;
+        region[3] += marginLat;
+        return region;
+    }
+
+    /**
+     * The time from every stop to the destination, by a Dijkstra search along the
+     * backward edges from the destination.
+     */
+    private double[] searchBackFrom(int goal, BooleanSupplier cancelled) {
+        int n = graph.numStops();
+        double[] edgeCost = graph.edgeCosts("time");
+        double[] cost = new double[n];
+        boolean[] settled = new boolean[n];
+        Arrays.fill(cost, Double.POSITIVE_INFINITY);
+        StopHeap fringe = new StopHeap(n);
+        cost[goal] = 0;
+        fringe.push(goal, 0);
+        int count = 0;
+        while (!fringe.isEmpty()) {
+            int current = fringe.pop();
+            if (settled[current]) { continue; }
+            settled[current] = true;
+            if ((++count & 1023) == 0 && cancelled.getAsBoolean()) { throw new CancellationException(); }
+            int end = graph.inStart(current + 1);
+            for (int k = graph.inStart(current); k < end; k++) {
+                int e = graph.inEdge(k);
+                int from = graph.edgeFrom(e);
+                double total = cost[current] + edgeCost[e];
+                if (total < cost[from]) {
+                    cost[from] = total;
+                    fringe.push(from, total);
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Fill the tile whose top left cell is (col0, row0): spread the time of each stop within
+     * walking distance of the tile over the cells that are within walking distance of it.
+     */
+    private void fillTile(int col0, int row0, GridIndex stops, int[] reachable) {
+        int col1 = Math.min(width, col0 + TILE);
+        int row1 = Math.min(height, row0 + TILE);
+        double walkLon = maxWalk / metersPerLon;
+        double walkLat = maxWalk / metersPerLat;
+        double tileMinLon = minLon + col0 * cellLon, tileMaxLon = minLon + col1 * cellLon;
+        double tileMaxLat = maxLat - row0 * cellLat, tileMinLat = maxLat - row1 * cellLat;
+
+        stops.query(tileMinLon - walkLon, tileMinLat - walkLat, tileMaxLon + walkLon, tileMaxLat + walkLat, i -> {
+            int s = reachable[i];
+            double lon = graph.lon(s), lat = graph.lat(s);
+            // the cells of the tile whose centres may be within walking distance of the stop
+            int c0 = Math.max(col0, (int) Math.floor((lon - walkLon - minLon) / cellLon));
+            int c1 = Math.min(col1 - 1, (int) Math.floor((lon + walkLon - minLon) / cellLon));
+            int r0 = Math.max(row0, (int) Math.floor((maxLat - lat - walkLat) / cellLat));
+            int r1 = Math.min(row1 - 1, (int) Math.floor((maxLat - lat + walkLat) / cellLat));
+            for (int r = r0; r <= r1; r++) {
+                double dy = (maxLat - (r + 0.5) * cellLat - lat) * metersPerLat;
+                for (int c = c0; c <= c1; c++) {
+                    double dx = (minLon + (c + 0.5) * cellLon - lon) * metersPerLon;
+                    double walk = Math.sqrt(dx * dx + dy * dy);
+                    if (walk > maxWalk) { continue; }
+                    float time = (float) (toDestination[s] + walk / Transport.WALKING_SPEED_MPS);
+                    int cell = r * width + c;
+                    if (time < seconds[cell]) { seconds[cell] = time; }
+                }
+            }
+        });
+    }
+
+    /** Number of cells across the raster (west to east) */
+    public int getWidth() { return width; }
+
+    /** Number of cells down the raster (north to south) */
+    public int getHeight() { return height; }
+
+    /** The area covered by the cells: minLon, minLat, maxLon, maxLat */
+    public double[] getRegion() {
+        return new double[]{minLon, maxLat - height * cellLat, minLon + width * cellLon, maxLat};
+    }
+
+    public Stop getDestination() { return graph.stop(destination); }
+
+    /** The snapshot that the times were found over */
+    public GraphSnapshot getGraph() { return graph; }
+
+    /** Seconds from the cell in the given column and row (from the north west) to the destination */
+    public double getSeconds(int col, int row) { return seconds[row * width + col]; }
+
+    /** Seconds from the cell containing a point to the destination (infinite if outside the raster) */
+    public double getSeconds(double lon, double lat) {
+        int col = (int) Math.floor((lon - minLon) / cellLon);
+        int row = (int) Math.floor((maxLat - lat) / cellLat);
+        if (col < 0 || col >= width || row < 0 || row >= height) { return Double.POSITIVE_INFINITY; }
+        return seconds[row * width + col];
+    }
+
+    /** Number of cells from which the destination can be reached */
+    public int reachableCells() {
+        int count = 0;
+        for (float time : seconds) {
+            if (time != Float.POSITIVE_INFINITY) { count++; }
+        }
+        return count;
+    }
+
+    /**
+     * The colour of every cell, as ARGB pixels row by row from the north: green for no
+     * time, through yellow to red for maxSeconds or more, and transparent if the
+     * destination cannot be reached.
+     */
+    public int[] argb(double maxSeconds) {
+        int[] pixels = new int[seconds.length];
+        for (int i = 0; i < seconds.length; i++) {
+            if (seconds[i] == Float.POSITIVE_INFINITY) { continue; }
+            double f = Math.min(1.0, seconds[i] / maxSeconds);
+            int red, green;
+            if (f < 0.5) {
+                red = (int) Math.round(510 * f);
+                green = (int) Math.round(170 + 100 * f);
+            } else {
+                red = 255;
+                green = (int) Math.round(440 * (1 - f));
+            }
+            pixels[i] = 0xB0000000 | (red << 16) | (green << 8);
+        }
+        return pixels;
+    }
+
+    /** Save the colours of the cells (see argb) as a PNG image, one pixel per cell */
+    public void writePng(File file, double maxSeconds) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, argb(maxSeconds), 0, width);
+        if (!ImageIO.write(image, "png", file)) { throw new IOException("No PNG writer available"); }
+    }
+
+    public String toString() {
+        return String.format("Travel time to %s: %d x %d cells of %.0fm, %d reachable within %.0fm walk, in %.1f ms",
+                             graph.stop(destination).getName(), width, height, cellMeters,
+                             reachableCells(), maxWalk, millis);
+    }
+
+    /**
+     * Time filling the raster for Wellington Station in parallel and serially, check that
+     * they agree with each other and with looking at every stop for some cells, and save
+     * the raster as an image:
+     *     java AccessibilityRaster [cell meters] [png file] [data directory]
+     */
+    public static void main(String[] args) throws IOException {
+        double cellMeters = (args.length > 0) ? Double.parseDouble(args[0]) : 25;
+        File pngFile = new File((args.length > 1) ? args[1] : "accessibility.png");
+        File dataDirectory = new File((args.length > 2) ? args[2] : "data");
+        Map<String, Stop> stopMap = NetworkLoader.loadStops(new File(dataDirectory, "stops.txt"));
+        Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File(dataDirectory, "lines.txt"), stopMap));
+        graph.recomputeWalkingEdges(Transport.MAX_WALKING_DISTANCE_M);
+        GraphSnapshot snap = graph.snapshot();
+        int destination = snap.indexOf(graph.getFirstMatchingStop("Wellington Station"));
+        double[] region = region(snap, DEFAULT_MAX_WALK_METERS);
+
+        AccessibilityRaster parallel = null, serial = null;
+        double parallelMs = Double.POSITIVE_INFINITY, serialMs = Double.POSITIVE_INFINITY;
+        for (int run = 0; run < 5; run++) {   // the first runs warm up
+            parallel = new AccessibilityRaster(snap, destination, region, cellMeters, DEFAULT_MAX_WALK_METERS, () -> false, true);
+            serial = new AccessibilityRaster(snap, destination, region, cellMeters, DEFAULT_MAX_WALK_METERS, () -> false, false);
+            parallelMs = Math.min(parallelMs, parallel.millis);
+            serialMs = Math.min(serialMs, serial.millis);
+        }
+        System.out.println(parallel);
+        System.out.printf("best of 5: parallel %.1f ms, serial %.1f ms (%d threads)%n",
+                          parallelMs, serialMs, Runtime.getRuntime().availableProcessors());
+        System.out.println("parallel and serial rasters the same: " + Arrays.equals(parallel.seconds, serial.seconds));
+
+        // check some cells against walking to each stop in turn
+        Random random = new Random(5);
+        int wrong = 0;
+        int checked = 0;
+        while (checked < 200) {
+            int col = random.nextInt(parallel.width), row = random.nextInt(parallel.height);
+            double lon = parallel.minLon + (col + 0.5) * parallel.cellLon;
+            double lat = parallel.maxLat - (row + 0.5) * parallel.cellLat;
+            double best = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < snap.numStops(); s++) {
+                double dx = (lon - snap.lon(s)) * parallel.metersPerLon, dy = (lat - snap.lat(s)) * parallel.metersPerLat;
+                double walk = Math.sqrt(dx * dx + dy * dy);
+                if (walk <= DEFAULT_MAX_WALK_METERS) {
+                    best = Math.min(best, parallel.toDestination[s] + walk / Transport.WALKING_SPEED_MPS);
+                }
+            }
+            if (best == Double.POSITIVE_INFINITY && checked % 4 != 0) { continue; }   // mostly look at cells near stops
+            checked++;
+            if (Math.abs((float) best - parallel.getSeconds(col, row)) > 1e-3 * Math.max(1, best)) { wrong++; }
+        }
+        System.out.println("cells checked against every stop: " + checked + ", " + wrong + " wrong");
+
+        parallel.writePng(pngFile, 3600);
+        System.out.println("Saved " + pngFile + " (" + pngFile.length() / 1024 + " KB)");
+    }
+
+}
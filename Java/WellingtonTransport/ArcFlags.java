@@ -0,0 +1,232 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Arc flags for speeding up shortest path searches, using the fare zones as the regions.
+ *
+ * The stops are divided into regions by their fare zone (see ZoneIndex), with the stops
+ * outside all the zones as one more region. Each edge has a flag for each region, which
+ * is set if the edge is on a shortest path to some stop in that region. A search towards
+ * a goal then only needs to follow the edges flagged for the goal's region
+ * (see SearchWorkspace.shortestPath(start, goal, flags, skipStop)), and it finds a path
+ * of the same cost while ignoring most of the graph that leads away from the goal.
+ *
+ * The flags of a region are found from its boundary stops (the stops of the region with
+ * an edge coming in from another region): every path into the region passes through one,
+ * so a Dijkstra search backwards from each boundary stop flags the edges of its shortest
+ * path tree. Edges inside the region are always flagged. The regions are done in parallel.
+ *
+ * The flags are for one snapshot and one cost metric ("time" or "distance"), and must be
+ * made again when the graph changes (eg, when the walking edges change).
+ */
+public class ArcFlags {
+
+    private final GraphSnapshot graph;
+    private final String timeOrDistance;
+    private final int[] region;          // the region of each stop
+    private final int[] regionZone;      // the zone number of each region (-1 for outside the zones)
+    private final int[] flags;           // the flags of each edge: bit r for region r
+    private int numBoundaryStops = 0;
+
+    /**
+     * Make the arc flags of a snapshot whose stops already have their zones (see ZoneIndex.annotate)
+     * @param timeOrDistance The cost metric the searches will use: "time" or "distance".
+     */
+    public ArcFlags(GraphSnapshot graph, String timeOrDistance) {
+        this.graph = graph;
+        this.timeOrDistance = timeOrDistance;
+        int n = graph.numStops();
+
+        // a region for each zone in use, in order of zone number
+        TreeSet<Integer> zones = new TreeSet<Integer>();
+        for (int s = 0; s < n; s++) { zones.add(graph.stop(s).getZone()); }
+        if (zones.size() > 32) { throw new RuntimeException("Too many zones for arc flags: " + zones.size()); }
+        regionZone = zones.stream().mapToInt(Integer::intValue).toArray();
+        region = new int[n];
+        for (int s = 0; s < n; s++) { region[s] = zones.headSet(graph.stop(s).getZone()).size(); }
+
+        // flag each region in parallel, then put the flags together
+        List<BitSet> regionFlags = IntStream.range(0, regionZone.length).parallel()
+            .mapToObj(this::flagRegion).collect(Collectors.toList());
+        flags = new int[graph.numEdges()];
+        for (int r = 0; r < regionFlags.size(); r++) {
+            BitSet flagged = regionFlags.get(r);
+            for (int e = flagged.nextSetBit(0); e >= 0; e = flagged.nextSetBit(e + 1)) { flags[e] |= 1 << r; }
+        }
+    }
+
+    /** The snapshot the flags were made for */
+    public GraphSnapshot getGraph() { return graph; }
+
+    /** The cost metric the flags were made for */
+    public String getTimeOrDistance() { return timeOrDistance; }
+
+    public int numRegions() { return regionZone.length; }
+
+    /** The region of a stop */
+    public int regionOf(int stop) { return region[stop]; }
+
+    /** The zone number of a region (-1 for the stops outside all the zones) */
+    public int zoneOf(int region) { return regionZone[region]; }
+
+    /** The flags of all the edges, indexed by edge (bit r for region r). The array must not be modified. */
+    int[] edgeFlags() { return flags; }
+
+    /** Whether the edge is on a shortest path to some stop in the region */
+    public boolean isFlagged(int edge, int region) {
+        return (flags[edge] & (1 << region)) != 0;
+    }
+
+    /** The total number of boundary stops of all the regions */
+    public int numBoundaryStops() { return numBoundaryStops; }
+
+    /** The average fraction of the regions that an edge is flagged for */
+    public double flaggedFraction() {
+        long count = 0;
+        for (int f : flags) { count += Integer.bitCount(f); }
+        return (flags.length == 0) ? 0 : (double) count / flags.length / regionZone.length;
+    }
+
+    /**
+     * The edges flagged for a region: the edges inside it, and the edges of the shortest
+     * path trees into each of its boundary stops.
+     */
+    private BitSet flagRegion(int r) {
+        BitSet flagged = new BitSet(graph.numEdges());
+        List<Integer> boundary = new ArrayList<Integer>();
+        for (int s = 0; s < graph.numStops(); s++) {
+            if (region[s] != r) { continue; }
+            boolean isBoundary = false;
+            for (int k = graph.inStart(s); k < graph.inStart(s + 1); k++) {
+                int e = graph.inEdge(k);
+                if (region[graph.edgeFrom(e)] == r) { flagged.set(e); }
+                else { isBoundary = true; }
+            }
+            if (isBoundary) { boundary.add(s); }
+        }
+        synchronized (this) { numBoundaryStops += boundary.size(); }
+
+        BackwardSearch search = new BackwardSearch(graph, graph.edgeCosts(timeOrDistance));
+        for (int b : boundary) { search.run(b, flagged); }
+        return flagged;
+    }
+
+    /**
+     * Dijkstra search backwards along the edges, from a stop to every stop that can reach it.
+     * Each thread has its own.
+     */
+    private static class BackwardSearch {
+        private final GraphSnapshot graph;
+        private final double[] edgeCost;
+        private final double[] cost;
+        private final int[] treeEdge;     // the edge from each stop towards the target
+        private final int[] reached;
+        private final int[] settled;
+        private int search = 0;
+        private final StopHeap fringe;
+
+        BackwardSearch(GraphSnapshot graph, double[] edgeCost) {
+            this.graph = graph;
+            this.edgeCost = edgeCost;
+            int n = graph.numStops();
+            cost = new double[n];
+            treeEdge = new int[n];
+            reached = new int[n];
+            settled = new int[n];
+            fringe = new StopHeap(n);
+        }
+
+        /** Flag the edges of the shortest path tree of every stop to the target */
+        void run(int target, BitSet flagged) {
+            search++;
+            fringe.clear();
+            reached[target] = search;
+            cost[target] = 0.0;
+            treeEdge[target] = -1;
+            fringe.push(target, 0.0);
+            while (!fringe.isEmpty()) {
+                int current = fringe.pop();
+                if (settled[current] == search) { continue; }
+                settled[current] = search;
+                if (treeEdge[current] >= 0) { flagged.set(treeEdge[current]); }
+                for (int k = graph.inStart(current); k < graph.inStart(current + 1); k++) {
+                    int e = graph.inEdge(k);
+                    int from = graph.edgeFrom(e);
+                    if (settled[from] == search) { continue; }
+                    double total = cost[current] + edgeCost[e];
+                    if (reached[from] != search || total < cost[from]) {
+                        reached[from] = search;
+                        cost[from] = total;
+                        treeEdge[from] = e;
+                        fringe.push(from, total);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the arc flags for the data files (with walking edges), and compare the time of
+     * queries with the flags against A* on the snapshot and the plain AStar on the Graph.
+     * Arguments (optional): walking distance in meters (default 100), number of queries (default 500).
+     */
+    public static void main(String[] args) {
+        double walkingDistance = (args.length > 0) ? Double.parseDouble(args[0]) : 100;
+        int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(new File("data/lines.txt"), stopMap));
+        if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+        new ZoneIndex(new Zoning(new File("data/WellingtonZones.csv"))).annotate(graph.getStops());
+        GraphSnapshot snap = graph.snapshot();
+
+        for (String metric : new String[]{"time", "distance"}) {
+            long start = System.nanoTime();
+            ArcFlags flags = new ArcFlags(snap, metric);
+            double buildMs = (System.nanoTime() - start) / 1e6;
+            System.out.printf("%n%s: %d regions, %d boundary stops, %.0f%% of flags set, built in %.0f ms%n", metric,
+                              flags.numRegions(), flags.numBoundaryStops(), 100 * flags.flaggedFraction(), buildMs);
+
+            Random random = new Random(3);
+            int[] from = new int[queries];
+            int[] to = new int[queries];
+            for (int q = 0; q < queries; q++) {
+                from[q] = random.nextInt(snap.numStops());
+                to[q] = random.nextInt(snap.numStops());
+            }
+            SearchWorkspace search = new SearchWorkspace(snap);
+            double[] plainCost = new double[queries];
+            double[] flagCost = new double[queries];
+            for (int round = 0; round < 2; round++) {     // the first round warms up
+                start = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    AStar.findShortestPath(snap.stop(from[q]), snap.stop(to[q]), metric);
+                }
+                double aStarMs = (System.nanoTime() - start) / 1e6;
+                start = System.nanoTime();
+                for (int q = 0; q < queries; q++) { plainCost[q] = search.shortestPath(from[q], to[q], metric, SearchWorkspace.NONE); }
+                double plainMs = (System.nanoTime() - start) / 1e6;
+                start = System.nanoTime();
+                for (int q = 0; q < queries; q++) { flagCost[q] = search.shortestPath(from[q], to[q], flags, SearchWorkspace.NONE); }
+                double flagMs = (System.nanoTime() - start) / 1e6;
+                if (round == 1) {
+                    System.out.printf("AStar %.3f ms, snapshot A* %.3f ms, with arc flags %.3f ms per query: %.1fx faster than AStar, %.1fx faster than snapshot A*%n",
+                                      aStarMs / queries, plainMs / queries, flagMs / queries, aStarMs / flagMs, plainMs / flagMs);
+                }
+            }
+            int same = 0;
+            for (int q = 0; q < queries; q++) {
+                if (plainCost[q] == flagCost[q] || Math.abs(plainCost[q] - flagCost[q]) <= 1e-6 * plainCost[q]) { same++; }
+            }
+            // (by time, A* itself is not always exact, since some lines are faster than the heuristic allows)
+            System.out.printf("Same cost with and without arc flags: %d of %d%n", same, queries);
+        }
+    }
+
+}
@@ -10,6 +10,8 @@ import java.util.HashMap;
  */
 public class ArticulationPoints{
 
+    private static final Metrics.Phase METRICS = Metrics.phase("articulation points", "stops", "subgraphs", "articulation points");
+
     /**
      * Finds all the sub-graphs in the graph.
      * @param graph The input graph.
@@ -54,6 +56,7 @@ public class ArticulationPoints{
      */
     public static Collection<Stop> findArticulationPoints(Graph graph) {
         System.out.println("calling findArticulationPoints");
+        long started = Metrics.start();
         graph.computeNeighbours();   // To ensure that all stops have a set of (undirected) neighbour stops
 
         Map<Stop, Integer> depths = new HashMap<>(); // A map to store the depth of each visited stop
@@ -89,6 +92,7 @@ public class ArticulationPoints{
             }
         }
 
+        if (Metrics.ENABLED) { METRICS.record(started, depths.size(), subGraphs.size(), articulationPoints.size()); }
         return articulationPoints;
     }
 
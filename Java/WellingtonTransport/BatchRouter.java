@@ -0,0 +1,236 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the shortest paths between many pairs of stops, without the user interface, eg:
+ *
+ *     java BatchRouter pairs.txt results.txt [data directory]
+ *
+ * The pairs file is tab separated, with a header naming the from_stop_id and to_stop_id
+ * columns (otherwise the first two columns are used). It can start with lines of options,
+ * each "#name=value":
+ *     #mode=time          cost metric for the paths: time or distance (default time)
+ *     #walking=100        walking distance in meters (default 0, no walking edges)
+ *     #threads=4          number of threads (default the number of processors)
+ *
+ * The network is loaded from stops.txt and lines.txt in the data directory (default data).
+ * The pairs are read and routed in blocks, in parallel, each thread with its own
+ * SearchWorkspace, and the results are written in the same order as the pairs as soon
+ * as they are ready, so neither the pairs nor the results are all in memory at once.
+ * Each result line has the stop ids, a status (ok, no path, or unknown stop), and the
+ * time (seconds), distance (meters) and number of edges of the path.
+ * At the end the number of pairs per second and the percentiles of the time to route
+ * each pair are reported.
+ */
+public class BatchRouter {
+
+    private static final int BLOCK_SIZE = 512;    // pairs routed together by one thread
+
+    private final GraphSnapshot graph;
+    private final Map<String, Stop> stopMap;
+    private final String timeOrDistance;
+    private final double[] edgeTime;
+    private final double[] edgeDistance;
+    private final ThreadLocal<SearchWorkspace> workspace;
+
+    // latencies of all the pairs routed (written only by the thread that writes the results)
+    private long[] latencies = new long[1024];
+    private int numRouted = 0;
+    private int numOk = 0, numNoPath = 0, numUnknown = 0;
+
+    /**
+     * A router for a network
+     * @param timeOrDistance The cost metric of the paths: "time" or "distance".
+     */
+    public BatchRouter(GraphSnapshot graph, Map<String, Stop> stopMap, String timeOrDistance) {
+        this.graph = graph;
+        this.stopMap = stopMap;
+        this.timeOrDistance = timeOrDistance;
+        this.edgeTime = graph.edgeCosts("time");
+        this.edgeDistance = graph.edgeCosts("distance");
+        this.workspace = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+    }
+
+    /**
+     * A block of pairs, and their results once routed
+     */
+    private static class Block {
+        final String[] from = new String[BLOCK_SIZE];
+        final String[] to = new String[BLOCK_SIZE];
+        int size = 0;
+        final double[] time = new double[BLOCK_SIZE];
+        final double[] distance = new double[BLOCK_SIZE];
+        final int[] edges = new int[BLOCK_SIZE];     // -1 for no path, -2 for an unknown stop
+        final long[] nanos = new long[BLOCK_SIZE];
+    }
+
+    /** Route each pair of the block, with this thread's workspace */
+    private Block route(Block block) {
+        SearchWorkspace search = workspace.get();
+        for (int i = 0; i < block.size; i++) {
+            long start = System.nanoTime();
+            Stop from = stopMap.get(block.from[i]);
+            Stop to = stopMap.get(block.to[i]);
+            int s = (from == null) ? -1 : graph.indexOf(from);
+            int g = (to == null) ? -1 : graph.indexOf(to);
+            if (s < 0 || g < 0) {
+                block.edges[i] = -2;
+            } else if (search.shortestPath(s, g, timeOrDistance, SearchWorkspace.NONE) == Double.POSITIVE_INFINITY) {
+                block.edges[i] = -1;
+            } else {
+                block.time[i] = search.sumAlongPath(g, edgeTime);
+                block.distance[i] = search.sumAlongPath(g, edgeDistance);
+                block.edges[i] = search.pathLength(g);
+            }
+            block.nanos[i] = System.nanoTime() - start;
+        }
+        return block;
+    }
+
+    /** Write the results of a block, and keep its latencies */
+    private void write(Block block, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < block.size; i++) {
+            line.setLength(0);
+            line.append(block.from[i]).append('\t').append(block.to[i]).append('\t');
+            if (block.edges[i] == -2) {
+                line.append("unknown stop\t\t\t");
+                numUnknown++;
+            } else if (block.edges[i] == -1) {
+                line.append("no path\t\t\t");
+                numNoPath++;
+            } else {
+                line.append("ok\t").append(Math.round(block.time[i])).append('\t')
+                    .append(Math.round(block.distance[i] * 10) / 10.0).append('\t').append(block.edges[i]);
+                numOk++;
+            }
+            out.append(line).append('\n');
+            if (numRouted == latencies.length) { latencies = Arrays.copyOf(latencies, 2 * numRouted); }
+            latencies[numRouted++] = block.nanos[i];
+        }
+    }
+
+    /**
+     * Route the pairs that the reader has not read yet, and write the results
+     */
+    public void run(DelimitedReader pairs, Writer out, int threads) throws IOException {
+        int fromCol = pairs.column("from_stop_id", 0);
+        int toCol = pairs.column("to_stop_id", 1);
+        out.write("from_stop_id\tto_stop_id\tstatus\ttime\tdistance\tedges\n");
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "batch-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+        try {
+            Block block = new Block();
+            while (pairs.next()) {
+                if (pairs.numFields() <= Math.max(fromCol, toCol)) {
+                    System.out.println("Pairs file has broken entry: " + pairs.record());
+                    continue;
+                }
+                block.from[block.size] = pairs.getString(fromCol).trim();
+                block.to[block.size++] = pairs.getString(toCol).trim();
+                if (block.size == BLOCK_SIZE) {
+                    Block full = block;
+                    pending.add(pool.submit(() -> route(full)));
+                    block = new Block();
+                    // keep a few blocks per thread on the go; write the oldest when there are more
+                    while (pending.size() > 2 * threads) { write(pending.remove().get(), out); }
+                }
+            }
+            if (block.size > 0) {
+                Block last = block;
+                pending.add(pool.submit(() -> route(last)));
+            }
+            while (!pending.isEmpty()) { write(pending.remove().get(), out); }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Batch routing was interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Batch routing failed: " + e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** The number of pairs routed so far */
+    public int numRouted() { return numRouted; }
+
+    /** The latency (in nanoseconds) that the given fraction of the (sorted) latencies are within */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) { return 0; }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /** A description of the results and of the latencies of the pairs routed so far */
+    public String summary(double seconds) {
+        long[] sorted = Arrays.copyOf(latencies, numRouted);
+        Arrays.sort(sorted);
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Routed %d pairs (%d ok, %d no path, %d unknown stop) in %.2f s: %.0f pairs per second%n",
+                                 numRouted, numOk, numNoPath, numUnknown, seconds, numRouted / Math.max(seconds, 1e-9)));
+        out.append(String.format("Latency (ms): p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                                 percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6,
+                                 percentile(sorted, 0.999) / 1e6, percentile(sorted, 1.0) / 1e6));
+        return out.toString();
+    }
+
+    /**
+     * Route the pairs of a file and write the results. See the class comment.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java BatchRouter <pairs file> <results file> [data directory]");
+            return;
+        }
+        File pairsFile = new File(args[0]);
+        File resultsFile = new File(args[1]);
+        File dataDirectory = new File((args.length > 2) ? args[2] : "data");
+
+        try (DelimitedReader pairs = DelimitedReader.openTabSeparated(pairsFile)) {
+            Map<String, String> options = new HashMap<String, String>();
+            pairs.readHeader('#', line -> {
+                int equals = line.indexOf('=');
+                if (equals < 0) { return; }
+                options.put(line.substring(1, equals).trim(), line.substring(equals + 1).trim());
+            });
+            String mode = options.getOrDefault("mode", "time");
+            if (!mode.equals("time") && !mode.equals("distance")) {
+                throw new RuntimeException("mode must be time or distance, not " + mode);
+            }
+            double walkingDistance = Double.parseDouble(options.getOrDefault("walking", "0"));
+            int threads = Integer.parseInt(options.getOrDefault("threads",
+                                                               Integer.toString(Runtime.getRuntime().availableProcessors())));
+            System.out.printf("Routing by %s, walking distance %.0fm, %d threads%n", mode, walkingDistance, threads);
+
+            long start = System.nanoTime();
+            Map<String, Stop> stopMap = NetworkLoader.loadStops(new File(dataDirectory, "stops.txt"));
+            Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File(dataDirectory, "lines.txt"), stopMap));
+            if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+            GraphSnapshot snap = graph.snapshot();
+            System.out.printf("Loaded the network in %.2f s%n", (System.nanoTime() - start) / 1e9);
+
+            BatchRouter router = new BatchRouter(snap, stopMap, mode);
+            start = System.nanoTime();
+            try (Writer out = Files.newBufferedWriter(resultsFile.toPath(), StandardCharsets.UTF_8)) {
+                router.run(pairs, out, threads);
+            }
+            System.out.println(router.summary((System.nanoTime() - start) / 1e9));
+        }
+    }
+
+}
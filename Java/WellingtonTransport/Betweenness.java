@@ -0,0 +1,314 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest path betweenness centrality of the stops, using Brandes' algorithm.
+ *
+ * The betweenness of a stop is the number of shortest paths between other pairs of stops
+ * that pass through it (a pair with several equally short paths shares the credit between
+ * them). Stops with a high betweenness are the busiest transfer hubs of the network.
+ *
+ * Brandes' algorithm runs one Dijkstra search from every source stop. Each search counts the
+ * shortest paths to every stop, then works back from the furthest stop to accumulate the
+ * dependency of the source on each stop. The searches are independent, so the sources are
+ * split between the threads of a ForkJoinPool; each task has its own search arrays and its own
+ * array of totals, and the totals are added together as the tasks are joined.
+ *
+ * For a fast approximation, only a random sample of the sources is searched and the
+ * totals are scaled up to the whole network.
+ */
+public class Betweenness {
+
+    private static final int SOURCES_PER_TASK = 32;   // split the sources into tasks of about this many
+    private static final double TIE = 1e-9;           // relative tolerance for two paths being equally short
+
+    /**
+     * Compute the betweenness of every stop from every source.
+     * @param graph The snapshot to analyse.
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @return the betweenness of each stop, indexed as in the snapshot.
+     */
+    public static double[] compute(GraphSnapshot graph, String timeOrDistance) {
+        return compute(graph, timeOrDistance, graph.numStops(), 0L);
+    }
+
+    /**
+     * Compute (or estimate) the betweenness of every stop.
+     * @param graph The snapshot to analyse.
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @param samples The number of source stops to search. If this is less than the number of
+     *                stops, a random sample of sources is used and the result is an estimate.
+     * @param seed The seed for choosing the sample.
+     * @return the betweenness of each stop, indexed as in the snapshot.
+     */
+    public static double[] compute(GraphSnapshot graph, String timeOrDistance, int samples, long seed) {
+        return compute(graph, timeOrDistance, samples, seed, () -> false);
+    }
+
+    /**
+     * Compute (or estimate) the betweenness of every stop, as above, on a background
+     * thread that may be told to stop (see TaskScheduler).
+     * @param cancelled Polled before each source is searched; if it becomes true,
+     *        stops with a CancellationException.
+     */
+    public static double[] compute(GraphSnapshot graph, String timeOrDistance, int samples, long seed,
+                                   BooleanSupplier cancelled) {
+        int n = graph.numStops();
+        int[] sources;
+        if (samples >= n) {
+            sources = IntStream.range(0, n).toArray();
+        } else {
+            // partial Fisher-Yates shuffle to choose the sample without repeats
+            int[] all = IntStream.range(0, n).toArray();
+            Random random = new Random(seed);
+            for (int i = 0; i < samples; i++) {
+                int j = i + random.nextInt(n - i);
+                int tmp = all[i]; all[i] = all[j]; all[j] = tmp;
+            }
+            sources = Arrays.copyOf(all, Math.max(samples, 0));
+        }
+        if (sources.length == 0) { return new double[n]; }
+
+        double[] totals = ForkJoinPool.commonPool().invoke(
+            new SourceTask(graph, graph.edgeCosts(timeOrDistance), sources, 0, sources.length, cancelled));
+        double scale = (double) n / sources.length;
+        if (scale != 1.0) {
+            for (int s = 0; s < n; s++) { totals[s] *= scale; }
+        }
+        return totals;
+    }
+
+    /**
+     * The stops with the highest betweenness, highest first.
+     * @param graph The snapshot that the betweenness was computed on.
+     * @param betweenness The betweenness of each stop.
+     * @param k The number of stops to return.
+     */
+    public static List<Stop> topStops(GraphSnapshot graph, double[] betweenness, int k) {
+        List<Stop> ans = new ArrayList<>();
+        IntStream.range(0, graph.numStops()).boxed()
+            .sorted((a, b) -> Double.compare(betweenness[b], betweenness[a]))
+            .limit(k)
+            .forEach(s -> ans.add(graph.stop(s)));
+        return ans;
+    }
+
+    /**
+     * Brandes' algorithm for a range of the sources. Splits itself in half until the
+     * range is small, then searches from each source using its own arrays.
+     * Returns the totals for its sources.
+     */
+    private static class SourceTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphSnapshot graph;
+        private final double[] edgeCost;
+        private final int[] sources;
+        private final int from;
+        private final int to;
+        private final BooleanSupplier cancelled;
+
+        SourceTask(GraphSnapshot graph, double[] edgeCost, int[] sources, int from, int to, BooleanSupplier cancelled) {
+            this.graph = graph;
+            this.edgeCost = edgeCost;
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > SOURCES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                SourceTask left = new SourceTask(graph, edgeCost, sources, from, mid, cancelled);
+                left.fork();
+                double[] right = new SourceTask(graph, edgeCost, sources, mid, to, cancelled).compute();
+                double[] ans = left.join();
+                for (int s = 0; s < ans.length; s++) { ans[s] += right[s]; }
+                return ans;
+            }
+
+            int n = graph.numStops();
+            double[] totals = new double[n];
+            double[] cost = new double[n];
+            double[] paths = new double[n];     // number of shortest paths from the source (sigma)
+            double[] dependency = new double[n];
+            int[] settledOrder = new int[n];     // stops in the order they were settled
+            int[] position = new int[n];         // where each settled stop is in settledOrder
+            boolean[] visited = new boolean[n];  // for ordering the stops settled at the same cost
+            int[] stack = new int[n];
+            int[] cursor = new int[n];
+            int[] tieOrder = new int[n];
+            boolean[] settled = new boolean[n];
+            StopHeap fringe = new StopHeap(n);
+
+            for (int k = from; k < to; k++) {
+                if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+                int source = sources[k];
+                int numSettled = 0;
+                Arrays.fill(cost, Double.POSITIVE_INFINITY);
+                Arrays.fill(paths, 0);
+                Arrays.fill(settled, false);
+
+                // Dijkstra, for the cost of each stop and the order the stops are settled in
+                cost[source] = 0;
+                fringe.clear();
+                fringe.push(source, 0);
+                while (!fringe.isEmpty()) {
+                    int stop = fringe.pop();
+                    if (settled[stop]) { continue; }
+                    settled[stop] = true;
+                    position[stop] = numSettled;
+                    settledOrder[numSettled++] = stop;
+                    int end = graph.outStart(stop + 1);
+                    for (int j = graph.outStart(stop); j < end; j++) {
+                        int e = graph.outEdge(j);
+                        int next = graph.edgeTo(e);
+                        if (settled[next]) { continue; }
+                        double total = cost[stop] + edgeCost[e];
+                        if (total < cost[next]) {
+                            cost[next] = total;
+                            fringe.push(next, total);
+                        }
+                    }
+                }
+
+                // An edge can cost nothing (eg, walking between stops in the same place, by
+                // distance), and the heap may then settle the stop at the end of the edge before
+                // the one at its start, at the same cost. So the paths are counted after the
+                // search, once the stops at each cost have been put in an order where those edges
+                // go forward. Only an edge from a stop earlier in the order is on a shortest path,
+                // so the counts and the dependencies are over the same acyclic paths.
+                for (int i = 0; i < numSettled; ) {
+                    int j = i + 1;
+                    while (j < numSettled && sameCost(cost[settledOrder[j]], cost[settledOrder[i]])) { j++; }
+                    if (j - i > 1) { orderTies(i, j, settledOrder, settled, position, cost, visited, stack, cursor, tieOrder); }
+                    i = j;
+                }
+
+                // count the shortest paths to each stop, in that order
+                paths[source] = 1;
+                for (int i = 1; i < numSettled; i++) {
+                    int stop = settledOrder[i];
+                    double count = 0;
+                    int end = graph.inStart(stop + 1);
+                    for (int j = graph.inStart(stop); j < end; j++) {
+                        int e = graph.inEdge(j);
+                        int prev = graph.edgeFrom(e);
+                        if (isPredecessor(prev, e, stop, settled, position, cost)) { count += paths[prev]; }
+                    }
+                    paths[stop] = count;
+                }
+
+                // accumulate dependencies, furthest stop first. The predecessors of a stop
+                // are found from its backward edges rather than stored during the search.
+                for (int i = 0; i < numSettled; i++) { dependency[settledOrder[i]] = 0; }
+                for (int i = numSettled - 1; i > 0; i--) {
+                    int stop = settledOrder[i];
+                    double share = (1 + dependency[stop]) / paths[stop];
+                    int end = graph.inStart(stop + 1);
+                    for (int j = graph.inStart(stop); j < end; j++) {
+                        int e = graph.inEdge(j);
+                        int prev = graph.edgeFrom(e);
+                        if (isPredecessor(prev, e, stop, settled, position, cost)) {
+                            dependency[prev] += paths[prev] * share;
+                        }
+                    }
+                    totals[stop] += dependency[stop];
+                }
+            }
+            return totals;
+        }
+
+        /**
+         * Reorder settledOrder[from..to), stops settled at the same cost, so that every free
+         * edge between them (one on a shortest path) goes from a stop to a later one: a depth
+         * first search over those edges, from the stops in the order they were settled, then
+         * the reverse of the order the stops were finished in. Only an edge that closes a cycle
+         * of free edges (eg, walking both ways between stops in the same place) goes back.
+         */
+        private void orderTies(int from, int to, int[] settledOrder, boolean[] settled, int[] position, double[] cost,
+                               boolean[] visited, int[] stack, int[] cursor, int[] tieOrder) {
+            for (int k = from; k < to; k++) { visited[settledOrder[k]] = false; }
+            int finished = to;
+            for (int k = from; k < to; k++) {
+                int root = settledOrder[k];
+                if (visited[root]) { continue; }
+                visited[root] = true;
+                int depth = 0;
+                stack[0] = root;
+                cursor[0] = graph.outStart(root);
+                while (depth >= 0) {
+                    int stop = stack[depth];
+                    if (cursor[depth] < graph.outStart(stop + 1)) {
+                        int e = graph.outEdge(cursor[depth]++);
+                        int next = graph.edgeTo(e);
+                        if (isFree(stop, e, next, from, to, settled, position, cost) && !visited[next]) {
+                            visited[next] = true;
+                            depth++;
+                            stack[depth] = next;
+                            cursor[depth] = graph.outStart(next);
+                        }
+                    } else {
+                        tieOrder[--finished] = stop;
+                        depth--;
+                    }
+                }
+            }
+            for (int k = from; k < to; k++) {
+                settledOrder[k] = tieOrder[k];
+                position[tieOrder[k]] = k;
+            }
+        }
+
+        /** True if edge e joins two different stops of settledOrder[from..to) on a shortest path */
+        private boolean isFree(int stop, int e, int next, int from, int to, boolean[] settled, int[] position, double[] cost) {
+            return settled[next] && next != stop && position[next] >= from && position[next] < to
+                && sameCost(cost[stop] + edgeCost[e], cost[next]);
+        }
+
+        /** True if edge e from prev is the last edge of a shortest path to stop */
+        private boolean isPredecessor(int prev, int e, int stop, boolean[] settled, int[] position, double[] cost) {
+            return settled[prev] && position[prev] < position[stop] && sameCost(cost[prev] + edgeCost[e], cost[stop]);
+        }
+
+        private static boolean sameCost(double a, double b) {
+            if (b == Double.POSITIVE_INFINITY) { return false; }
+            return Math.abs(a - b) <= TIE * Math.max(1.0, Math.abs(b));
+        }
+    }
+
+    /**
+     * Print the top transfer hubs of the network in the data files, by time and by distance.
+     * Arguments (optional): number of hubs to print, number of sources to sample.
+     */
+    public static void main(String[] args) {
+        int top = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Collection<Line> lines = Controller.loadLines(new File("data/lines.txt"), stopMap);
+        GraphSnapshot graph = new GraphSnapshot(new Graph(stopMap.values(), lines));
+        int samples = (args.length > 1) ? Integer.parseInt(args[1]) : graph.numStops();
+
+        for (String timeOrDistance : List.of("time", "distance")) {
+            long start = System.nanoTime();
+            double[] betweenness = compute(graph, timeOrDistance, samples, 1L);
+            System.out.printf("Betweenness by %s from %d sources in %.1f ms%n", timeOrDistance,
+                              Math.min(samples, graph.numStops()), (System.nanoTime() - start) / 1e6);
+            for (Stop stop : topStops(graph, betweenness, top)) {
+                System.out.printf("  %10.0f  %s%n", betweenness[graph.indexOf(stop)], stop);
+            }
+        }
+    }
+
+}
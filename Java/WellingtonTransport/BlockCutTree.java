@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The block-cut tree of the undirected graph of neighbours in a GraphSnapshot.
+ *
+ * A block is a maximal biconnected piece of the graph (no single stop can disconnect it)
+ * and a cut vertex is an articulation point - a stop whose removal splits its component.
+ * The tree links every cut vertex to the blocks that contain it.
+ *
+ * As well as the tree, this records, for every stop, the sizes of the pieces that its
+ * component would be split into if the stop were closed, which is what is needed to
+ * measure the disruption a closure causes.
+ *
+ * Uses the same depth/reach-back algorithm as ArticulationPoints, but iteratively
+ * (so that large networks do not overflow the stack) and over stop indexes.
+ */
+public class BlockCutTree {
+
+    private static final Metrics.Phase METRICS = Metrics.phase("block-cut tree", "stops", "blocks", "cut vertices");
+
+    private static final int[] NO_PIECES = new int[0];
+
+    private final GraphSnapshot graph;
+    private final int[] componentSize;    // size of the connected component containing each stop
+    private final int[][] pieces;         // sizes of the pieces left when each stop is closed
+    private final boolean[] cutVertex;    // is each stop an articulation point
+    private final List<int[]> blocks = new ArrayList<>();   // stops in each block
+    private final int[][] blocksOf;       // blocks containing each stop
+
+    // preorder number and subtree size of each stop in the depth first search, and the
+    // children of each stop whose subtrees are separated from the rest when it is closed.
+    // The subtree of c holds the stops u with order[c] <= order[u] < order[c]+subtreeSize[c].
+    private final int[] order;
+    private final int[] subtreeSize;
+    private final int[][] separatedChildren;
+
+    /**
+     * Build the block-cut tree of the neighbour graph of a snapshot.
+     */
+    public BlockCutTree(GraphSnapshot graph) {
+        this(graph, () -> false);
+    }
+
+    /**
+     * Build the block-cut tree of the neighbour graph of a snapshot, on a background
+     * thread that may be told to stop (see TaskScheduler).
+     * @param cancelled Polled at each new component and every 1024 stops visited;
+     *        if it becomes true, stops with a CancellationException.
+     */
+    public BlockCutTree(GraphSnapshot graph, BooleanSupplier cancelled) {
+        long started = Metrics.start();
+        this.graph = graph;
+        int n = graph.numStops();
+        componentSize = new int[n];
+        pieces = new int[n][];
+        cutVertex = new boolean[n];
+
+        int[] depth = new int[n];
+        Arrays.fill(depth, -1);
+        int[] reachBack = new int[n];
+        int[] parent = new int[n];
+        order = new int[n];
+        subtreeSize = new int[n];
+        separatedChildren = new int[n][];
+        List<List<Integer>> childLists = new ArrayList<>(n);
+        int visits = 0;
+        int[] nextNbr = new int[n];          // position in the neighbour list of the next neighbour to visit
+        int[] pieceTotal = new int[n];       // total size of the pieces found so far for each stop
+        List<List<Integer>> pieceLists = new ArrayList<>(n);
+        for (int s = 0; s < n; s++) { pieceLists.add(null); childLists.add(null); }
+
+        int[] dfsStack = new int[n];         // the current depth first path
+        int[] blockStack = new int[n];       // stops not yet assigned to a block
+        int blockTop = 0;
+        int[] component = new int[n];        // stops in the current component
+        List<List<Integer>> blockLists = new ArrayList<>();
+        List<List<Integer>> blocksOfList = new ArrayList<>(n);
+        for (int s = 0; s < n; s++) { blocksOfList.add(new ArrayList<>(2)); }
+
+        for (int root = 0; root < n; root++) {
+            if (depth[root] >= 0) { continue; }
+            if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+            int compCount = 0;
+            int top = 0;
+            dfsStack[top++] = root;
+            depth[root] = 0;
+            order[root] = visits++;
+            reachBack[root] = 0;
+            parent[root] = -1;
+            nextNbr[root] = graph.nbrStart(root);
+            blockStack[blockTop++] = root;
+
+            while (top > 0) {
+                int stop = dfsStack[top - 1];
+                if (nextNbr[stop] < graph.nbrStart(stop + 1)) {
+                    int neighbour = graph.nbr(nextNbr[stop]++);
+                    if (depth[neighbour] < 0) {
+                        // tree edge: go down to the neighbour
+                        if ((visits & 1023) == 0 && cancelled.getAsBoolean()) { throw new CancellationException(); }
+                        depth[neighbour] = depth[stop] + 1;
+                        order[neighbour] = visits++;
+                        reachBack[neighbour] = depth[neighbour];
+                        parent[neighbour] = stop;
+                        nextNbr[neighbour] = graph.nbrStart(neighbour);
+                        dfsStack[top++] = neighbour;
+                        blockStack[blockTop++] = neighbour;
+                    } else if (neighbour != parent[stop]) {
+                        reachBack[stop] = Math.min(reachBack[stop], depth[neighbour]);
+                    }
+                    continue;
+                }
+
+                // finished all the neighbours of stop: return to its parent
+                top--;
+                subtreeSize[stop]++;
+                component[compCount++] = stop;
+                int from = parent[stop];
+                if (from < 0) { continue; }
+                subtreeSize[from] += subtreeSize[stop];
+                reachBack[from] = Math.min(reachBack[from], reachBack[stop]);
+                if (reachBack[stop] >= depth[from]) {
+                    // the subtree under stop is only connected to the rest through from
+                    if (pieceLists.get(from) == null) {
+                        pieceLists.set(from, new ArrayList<>());
+                        childLists.set(from, new ArrayList<>());
+                    }
+                    pieceLists.get(from).add(subtreeSize[stop]);
+                    childLists.get(from).add(stop);
+                    pieceTotal[from] += subtreeSize[stop];
+
+                    List<Integer> block = new ArrayList<>();
+                    int b = blockLists.size();
+                    int member;
+                    do {
+                        member = blockStack[--blockTop];
+                        block.add(member);
+                        blocksOfList.get(member).add(b);
+                    } while (member != stop);
+                    block.add(from);
+                    blocksOfList.get(from).add(b);
+                    blockLists.add(block);
+                }
+            }
+            if (blockTop > 0 && blockStack[blockTop - 1] == root && blocksOfList.get(root).isEmpty()) {
+                // an isolated stop is a block on its own
+                blocksOfList.get(root).add(blockLists.size());
+                blockLists.add(List.of(root));
+            }
+            blockTop = 0;
+
+            // sizes of the pieces left over when each stop of the component is closed
+            for (int k = 0; k < compCount; k++) {
+                int s = component[k];
+                componentSize[s] = compCount;
+                List<Integer> found = pieceLists.get(s);
+                if (s != root) {
+                    // everything outside the separated subtrees is still joined through the parent
+                    int rest = compCount - 1 - pieceTotal[s];
+                    if (found == null) { found = new ArrayList<>(); }
+                    if (rest > 0) { found.add(rest); }
+                }
+                pieces[s] = (found == null) ? NO_PIECES : found.stream().mapToInt(Integer::intValue).toArray();
+                List<Integer> children = childLists.get(s);
+                separatedChildren[s] = (children == null) ? NO_PIECES : children.stream().mapToInt(Integer::intValue).toArray();
+                cutVertex[s] = pieces[s].length > 1;
+            }
+        }
+
+        for (List<Integer> block : blockLists) {
+            blocks.add(block.stream().mapToInt(Integer::intValue).toArray());
+        }
+        blocksOf = new int[n][];
+        for (int s = 0; s < n; s++) {
+            blocksOf[s] = blocksOfList.get(s).stream().mapToInt(Integer::intValue).toArray();
+        }
+        if (Metrics.ENABLED) {
+            int cuts = 0;
+            for (boolean cut : cutVertex) { if (cut) { cuts++; } }
+            METRICS.record(started, n, blocks.size(), cuts);
+        }
+    }
+
+    /** The snapshot this tree was built from */
+    public GraphSnapshot getGraph() { return graph; }
+
+    /** Is the stop (by index) an articulation point */
+    public boolean isCutVertex(int stop) { return cutVertex[stop]; }
+
+    /** Number of stops in the connected component containing the stop */
+    public int componentSize(int stop) { return componentSize[stop]; }
+
+    /**
+     * Sizes of the separate pieces that the stop's component would split into
+     * if the stop were closed. A stop that is not a cut vertex leaves one piece
+     * (or none, if it is on its own).
+     */
+    public int[] splitSizes(int stop) { return pieces[stop].clone(); }
+
+    /**
+     * Number of stops that would be cut off from the largest remaining piece
+     * of the component if the stop were closed (0 for stops that are not cut vertices).
+     */
+    public int strandedStops(int stop) {
+        int total = 0;
+        int largest = 0;
+        for (int size : pieces[stop]) {
+            total += size;
+            largest = Math.max(largest, size);
+        }
+        return total - largest;
+    }
+
+    /**
+     * Would closing a stop leave two other stops (in its component) in different pieces?
+     * This answers the question from the tree alone, without searching the graph.
+     */
+    public boolean separates(int closed, int a, int b) {
+        if (!cutVertex[closed]) { return false; }
+        return pieceOf(closed, a) != pieceOf(closed, b);
+    }
+
+    /**
+     * The separated child of the closed stop whose subtree contains the stop,
+     * or -1 if the stop is in the piece that is still joined through the closed stop's parent.
+     */
+    private int pieceOf(int closed, int stop) {
+        for (int child : separatedChildren[closed]) {
+            if (order[child] <= order[stop] && order[stop] < order[child] + subtreeSize[child]) { return child; }
+        }
+        return -1;
+    }
+
+    /** Number of blocks (biconnected pieces) in the tree */
+    public int numBlocks() { return blocks.size(); }
+
+    /** Indexes of the stops in a block */
+    public int[] blockStops(int block) { return blocks.get(block).clone(); }
+
+    /** Indexes of the blocks containing a stop (more than one only for cut vertices) */
+    public int[] blocksOf(int stop) { return blocksOf[stop].clone(); }
+
+}
@@ -0,0 +1,226 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * "What if this stop closes?" analysis.
+ *
+ * For every stop (or a chosen subset of the stops) this works out the disruption that
+ * closing the stop would cause, without changing the Graph:
+ *  - from the block-cut tree: the sizes of the pieces its component would split into,
+ *    and how many stops would be stranded away from the largest piece;
+ *  - from a sample of origin/destination (OD) pairs: how many pairs that currently travel
+ *    through the stop would have no route at all, and how much longer the others would take.
+ *
+ * Only the OD pairs whose current shortest path passes through a stop are re-routed when
+ * that stop is closed, using a search that skips the stop. The stops are evaluated in
+ * parallel; each thread has its own SearchWorkspace over a shared GraphSnapshot.
+ */
+public class ClosureAnalysis {
+
+    private final GraphSnapshot graph;
+    private final BlockCutTree tree;
+    private final String timeOrDistance;
+
+    // the sampled OD pairs and the cost of their shortest paths with nothing closed
+    private final int[] origins;
+    private final int[] destinations;
+    private final double[] baseCost;
+
+    // affected[s] = the OD pairs whose shortest path passes through stop s
+    private final int[][] affected;
+
+    /**
+     * The disruption caused by closing one stop.
+     */
+    public static class Result {
+        private final Stop stop;
+        private final int[] splitSizes;
+        private final int strandedStops;
+        private final int affectedPairs;
+        private final int disconnectedPairs;
+        private final double extraCost;
+
+        Result(Stop stop, int[] splitSizes, int strandedStops, int affectedPairs,
+               int disconnectedPairs, double extraCost) {
+            this.stop = stop;
+            this.splitSizes = splitSizes;
+            this.strandedStops = strandedStops;
+            this.affectedPairs = affectedPairs;
+            this.disconnectedPairs = disconnectedPairs;
+            this.extraCost = extraCost;
+        }
+
+        /** The closed stop */
+        public Stop getStop() { return stop; }
+
+        /** Sizes of the pieces that the stop's component splits into */
+        public int[] getSplitSizes() { return splitSizes.clone(); }
+
+        /** Number of stops cut off from the largest remaining piece */
+        public int getStrandedStops() { return strandedStops; }
+
+        /** Number of sampled OD pairs whose shortest path used the stop */
+        public int getAffectedPairs() { return affectedPairs; }
+
+        /** Number of affected OD pairs that have no route once the stop is closed */
+        public int getDisconnectedPairs() { return disconnectedPairs; }
+
+        /** Total extra cost (seconds or meters) of the affected OD pairs that can still be routed */
+        public double getExtraCost() { return extraCost; }
+
+        /** Mean extra cost over the affected OD pairs that can still be routed */
+        public double getMeanExtraCost() {
+            int rerouted = affectedPairs - disconnectedPairs;
+            return (rerouted == 0) ? 0 : extraCost / rerouted;
+        }
+
+        public String toString() {
+            return String.format("%s: split %s, %d stranded, %d/%d OD pairs cut, +%.0f mean",
+                                 stop.getName(), Arrays.toString(splitSizes), strandedStops,
+                                 disconnectedPairs, affectedPairs, getMeanExtraCost());
+        }
+    }
+
+    /** The order of the report: most stranded stops, then most OD pairs cut, then most extra cost */
+    public static final Comparator<Result> BY_DISRUPTION =
+        Comparator.comparingInt(Result::getStrandedStops).reversed()
+        .thenComparing(Comparator.comparingInt(Result::getDisconnectedPairs).reversed())
+        .thenComparing(Comparator.comparingDouble(Result::getExtraCost).reversed())
+        .thenComparing(Result::getStop);
+
+    /**
+     * Set up the analysis of a graph.
+     * Builds the block-cut tree and routes the sampled OD pairs with nothing closed.
+     * @param graph The graph (it is not changed).
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @param numPairs The number of random OD pairs to sample.
+     * @param seed The seed for choosing the OD pairs (so that reports are repeatable).
+     */
+    public ClosureAnalysis(Graph graph, String timeOrDistance, int numPairs, long seed) {
+        this.graph = new GraphSnapshot(graph);
+        this.tree = new BlockCutTree(this.graph);
+        this.timeOrDistance = timeOrDistance;
+
+        int n = this.graph.numStops();
+        Random random = new Random(seed);
+        origins = new int[(n < 2) ? 0 : numPairs];
+        destinations = new int[origins.length];
+        for (int p = 0; p < origins.length; p++) {
+            origins[p] = random.nextInt(n);
+            do { destinations[p] = random.nextInt(n); } while (destinations[p] == origins[p]);
+        }
+
+        // route every OD pair, and record which pairs pass through each stop
+        baseCost = new double[origins.length];
+        int[][] interior = new int[origins.length][];
+        ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(this.graph));
+        IntStream.range(0, origins.length).parallel().forEach(p -> {
+            SearchWorkspace ws = workspaces.get();
+            baseCost[p] = ws.shortestPath(origins[p], destinations[p], timeOrDistance, SearchWorkspace.NONE);
+            IntStream.Builder stops = IntStream.builder();
+            ws.forEachInteriorStop(destinations[p], stops::add);
+            interior[p] = stops.build().toArray();
+        });
+        int[] count = new int[n];
+        for (int[] stops : interior) { for (int s : stops) { count[s]++; } }
+        affected = new int[n][];
+        for (int s = 0; s < n; s++) { affected[s] = new int[count[s]]; count[s] = 0; }
+        for (int p = 0; p < interior.length; p++) {
+            for (int s : interior[p]) { affected[s][count[s]++] = p; }
+        }
+    }
+
+    /**
+     * Evaluate the closure of every stop in the graph.
+     * @return the results, most disruptive first.
+     */
+    public List<Result> analyseAll() {
+        int[] all = IntStream.range(0, graph.numStops()).toArray();
+        return analyse(all);
+    }
+
+    /**
+     * Evaluate the closure of each of the given stops (one at a time).
+     * Stops that are not in the graph are ignored.
+     * @return the results, most disruptive first.
+     */
+    public List<Result> analyse(Collection<Stop> stops) {
+        return analyse(stops.stream().mapToInt(graph::indexOf).filter(s -> s >= 0).toArray());
+    }
+
+    private List<Result> analyse(int[] candidates) {
+        ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace(graph));
+        Result[] results = new Result[candidates.length];
+        IntStream.range(0, candidates.length).parallel().forEach(k -> {
+            results[k] = evaluate(candidates[k], workspaces.get());
+        });
+        List<Result> ans = new ArrayList<>(List.of(results));
+        ans.sort(BY_DISRUPTION);
+        return ans;
+    }
+
+    /** Work out the disruption of closing one stop, re-routing only the OD pairs that used it */
+    private Result evaluate(int closed, SearchWorkspace ws) {
+        int disconnected = 0;
+        double extra = 0;
+        for (int p : affected[closed]) {
+            if (tree.separates(closed, origins[p], destinations[p])) {
+                disconnected++;       // no need to search: the tree says there is no route
+                continue;
+            }
+            double cost = ws.shortestPath(origins[p], destinations[p], timeOrDistance, closed);
+            if (cost == Double.POSITIVE_INFINITY) { disconnected++; }
+            else { extra += cost - baseCost[p]; }
+        }
+        return new Result(graph.stop(closed), tree.splitSizes(closed), tree.strandedStops(closed),
+                          affected[closed].length, disconnected, extra);
+    }
+
+    /** The block-cut tree used by the analysis */
+    public BlockCutTree getBlockCutTree() { return tree; }
+
+    /**
+     * Build a text report of the most disruptive closures.
+     * @param results The results (in the order to report them).
+     * @param top The maximum number of results to include.
+     */
+    public String report(List<Result> results, int top) {
+        StringBuilder ans = new StringBuilder();
+        ans.append(String.format("Closure analysis by %s over %d OD pairs (%d stops, %d blocks)%n",
+                                 timeOrDistance, origins.length, graph.numStops(), tree.numBlocks()));
+        int rank = 1;
+        for (Result result : results) {
+            if (rank > top) { break; }
+            ans.append(String.format("%3d. %s%n", rank++, result));
+        }
+        return ans.toString();
+    }
+
+    /**
+     * Print a ranked closure report for the network in the data files.
+     * Arguments (all optional): number of OD pairs, number of stops to report, "time" or "distance".
+     */
+    public static void main(String[] args) {
+        int numPairs = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int top = (args.length > 1) ? Integer.parseInt(args[1]) : 25;
+        String timeOrDistance = (args.length > 2) ? args[2] : "time";
+
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Collection<Line> lines = Controller.loadLines(new File("data/lines.txt"), stopMap);
+        Graph graph = new Graph(stopMap.values(), lines);
+
+        long start = System.nanoTime();
+        ClosureAnalysis analysis = new ClosureAnalysis(graph, timeOrDistance, numPairs, 1L);
+        List<Result> results = analysis.analyseAll();
+        System.out.print(analysis.report(results, top));
+        System.out.printf("Evaluated %d closures in %.1f ms%n", results.size(), (System.nanoTime() - start) / 1e6);
+    }
+
+}
@@ -1,16 +1,21 @@
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class finds strongly connected components is a directed graph using Kosaraju algorithm
  */
 public class Components{
 
+    private static final Metrics.Phase METRICS = Metrics.phase("components", "stops", "edges", "components");
+
     /**
      * Finds strongly connected components in the given graph.
      * @param graph The directed graph.
      */
     public static void findComponents(Graph graph) {
         System.out.println("calling findComponents");
+        long started = Metrics.start();
         graph.resetSubGraphIds();
 
         Set<Stop> visited = new HashSet<>(); // To keep track of the visited nodes
@@ -35,6 +40,7 @@ public class Components{
         }
 
         graph.setSubGraphCount(id);
+        if (Metrics.ENABLED) { METRICS.record(started, graph.getStops().size(), graph.getEdges().size(), id); }
     }
 
     /**
@@ -69,4 +75,74 @@ public class Components{
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Finds strongly connected components in a snapshot, without changing the graph,
+     * so it can run on a background thread (see TaskScheduler).
+     * The same Kosaraju algorithm, but iterative so that long chains of stops do not
+     * overflow the stack of a worker thread.
+     * @param graph The snapshot.
+     * @param cancelled Polled between searches; if it becomes true, stops with a CancellationException.
+     * @return the component number of each stop, indexed as in the snapshot.
+     *         The number of components is one more than the largest number.
+     */
+    public static int[] findComponents(GraphSnapshot graph, BooleanSupplier cancelled) {
+        long started = Metrics.start();
+        int n = graph.numStops();
+        int[] stack = new int[n];
+        int[] nextEdge = new int[n];        // the next forward edge of each stop on the stack
+        boolean[] visited = new boolean[n];
+        int[] finished = new int[n];        // stops in the order their forward search finished
+        int numFinished = 0;
+
+        // Forward search
+        for (int root = 0; root < n; root++) {
+            if (visited[root]) { continue; }
+            if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+            int top = 0;
+            stack[0] = root;
+            visited[root] = true;
+            nextEdge[root] = graph.outStart(root);
+            while (top >= 0) {
+                int stop = stack[top];
+                if (nextEdge[stop] < graph.outStart(stop + 1)) {
+                    int to = graph.edgeTo(graph.outEdge(nextEdge[stop]++));
+                    if (!visited[to]) {
+                        visited[to] = true;
+                        nextEdge[to] = graph.outStart(to);
+                        stack[++top] = to;
+                    }
+                } else {
+                    finished[numFinished++] = stop;
+                    top--;
+                }
+            }
+        }
+
+        // Backward search, latest finished first
+        int[] component = new int[n];
+        Arrays.fill(component, -1);
+        int id = 0;
+        for (int k = n - 1; k >= 0; k--) {
+            int root = finished[k];
+            if (component[root] >= 0) { continue; }
+            if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+            int top = 0;
+            stack[0] = root;
+            component[root] = id;
+            while (top >= 0) {
+                int stop = stack[top--];
+                for (int j = graph.inStart(stop); j < graph.inStart(stop + 1); j++) {
+                    int from = graph.edgeFrom(graph.inEdge(j));
+                    if (component[from] < 0) {
+                        component[from] = id;
+                        stack[++top] = from;
+                    }
+                }
+            }
+            id++;
+        }
+        if (Metrics.ENABLED) { METRICS.record(started, n, graph.numEdges(), id); }
+        return component;
+    }
+
+}
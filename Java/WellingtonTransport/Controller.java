@@ -16,18 +16,21 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.util.Duration;
 
 import java.util.Locale;
 import java.util.ResourceBundle;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
 
 import javafx.beans.value.ChangeListener;
@@ -38,6 +41,7 @@ public class Controller {
 
     public Graph graph;
     public Zoning zoneData;
+    private ZoneIndex zoneIndex;     // for finding the fare zone of a stop or a clicked point
 
 
     // names from the items defined in the FXML file
@@ -67,10 +71,18 @@ public class Controller {
     @FXML
     private CheckBox walking_ch;
     @FXML
+    private CheckBox fares_ch;
+    @FXML
     private Button connectedComponents_bt;
     @FXML
     private Button articulationPoints_bt;
     @FXML
+    private Button hubs_bt;
+    @FXML
+    private Button accessibility_bt;
+    @FXML
+    private Button saveAccessibility_bt;
+    @FXML
     private Slider walkingDistance_sl;
     @FXML
     private TextField walkingDistance_tf;
@@ -83,6 +95,10 @@ public class Controller {
 
     private static final int STOP_SIZE = 5; // drawing size of stops
 
+    private static final int NUM_HUBS = 20;       // number of transfer hubs to highlight
+    private static final int HUB_SOURCES = 500;   // number of sources sampled to estimate betweenness
+    private static final double ACCESSIBILITY_MAX_SECONDS = 3600; // travel time shown as red on the heat map
+
     // used for A*
     private Stop startLocation;
     private Stop goalLocation;
@@ -90,24 +106,112 @@ public class Controller {
     // used to prevent drag from creating a click
     private Boolean dragActive = false;
 
+    // The map is drawn in cached layers, bottom to top
+    private static final double IDLE_REDRAW_MS = 150; // redraw properly this long after panning/zooming stops
+    private final MapLayer zoneLayer = new MapLayer(this::drawFareZones);
+    private final MapLayer accessibilityLayer = new MapLayer(this::drawAccessibility);
+    private final MapLayer edgeLayer = new MapLayer(this::drawEdges);
+    private final MapLayer stopLayer = new MapLayer(this::drawStops);
+    private final PauseTransition idleRedraw = new PauseTransition(Duration.millis(IDLE_REDRAW_MS));
+
+    // Spatial index of the stops and edges, so that only those in view are drawn
+    private NetworkIndex networkIndex = null;
+
+    // Heavy work is done in the background, so the map stays responsive (see TaskScheduler)
+    private static final long SLIDER_DEBOUNCE_MS = 100; // wait for the slider to settle before rebuilding
+    private final TaskScheduler scheduler = new TaskScheduler();
+
+    // Applies changes to the stops and lines files while running (null if the network came from a GTFS feed)
+    private NetworkReloader reloader = null;
+    private volatile double walkingDistance = 0;  // the walking distance of the graph's current walking edges
+
+    // Reused buffers for the screen coordinates of points projected in a batch
+    private double[] screenX = new double[256];
+    private double[] screenY = new double[256];
+
     // Collection of stops that should be highlighted (for whatever reason)
     private Collection<Stop> highlightNodes = new ArrayList<Stop>();
 
     // List of edges forming a path to be displayed 
     private List<Edge> pathEdges = null;
+    private FareRouter.Route pathFare = null;   // the fare of the current path, if it was found by fare
+
+    // The busiest transfer hubs (highest betweenness) to be highlighted
+    private List<Stop> hubNodes = new ArrayList<Stop>();
+
+    // The component of each stop, indexed as in the snapshot they were found in (null if not found).
+    // They are only shown while that snapshot is of the current version of the graph.
+    private GraphSnapshot componentSnapshot = null;
+    private int[] componentIds = null;
+    private int numComponents = 0;
+
+    // The heat map of travel times to a destination, and its image (null if not shown)
+    private AccessibilityRaster accessibility = null;
+    private WritableImage accessibilityImage = null;
 
     // set up connections between the buttons and the methods
     public void initialize() {
 
-        // load the input files
-        Map<String, Stop> stopMap = loadStops(new File("data/stops.txt"));
-        Collection<Line> lines = loadLines(new File("data/lines.txt"), stopMap);
-                               
-        this.graph = new Graph(stopMap.values(), lines);
-        System.out.println("Loaded Graph Data");
-        
-        this.zoneData = new Zoning(new File("data/WellingtonZones.csv"));
-        System.out.println("Loaded Zone Data");
+        // load the compiled network file if it is up to date, otherwise the input files
+        // (a GTFS feed, if there is one, instead of the stops and lines files). The network
+        // file is compiled from the stops and lines files, so it is not used with a GTFS feed.
+        File stopsFile = new File("data/stops.txt");
+        File linesFile = new File("data/lines.txt");
+        File gtfsFile = new File("data/gtfs.zip");
+        File zonesFile = new File("data/WellingtonZones.csv");
+        File networkFile = new File("data/network.bin");
+        if (!gtfsFile.isFile() && NetworkSnapshotFile.isUpToDate(networkFile, stopsFile, linesFile, zonesFile)) {
+            try {
+                NetworkSnapshotFile network = NetworkSnapshotFile.read(networkFile);
+                this.graph = network.getGraph();
+                this.zoneData = network.getZoning();
+                if (network.getWalkingDistance() > 0) {
+                    // show the stored walking edges in the controls (the slider is 0 - 400 by quarters)
+                    walking_ch.setSelected(true);
+                    walkingDistance_sl.setValue(network.getWalkingDistance() / 4.0);
+                    walkingDistance_tf.setText(Double.toString(network.getWalkingDistance()));
+                    scheduler.cancel("walking");  // setting the slider must not rebuild the walking edges
+                }
+                this.walkingDistance = network.getWalkingDistance();
+                System.out.println("Loaded Graph and Zone Data from " + networkFile);
+            } catch (IOException e) {
+                System.out.println("Could not load " + networkFile + ", using the input files: " + e.getMessage());
+            }
+        }
+        if (this.graph == null && gtfsFile.isFile()) {
+            try {
+                GtfsFeed feed = GtfsFeed.read(gtfsFile);
+                this.graph = new Graph(feed.getStopMap().values(), feed.getLines());
+                System.out.println("Loaded Graph Data from " + gtfsFile);
+            } catch (IOException e) {
+                System.out.println("Could not load " + gtfsFile + ", using the input files: " + e.getMessage());
+            }
+        }
+        if (this.graph == null) {
+            Map<String, Stop> stopMap = loadStops(stopsFile);
+            Collection<Line> lines = loadLines(linesFile, stopMap);
+
+            this.graph = new Graph(stopMap.values(), lines);
+            System.out.println("Loaded Graph Data");
+        }
+        if (this.zoneData == null) {
+            this.zoneData = new Zoning(zonesFile);
+            System.out.println("Loaded Zone Data");
+        }
+        this.zoneIndex = new ZoneIndex(zoneData);
+        zoneIndex.annotate(graph.getStops());
+
+        // apply corrections to the stops and lines files as they are saved
+        if (!gtfsFile.isFile()) {
+            reloader = new NetworkReloader(graph, stopsFile, linesFile, () -> walkingDistance, zoneIndex);
+            try {
+                reloader.watch(changes -> Platform.runLater(() -> networkChanged(changes)));
+            } catch (IOException e) {
+                System.out.println("Cannot watch " + stopsFile.getParentFile() + " for changes: " + e.getMessage());
+            }
+        }
+
+        idleRedraw.setOnFinished(e -> drawGraph(graph));
 
         drawGraph(graph);
     }
@@ -135,6 +239,10 @@ public class Controller {
     /** handle the quit button being pressed connected using FXML */
     public void handleQuit(ActionEvent event) {
         System.out.println("Quitting with event " + event.getEventType());
+        if (Metrics.ENABLED) { System.out.println(Metrics.toJson()); }
+        if (reloader != null) {
+            try { reloader.close(); } catch (IOException e) { /* exiting anyway */ }
+        }
         event.consume();
         System.exit(0); // system exit with status 0 - normal
     }
@@ -190,10 +298,8 @@ public class Controller {
         // set the start search location
         startLocation = graph.getFirstMatchingStop(search);
 
-        // perform A* search and get the path edges
-        pathEdges = AStar.findShortestPath(startLocation, goalLocation, "distance");
-
-        drawGraph(graph); //update the graph
+        // perform A* search and draw the path edges when they arrive
+        findPathInBackground();
         event.consume();
     }
 
@@ -203,10 +309,8 @@ public class Controller {
         String search = ((TextField) event.getSource()).getText();
         // set the goal search location
         goalLocation = graph.getFirstMatchingStop(search);
-        // perform A* search and get the path edges
-        pathEdges = AStar.findShortestPath( startLocation, goalLocation, "distance");
-
-        drawGraph(graph);// update the graph
+        // perform A* search and draw the path edges when they arrive
+        findPathInBackground();
         event.consume();
     }
 
@@ -215,12 +319,21 @@ public class Controller {
         System.out.println("Show connected components event " + event.getEventType());
         //INFO : This is where your find component code is called
         highlightNodes.clear();
+        hubNodes.clear();
         pathEdges = null;
-        Components.findComponents(graph);
-        System.out.println("findComponents -> SubGraphCount: "+graph.getSubGraphCount());
-        drawGraph(graph);
-        //display to line text
-        lineText.setText(Integer.toString(graph.getSubGraphCount()));
+        GraphSnapshot snap = getSnapshot();
+        scheduler.submit("analysis", token -> Components.findComponents(snap, token::isCancelled), ids -> {
+            int count = 0;
+            for (int id : ids) { count = Math.max(count, id + 1); }
+            componentSnapshot = snap;
+            componentIds = ids;
+            numComponents = count;
+            System.out.println("findComponents -> SubGraphCount: "+count);
+            stopLayer.invalidate();
+            drawGraph(graph);
+            //display to line text
+            lineText.setText(withMetrics(Integer.toString(count)));
+        });
     }
 
     // handleShowArticulationPoints
@@ -228,22 +341,123 @@ public class Controller {
         System.out.println("Show articulation points event " + event.getEventType());
         //INFO : This is where your articulation points code is called
         pathEdges = null;
-        graph.resetSubGraphIds();
+        hubNodes.clear();
+        componentIds = null;
         walkingDistance_sl.setValue(0.0);
         walkingDistance_tf.setText("0.0");
-        graph.removeWalkingEdges();  // Walking edges shuld not be included.
-        highlightNodes = ArticulationPoints.findArticulationPoints(graph);
+        scheduler.cancel("walking");  // setting the slider must not put walking edges back
+        synchronized (graph) {
+            graph.removeWalkingEdges();  // Walking edges shuld not be included.
+            walkingDistance = 0;
+        }
+        clearAccessibility();
+        invalidateNetworkLayers();
+        drawGraph(graph);
+        // the articulation points are the cut vertices of the block-cut tree
+        GraphSnapshot snap = getSnapshot();
+        scheduler.submit("analysis", token -> {
+            BlockCutTree tree = new BlockCutTree(snap, token::isCancelled);
+            List<Stop> points = new ArrayList<Stop>();
+            for (int s = 0; s < snap.numStops(); s++) {
+                if (tree.isCutVertex(s)) { points.add(snap.stop(s)); }
+            }
+            return points;
+        }, points -> {
+            highlightNodes = points;
+            drawGraph(graph);
+            if (Metrics.ENABLED) { lineText.setText(withMetrics(points.size() + " articulation points")); }
+        });
+    }
+
+    // handleShowHubs highlights the stops with the highest betweenness (by time)
+    public void handleShowHubs(ActionEvent event) {
+        System.out.println("Show hubs event " + event.getEventType());
+        pathEdges = null;
+        GraphSnapshot snap = getSnapshot();
+        scheduler.submit("analysis", token -> Betweenness.compute(snap, "time", HUB_SOURCES, 1L, token::isCancelled), betweenness -> {
+            hubNodes = Betweenness.topStops(snap, betweenness, NUM_HUBS);
+            drawGraph(graph);
+            StringBuilder hubs = new StringBuilder("Busiest transfer hubs (betweenness by time):\n");
+            for (Stop stop : hubNodes) {
+                hubs.append(String.format("%10.0f  %s%n", betweenness[snap.indexOf(stop)], stop.getName()));
+            }
+            lineText.setText(hubs.toString());
+        });
+    }
+
+    /**
+     * handleShowAccessibility shows a heat map of the travel time to the goal stop
+     * (or Wellington Station if there is no goal) from everywhere within walking distance
+     * of a stop, or hides the heat map if it is already shown for that stop (and is still
+     * of the current graph).
+     */
+    public void handleShowAccessibility(ActionEvent event) {
+        System.out.println("Show accessibility event " + event.getEventType());
+        Stop destination = (goalLocation != null) ? goalLocation : graph.getFirstMatchingStop("Wellington Station");
+        if (destination == null) { return; }
+        if (accessibility != null && accessibility.getDestination() == destination && accessibility.getGraph() == getSnapshot()) {
+            showAccessibility(null);
+            return;
+        }
+        GraphSnapshot snap = getSnapshot();
+        scheduler.submit("accessibility", token -> {
+            int d = snap.indexOf(destination);
+            if (d < 0) { return null; }
+            double[] region = AccessibilityRaster.region(snap, AccessibilityRaster.DEFAULT_MAX_WALK_METERS);
+            return new AccessibilityRaster(snap, d, region, AccessibilityRaster.DEFAULT_CELL_METERS,
+                                           AccessibilityRaster.DEFAULT_MAX_WALK_METERS, token::isCancelled);
+        }, raster -> {
+            showAccessibility(raster);
+            if (raster != null) { lineText.setText(withMetrics(raster.toString())); }
+        });
+    }
+
+    // handleSaveAccessibility saves the heat map that is shown as a PNG image
+    public void handleSaveAccessibility(ActionEvent event) {
+        if (accessibility == null) {
+            lineText.setText("Show the travel times first");
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setInitialFileName("accessibility.png");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("PNG image", "*.png"));
+        File file = chooser.showSaveDialog(mapCanvas.getScene().getWindow());
+        if (file == null) { return; }
+        try {
+            accessibility.writePng(file, ACCESSIBILITY_MAX_SECONDS);
+            lineText.setText("Saved the travel times to " + file);
+        } catch (IOException e) {
+            lineText.setText("Could not save " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Drop the heat map (and any being made), when the graph it was made from has changed */
+    private void clearAccessibility() {
+        scheduler.cancel("accessibility");
+        accessibility = null;
+        accessibilityImage = null;
+        accessibilityLayer.invalidate();
+    }
+
+    /** Show a heat map of travel times (or none, if null), making its image once */
+    private void showAccessibility(AccessibilityRaster raster) {
+        accessibility = raster;
+        accessibilityImage = null;
+        if (raster != null) {
+            int width = raster.getWidth(), height = raster.getHeight();
+            accessibilityImage = new WritableImage(width, height);
+            accessibilityImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(),
+                                                          raster.argb(ACCESSIBILITY_MAX_SECONDS), 0, width);
+        }
+        accessibilityLayer.invalidate();
         drawGraph(graph);
     }
 
     // handleAddWalking calls the code to add Walking
     public void handleAddWalking(ActionEvent event) {
         System.out.println("Add walking event " + walking_ch.isSelected());
-        graph.removeWalkingEdges();
-        if (walking_ch.isSelected()) {
-            graph.recomputeWalkingEdges(Double.parseDouble(walkingDistance_tf.getText()));
-        }
-        drawGraph(graph);
+        double dist = walking_ch.isSelected() ? Double.parseDouble(walkingDistance_tf.getText()) : 0;
+        updateWalkingEdges(dist, 0);
     }
 
     // This handles entering distance in the walking text field and sets the slider
@@ -255,12 +469,7 @@ public class Controller {
         catch (Exception e){walkingDistance_tf.setText("0");}
         System.out.println("Setting walking distance (in tf) to " + dist);
         walkingDistance_sl.setValue(dist/4.0);
-        graph.resetSubGraphIds();
-        graph.removeWalkingEdges();
-        if (dist>0){
-            graph.recomputeWalkingEdges(dist);
-        } 
-        drawGraph(graph);
+        updateWalkingEdges(dist, 0);
     }
 
     // This handles entering distance on the walking slider and sets the text field
@@ -269,12 +478,110 @@ public class Controller {
         double dist = Math.round(ovn.getValue()*4.0);
         walkingDistance_tf.setText(Double.toString(dist));
         System.out.println("Setting walking distance (on slider) to " + dist);
-        graph.resetSubGraphIds();
-        graph.removeWalkingEdges();
-        if (dist>0){
-            graph.recomputeWalkingEdges(dist);
-        } 
+        // a drag produces many events: only rebuild once the slider has settled
+        updateWalkingEdges(dist, SLIDER_DEBOUNCE_MS);
+    }
+
+    /**
+     * Rebuild the walking edges in the background, swap them into the graph, and take the
+     * new snapshot there too; then redraw. Supersedes any rebuild that is waiting or still running.
+     * @param dist The walking distance (0 for no walking edges).
+     * @param delayMs How long to wait for another request before starting.
+     */
+    private void updateWalkingEdges(double dist, long delayMs) {
+        scheduler.debounce("walking", delayMs, token -> {
+            // worked out without holding the lock, so the user interface is never kept waiting
+            while (true) {
+                long version = graph.getVersion();
+                List<Edge> walkingEdges = graph.computeWalkingEdges(dist, token::isCancelled);
+                synchronized (graph) {
+                    token.check();   // a superseded rebuild must not overwrite a newer one
+                    // if the network was reloaded meanwhile, the stops may have changed: start again
+                    if (graph.getVersion() != version) { continue; }
+                    graph.setWalkingEdges(walkingEdges);
+                    walkingDistance = dist;
+                }
+                System.out.println("Number of walking edges added: " + walkingEdges.size());
+                return graph.snapshot();
+            }
+        }, snap -> {
+            scheduler.cancel("analysis");   // any components being found are for the old edges
+            clearAccessibility();            // and so are the travel times of the heat map
+            invalidateNetworkLayers();
+            drawGraph(graph);
+            if (Metrics.ENABLED) { lineText.setText(withMetrics("Walking distance " + dist + "m")); }
+        });
+    }
+
+    /**
+     * Show the network again after the data files have been reloaded (see NetworkReloader):
+     * the graph has already been changed, so only what was worked out from it is dropped.
+     */
+    private void networkChanged(NetworkReloader.Changes changes) {
+        scheduler.cancel("analysis");   // any components being found are for the old network
+        clearAccessibility();
+        highlightNodes.clear();
+        hubNodes.clear();
+        if (changes.getRemovedStops().contains(startLocation) || changes.getRemovedStops().contains(goalLocation)) {
+            startLocation = null;
+            goalLocation = null;
+            pathEdges = null;
+            pathFare = null;
+        } else if (startLocation != null && goalLocation != null) {
+            findPathInBackground();
+        }
+        invalidateNetworkLayers();
         drawGraph(graph);
+        lineText.setText(changes.toString());
+    }
+
+    /**
+     * Find the shortest path from startLocation to goalLocation in the background,
+     * then draw it. Supersedes any search that is still running.
+     */
+    private void findPathInBackground() {
+        Stop start = startLocation;
+        Stop goal = goalLocation;
+        GraphSnapshot snap = getSnapshot();
+        if (fares_ch != null && fares_ch.isSelected()) {
+            // weigh fare against time, with a dollar worth 3600/DOLLARS_PER_HOUR seconds
+            scheduler.submit("route", token -> {
+                int s = snap.indexOf(start), g = snap.indexOf(goal);
+                if (s < 0 || g < 0) { return null; }
+                FareRouter router = new FareRouter(snap, FareRouter.WELLINGTON_FARES);
+                return router.route(s, g, "time", 3600 / FareRouter.DOLLARS_PER_HOUR, token::isCancelled);
+            }, route -> {
+                pathEdges = (route == null) ? null : route.getPath();
+                pathFare = route;
+                drawGraph(graph);
+            });
+            return;
+        }
+        scheduler.submit("route", token -> {
+            int s = snap.indexOf(start), g = snap.indexOf(goal);
+            if (s < 0 || g < 0) { return null; }
+            SearchWorkspace search = new SearchWorkspace(snap);
+            double cost = search.shortestPath(s, g, "distance", SearchWorkspace.NONE, token::isCancelled);
+            return (cost == Double.POSITIVE_INFINITY) ? null : search.path(g);
+        }, path -> {
+            pathEdges = path;
+            pathFare = null;
+            drawGraph(graph);
+        });
+    }
+
+    // handleFares: find paths by fare and time, or by distance, and find the current path again
+    public void handleFares(ActionEvent event) {
+        System.out.println("Cheapest fares event " + fares_ch.isSelected());
+        if (startLocation != null && goalLocation != null) { findPathInBackground(); }
+        event.consume();
+    }
+
+    /**
+     * The snapshot of the current version of the graph, for background work
+     */
+    private GraphSnapshot getSnapshot() {
+        return graph.snapshot();
     }
 
     // Mouse scroll for zoom
@@ -283,7 +590,7 @@ public class Controller {
         double changefactor = 1 + (event.getDeltaY() / 400);
         scale *= changefactor;
         // update the graph
-        drawGraph(graph);
+        drawGraphMoving();
         event.consume();
     }
 
@@ -305,7 +612,7 @@ public class Controller {
         dragStartY = event.getY();
         mapOrigin.move(-dx / (scale * ratioLatLon), (dy / scale));
 
-        drawGraph(graph);
+        drawGraphMoving();
         // set drag active true to avoid clicks highlighting nodes
         dragActive = true;
         event.consume();
@@ -332,6 +639,7 @@ public class Controller {
 
         Stop closestStop = findClosestStop(location, graph);
         highlightClosestStop(closestStop);
+        lineText.setText(describeZones(location, closestStop));
 
         if (event.isShiftDown()) {
             // if shift is pressed, add the node to the list of nodes to be searched
@@ -348,12 +656,25 @@ public class Controller {
         }
         if (startLocation != null && closestStop != startLocation) {
             // INFO: This is where your find path code is called during clicking
-            pathEdges = AStar.findShortestPath(startLocation, goalLocation,"distance");
+            findPathInBackground();
         }
         drawGraph(graph);
         event.consume();
     }
 
+    /**
+     * Describe the fare zones of a clicked location and of the closest stop to it
+     */
+    private String describeZones(GisPoint location, Stop closestStop) {
+        int zone = zoneIndex.zoneNumberAt(location.getLon(), location.getLat());
+        String ans = (zone < 0) ? "Outside the fare zones" : "Fare zone " + zone;
+        if (closestStop != null) {
+            ans += "\nClosest stop: " + closestStop.getName()
+                + ((closestStop.getZone() < 0) ? " (outside the fare zones)" : " (fare zone " + closestStop.getZone() + ")");
+        }
+        return ans;
+    }
+
     /**
      * Find the closest stop to the given Gis Point location
      * @param loc
@@ -390,60 +711,153 @@ public class Controller {
      * Draw the current graph, along with the current path, if there is one.
      * If there is a path, it also updates the lineText text area with a
      * text description of the path.
+     * The fare zones, edges and stops are cached layers that are only redrawn when
+     * they are out of date; the path and highlighted stops are drawn over them.
      */
     public void drawGraph(Graph graph) {
+        idleRedraw.stop();
+        drawLayers(true);
+    }
+
+    /**
+     * Draw the map quickly while the user is panning or zooming, by moving the
+     * cached layers rather than redrawing them. The layers are redrawn properly
+     * once the user has stopped for a moment.
+     */
+    private void drawGraphMoving() {
+        drawLayers(false);
+        idleRedraw.playFromStart();
+    }
+
+    /**
+     * Record that the edges or the stops (eg, their components) have changed,
+     * so their layers must be redrawn.
+     */
+    private void invalidateNetworkLayers() {
+        networkIndex = null;
+        edgeLayer.invalidate();
+        stopLayer.invalidate();
+    }
+
+    /**
+     * Put the layers together on the map canvas, then draw the path and
+     * highlighted stops on top.
+     * @param render whether out of date layers should be redrawn (or just moved)
+     */
+    private void drawLayers(boolean render) {
         GraphicsContext gc = mapCanvas.getGraphicsContext2D();
         gc.clearRect(0, 0, mapCanvas.getWidth(), mapCanvas.getHeight());
-        drawFareZones(gc);
+        zoneLayer.draw(gc, this, render);
 
         if (graph == null) {return;}
 
-        // draw all the edges
-        for (Edge edge : graph.getEdges()){
-            Color color = switch (edge.transpType()) {
-                case Transport.BUS -> Color.ROSYBROWN;
-                case Transport.TRAIN -> Color.ORANGE;
-                case Transport.WALKING -> Color.PURPLE;
-                default -> Color.GREEN; };
+        if (accessibilityImage != null) { accessibilityLayer.draw(gc, this, render); }
+        edgeLayer.draw(gc, this, render);
+        stopLayer.draw(gc, this, render);
 
-            drawEdge(edge, 0.5, color);
+        drawPath(gc);
+        // Hilighted stops are red and hubs are gold, both double the normal size
+        for (Stop stop : hubNodes) {
+            drawStop(gc, stop, STOP_SIZE*2, Color.GOLD);
+        }
+        for (Stop stop : highlightNodes) {
+            drawStop(gc, stop, STOP_SIZE*2, Color.RED);
         }
 
-        drawPath();
+        // display the start and goal stops and report the path (if there is one)
+        if (startLocation != null) {
+            startText.setText(startLocation.getName());
+        }
+        if (goalLocation != null) {
+            goalText.setText(goalLocation.getName());
+        }
+        reportPath();
+    }
 
-        // Draw the stops,
-        // Hilighted stops are red and double the normal size
-        // For the other nodes, if the subgraphs /connected components have been identified,
-        //  then colour the nodes according to their component number
+    /**
+     * Draw all the edges of the graph (the edge layer)
+     * The visible edges are projected in one batch, then drawn one colour at a time.
+     */
+    private void drawEdges(GraphicsContext gc) {
+        NetworkIndex index = getNetworkIndex();
+        int[] visible = index.edgesIn(Projection.visibleRegion(this, 0));
+        int[] ends = new int[2 * visible.length];
+        for (int j = 0; j < visible.length; j++) {
+            ends[2 * j] = 2 * visible[j];
+            ends[2 * j + 1] = 2 * visible[j] + 1;
+        }
+        ensureScreenBuffers(ends.length);
+        Projection.model2Screen(index.edgeLonLat(), ends, ends.length, Projection.view(this), screenX, screenY);
+
+        Color[] colors = {Color.ROSYBROWN, Color.ORANGE, Color.PURPLE, Color.GREEN};
+        int[] group = new int[visible.length];
+        for (int j = 0; j < visible.length; j++) {
+            group[j] = switch (index.edge(visible[j]).transpType()) {
+                case Transport.BUS -> 0;
+                case Transport.TRAIN -> 1;
+                case Transport.WALKING -> 2;
+                default -> 3; };
+        }
+        gc.setLineWidth(0.5);
+        for (int g = 0; g < colors.length; g++) {
+            gc.setStroke(colors[g]);
+            for (int j = 0; j < visible.length; j++) {
+                if (group[j] == g) {
+                    gc.strokeLine(screenX[2 * j], screenY[2 * j], screenX[2 * j + 1], screenY[2 * j + 1]);
+                }
+            }
+        }
+    }
 
-        int numSubGraphs = graph.getSubGraphCount();
+    /**
+     * Draw all the stops of the graph (the stop layer)
+     * If the subgraphs /connected components have been identified,
+     *  then colour the stops according to their component number
+     */
+    private void drawStops(GraphicsContext gc) {
+        // components found in an older version of the graph are out of date
+        GraphSnapshot components = componentSnapshot;
+        int[] ids = (componentIds != null && components.version() == graph.getVersion()) ? componentIds : null;
+        int numSubGraphs = (ids == null) ? 0 : numComponents;
         Color[] subGraphColors = new Color[numSubGraphs];
         for (int i=0; i<numSubGraphs; i++){
             subGraphColors[i]= Color.hsb((180.0 + (i*360.0/numSubGraphs)) % 360, 1, 1);
         }
 
-        for(Stop stop : graph.getStops()) {
-            int size = STOP_SIZE;
-            Color color;
-            if (highlightNodes.contains(stop)) {
-                drawStop(stop, STOP_SIZE*2, Color.RED);
-            } else {
-                drawStop(stop, STOP_SIZE, (numSubGraphs==0? Color.BLUE : subGraphColors[stop.getSubGraphId()]));
-            }
+        NetworkIndex index = getNetworkIndex();
+        int[] visible = index.stopsIn(Projection.visibleRegion(this, STOP_SIZE));
+        ensureScreenBuffers(visible.length);
+        Projection.model2Screen(index.stopLonLat(), visible, visible.length, Projection.view(this), screenX, screenY);
+        Color current = null;
+        for (int j = 0; j < visible.length; j++) {
+            Stop stop = index.stop(visible[j]);
+            int s = (ids == null) ? -1 : components.indexOf(stop);
+            int id = (s < 0) ? -1 : ids[s];
+            Color color = (numSubGraphs==0 || id<0 || id>=numSubGraphs ? Color.BLUE : subGraphColors[id]);
+            if (color != current) { gc.setFill(color); current = color; }
+            gc.fillOval(screenX[j] - STOP_SIZE / 2, screenY[j] - STOP_SIZE / 2, STOP_SIZE, STOP_SIZE);
         }
+    }
 
-        // display the start and goal stops and report the path (if there is one)
-        if (startLocation != null) {
-            startText.setText(startLocation.getName());
+    /** Make sure the screen coordinate buffers can hold n points */
+    private void ensureScreenBuffers(int n) {
+        if (screenX.length < n) {
+            screenX = new double[Math.max(n, 2 * screenX.length)];
+            screenY = new double[screenX.length];
         }
-        if (goalLocation != null) {
-            goalText.setText(goalLocation.getName());
+    }
+
+    /**
+     * The spatial index of the stops and edges, rebuilt if the graph has changed
+     */
+    private NetworkIndex getNetworkIndex() {
+        if (networkIndex == null) {
+            networkIndex = new NetworkIndex(graph);
         }
-        reportPath();
+        return networkIndex;
     }
 
-    private void drawEdge(Edge edge, double width, Color color){
-        GraphicsContext gc = mapCanvas.getGraphicsContext2D();
+    private void drawEdge(GraphicsContext gc, Edge edge, double width, Color color){
         gc.setLineWidth(width);
         gc.setStroke(color);
         Point2D from = Projection.model2Screen(edge.fromStop().getPoint(), this);
@@ -456,7 +870,10 @@ public class Controller {
      * Draw a stop with the given size and color.
      */
     public void drawStop(Stop stop, int size, Color color) {
-        GraphicsContext gc = mapCanvas.getGraphicsContext2D();
+        drawStop(mapCanvas.getGraphicsContext2D(), stop, size, color);
+    }
+
+    private void drawStop(GraphicsContext gc, Stop stop, int size, Color color) {
         gc.setFill(color);
         Point2D point = Projection.model2Screen(stop.getPoint(), this);
         gc.fillOval(point.getX() - size / 2, point.getY() - size / 2, size, size);
@@ -466,14 +883,14 @@ public class Controller {
     /**
      * Draw the list of Path Edges (eg, returned from A* search)
      */
-    public void drawPath() {
+    public void drawPath(GraphicsContext gc) {
         if (pathEdges!=null){
             for (Edge edge : pathEdges) {
                 Color color = switch (edge.transpType()) {
                 case Transport.WALKING -> Color.BLACK;
                 case Transport.BUS -> Color.RED;
                 default -> Color.GREEN; };
-                drawEdge(edge, 3, color);
+                drawEdge(gc, edge, 3, color);
             }
         }
     }
@@ -486,19 +903,31 @@ public class Controller {
         gc.setFill(Color.LIGHTBLUE);
         gc.setStroke(Color.LIGHTBLUE);
         gc.setLineWidth(1);
-        // for loop over values in the Hashmap of shapes
-        for (Shape zone : zoneData.getZones().values()) {
-            for (GeoPoly poly : zone.getShapes()) {
-                for (int k = 0; k < poly.getPoints().size() - 1; k++) {
-                    Point2D start = Projection.model2Screen(poly.getPoints().get(k), this);
-                    Point2D end = Projection.model2Screen(poly.getPoints().get(k + 1), this);
-                    gc.strokeLine(start.getX(), start.getY(), end.getX(), end.getY());
-                }
-            }
+        // only the parts of the outlines that are in view, simplified to suit the zoom level
+        int level = Zoning.levelForScale(scale);
+        Projection.View view = Projection.view(this);
+        for (Zoning.Run run : zoneData.visibleRuns(level, Projection.visibleRegion(this, 0))) {
+            ensureScreenBuffers(run.size());
+            Projection.model2Screen(run.getLonLat(), run.getFrom(), run.size(), view, screenX, screenY);
+            gc.strokePolyline(screenX, screenY, run.size());
         }
     }
 
 
+    /**
+     * Draw the heat map of travel times (the accessibility layer), stretching its image
+     * over the area of the raster, with one pixel of the image for each cell.
+     */
+    private void drawAccessibility(GraphicsContext gc) {
+        if (accessibilityImage == null) { return; }
+        double[] region = accessibility.getRegion();
+        Point2D topLeft = Projection.model2Screen(new GisPoint(region[0], region[3]), this);
+        Point2D bottomRight = Projection.model2Screen(new GisPoint(region[2], region[1]), this);
+        gc.drawImage(accessibilityImage, topLeft.getX(), topLeft.getY(),
+                     bottomRight.getX() - topLeft.getX(), bottomRight.getY() - topLeft.getY());
+    }
+
+
     /**
      * Constructs a String description of the current path (if there is one)
      * and puts it in the lineText text area.
@@ -519,10 +948,19 @@ public class Controller {
             int hours = totalTime/3600;
             path.append(String.format("GOAL %s\nTotal path time = %d:%02d:%02d\nTotal path distance = %.3fkm",
                 goalLocation.getName(),hours,mins, secs,totalDistance/1000));
-            lineText.setText(path.toString());
+            if (pathFare != null) { path.append("\n").append(pathFare); }
+            lineText.setText(withMetrics(path.toString()));
         }
     }
 
+    /**
+     * The text followed by the metrics of the searches and analyses, if metrics are on
+     * (run with -Dwt.metrics=true); otherwise just the text.
+     */
+    private String withMetrics(String text) {
+        return Metrics.ENABLED ? text + "\n\n" + Metrics.summary() : text;
+    }
+
 
 
 
@@ -530,81 +968,16 @@ public class Controller {
     //  methodes to load Stop and Line data from files
     //-------------------------------------------------------
 
-    /** Load the stop data from the stop file
-     * file contains:
-     *     stop_id, stop_code, stop_name, stop_desc,
-     *     stop_lat, stop_lon, zone_id, location_type,
-     *     parent_station, stop_url, stop_timezone
-     */
+    /** Load the stop data from the stop file (see NetworkLoader.loadStops) */
     public static Map<String, Stop> loadStops(File stopsFile) {
-        Map<String, Stop> stops = new HashMap<String, Stop>();
-
-        try {
-            List<String> dataLines = Files.readAllLines(stopsFile.toPath());
-            dataLines.remove(0);// throw away the top line of the file
-            for (String dataLine : dataLines){
-                // tokenise the dataLine by splitting it on tabs
-                String[] tokens = dataLine.split("\t");
-                if (tokens.length >= 6) {
-                    // process the tokens
-                    String stopId = tokens[0];
-                    String stopName = tokens[2];
-                    double lat = Double.valueOf(tokens[4]);
-                    double lon = Double.valueOf(tokens[5]);
-                    stops.put(stopId, new Stop(lon, lat, stopName, stopId));
-                }
-            }
-            System.out.println("Loaded "+ stops.size()+" stops");
-        } catch (IOException e) {
-            throw new RuntimeException("Reading the stops file failed.");
-        }
-        return stops;
+        return NetworkLoader.loadStops(stopsFile);
     }
 
-    /** Load the line data from the lines file
-     * File contains: line_id, stop_id, timepoint
+    /** Load the line data from the lines file (see NetworkLoader.loadLines)
      * Uses the stopMap to turn the stop_id's into Stops
      */
     public static Collection<Line> loadLines(File lineFile, Map<String,Stop> stopMap) {
-        if (stopMap.isEmpty()){
-            throw new RuntimeException("loadLines given an empty stopMap.");
-        }
-        Map<String, Line> lineMap = new HashMap<String, Line>();
-        try {
-            System.out.println("Reading data from: "+lineFile);
-            List<String> dataLines = Files.readAllLines(lineFile.toPath());
-            dataLines.remove(0); //throw away the top line of the file.
-            for (String dataLine : dataLines){// read in each line of the file
-                // tokenise the line by splitting it on tabs".
-                String[] tokens = dataLine.split("\t");
-                if (tokens.length >= 3) {
-                    // process the tokens
-                    String lineId = tokens[0];
-                    Line line = lineMap.get(lineId);
-                    if (line == null) {
-                        System.out.println("Loading line: "+lineId);
-                        line = new Line(lineId);
-                        lineMap.put(lineId, line);
-                    }
-                    int time = Integer.parseInt(tokens[2]);
-                    String stopId = tokens[1];
-                    Stop stop = stopMap.get(stopId);
-                    if (stop==null){
-                        System.out.println("Line "+lineId+" has unknown stop "+stopId+" at "+time);
-                    }
-                    else {
-                        line.addStop(stop, time);
-                        stop.addLine(line);
-                    }
-                }
-                else {
-                    System.out.println("Line file has broken entry: "+dataLine);
-                }
-                    
-            }
-            System.out.println("Loaded "+ lineMap.size()+" lines");
-        } catch (IOException e) {throw new RuntimeException("Loading the lines file failed.");}
-        return lineMap.values();
+        return NetworkLoader.loadLines(lineFile, stopMap);
     }
 
 }
\ No newline at end of file
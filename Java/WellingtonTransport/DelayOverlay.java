@@ -0,0 +1,370 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delays on the edges of a GraphSnapshot (eg, from a real-time feed), without changing
+ * the graph: the travel time of each edge is its time in the snapshot plus its delay.
+ *
+ * Searches read the times through times() (see SearchWorkspace.shortestPath with a
+ * DelayOverlay), which is an array indexed by edge, like GraphSnapshot.edgeCosts("time").
+ * The array is never changed once it has been returned, so a search takes no locks and
+ * sees one consistent set of delays however long it runs. Delays are set in a working
+ * array, and publish() makes them visible by putting a copy of it in place of the old
+ * times (copy on write, like the edges of a Graph). Feeds publish after each batch of
+ * updates that arrive together, so thousands of updates a second cost a few copies of
+ * the array, not a copy each. Setting delays and publishing take the overlay's lock, so
+ * several feeds can update it at once; the searches never take it.
+ *
+ * A feed is a stream of lines, each "line_id stop_id delay" separated by tabs or spaces:
+ * the edges of the line leaving the stop take delay more seconds than the timetable
+ * (0 to clear it; negative if early, though never less than no time at all). Lines that
+ * start with # and lines for unknown edges are skipped. A feed can be read from a socket
+ * (listen) or from a file that is still being written (follow), on a thread of its own.
+ */
+public class DelayOverlay {
+
+    /** The most updates applied before the times are published, even if more are waiting */
+    public static final int MAX_BATCH = 4096;
+
+    private static final long FOLLOW_POLL_MS = 100;   // how often a followed file is checked for more
+
+    private final GraphSnapshot graph;
+    private final double[] baseTimes;
+    private final double[] delays;                  // the working delays (guarded by this)
+    private volatile double[] times;                // the published times
+    private final Map<String, int[]> edgesFrom = new HashMap<String, int[]>();   // line id + " " + stop id -> edges
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong publishes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * An overlay with no delays on the edges of a snapshot
+     */
+    public DelayOverlay(GraphSnapshot graph) {
+        this.graph = graph;
+        this.baseTimes = graph.edgeCosts("time").clone();
+        this.delays = new double[baseTimes.length];
+        this.times = baseTimes.clone();
+        Map<String, List<Integer>> lists = new HashMap<String, List<Integer>>();
+        for (int e = 0; e < graph.numEdges(); e++) {
+            Edge edge = graph.edge(e);
+            if (edge.line() == null) { continue; }
+            lists.computeIfAbsent(key(edge.line().getId(), edge.fromStop().getId()), k -> new ArrayList<Integer>()).add(e);
+        }
+        for (Map.Entry<String, List<Integer>> entry : lists.entrySet()) {
+            edgesFrom.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    private static String key(String lineId, String stopId) { return lineId + " " + stopId; }
+
+    /** The snapshot whose edges are delayed */
+    public GraphSnapshot getGraph() { return graph; }
+
+    /**
+     * The travel time of every edge with the published delays, indexed by edge.
+     * The array must not be modified; it does not change once returned.
+     */
+    public double[] times() { return times; }
+
+    /** The published delay (seconds) of an edge */
+    public double delay(int edge) { return times[edge] - baseTimes[edge]; }
+
+    /**
+     * Set the delay of an edge, to be seen by searches after the next publish()
+     * @param delay Seconds more than the timetable (negative if early).
+     */
+    public synchronized void setDelay(int edge, double delay) {
+        delays[edge] = delay;
+        updates.incrementAndGet();
+    }
+
+    /**
+     * Set the delay of the edges of a line that leave a stop, to be seen after the next publish()
+     * @return false if the line has no edge leaving the stop.
+     */
+    public synchronized boolean setDelay(String lineId, String stopId, double delay) {
+        int[] edges = edgesFrom.get(key(lineId, stopId));
+        if (edges == null) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        for (int e : edges) { delays[e] = delay; }
+        updates.incrementAndGet();
+        return true;
+    }
+
+    /** Take away all the delays, to be seen after the next publish() */
+    public synchronized void clear() {
+        Arrays.fill(delays, 0);
+    }
+
+    /**
+     * Make the delays set so far visible to the searches that start from now on
+     */
+    public synchronized void publish() {
+        double[] newTimes = new double[baseTimes.length];
+        for (int e = 0; e < newTimes.length; e++) { newTimes[e] = Math.max(0, baseTimes[e] + delays[e]); }
+        times = newTimes;
+        publishes.incrementAndGet();
+    }
+
+    /** The number of updates applied so far (not counting the skipped ones) */
+    public long numUpdates() { return updates.get(); }
+
+    /** The number of times the delays have been published */
+    public long numPublishes() { return publishes.get(); }
+
+    /** The number of updates skipped because they were for an unknown line or stop */
+    public long numSkipped() { return skipped.get(); }
+
+    /**
+     * Apply the updates from a feed until it ends, publishing after each batch of updates
+     * that arrived together (or MAX_BATCH updates).
+     * @return the number of lines read.
+     */
+    public long apply(BufferedReader feed) throws IOException {
+        long count = 0;
+        int batch = 0;
+        String line;
+        while ((line = feed.readLine()) != null) {
+            count++;
+            if (applyLine(line)) { batch++; }
+            if (batch > 0 && (batch >= MAX_BATCH || !feed.ready())) {
+                publish();
+                batch = 0;
+            }
+        }
+        if (batch > 0) { publish(); }
+        return count;
+    }
+
+    /** Apply one line of a feed, returning whether it was an update */
+    private boolean applyLine(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.charAt(0) == '#') { return false; }
+        String[] fields = line.split("[\t ]+");
+        if (fields.length < 3) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        try {
+            return setDelay(fields[0], fields[1], Double.parseDouble(fields[2]));
+        } catch (NumberFormatException e) {
+            skipped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Apply the updates of every connection to a port on this machine, on threads of
+     * their own, until the returned socket is closed.
+     * @param port The port to listen on (0 for any free port: see getLocalPort() of the result).
+     */
+    public ServerSocket listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread reader = new Thread(() -> {
+                        try (socket; BufferedReader in = new BufferedReader(
+                                 new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                            apply(in);
+                        } catch (IOException e) {
+                            System.out.println("Delay feed connection failed: " + e.getMessage());
+                        }
+                    }, "delay-feed");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    // closed: stop accepting
+                }
+            }
+        }, "delay-feed-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Apply the updates written to a file, from its start, and keep applying the lines
+     * added to it (as "tail -f" does) until the result is closed.
+     */
+    public Closeable follow(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        Thread follower = new Thread(() -> {
+            // one decoder for the whole file, which keeps the bytes of a character that has only
+            // been partly read (or written) until the rest arrive. (An InputStreamReader would
+            // replace them with U+FFFD when it reached the end of the file written so far.)
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(8192);
+            CharBuffer chars = CharBuffer.allocate(8192);   // UTF-8 never decodes to more chars than bytes
+            StringBuilder partial = new StringBuilder();   // a line whose end has not been written yet
+            List<String> lines = new ArrayList<String>();
+            try (in) {
+                while (true) {
+                    int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+                    if (n < 0) {
+                        Thread.sleep(FOLLOW_POLL_MS);
+                        continue;
+                    }
+                    bytes.position(bytes.position() + n);
+                    bytes.flip();
+                    decoder.decode(bytes, chars, false);
+                    bytes.compact();
+                    partial.append(chars.flip());
+                    chars.clear();
+                    int end;
+                    while ((end = partial.indexOf("\n")) >= 0) {
+                        lines.add(partial.substring(0, end));
+                        partial.delete(0, end + 1);
+                    }
+                    boolean any = false;
+                    for (String line : lines) { any |= applyLine(line); }
+                    lines.clear();
+                    if (any) { publish(); }
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed: stop following
+            }
+        }, "delay-feed-follower");
+        follower.setDaemon(true);
+        follower.start();
+        return () -> {
+            follower.interrupt();
+            in.close();
+        };
+    }
+
+    /**
+     * Write a made-up feed of delays for random edges of a graph: a stand-in for a real
+     * feed, for testing. Each delay is between -60 and 600 seconds.
+     * @param out Where to write the feed (eg, a socket or a file).
+     * @param perSecond How many updates to write each second.
+     * @param seconds For how long.
+     * @return the number of updates written.
+     */
+    public static long simulateFeed(GraphSnapshot graph, OutputStream out, int perSecond, double seconds, long seed) {
+        List<String[]> lineStops = new ArrayList<String[]>();
+        for (int e = 0; e < graph.numEdges(); e++) {
+            Edge edge = graph.edge(e);
+            if (edge.line() != null) { lineStops.add(new String[]{edge.line().getId(), edge.fromStop().getId()}); }
+        }
+        Random random = new Random(seed);
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        long written = 0;
+        long end = start + (long) (seconds * 1e9);
+        // write in bursts every 10ms, as a feed of vehicle positions would
+        for (long now = start; now < end; now = System.nanoTime()) {
+            long due = (long) ((now - start) / 1e9 * perSecond);
+            for (; written < due; written++) {
+                String[] ls = lineStops.get(random.nextInt(lineStops.size()));
+                writer.print(ls[0] + "\t" + ls[1] + "\t" + (random.nextInt(661) - 60) + "\n");
+            }
+            writer.flush();
+            try { Thread.sleep(10); } catch (InterruptedException e) { break; }
+        }
+        writer.flush();
+        return written;
+    }
+
+    /**
+     * Route random pairs on several threads while a made-up feed sends delays over a socket,
+     * then check the delays that were applied:
+     *     java DelayOverlay [seconds] [updates per second] [search threads] [data directory]
+     */
+    public static void main(String[] args) throws Exception {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 5;
+        int perSecond = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        File dataDirectory = new File((args.length > 3) ? args[3] : "data");
+
+        Map<String, Stop> stopMap = NetworkLoader.loadStops(new File(dataDirectory, "stops.txt"));
+        Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File(dataDirectory, "lines.txt"), stopMap));
+        graph.recomputeWalkingEdges(Transport.MAX_WALKING_DISTANCE_M);
+        GraphSnapshot snap = graph.snapshot();
+        DelayOverlay overlay = new DelayOverlay(snap);
+
+        // searches keep running on their own threads while the delays change
+        AtomicLong searches = new AtomicLong();
+        List<Thread> searchers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            Thread thread = new Thread(() -> {
+                SearchWorkspace search = new SearchWorkspace(snap);
+                Random random = new Random(seed);
+                while (!Thread.currentThread().isInterrupted()) {
+                    search.shortestPath(random.nextInt(snap.numStops()), random.nextInt(snap.numStops()), overlay, SearchWorkspace.NONE);
+                    searches.incrementAndGet();
+                }
+            }, "search");
+            thread.setDaemon(true);
+            thread.start();
+            searchers.add(thread);
+        }
+
+        long start = System.nanoTime();
+        long sent;
+        try (ServerSocket server = overlay.listen(0);
+             Socket feed = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            sent = simulateFeed(snap, feed.getOutputStream(), perSecond, seconds, 1);
+            feed.shutdownOutput();
+            // wait for the last updates to be applied
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (overlay.numUpdates() + overlay.numSkipped() < sent && System.nanoTime() < deadline) { Thread.sleep(10); }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        for (Thread thread : searchers) { thread.interrupt(); }
+        for (Thread thread : searchers) { thread.join(); }
+
+        System.out.printf("%d updates sent, %d applied (%.0f per second), %d skipped, in %d publishes%n",
+                          sent, overlay.numUpdates(), overlay.numUpdates() / elapsed, overlay.numSkipped(), overlay.numPublishes());
+        System.out.printf("%d searches on %d threads while updating (%.0f per second)%n",
+                          searches.get(), threads, searches.get() / elapsed);
+
+        // a search with the overlay should cost the same as with the delayed times worked out directly
+        double[] expected = new double[snap.numEdges()];
+        for (int e = 0; e < expected.length; e++) { expected[e] = snap.edgeCosts("time")[e] + overlay.delay(e); }
+        SearchWorkspace search = new SearchWorkspace(snap);
+        Random random = new Random(2);
+        int same = 0, pairs = 200, slower = 0;
+        for (int p = 0; p < pairs; p++) {
+            int s = random.nextInt(snap.numStops()), g = random.nextInt(snap.numStops());
+            double cost = search.shortestPath(s, g, overlay, SearchWorkspace.NONE);
+            double check = (cost == Double.POSITIVE_INFINITY) ? cost : search.sumAlongPath(g, expected);
+            if (Double.compare(cost, check) == 0 || Math.abs(cost - check) < 1e-6) { same++; }
+            if (cost > search.shortestPath(s, g, "time", SearchWorkspace.NONE)) { slower++; }
+        }
+        System.out.printf("Paths costed the same through the overlay: %d of %d (%d slower than the timetable)%n",
+                          same, pairs, slower);
+    }
+
+}
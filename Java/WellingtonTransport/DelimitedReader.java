@@ -0,0 +1,466 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A streaming reader for delimited text files (tab separated, like the data files, or
+ * comma separated, like GTFS files), that reads a channel through one reused ByteBuffer.
+ *
+ * Each call of next() moves to the next record and finds where its fields start and end
+ * in the buffer; nothing is copied. Fields are then parsed in place: getInt() and
+ * getDouble() read the digits straight from the buffer, and getString() only makes a
+ * String when it is asked for. intern() returns the same String for every field with the
+ * same text (eg, a stop id that appears on millions of rows), without making a new
+ * String to look it up. Memory use is the buffer plus the strings that are kept, however
+ * long the file is.
+ *
+ * Text is UTF-8. Records end with \n (a \r before it is ignored). In comma separated
+ * files a field can be quoted with "..." (with "" for a quote inside it), as in GTFS.
+ */
+public class DelimitedReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final byte delimiter;
+    private final boolean quotes;        // whether fields may be quoted
+    private ByteBuffer buffer;           // the bytes of the current record, and some after it
+    private byte[] bytes;                // the array behind the buffer
+    private boolean endOfInput = false;
+
+    private int recordStart = 0;         // position of the current record
+    private int recordEnd = 0;           // position just after the current record
+    private int numFields = 0;
+    private int[] fieldStart = new int[16];
+    private int[] fieldEnd = new int[16];
+    private boolean[] fieldQuoted = new boolean[16];
+    private long recordNumber = 0;
+
+    private final Map<String, Integer> columns = new HashMap<String, Integer>();
+    private final StringPool pool = new StringPool();
+
+    /**
+     * Open a file of tab separated values
+     */
+    public static DelimitedReader openTabSeparated(File file) throws IOException {
+        return new DelimitedReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), '\t', false);
+    }
+
+    /**
+     * Open a file of comma separated values, with quoted fields
+     */
+    public static DelimitedReader openCommaSeparated(File file) throws IOException {
+        return new DelimitedReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), ',', true);
+    }
+
+    /**
+     * Make a reader of a channel (eg, an entry of a zip file).
+     * @param delimiter The character between fields.
+     * @param quotes True if fields may be quoted.
+     */
+    public DelimitedReader(ReadableByteChannel channel, char delimiter, boolean quotes) {
+        this.channel = channel;
+        this.delimiter = (byte) delimiter;
+        this.quotes = quotes;
+        this.bytes = new byte[BUFFER_SIZE];
+        this.buffer = ByteBuffer.wrap(bytes);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Read the first record as the names of the columns (see column()).
+     * A UTF-8 byte order mark at the start of the file is skipped.
+     * @return false if the file is empty.
+     */
+    public boolean readHeader() throws IOException {
+        if (!next()) { return false; }
+        takeHeader();
+        return true;
+    }
+
+    /**
+     * Read the header, after first reading any records that start with the comment
+     * character and handing each of them (as its whole text) to the handler.
+     * @return false if the file has no header.
+     */
+    public boolean readHeader(char comment, Consumer<String> comments) throws IOException {
+        while (next()) {
+            String first = getString(0);
+            if (first.isEmpty() || first.charAt(0) != comment) {
+                takeHeader();
+                return true;
+            }
+            comments.accept(record());
+        }
+        return false;
+    }
+
+    /** Take the column names from the current record */
+    private void takeHeader() {
+        for (int f = 0; f < numFields; f++) {
+            String name = getString(f).trim();
+            if (f == 0 && name.startsWith("\uFEFF")) { name = name.substring(1); }
+            columns.put(name, f);
+        }
+    }
+
+    /**
+     * The index of the column with the given name in the header, or -1 if there is none
+     */
+    public int column(String name) {
+        return columns.getOrDefault(name, -1);
+    }
+
+    /**
+     * The index of the column with the given name in the header, or the default index
+     * if there is no header or the name is not in it
+     */
+    public int column(String name, int defaultIndex) {
+        return columns.getOrDefault(name, defaultIndex);
+    }
+
+    /**
+     * Move to the next record. Empty lines are skipped.
+     * @return false at the end of the file.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            buffer.position(recordEnd);
+            if (!findRecord()) { return false; }
+            recordNumber++;
+            if (numFields > 1 || fieldEnd[0] > fieldStart[0]) { return true; }
+        }
+    }
+
+    /** The number of the current record, counting from 1 (the header is record 1) */
+    public long recordNumber() { return recordNumber; }
+
+    /** The whole of the current record, as a String (eg, for reporting a broken record) */
+    public String record() {
+        int end = recordEnd;
+        while (end > recordStart && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) { end--; }
+        return new String(bytes, recordStart, end - recordStart, StandardCharsets.UTF_8);
+    }
+
+    /** The number of fields in the current record */
+    public int numFields() { return numFields; }
+
+    /** True if the field is missing or empty */
+    public boolean isEmpty(int field) {
+        return field < 0 || field >= numFields || fieldEnd[field] == fieldStart[field];
+    }
+
+    /**
+     * The field as a String (null if the field is missing)
+     */
+    public String getString(int field) {
+        if (field < 0 || field >= numFields) { return null; }
+        String text = new String(bytes, fieldStart[field], fieldEnd[field] - fieldStart[field], StandardCharsets.UTF_8);
+        return fieldQuoted[field] ? text.replace("\"\"", "\"") : text;
+    }
+
+    /**
+     * The field as a String that is shared with every other field with the same text
+     * read by this reader (null if the field is missing)
+     */
+    public String intern(int field) {
+        if (field < 0 || field >= numFields) { return null; }
+        if (fieldQuoted[field]) { return pool.intern(getString(field)); }
+        return pool.intern(bytes, fieldStart[field], fieldEnd[field]);
+    }
+
+    /**
+     * The field as an int. Spaces around the number are ignored.
+     * @throws NumberFormatException if the field is not a whole number.
+     */
+    public int getInt(int field) {
+        long value = getLong(field);
+        if (value != (int) value) { throw badNumber(field); }
+        return (int) value;
+    }
+
+    /**
+     * The field as a long. Spaces around the number are ignored.
+     * @throws NumberFormatException if the field is not a whole number.
+     */
+    public long getLong(int field) {
+        if (isEmpty(field)) { throw badNumber(field); }
+        int i = skipSpaces(fieldStart[field], fieldEnd[field]);
+        int end = trimSpaces(i, fieldEnd[field]);
+        boolean negative = i < end && bytes[i] == '-';
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) { i++; }
+        if (i == end || end - i > 18) { throw badNumber(field); }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) { throw badNumber(field); }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * The field as a double. Simple decimals (up to 15 significant digits, like the
+     * coordinates in the data files) are worked out from the digits, giving exactly the
+     * value that Double.parseDouble would; anything else is passed to Double.parseDouble.
+     * @throws NumberFormatException if the field is not a number.
+     */
+    public double getDouble(int field) {
+        if (isEmpty(field)) { throw badNumber(field); }
+        int start = skipSpaces(fieldStart[field], fieldEnd[field]);
+        int end = trimSpaces(start, fieldEnd[field]);
+        int i = start;
+        boolean negative = i < end && bytes[i] == '-';
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) { i++; }
+        long mantissa = 0;
+        boolean sawDigit = false;
+        int digits = 0;             // significant digits
+        int decimals = -1;          // number of digits after the point (-1 if there is no point)
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                sawDigit = true;
+                if (mantissa != 0 || b != '0') { digits++; }
+                mantissa = mantissa * 10 + (b - '0');
+                if (decimals >= 0) { decimals++; }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        // exact when the digits fit in 53 bits and the power of ten is exact (at most 10^22)
+        if (i == end && sawDigit && digits <= 15 && decimals < POWERS_OF_TEN.length) {
+            double value = (decimals <= 0) ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(getString(field).trim());
+        } catch (NumberFormatException e) {
+            throw badNumber(field);
+        }
+    }
+
+    /**
+     * The field as a time of day in H:MM:SS form (as in GTFS), in seconds after midnight.
+     * The hours may be 24 or more, for a trip that runs past midnight.
+     * @return the number of seconds, or -1 if the field is missing or empty.
+     * @throws NumberFormatException if the field is not a time.
+     */
+    public int getSeconds(int field) {
+        if (isEmpty(field)) { return -1; }
+        int i = skipSpaces(fieldStart[field], fieldEnd[field]);
+        int end = trimSpaces(i, fieldEnd[field]);
+        if (i == end) { return -1; }
+        int seconds = 0;
+        int part = 0;
+        int parts = 1;
+        int partDigits = 0;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9' && partDigits < 3) {
+                part = part * 10 + (b - '0');
+                partDigits++;
+            } else if (b == ':' && parts < 3 && partDigits > 0) {
+                seconds = (seconds + part) * 60;
+                part = 0;
+                partDigits = 0;
+                parts++;
+            } else {
+                throw badNumber(field);
+            }
+        }
+        if (parts != 3 || partDigits == 0) { throw badNumber(field); }
+        return seconds + part;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    //--------------------------------------------
+    //  Finding the records and fields
+    //--------------------------------------------
+
+    /**
+     * Find the fields of the record that starts at the buffer's position, reading more
+     * of the channel if the record is not all in the buffer.
+     * @return false if there are no more records.
+     */
+    private boolean findRecord() throws IOException {
+        int start = buffer.position();
+        while (!scanRecord(start)) {
+            if (endOfInput) { return false; }   // nothing left (or an unfinished quote)
+            start = refill(start);
+        }
+        recordStart = start;
+        return true;
+    }
+
+    /**
+     * Split the record starting at start into fields, if its end is in the buffer.
+     */
+    private boolean scanRecord(int start) {
+        int limit = buffer.limit();
+        numFields = 0;
+        int i = start;
+        while (true) {
+            int fieldBegin = i;
+            if (quotes && i < limit && bytes[i] == '"') {
+                // a quoted field: find the closing quote (a doubled quote is part of the text)
+                fieldBegin = ++i;
+                while (true) {
+                    if (i + 1 >= limit) { return false; }
+                    if (bytes[i] == '"') {
+                        if (bytes[i + 1] != '"') { break; }
+                        i++;
+                    }
+                    i++;
+                }
+                addField(fieldBegin, i, true);
+                i++;   // the closing quote
+                while (i < limit && bytes[i] != delimiter && bytes[i] != '\n') { i++; }
+            } else {
+                while (i < limit && bytes[i] != delimiter && bytes[i] != '\n') { i++; }
+                if (i >= limit) { return false; }
+                int fieldStop = (bytes[i] == '\n' && i > fieldBegin && bytes[i - 1] == '\r') ? i - 1 : i;
+                addField(fieldBegin, fieldStop, false);
+            }
+            if (i >= limit) { return false; }
+            if (bytes[i] == '\n') {
+                recordEnd = i + 1;
+                return true;
+            }
+            i++;   // the delimiter
+        }
+    }
+
+    private void addField(int start, int end, boolean quoted) {
+        if (numFields == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, 2 * numFields);
+            fieldEnd = Arrays.copyOf(fieldEnd, 2 * numFields);
+            fieldQuoted = Arrays.copyOf(fieldQuoted, 2 * numFields);
+        }
+        fieldStart[numFields] = start;
+        fieldEnd[numFields] = end;
+        fieldQuoted[numFields] = quoted;
+        numFields++;
+    }
+
+    /**
+     * Move the unfinished record at start to the front of the buffer (growing the buffer
+     * if the record fills it), then read more of the channel after it.
+     * @return the new start of the record.
+     */
+    private int refill(int start) throws IOException {
+        int remaining = buffer.limit() - start;
+        if (start == 0 && remaining == bytes.length) {
+            bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+        } else {
+            System.arraycopy(bytes, start, bytes, 0, remaining);
+        }
+        buffer = ByteBuffer.wrap(bytes);
+        buffer.position(remaining);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer);
+            if (n < 0) { endOfInput = true; break; }
+            if (n == 0) { break; }
+        }
+        // make sure that the last record ends with a \n
+        if (endOfInput && buffer.position() > 0 && bytes[buffer.position() - 1] != '\n') {
+            if (!buffer.hasRemaining()) {
+                bytes = Arrays.copyOf(bytes, bytes.length + 1);
+                buffer = ByteBuffer.wrap(bytes).position(buffer.position());
+            }
+            buffer.put((byte) '\n');
+        }
+        buffer.limit(buffer.position());
+        buffer.position(0);
+        return 0;
+    }
+
+    private int skipSpaces(int i, int end) {
+        while (i < end && bytes[i] == ' ') { i++; }
+        return i;
+    }
+
+    private int trimSpaces(int start, int end) {
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\r')) { end--; }
+        return end;
+    }
+
+    private NumberFormatException badNumber(int field) {
+        return new NumberFormatException("Record " + recordNumber + " field " + field
+                                         + ": not a number \"" + getString(field) + "\"");
+    }
+
+    /**
+     * A table of the strings that have been read, looked up by their bytes, so a field
+     * can be matched without first making it into a String.
+     */
+    private static class StringPool {
+        private byte[][] keys = new byte[1024][];
+        private String[] values = new String[1024];
+        private int size = 0;
+
+        String intern(byte[] bytes, int start, int end) {
+            int hash = hash(bytes, start, end);
+            int mask = keys.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                byte[] key = keys[slot];
+                if (key == null) {
+                    String value = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                    add(slot, Arrays.copyOfRange(bytes, start, end), value);
+                    return value;
+                }
+                if (Arrays.equals(key, 0, key.length, bytes, start, end)) { return values[slot]; }
+            }
+        }
+
+        String intern(String text) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            return intern(utf8, 0, utf8.length);
+        }
+
+        private void add(int slot, byte[] key, String value) {
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 2 > keys.length) { grow(); }
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[2 * oldKeys.length][];
+            values = new String[2 * oldKeys.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) { continue; }
+                int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+                while (keys[slot] != null) { slot = (slot + 1) & mask; }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) { h = 31 * h + bytes[i]; }
+            return h ^ (h >>> 16);
+        }
+    }
+
+}
@@ -9,7 +9,7 @@ public class Edge {
     private final Line line; // The line that this edge is part of (null if it is a WALKING edge)
     private final double time; // The time, in seconds, required to travel between the two stops of the edge
     private final double distance; // The distance between the two stops of the edge
-    private final String toString;   // The computed string representation of the string
+    private String toString;   // The computed string representation of the string (made when first needed)
 
     /**
      * Constructs an edge between two stops in a transportation network.
@@ -27,11 +27,6 @@ public class Edge {
         this.line = line;
         this.time = time;
         this.distance = distance;
-        this.toString = "FROM " +
-            fromStop.getName() + "(" + fromStop.getId()+")  TO "+
-            toStop.getName() + "(" + toStop.getId()+")  BY "+transpType+
-            ((line!=null)?("(" + line.getId()+")"):"")+
-            "  " + ((int)time) + "s/" + ((int)distance)+"m";
     }
 
     /**
@@ -74,6 +69,15 @@ public class Edge {
      * Gets the string representation of the edge.
      * @return The string representation.
      */
-    public String toString() {return this.toString;}
+    public String toString() {
+        if (this.toString == null) {
+            this.toString = "FROM " +
+                fromStop.getName() + "(" + fromStop.getId()+")  TO "+
+                toStop.getName() + "(" + toStop.getId()+")  BY "+transpType+
+                ((line!=null)?("(" + line.getId()+")"):"")+
+                "  " + ((int)time) + "s/" + ((int)distance)+"m";
+        }
+        return this.toString;
+    }
 
 }
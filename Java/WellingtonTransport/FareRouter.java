@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Finds routes that are cheap in both travel cost (time or distance) and fare, where the
+ * fare depends on the fare zones that the route travels in (see ZoneIndex and Stop.getZone).
+ *
+ * The cost of a route is its travel cost plus costPerDollar times its fare, and the fare is
+ * worked out from the set of zones the route has used, kept as a bitmask (bit z for zone z).
+ * A transit edge uses the zones of both of its stops; walking is free and uses no zones.
+ * The search is A* over (stop, zone set) states: a stop can be reached by several labels,
+ * one for each set of zones, so that a cheaper but slower route is not thrown away early.
+ *
+ * A label is pruned if another label at the same stop has a subset of its zones and no
+ * more travel cost, since that label is at least as good whatever happens next. Labels come
+ * out of the fringe in order of travel cost, plus the fare of their zones so far (fares never
+ * go down as zones are added), plus the A* estimate, so the first label for the goal gives
+ * the best route. A FareRouter holds working storage for one search at a time.
+ */
+public class FareRouter {
+
+    /**
+     * The fare for travelling in a number of zones
+     */
+    public static class FareTable {
+        private final double[] fares;
+
+        /**
+         * @param fares The fare (in dollars) for 1 zone, 2 zones, ...; more zones than the
+         *              table has cost the last fare.
+         */
+        public FareTable(double... fares) {
+            this.fares = fares.clone();
+        }
+
+        /** The fare for a set of zones (0 for no zones, ie, walking only) */
+        public double fare(int zones) {
+            int count = Integer.bitCount(zones);
+            return (count == 0) ? 0 : fares[Math.min(count, fares.length) - 1];
+        }
+    }
+
+    /** An example adult fare table for the Wellington fare zones (dollars for 1 to 14 zones) */
+    public static final FareTable WELLINGTON_FARES = new FareTable(
+        2.14, 3.52, 4.79, 5.86, 6.75, 7.71, 8.87, 9.67, 10.62, 11.72, 12.73, 13.51, 14.46, 15.29);
+
+    /** The value of an hour of travel in dollars, for weighing time against fare */
+    public static final double DOLLARS_PER_HOUR = 12.0;
+
+    /**
+     * A route found by the search
+     */
+    public static class Route {
+        private final List<Edge> path;
+        private final double travelCost;
+        private final double fare;
+        private final int zones;
+
+        Route(List<Edge> path, double travelCost, double fare, int zones) {
+            this.path = path;
+            this.travelCost = travelCost;
+            this.fare = fare;
+            this.zones = zones;
+        }
+
+        public List<Edge> getPath() { return path; }
+
+        /** The time (seconds) or distance (meters) of the route */
+        public double getTravelCost() { return travelCost; }
+
+        /** The fare in dollars */
+        public double getFare() { return fare; }
+
+        /** The zones the route travels in, as a bitmask (bit z for zone z) */
+        public int getZones() { return zones; }
+
+        /** The numbers of the zones the route travels in */
+        public List<Integer> getZoneList() {
+            List<Integer> ans = new ArrayList<Integer>();
+            for (int z = 0; z < 32; z++) { if ((zones & (1 << z)) != 0) { ans.add(z); } }
+            return ans;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Fare $%.2f for zones %s", fare, getZoneList());
+        }
+    }
+
+    private final GraphSnapshot graph;
+    private final FareTable fares;
+    private final int[] zoneBit;       // the bit of the zone of each stop (0 if it has none)
+
+    // the labels of the current search
+    private int numLabels = 0;
+    private int[] labelStop = new int[1024];
+    private int[] labelZones = new int[1024];
+    private double[] labelCost = new double[1024];    // travel cost
+    private int[] labelEdge = new int[1024];          // edge used to reach the label (-1 for the start)
+    private int[] labelBack = new int[1024];          // the label the edge came from (-1 for the start)
+    private int[] labelNext = new int[1024];          // the next label at the same stop (-1 at the end)
+    private boolean[] labelDead = new boolean[1024];  // pruned by a better label at its stop
+    private final int[] firstLabel;                   // the first label at each stop (if reached in this search)
+    private final int[] reached;                      // search number in which firstLabel was last set
+    private int search = 0;
+    private final StopHeap fringe;                    // holds labels, not stops
+
+    /**
+     * Make a router for the snapshot. The stops must already have their zones (see ZoneIndex.annotate).
+     */
+    public FareRouter(GraphSnapshot graph, FareTable fares) {
+        this.graph = graph;
+        this.fares = fares;
+        int n = graph.numStops();
+        zoneBit = new int[n];
+        for (int s = 0; s < n; s++) {
+            int zone = graph.stop(s).getZone();
+            zoneBit[s] = (zone >= 0 && zone < 32) ? 1 << zone : 0;
+        }
+        firstLabel = new int[n];
+        reached = new int[n];
+        fringe = new StopHeap(1024);
+    }
+
+    /** The number of labels made by the last search */
+    public int labelsMade() { return numLabels; }
+
+    /**
+     * Find the route from start to goal with the smallest travel cost plus costPerDollar times fare.
+     * @param timeOrDistance The way of calculating travel cost: "time" or "distance".
+     * @param costPerDollar How much travel cost a dollar of fare is worth (eg, seconds per dollar).
+     * @param cancelled Polled during the search; if it returns true the search throws a CancellationException.
+     * @return the route, or null if there is none.
+     */
+    public Route route(int start, int goal, String timeOrDistance, double costPerDollar, BooleanSupplier cancelled) {
+        double[] edgeCost = graph.edgeCosts(timeOrDistance);
+        double hScale = GraphSnapshot.heuristicScale(timeOrDistance);
+        search++;
+        numLabels = 0;
+        fringe.clear();
+        addLabel(start, 0, 0.0, -1, -1, hScale * graph.lowerBoundDistance(start, goal));
+
+        int pops = 0;
+        while (!fringe.isEmpty()) {
+            int label = fringe.pop();
+            if (labelDead[label]) { continue; }
+            if ((++pops & 1023) == 0 && cancelled.getAsBoolean()) { throw new CancellationException(); }
+            int current = labelStop[label];
+            if (current == goal) { return makeRoute(label); }
+
+            int zones = labelZones[label];
+            double cost = labelCost[label];
+            int end = graph.outStart(current + 1);
+            for (int k = graph.outStart(current); k < end; k++) {
+                int e = graph.outEdge(k);
+                int neighbour = graph.edgeTo(e);
+                int newZones = (graph.edge(e).line() == null) ? zones : zones | zoneBit[current] | zoneBit[neighbour];
+                double total = cost + edgeCost[e];
+                if (isDominated(neighbour, newZones, total)) { continue; }
+                double estimate = hScale * graph.lowerBoundDistance(neighbour, goal) + costPerDollar * fares.fare(newZones);
+                addLabel(neighbour, newZones, total, e, label, estimate);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if a label at the stop has a subset of the zones and no more cost. Otherwise any
+     * labels at the stop that the new label is at least as good as are pruned.
+     */
+    private boolean isDominated(int stop, int zones, double cost) {
+        if (reached[stop] != search) { return false; }
+        for (int l = firstLabel[stop]; l >= 0; l = labelNext[l]) {
+            if (labelDead[l]) { continue; }
+            if ((labelZones[l] & ~zones) == 0 && labelCost[l] <= cost) { return true; }
+        }
+        for (int l = firstLabel[stop]; l >= 0; l = labelNext[l]) {
+            if ((zones & ~labelZones[l]) == 0 && cost <= labelCost[l]) { labelDead[l] = true; }
+        }
+        return false;
+    }
+
+    /** Make a label and add it to its stop and to the fringe */
+    private void addLabel(int stop, int zones, double cost, int edge, int back, double estimate) {
+        if (numLabels == labelStop.length) {
+            int size = 2 * numLabels;
+            labelStop = Arrays.copyOf(labelStop, size);
+            labelZones = Arrays.copyOf(labelZones, size);
+            labelCost = Arrays.copyOf(labelCost, size);
+            labelEdge = Arrays.copyOf(labelEdge, size);
+            labelBack = Arrays.copyOf(labelBack, size);
+            labelNext = Arrays.copyOf(labelNext, size);
+            labelDead = Arrays.copyOf(labelDead, size);
+        }
+        int label = numLabels++;
+        labelStop[label] = stop;
+        labelZones[label] = zones;
+        labelCost[label] = cost;
+        labelEdge[label] = edge;
+        labelBack[label] = back;
+        labelDead[label] = false;
+        labelNext[label] = (reached[stop] == search) ? firstLabel[stop] : -1;
+        firstLabel[stop] = label;
+        reached[stop] = search;
+        fringe.push(label, cost + estimate);
+    }
+
+    /** The route that ends with a label */
+    private Route makeRoute(int label) {
+        int length = 0;
+        for (int l = label; labelBack[l] >= 0; l = labelBack[l]) { length++; }
+        int[] path = new int[length];
+        for (int l = label; labelBack[l] >= 0; l = labelBack[l]) { path[--length] = labelEdge[l]; }
+        return new Route(graph.toEdges(path, path.length), labelCost[label], fares.fare(labelZones[label]), labelZones[label]);
+    }
+
+}
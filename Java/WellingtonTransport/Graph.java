@@ -8,6 +8,9 @@ import java.util.HashMap;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 
 
 /**
@@ -22,14 +25,31 @@ import java.util.HashSet;
  * Each pair of adjacent stops in a Line is an edge.
  * We also need to create walking edges between every pair of stops in the whole
  *  network that are closer than walkingDistance.
+ *
+ * The edges are copy on write: changing them (eg, the walking edges) builds a new set
+ *  of edges off to the side and then swaps it in, so the set returned by getEdges() never
+ *  changes. The stops and lines are replaced in the same way when the network data is
+ *  reloaded (applyChanges). Only one change is made at a time, since the methods that
+ *  make them are synchronized.
+ * For searches and analyses that must see one consistent version of the whole graph,
+ *  snapshot() returns an immutable GraphSnapshot of the current version. It is built the
+ *  first time it is asked for after a change, and then shared, so readers take no locks
+ *  and can keep using their snapshot while the graph is being changed.
  */
 public class Graph {
 
-    private Collection<Stop> stops; // Collection of stops in the graph.
-    private Collection<Line> lines; // Collection of lines in the graph.
-    private Collection<Edge> edges = new HashSet<Edge>(); // Collection of edges connecting stops.
+    private volatile Collection<Stop> stops; // Collection of stops in the graph (replaced, not changed, once built).
+    private volatile Collection<Line> lines; // Collection of lines in the graph (replaced, not changed, once built).
+    private volatile Collection<Edge> edges = new HashSet<Edge>(); // Collection of edges connecting stops (replaced, not changed, once built).
     private int numComponents = 0;     // Number of connected sub-graphs (graph components).
 
+    private volatile long version = 0; // Number of changes to the edges (changed only while holding this).
+    private final AtomicReference<GraphSnapshot> current = new AtomicReference<>(); // Snapshot of the current version, once built.
+
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180; // of latitude
+
+    private static final Metrics.Phase METRICS = Metrics.phase("walking edges", "stops", "stops compared", "walking edges");
+
     /**
      * Constructs a new graph with a given collection of stops and lines.
      * @param stops Collection of stops.
@@ -45,6 +65,21 @@ public class Graph {
         // printGraphData();   // you could uncomment this to help in debugging
     }
 
+    /**
+     * Constructs a graph whose edges have already been made (eg, read from a NetworkSnapshotFile),
+     * instead of making them from the lines.
+     * @param stops Collection of stops.
+     * @param lines Collection of lines.
+     * @param edges Collection of all the edges between the stops, including any walking edges.
+     */
+    public Graph(Collection<Stop> stops, Collection<Line> lines, Collection<Edge> edges) {
+        this.stops = new TreeSet<Stop>(stops);
+        this.lines = lines;
+        connectEdges(edges);
+        this.edges = new HashSet<Edge>(edges);
+        computeNeighbours();
+    }
+
 
     /**
      * Print out the lines and stops in the graph to System.out
@@ -68,23 +103,47 @@ public class Graph {
      * Creates and connects edges between stops based on lines.
      */
     private void createAndConnectEdges() {
+        Collection<Edge> edges = new HashSet<Edge>();
         //Create edges between stops for each line
         for(Line line: lines){
-            List<Stop> stops = line.getStops(); // Gets line stops
-            List<Integer> times = line.getTimes(); // Gets line timing
-            for(int i = 0; i < stops.size() - 1; i++){
-                Stop fromStop = stops.get(i); // Current stop
-                Stop toStop = stops.get(i + 1); // Next stop
-                Edge edge = new Edge(fromStop, toStop, line.getType(), line, times.get(i + 1) - times.get(i), fromStop.distanceTo(toStop)); // Creates the edge object
-                edges.add(edge); // Adds the edge object to edges set
-                fromStop.addForwardEdge(edge); // Adds an edge from current stop to the next stop
-                toStop.addBackwardEdge(edge); // Adds an edge from next stop to current stop
-            }
+            edges.addAll(lineEdges(line)); // Adds the edge objects to edges set
         }
+        connectEdges(edges);
+        this.edges = edges;
 
         System.out.println("NUM OF STOPS: " + stops.size());
     }
 
+    /**
+     * Adds the edges to the stops at their ends, with one call for each stop
+     * (adding them one at a time would copy the stop's edges for every edge).
+     */
+    private void connectEdges(Collection<Edge> edges) {
+        Map<Stop, List<Edge>> forward = new HashMap<>();
+        Map<Stop, List<Edge>> backward = new HashMap<>();
+        for (Edge edge : edges) {
+            forward.computeIfAbsent(edge.fromStop(), s -> new ArrayList<Edge>()).add(edge);
+            backward.computeIfAbsent(edge.toStop(), s -> new ArrayList<Edge>()).add(edge);
+        }
+        for (Stop stop : stops) {
+            stop.addEdges(forward.getOrDefault(stop, Collections.<Edge>emptyList()),
+                          backward.getOrDefault(stop, Collections.<Edge>emptyList()));
+        }
+    }
+
+    /**
+     * The edges between each pair of adjacent stops of a line
+     */
+    private static List<Edge> lineEdges(Line line) {
+        List<Edge> edges = new ArrayList<Edge>();
+        for(int i = 0; i < line.size() - 1; i++){
+            Stop fromStop = line.getStop(i); // Current stop
+            Stop toStop = line.getStop(i + 1); // Next stop
+            edges.add(new Edge(fromStop, toStop, line.getType(), line, line.getTime(i + 1) - line.getTime(i), fromStop.distanceTo(toStop)));
+        }
+        return edges;
+    }
+
     /** 
      * Computes the undirected graph of neighbours for each stop.
      */
@@ -120,36 +179,247 @@ public class Graph {
      * Recomputes walking edges and adds them to the graph
      */
     public void recomputeWalkingEdges(double walkingDistance) {
-        int count = 0;
-        this.removeWalkingEdges(); // Removes previous walking edges
-
-        for(Stop stop1: stops){
-            for(Stop stop2: stops){
-                if(stop1 != stop2 && stop1.distanceTo(stop2) <= walkingDistance){
-                    double time = stop1.distanceTo(stop2) / Transport.WALKING_SPEED_MPS; // Calculates the time
-                    Edge edge1 = new Edge(stop1, stop2, Transport.WALKING, null, time, stop1.distanceTo(stop2)); // Edge from stop1 to stop2
-                    edges.add(edge1);
-                    stop1.addForwardEdge(edge1); // Adds an edge from current stop to the next stop
-                    stop2.addBackwardEdge(edge1); // Adds an edge from next stop to the current stop
-                    count++;
+        List<Edge> walkingEdges = computeWalkingEdges(walkingDistance, () -> false);
+        setWalkingEdges(walkingEdges);
+
+       // computeNeighbours();
+
+        System.out.println("Number of walking edges added: " + walkingEdges.size()); // Should equal to 25956
+    }
+
+    /**
+     * Work out the walking edges between every pair of stops that are at most
+     * walkingDistance apart, without changing the graph.
+     * Only reads the stops (which are replaced, never changed), so it can run on a background thread.
+     * The stops are put in a GridIndex, so each stop is only compared with the stops
+     * in the cells around it rather than with every other stop.
+     * @param walkingDistance The longest walking edge, in meters.
+     * @param cancelled Polled between stops; if it becomes true, the work stops with a CancellationException.
+     * @return the walking edges, both ways between each pair, from each stop in order.
+     */
+    public List<Edge> computeWalkingEdges(double walkingDistance, BooleanSupplier cancelled) {
+        List<Edge> walkingEdges = new ArrayList<Edge>();
+        if (walkingDistance <= 0) { return walkingEdges; }
+        long started = Metrics.start();
+        long compared = 0;   // for the metrics
+
+        Stop[] stopArray = stops.toArray(new Stop[0]);
+        StopGrid grid = new StopGrid(stopArray, walkingDistance);
+        List<Integer> near = new ArrayList<Integer>();
+        for (int i = 0; i < stopArray.length; i++) {
+            if (cancelled.getAsBoolean()) { throw new CancellationException(); }
+            Stop stop1 = stopArray[i];
+            grid.near(stop1, near);
+            compared += near.size();
+            for (int j : near) {
+                Stop stop2 = stopArray[j];
+                if (stop1 != stop2 && stop1.distanceTo(stop2) <= walkingDistance) {
+                    walkingEdges.add(walkingEdge(stop1, stop2)); // Edge from stop1 to stop2
                 }
             }
         }
+        if (Metrics.ENABLED) { METRICS.record(started, stopArray.length, compared, walkingEdges.size()); }
+        return walkingEdges;
+    }
 
-       // computeNeighbours();
+    private static Edge walkingEdge(Stop from, Stop to) {
+        double time = from.distanceTo(to) / Transport.WALKING_SPEED_MPS; // Calculates the time
+        return new Edge(from, to, Transport.WALKING, null, time, from.distanceTo(to));
+    }
+
+    /**
+     * The stops in a GridIndex, for finding the stops near a stop
+     */
+    private static class StopGrid {
+        private final GridIndex grid;
+        private final double latMargin, lonMargin;
 
-        System.out.println("Number of walking edges added: " + count); // Should equal to 25956
+        /** A grid of the stops, for finding the stops within (at least) the given distance */
+        StopGrid(Stop[] stopArray, double distance) {
+            double[] boxes = new double[4 * stopArray.length];
+            double maxAbsLat = 0;
+            for (int i = 0; i < stopArray.length; i++) {
+                GisPoint p = stopArray[i].getPoint();
+                boxes[4 * i] = boxes[4 * i + 2] = p.getLon();
+                boxes[4 * i + 1] = boxes[4 * i + 3] = p.getLat();
+                maxAbsLat = Math.max(maxAbsLat, Math.abs(p.getLat()));
+            }
+            grid = new GridIndex(boxes);
+            // the search box around each stop, a little larger than the distance in each direction
+            latMargin = 1.01 * distance / METERS_PER_DEGREE;
+            lonMargin = latMargin / Math.max(Math.cos(Math.toRadians(maxAbsLat)), 1e-6);
+        }
+
+        /** Put the indexes of the stops in the search box around the stop into near, in order */
+        void near(Stop stop, List<Integer> near) {
+            near.clear();
+            double lon = stop.getPoint().getLon(), lat = stop.getPoint().getLat();
+            grid.query(lon - lonMargin, lat - latMargin, lon + lonMargin, lat + latMargin, near::add);
+            Collections.sort(near);   // same order as comparing with every stop in turn
+        }
+    }
+
+    /**
+     * Replace the walking edges of the graph with the given ones
+     * (eg, from computeWalkingEdges).
+     */
+    public synchronized void setWalkingEdges(Collection<Edge> walkingEdges) {
+        replaceEdgesOfType(Transport.WALKING, walkingEdges);
     }
 
     /** 
      * Remove all the current walking edges in the graph
      */
-    public void removeWalkingEdges() {
+    public synchronized void removeWalkingEdges() {
         resetSubGraphIds();
+        replaceEdgesOfType(Transport.WALKING, Collections.<Edge>emptyList());
+    }
+
+    /**
+     * Replace all the edges of one type with new edges of that type.
+     * The new set of edges is built off to the side, then each stop's edges are
+     * swapped, then the graph's set of edges, and finally the old snapshot is dropped.
+     */
+    private synchronized void replaceEdgesOfType(String type, Collection<Edge> newEdges) {
+        Collection<Edge> allEdges = new HashSet<Edge>();
+        for (Edge e : edges) {
+            if (!type.equals(e.transpType())) { allEdges.add(e); }
+        }
+        allEdges.addAll(newEdges);
+
+        Map<Stop, List<Edge>> forward = new HashMap<>();
+        Map<Stop, List<Edge>> backward = new HashMap<>();
+        for (Edge e : newEdges) {
+            forward.computeIfAbsent(e.fromStop(), s -> new ArrayList<Edge>()).add(e);
+            backward.computeIfAbsent(e.toStop(), s -> new ArrayList<Edge>()).add(e);
+        }
         for (Stop stop : stops) {
-            stop.deleteEdgesOfType(Transport.WALKING);// remove all edges of type walking
+            stop.replaceEdgesOfType(type, forward.getOrDefault(stop, Collections.<Edge>emptyList()),
+                                    backward.getOrDefault(stop, Collections.<Edge>emptyList()));
+        }
+
+        edges = allEdges;
+        version++;
+        current.set(null);
+    }
+
+    /**
+     * Change the stops and lines of the graph (eg, when the network data has been
+     * reloaded: see NetworkReloader), changing only the edges that involve them.
+     * The edges of the removed lines and all the edges of the removed stops go; the added
+     * lines get their edges, and the added stops get walking edges to and from every stop
+     * within walkingDistance. The neighbours of the stops whose edges changed are worked
+     * out again. The new sets of stops, lines and edges are built off to the side and
+     * then swapped in, as for the walking edges.
+     * The lines must already be in the lines of their stops (Stop.addLine), and a stop
+     * that has moved or been renamed is removed and added as a new Stop.
+     * @param walkingDistance The walking distance of the current walking edges (0 for none).
+     */
+    public synchronized void applyChanges(Collection<Stop> removedStops, Collection<Stop> addedStops,
+                                          Collection<Line> removedLines, Collection<Line> addedLines,
+                                          double walkingDistance) {
+        Set<Stop> goneStops = new HashSet<Stop>(removedStops);
+        Set<Line> goneLines = new HashSet<Line>(removedLines);
+
+        Collection<Stop> newStops = new TreeSet<Stop>(stops);
+        newStops.removeAll(goneStops);
+        newStops.addAll(addedStops);
+        Collection<Line> newLines = new ArrayList<Line>();
+        for (Line line : lines) {
+            if (!goneLines.contains(line)) { newLines.add(line); }
+        }
+        newLines.addAll(addedLines);
+
+        List<Edge> removed = new ArrayList<Edge>();
+        Collection<Edge> allEdges = new HashSet<Edge>();
+        for (Edge e : edges) {
+            if (goneLines.contains(e.line()) || goneStops.contains(e.fromStop()) || goneStops.contains(e.toStop())) {
+                removed.add(e);
+            } else {
+                allEdges.add(e);
+            }
+        }
+        List<Edge> added = new ArrayList<Edge>();
+        for (Line line : addedLines) { added.addAll(lineEdges(line)); }
+        if (walkingDistance > 0 && !addedStops.isEmpty()) {
+            Stop[] stopArray = newStops.toArray(new Stop[0]);
+            StopGrid grid = new StopGrid(stopArray, walkingDistance);
+            Set<Stop> newlyAdded = new HashSet<Stop>(addedStops);
+            List<Integer> near = new ArrayList<Integer>();
+            for (Stop stop1 : addedStops) {
+                grid.near(stop1, near);
+                for (int j : near) {
+                    Stop stop2 = stopArray[j];
+                    if (stop1 != stop2 && stop1.distanceTo(stop2) <= walkingDistance) {
+                        added.add(walkingEdge(stop1, stop2));
+                        // walking edges between two added stops are made from each end
+                        if (!newlyAdded.contains(stop2)) { added.add(walkingEdge(stop2, stop1)); }
+                    }
+                }
+            }
+        }
+        allEdges.addAll(added);
+
+        // change the edges of just the stops at the ends of the removed and added edges
+        Map<Stop, List<Edge>> forward = new HashMap<>();
+        Map<Stop, List<Edge>> backward = new HashMap<>();
+        Set<Stop> touched = new HashSet<Stop>();
+        for (Edge e : removed) {
+            touched.add(e.fromStop());
+            touched.add(e.toStop());
+        }
+        for (Edge e : added) {
+            forward.computeIfAbsent(e.fromStop(), s -> new ArrayList<Edge>()).add(e);
+            backward.computeIfAbsent(e.toStop(), s -> new ArrayList<Edge>()).add(e);
+            touched.add(e.fromStop());
+            touched.add(e.toStop());
+        }
+        touched.removeAll(goneStops);
+        for (Stop stop : touched) {
+            stop.changeEdges(removed, forward.getOrDefault(stop, Collections.<Edge>emptyList()),
+                             backward.getOrDefault(stop, Collections.<Edge>emptyList()));
+            // the neighbours are the stops joined by lines, as when the graph was built
+            Set<Stop> neighbours = new HashSet<Stop>();
+            for (Edge e : stop.getForwardEdges()) {
+                if (!Transport.WALKING.equals(e.transpType())) { neighbours.add(e.toStop()); }
+            }
+            for (Edge e : stop.getBackwardEdges()) {
+                if (!Transport.WALKING.equals(e.transpType())) { neighbours.add(e.fromStop()); }
+            }
+            stop.replaceNeighbours(neighbours);
+        }
+
+        stops = newStops;
+        lines = newLines;
+        edges = allEdges;
+        version++;
+        current.set(null);
+        System.out.println("Patched graph: " + removed.size() + " edges removed, " + added.size() + " added");
+    }
+
+    /**
+     * An immutable snapshot of the current version of the graph.
+     * Readers can use it on any thread, for as long as they like, while the graph changes.
+     * @return the same snapshot until the edges of the graph are changed.
+     */
+    public GraphSnapshot snapshot() {
+        GraphSnapshot snapshot = current.get();
+        if (snapshot != null) { return snapshot; }
+        synchronized (this) {
+            snapshot = current.get();
+            if (snapshot == null) {
+                snapshot = new GraphSnapshot(stops, edges, version);
+                current.set(snapshot);
+            }
+            return snapshot;
         }
-        edges.removeIf((Edge e)->Transport.WALKING.equals(e.transpType()));
+    }
+
+    /**
+     * The number of changes that have been made to the edges of the graph
+     */
+    public long getVersion() {
+        return version;
     }
 
     /**
@@ -159,6 +429,14 @@ public class Graph {
     public Collection<Stop> getStops() {
         return Collections.unmodifiableCollection(stops);
     }
+    /**
+     * Return a collection of all the lines in the network.
+     * @return Unmodifiable collection of lines.
+     */
+    public Collection<Line> getLines() {
+        return Collections.unmodifiableCollection(lines);
+    }
+
     /**
      * Return a collection of all the edges in the network
      * @return Unmodifiable collection of edges.
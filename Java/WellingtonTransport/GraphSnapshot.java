@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, index-based copy of a Graph.
+ *
+ * Every stop is given an index 0..numStops()-1 and every edge an index 0..numEdges()-1.
+ * The forward edges, backward edges and (undirected) neighbours of each stop are held
+ * in compressed arrays: the edges out of stop s are outEdge[outStart[s] .. outStart[s+1]-1].
+ * The edge costs are held in primitive arrays, so searches over a snapshot do not need
+ * to touch the Stop and Edge objects until they reconstruct a path.
+ *
+ * Because nothing in a snapshot can change, any number of threads can search it at the
+ * same time, and searches can "skip" stops or edges without editing the Graph.
+ */
+public class GraphSnapshot {
+
+    private static final double EARTH_RADIUS = 6371000; // meters, as used by GisPoint.distance
+
+    private final long version;              // the version of the Graph this is a snapshot of
+
+    private final Stop[] stops;              // stops, in the order of their index
+    private final Map<Stop, Integer> index;  // stop -> index
+    private final double[] lon;              // longitude of each stop
+    private final double[] lat;              // latitude of each stop
+    private final double[] unitX;            // position of each stop on a unit sphere,
+    private final double[] unitY;            //  for fast lower bounds on distance
+    private final double[] unitZ;
+
+    private final Edge[] edges;              // edges, in the order of their index
+    private final int[] edgeFrom;            // index of the from stop of each edge
+    private final int[] edgeTo;              // index of the to stop of each edge
+    private final double[] edgeTime;         // time (seconds) of each edge
+    private final double[] edgeDistance;     // distance (meters) of each edge
+
+    private final int[] outStart;            // forward edges of s are outEdge[outStart[s]..outStart[s+1]-1]
+    private final int[] outEdge;
+    private final int[] inStart;             // backward edges of s are inEdge[inStart[s]..inStart[s+1]-1]
+    private final int[] inEdge;
+    private final int[] nbrStart;            // neighbours of s are nbr[nbrStart[s]..nbrStart[s+1]-1]
+    private final int[] nbr;
+
+    /**
+     * Take a snapshot of the current stops and edges of a graph.
+     * Graph.snapshot() is usually better: it shares one snapshot of each version of the graph.
+     * @param graph The graph to copy.
+     */
+    public GraphSnapshot(Graph graph) {
+        this(graph.getStops(), graph.getEdges());
+    }
+
+    /**
+     * Build a snapshot from a collection of stops and the edges between them.
+     * Edges whose stops are not in the collection are ignored.
+     * @param stopCollection The stops (indexed in iteration order).
+     * @param edgeCollection The edges between the stops.
+     */
+    public GraphSnapshot(Collection<Stop> stopCollection, Collection<Edge> edgeCollection) {
+        this(stopCollection, edgeCollection, 0);
+    }
+
+    /**
+     * Build a snapshot of a given version of a Graph (see Graph.snapshot()).
+     */
+    GraphSnapshot(Collection<Stop> stopCollection, Collection<Edge> edgeCollection, long version) {
+        this.version = version;
+        int n = stopCollection.size();
+        stops = stopCollection.toArray(new Stop[0]);
+        index = new HashMap<>(n * 2);
+        lon = new double[n];
+        lat = new double[n];
+        unitX = new double[n];
+        unitY = new double[n];
+        unitZ = new double[n];
+        for (int i = 0; i < n; i++) {
+            index.put(stops[i], i);
+            lon[i] = stops[i].getPoint().getLon();
+            lat[i] = stops[i].getPoint().getLat();
+            double cosLat = Math.cos(Math.toRadians(lat[i]));
+            unitX[i] = cosLat * Math.cos(Math.toRadians(lon[i]));
+            unitY[i] = cosLat * Math.sin(Math.toRadians(lon[i]));
+            unitZ[i] = Math.sin(Math.toRadians(lat[i]));
+        }
+
+        // order the edges by from stop, then to stop, so that edge indexes are repeatable
+        List<Edge> sorted = new ArrayList<>(edgeCollection.size());
+        for (Edge edge : edgeCollection) {
+            if (index.containsKey(edge.fromStop()) && index.containsKey(edge.toStop())) {
+                sorted.add(edge);
+            }
+        }
+        sorted.sort(Comparator.<Edge>comparingInt(e -> index.get(e.fromStop()))
+                    .thenComparingInt(e -> index.get(e.toStop()))
+                    .thenComparing(Edge::transpType)
+                    .thenComparing(e -> (e.line() == null) ? "" : e.line().getId())
+                    .thenComparingDouble(Edge::time));
+
+        int m = sorted.size();
+        edges = sorted.toArray(new Edge[0]);
+        edgeFrom = new int[m];
+        edgeTo = new int[m];
+        edgeTime = new double[m];
+        edgeDistance = new double[m];
+        for (int e = 0; e < m; e++) {
+            edgeFrom[e] = index.get(edges[e].fromStop());
+            edgeTo[e] = index.get(edges[e].toStop());
+            edgeTime[e] = edges[e].time();
+            edgeDistance[e] = edges[e].distance();
+        }
+
+        // forward edges: the edges are already in order of their from stop
+        outStart = new int[n + 1];
+        for (int e = 0; e < m; e++) { outStart[edgeFrom[e] + 1]++; }
+        for (int s = 0; s < n; s++) { outStart[s + 1] += outStart[s]; }
+        outEdge = new int[m];
+        for (int e = 0; e < m; e++) { outEdge[e] = e; }
+
+        // backward edges: counting sort on the to stop
+        inStart = new int[n + 1];
+        for (int e = 0; e < m; e++) { inStart[edgeTo[e] + 1]++; }
+        for (int s = 0; s < n; s++) { inStart[s + 1] += inStart[s]; }
+        inEdge = new int[m];
+        int[] fill = Arrays.copyOf(inStart, n);
+        for (int e = 0; e < m; e++) { inEdge[fill[edgeTo[e]]++] = e; }
+
+        // undirected neighbours: both ends of every edge, without duplicates or self loops
+        int[][] adj = new int[n][];
+        int[] count = new int[n];
+        for (int s = 0; s < n; s++) { adj[s] = new int[outStart[s + 1] - outStart[s] + inStart[s + 1] - inStart[s]]; }
+        for (int e = 0; e < m; e++) {
+            if (edgeFrom[e] == edgeTo[e]) { continue; }
+            adj[edgeFrom[e]][count[edgeFrom[e]]++] = edgeTo[e];
+            adj[edgeTo[e]][count[edgeTo[e]]++] = edgeFrom[e];
+        }
+        nbrStart = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            Arrays.sort(adj[s], 0, count[s]);
+            int unique = 0;
+            for (int k = 0; k < count[s]; k++) {
+                if (k == 0 || adj[s][k] != adj[s][k - 1]) { adj[s][unique++] = adj[s][k]; }
+            }
+            count[s] = unique;
+            nbrStart[s + 1] = nbrStart[s] + unique;
+        }
+        nbr = new int[nbrStart[n]];
+        for (int s = 0; s < n; s++) {
+            System.arraycopy(adj[s], 0, nbr, nbrStart[s], count[s]);
+        }
+    }
+
+    /** The version of the Graph that this is a snapshot of (0 if it was not made from a Graph) */
+    public long version() { return version; }
+
+    //--------------------------------------------
+    //  Stops
+    //--------------------------------------------
+
+    /** Number of stops in the snapshot */
+    public int numStops() { return stops.length; }
+
+    /** The stop with the given index */
+    public Stop stop(int s) { return stops[s]; }
+
+    /**
+     * The index of a stop
+     * @return the index, or -1 if the stop is not in the snapshot
+     */
+    public int indexOf(Stop stop) {
+        Integer i = (stop == null) ? null : index.get(stop);
+        return (i == null) ? -1 : i;
+    }
+
+    /** Longitude of the stop with the given index */
+    public double lon(int s) { return lon[s]; }
+
+    /** Latitude of the stop with the given index */
+    public double lat(int s) { return lat[s]; }
+
+    /** Distance in meters between two stops, given by index */
+    public double distance(int s, int t) {
+        return GisPoint.distance(lat[s], lat[t], lon[s], lon[t], 0.0, 0.0);
+    }
+
+    /**
+     * A lower bound on the distance in meters between two stops: the length of the straight
+     * line through the earth, which is never longer than the distance along the surface.
+     * Much cheaper than distance(s, t), so it is used for the A* heuristic.
+     */
+    public double lowerBoundDistance(int s, int t) {
+        double dx = unitX[s] - unitX[t];
+        double dy = unitY[s] - unitY[t];
+        double dz = unitZ[s] - unitZ[t];
+        return EARTH_RADIUS * Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    //--------------------------------------------
+    //  Edges
+    //--------------------------------------------
+
+    /** Number of edges in the snapshot */
+    public int numEdges() { return edges.length; }
+
+    /** The edge with the given index */
+    public Edge edge(int e) { return edges[e]; }
+
+    /** Index of the from stop of an edge */
+    public int edgeFrom(int e) { return edgeFrom[e]; }
+
+    /** Index of the to stop of an edge */
+    public int edgeTo(int e) { return edgeTo[e]; }
+
+    /**
+     * The costs of all the edges, indexed by edge. The array must not be modified.
+     * @param timeOrDistance "time" for the travel times (seconds); anything else for distances (meters)
+     */
+    public double[] edgeCosts(String timeOrDistance) {
+        return "time".equals(timeOrDistance) ? edgeTime : edgeDistance;
+    }
+
+    /**
+     * The lower bound on cost per meter of straight line distance for a cost metric,
+     * matching the A* heuristic.
+     */
+    public static double heuristicScale(String timeOrDistance) {
+        return "time".equals(timeOrDistance) ? 1.0 / Transport.TRAIN_SPEED_MPS : 1.0;
+    }
+
+    /** The forward edges of stop s are outEdge(k) for outStart(s) <= k < outStart(s+1) */
+    public int outStart(int s) { return outStart[s]; }
+    public int outEdge(int k) { return outEdge[k]; }
+
+    /** The backward edges of stop s are inEdge(k) for inStart(s) <= k < inStart(s+1) */
+    public int inStart(int s) { return inStart[s]; }
+    public int inEdge(int k) { return inEdge[k]; }
+
+    /** The neighbours of stop s are nbr(k) for nbrStart(s) <= k < nbrStart(s+1) */
+    public int nbrStart(int s) { return nbrStart[s]; }
+    public int nbr(int k) { return nbr[k]; }
+
+    /**
+     * Turn a sequence of edge indexes into the list of Edges
+     */
+    public List<Edge> toEdges(int[] path, int length) {
+        List<Edge> ans = new ArrayList<>(length);
+        for (int k = 0; k < length; k++) { ans.add(edges[path[k]]); }
+        return Collections.unmodifiableList(ans);
+    }
+
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A spatial index of items with bounding boxes (in longitude and latitude), for finding
+ * the items that overlap a region, such as the part of the map that is on screen.
+ *
+ * The area covered by the items is divided into a grid of equal cells and every item is
+ * listed in each cell that its box overlaps. A query looks only at the cells that overlap
+ * the region, and then checks the boxes of the items listed there.
+ * An item that overlaps several of those cells is only reported from the first of them,
+ * so queries need no working storage and can run on several threads at once.
+ */
+public class GridIndex {
+
+    private static final int ITEMS_PER_CELL = 4;   // aim for about this many items in each cell
+
+    private final int numItems;
+    private final double[] boxes;     // minLon, minLat, maxLon, maxLat of each item
+    private final double minLon;      // the area covered by the grid
+    private final double minLat;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;    // the items in cell c are items[cellStart[c]..cellStart[c+1]-1]
+    private final int[] items;
+
+    /**
+     * Build an index of items.
+     * @param boxes The bounding box of each item, as four values per item:
+     *              minLon, minLat, maxLon, maxLat. The array is kept, not copied.
+     */
+    public GridIndex(double[] boxes) {
+        this.boxes = boxes;
+        this.numItems = boxes.length / 4;
+
+        double loLon = Double.POSITIVE_INFINITY, loLat = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY, hiLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numItems; i++) {
+            loLon = Math.min(loLon, boxes[4 * i]);
+            loLat = Math.min(loLat, boxes[4 * i + 1]);
+            hiLon = Math.max(hiLon, boxes[4 * i + 2]);
+            hiLat = Math.max(hiLat, boxes[4 * i + 3]);
+        }
+        if (numItems == 0) { loLon = loLat = hiLon = hiLat = 0; }
+        int side = Math.max(1, (int) Math.sqrt((double) numItems / ITEMS_PER_CELL));
+        minLon = loLon;
+        minLat = loLat;
+        cols = side;
+        rows = side;
+        cellWidth = Math.max(hiLon - loLon, 1e-9) / cols;
+        cellHeight = Math.max(hiLat - loLat, 1e-9) / rows;
+
+        // count the items in each cell, then fill the cells
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < numItems; i++) {
+            forEachCell(i, c -> cellStart[c + 1]++);
+        }
+        for (int c = 0; c < cols * rows; c++) { cellStart[c + 1] += cellStart[c]; }
+        items = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int i = 0; i < numItems; i++) {
+            final int item = i;
+            forEachCell(i, c -> items[fill[c]++] = item);
+        }
+    }
+
+    /** Number of items in the index */
+    public int size() { return numItems; }
+
+    /**
+     * Call visitor once for each item whose box overlaps the region.
+     */
+    public void query(double qMinLon, double qMinLat, double qMaxLon, double qMaxLat, IntConsumer visitor) {
+        int c0 = col(qMinLon), c1 = col(qMaxLon);
+        int r0 = row(qMinLat), r1 = row(qMaxLat);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * cols + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = items[k];
+                    double bMinLon = boxes[4 * i], bMinLat = boxes[4 * i + 1];
+                    double bMaxLon = boxes[4 * i + 2], bMaxLat = boxes[4 * i + 3];
+                    if (bMaxLon < qMinLon || bMinLon > qMaxLon || bMaxLat < qMinLat || bMinLat > qMaxLat) { continue; }
+                    // only report the item from the first cell where it overlaps the region
+                    if (c != Math.max(c0, col(bMinLon)) || r != Math.max(r0, row(bMinLat))) { continue; }
+                    visitor.accept(i);
+                }
+            }
+        }
+    }
+
+    /** Call action for each cell that the box of an item overlaps */
+    private void forEachCell(int i, IntConsumer action) {
+        int c0 = col(boxes[4 * i]), c1 = col(boxes[4 * i + 2]);
+        int r0 = row(boxes[4 * i + 1]), r1 = row(boxes[4 * i + 3]);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) { action.accept(r * cols + c); }
+        }
+    }
+
+    private int col(double lon) {
+        int c = (int) Math.floor((lon - minLon) / cellWidth);
+        return Math.max(0, Math.min(cols - 1, c));
+    }
+
+    private int row(double lat) {
+        int r = (int) Math.floor((lat - minLat) / cellHeight);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+}
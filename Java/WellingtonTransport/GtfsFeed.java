@@ -0,0 +1,606 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A transit network imported from a standard GTFS feed (a zip of stops.txt, routes.txt,
+ * trips.txt, stop_times.txt, and calendar.txt and/or calendar_dates.txt).
+ *
+ * The tables are streamed straight out of the zip with a DelimitedReader; nothing is
+ * extracted and stop_times.txt (by far the largest table) is never held in memory. Its
+ * rows are gathered one trip at a time, and each trip is then reduced to its pattern:
+ * the route, direction, sequence of stops and times from the first stop. Trips with the
+ * same pattern share one Line, and the pattern only keeps the departure time and service
+ * of each trip, as int arrays. Memory is therefore proportional to the number of distinct
+ * patterns (plus two ints per trip), not to the number of rows.
+ *
+ * The Lines of the patterns (getLines()) can be used to build a Graph just like the lines
+ * from the lines file. A Line's id is the short name of its route and its direction (eg,
+ * "2_0"); a route/direction with more than one pattern has "/2", "/3", ... added to the
+ * ids of the other patterns. The type of the Line comes from the route_type of the route.
+ *
+ * stop_times.txt must have the rows of each trip together (as every real feed does); the
+ * rows of a trip may be in any order of stop_sequence. Missing times of stops between two
+ * timed stops are interpolated.
+ */
+public class GtfsFeed {
+
+    /**
+     * The trips of a route that visit the same stops with the same times, and share a Line.
+     */
+    public static class Pattern {
+        private final Line line;
+        private final String routeId;
+        private final int direction;
+        private final int[] departures;   // departure of each trip from the first stop (seconds after midnight), in order
+        private final int[] services;     // the service of each trip (an index into the feed's services)
+
+        private Pattern(Line line, String routeId, int direction, int[] departures, int[] services) {
+            this.line = line;
+            this.routeId = routeId;
+            this.direction = direction;
+            this.departures = departures;
+            this.services = services;
+        }
+
+        public Line getLine() { return line; }
+
+        public String getRouteId() { return routeId; }
+
+        public int getDirection() { return direction; }
+
+        public int numTrips() { return departures.length; }
+
+        /** The departure of a trip from the first stop, in seconds after midnight (may be 24 hours or more) */
+        public int getDeparture(int trip) { return departures[trip]; }
+
+        @Override
+        public String toString() {
+            return line.getId() + " (" + line.size() + " stops, " + departures.length + " trips)";
+        }
+    }
+
+    private final Map<String, Stop> stopMap = new LinkedHashMap<String, Stop>();
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private int numRoutes;
+    private int numTrips;
+
+    // the services, with their days of the week and dates from calendar.txt, and exceptions from calendar_dates.txt
+    private final Map<String, Integer> serviceIndex = new HashMap<String, Integer>();
+    private final List<String> serviceIds = new ArrayList<String>();
+    private final IntArray serviceDays = new IntArray();     // bit 0 is Monday, ... bit 6 is Sunday
+    private final IntArray serviceStart = new IntArray();    // first date (yyyymmdd)
+    private final IntArray serviceEnd = new IntArray();      // last date (yyyymmdd)
+    private final Map<Long, Boolean> serviceExceptions = new HashMap<Long, Boolean>();  // (service, date) -> added?
+
+    /**
+     * Import a GTFS feed from a zip file. The tables may be at the top of the zip or in one folder.
+     * @throws IOException if the zip can not be read, or a required table is missing.
+     */
+    public static GtfsFeed read(File zipFile) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            return new GtfsFeed(zip);
+        }
+    }
+
+    private GtfsFeed(ZipFile zip) throws IOException {
+        List<Stop> stops = readStops(zip);
+        Routes routes = readRoutes(zip);
+        readCalendar(zip);
+        readCalendarDates(zip);
+        Trips trips = readTrips(zip, routes);
+        readStopTimes(zip, stops, routes, trips);
+        for (Pattern pattern : patterns) {
+            Line line = pattern.getLine();
+            for (int i = 0; i < line.size(); i++) { line.getStop(i).addLine(line); }
+        }
+        System.out.println("Loaded " + stopMap.size() + " stops, " + numRoutes + " routes, "
+                           + numTrips + " trips in " + patterns.size() + " patterns from " + zip.getName());
+    }
+
+    /** The stops, indexed by stop id */
+    public Map<String, Stop> getStopMap() { return stopMap; }
+
+    /** The Lines of all the patterns */
+    public Collection<Line> getLines() {
+        List<Line> lines = new ArrayList<Line>(patterns.size());
+        for (Pattern pattern : patterns) { lines.add(pattern.getLine()); }
+        return lines;
+    }
+
+    public List<Pattern> getPatterns() { return patterns; }
+
+    public int numTrips() { return numTrips; }
+
+    /** The id of the service of a trip of a pattern */
+    public String getServiceId(Pattern pattern, int trip) {
+        return serviceIds.get(pattern.services[trip]);
+    }
+
+    /**
+     * The departures (from the first stop) of the trips of a pattern that run on the date
+     */
+    public int[] departuresOn(Pattern pattern, LocalDate date) {
+        int[] ans = new int[pattern.departures.length];
+        int count = 0;
+        for (int trip = 0; trip < pattern.departures.length; trip++) {
+            if (isRunning(pattern.services[trip], date)) { ans[count++] = pattern.departures[trip]; }
+        }
+        return Arrays.copyOf(ans, count);
+    }
+
+    /**
+     * True if the service runs on the date: it is added for the date in calendar_dates.txt,
+     * or the date is in its range and on one of its days in calendar.txt and is not removed.
+     */
+    public boolean isRunning(String serviceId, LocalDate date) {
+        Integer service = serviceIndex.get(serviceId);
+        return service != null && isRunning(service, date);
+    }
+
+    private boolean isRunning(int service, LocalDate date) {
+        int day = date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+        Boolean added = serviceExceptions.get(((long) service << 32) | day);
+        if (added != null) { return added; }
+        return day >= serviceStart.get(service) && day <= serviceEnd.get(service)
+            && (serviceDays.get(service) & (1 << (date.getDayOfWeek().getValue() - 1))) != 0;
+    }
+
+    //--------------------------------------------
+    //  Reading the tables
+    //--------------------------------------------
+
+    /** stops.txt: stop_id, stop_name, stop_lat, stop_lon, (location_type) */
+    private List<Stop> readStops(ZipFile zip) throws IOException {
+        List<Stop> stops = new ArrayList<Stop>();
+        try (DelimitedReader reader = open(zip, "stops.txt", true)) {
+            int idCol = required(reader, "stop_id");
+            int nameCol = reader.column("stop_name");
+            int latCol = required(reader, "stop_lat");
+            int lonCol = required(reader, "stop_lon");
+            int typeCol = reader.column("location_type");
+            while (reader.next()) {
+                // stations and entrances (location_type 1 and up) are not visited by trips
+                if (!reader.isEmpty(typeCol) && reader.getInt(typeCol) != 0) { continue; }
+                String id = reader.intern(idCol);
+                String name = reader.isEmpty(nameCol) ? id : reader.getString(nameCol);
+                Stop stop = new Stop(reader.getDouble(lonCol), reader.getDouble(latCol), name, id);
+                stops.add(stop);
+                stopMap.put(id, stop);
+            }
+        }
+        return stops;
+    }
+
+    /** The routes: their ids, names for the Line ids, and transport types */
+    private static class Routes {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final List<String> ids = new ArrayList<String>();
+        final List<String> names = new ArrayList<String>();
+        final List<String> types = new ArrayList<String>();
+    }
+
+    /** routes.txt: route_id, route_short_name, route_long_name, route_type */
+    private Routes readRoutes(ZipFile zip) throws IOException {
+        Routes routes = new Routes();
+        try (DelimitedReader reader = open(zip, "routes.txt", true)) {
+            int idCol = required(reader, "route_id");
+            int shortCol = reader.column("route_short_name");
+            int longCol = reader.column("route_long_name");
+            int typeCol = reader.column("route_type");
+            while (reader.next()) {
+                String id = reader.intern(idCol);
+                String name = !reader.isEmpty(shortCol) ? reader.getString(shortCol)
+                            : !reader.isEmpty(longCol) ? reader.getString(longCol) : id;
+                routes.index.put(id, routes.ids.size());
+                routes.ids.add(id);
+                routes.names.add(name.trim());
+                routes.types.add(reader.isEmpty(typeCol) ? Transport.BUS : transpType(reader.getInt(typeCol)));
+            }
+        }
+        numRoutes = routes.ids.size();
+        return routes;
+    }
+
+    /** calendar.txt: service_id, monday, ..., sunday, start_date, end_date */
+    private void readCalendar(ZipFile zip) throws IOException {
+        try (DelimitedReader reader = open(zip, "calendar.txt", false)) {
+            if (reader == null) { return; }
+            int idCol = required(reader, "service_id");
+            String[] dayNames = {"monday", "tuesday", "wednesday", "thursday", "friday", "saturday", "sunday"};
+            int[] dayCols = new int[dayNames.length];
+            for (int d = 0; d < dayNames.length; d++) { dayCols[d] = required(reader, dayNames[d]); }
+            int startCol = required(reader, "start_date");
+            int endCol = required(reader, "end_date");
+            while (reader.next()) {
+                int service = service(reader.intern(idCol));
+                int days = 0;
+                for (int d = 0; d < dayCols.length; d++) {
+                    if (reader.getInt(dayCols[d]) == 1) { days |= 1 << d; }
+                }
+                serviceDays.set(service, days);
+                serviceStart.set(service, reader.getInt(startCol));
+                serviceEnd.set(service, reader.getInt(endCol));
+            }
+        }
+    }
+
+    /** calendar_dates.txt: service_id, date, exception_type (1 added, 2 removed) */
+    private void readCalendarDates(ZipFile zip) throws IOException {
+        try (DelimitedReader reader = open(zip, "calendar_dates.txt", false)) {
+            if (reader == null) { return; }
+            int idCol = required(reader, "service_id");
+            int dateCol = required(reader, "date");
+            int typeCol = required(reader, "exception_type");
+            while (reader.next()) {
+                int service = service(reader.intern(idCol));
+                long key = ((long) service << 32) | reader.getInt(dateCol);
+                serviceExceptions.put(key, reader.getInt(typeCol) == 1);
+            }
+        }
+    }
+
+    /** The index of a service, adding it (running on no days) if it is new */
+    private int service(String serviceId) {
+        Integer service = serviceIndex.get(serviceId);
+        if (service == null) {
+            service = serviceIds.size();
+            serviceIndex.put(serviceId, service);
+            serviceIds.add(serviceId);
+            serviceDays.add(0);
+            serviceStart.add(0);
+            serviceEnd.add(0);
+        }
+        return service;
+    }
+
+    /** The trips: for each trip, its route, direction and service */
+    private static class Trips {
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final IntArray route = new IntArray();
+        final IntArray direction = new IntArray();
+        final IntArray service = new IntArray();
+    }
+
+    /** trips.txt: route_id, service_id, trip_id, (direction_id) */
+    private Trips readTrips(ZipFile zip, Routes routes) throws IOException {
+        Trips trips = new Trips();
+        try (DelimitedReader reader = open(zip, "trips.txt", true)) {
+            int routeCol = required(reader, "route_id");
+            int serviceCol = required(reader, "service_id");
+            int idCol = required(reader, "trip_id");
+            int directionCol = reader.column("direction_id");
+            while (reader.next()) {
+                Integer route = routes.index.get(reader.intern(routeCol));
+                if (route == null) {
+                    System.out.println("Trip " + reader.getString(idCol) + " has unknown route " + reader.getString(routeCol));
+                    continue;
+                }
+                trips.index.put(reader.intern(idCol), trips.route.size());
+                trips.route.add(route);
+                trips.direction.add(reader.isEmpty(directionCol) ? 0 : reader.getInt(directionCol));
+                trips.service.add(service(reader.intern(serviceCol)));
+            }
+        }
+        return trips;
+    }
+
+    /**
+     * stop_times.txt: trip_id, arrival_time, departure_time, stop_id, stop_sequence.
+     * The rows are gathered into one trip at a time (see addTrip).
+     */
+    private void readStopTimes(ZipFile zip, List<Stop> stops, Routes routes, Trips trips) throws IOException {
+        Map<Stop, Integer> stopIndex = new HashMap<Stop, Integer>(2 * stops.size());
+        for (Stop stop : stops) { stopIndex.put(stop, stopIndex.size()); }
+
+        TripBuilder trip = new TripBuilder();
+        Map<PatternKey, PatternBuilder> builders = new LinkedHashMap<PatternKey, PatternBuilder>();
+        BitSet finished = new BitSet(trips.route.size());
+        try (DelimitedReader reader = open(zip, "stop_times.txt", true)) {
+            int tripCol = required(reader, "trip_id");
+            int arrivalCol = required(reader, "arrival_time");
+            int departureCol = required(reader, "departure_time");
+            int stopCol = required(reader, "stop_id");
+            int sequenceCol = required(reader, "stop_sequence");
+            String tripId = null;
+            int tripNum = -1;
+            while (reader.next()) {
+                String id = reader.intern(tripCol);
+                if (id != tripId) {         // interned, so the same trip id is the same String
+                    if (tripNum >= 0) { addTrip(trip, tripId, tripNum, routes, trips, builders); }
+                    tripId = id;
+                    Integer num = trips.index.get(id);
+                    tripNum = (num == null) ? -1 : num;
+                    if (num == null) {
+                        System.out.println("Stop times for unknown trip " + id);
+                    } else if (finished.get(tripNum)) {
+                        throw new IOException("stop_times.txt does not have the rows of trip " + id + " together");
+                    } else {
+                        finished.set(tripNum);
+                    }
+                    trip.clear();
+                }
+                if (tripNum < 0) { continue; }
+                Stop stop = stopMap.get(reader.intern(stopCol));
+                if (stop == null) {
+                    System.out.println("Trip " + id + " has unknown stop " + reader.getString(stopCol));
+                    continue;
+                }
+                trip.add(reader.getInt(sequenceCol), stopIndex.get(stop),
+                         reader.getSeconds(arrivalCol), reader.getSeconds(departureCol));
+            }
+            if (tripNum >= 0) { addTrip(trip, tripId, tripNum, routes, trips, builders); }
+        }
+
+        // make the Lines, giving every pattern of a route and direction after the first its own id
+        Map<String, Integer> idCount = new HashMap<String, Integer>();
+        for (PatternBuilder builder : builders.values()) {
+            PatternKey key = builder.key;
+            String lineId = routes.names.get(key.route) + "_" + key.direction;
+            int count = idCount.merge(lineId, 1, Integer::sum);
+            if (count > 1) { lineId = lineId + "/" + count; }
+            Stop[] lineStops = new Stop[key.size];
+            for (int i = 0; i < key.size; i++) { lineStops[i] = stops.get(key.stops[i]); }
+            Line line = new Line(lineId, routes.types.get(key.route), lineStops, key.offsets, key.size);
+            patterns.add(builder.build(line, routes.ids.get(key.route)));
+        }
+    }
+
+    /**
+     * Reduce the gathered rows of a trip to its pattern, and add the trip to the pattern
+     */
+    private void addTrip(TripBuilder trip, String tripId, int tripNum, Routes routes, Trips trips,
+                         Map<PatternKey, PatternBuilder> builders) {
+        if (trip.size < 2) {
+            System.out.println("Trip " + tripId + " has fewer than two stops");
+            return;
+        }
+        trip.sortBySequence();
+        if (!trip.fillTimes()) {
+            System.out.println("Trip " + tripId + " has no time at its first or last stop");
+            return;
+        }
+        PatternKey probe = trip.key;
+        probe.route = trips.route.get(tripNum);
+        probe.direction = trips.direction.get(tripNum);
+        probe.hash();
+        PatternBuilder builder = builders.get(probe);
+        if (builder == null) {
+            PatternKey key = probe.copy();
+            builder = new PatternBuilder(key);
+            builders.put(key, builder);
+        }
+        builder.departures.add(trip.departure[0]);
+        builder.services.add(trips.service.get(tripNum));
+        numTrips++;
+    }
+
+    /**
+     * The rows of the current trip of stop_times.txt. The arrays are reused for every trip.
+     */
+    private static class TripBuilder {
+        int size = 0;
+        int[] sequence = new int[64];
+        int[] stop = new int[64];
+        int[] arrival = new int[64];
+        int[] departure = new int[64];
+        final PatternKey key = new PatternKey();   // probe for the pattern of the trip, sharing the stop array
+
+        void clear() { size = 0; }
+
+        void add(int seq, int stopNum, int arrivalTime, int departureTime) {
+            if (size == sequence.length) {
+                sequence = Arrays.copyOf(sequence, 2 * size);
+                stop = Arrays.copyOf(stop, 2 * size);
+                arrival = Arrays.copyOf(arrival, 2 * size);
+                departure = Arrays.copyOf(departure, 2 * size);
+            }
+            sequence[size] = seq;
+            stop[size] = stopNum;
+            arrival[size] = arrivalTime;
+            departure[size] = departureTime;
+            size++;
+        }
+
+        /** Insertion sort by stop_sequence (the rows are almost always in order already) */
+        void sortBySequence() {
+            for (int i = 1; i < size; i++) {
+                int seq = sequence[i], s = stop[i], a = arrival[i], d = departure[i];
+                int j = i - 1;
+                for (; j >= 0 && sequence[j] > seq; j--) {
+                    sequence[j + 1] = sequence[j];
+                    stop[j + 1] = stop[j];
+                    arrival[j + 1] = arrival[j];
+                    departure[j + 1] = departure[j];
+                }
+                sequence[j + 1] = seq;
+                stop[j + 1] = s;
+                arrival[j + 1] = a;
+                departure[j + 1] = d;
+            }
+        }
+
+        /**
+         * Fill in missing times, interpolating between timed stops, and set the key's
+         * stops and offsets (arrival at each stop after the departure from the first).
+         * @return false if the first or last stop has no time.
+         */
+        boolean fillTimes() {
+            for (int i = 0; i < size; i++) {
+                if (arrival[i] < 0) { arrival[i] = departure[i]; }
+                if (departure[i] < 0) { departure[i] = arrival[i]; }
+            }
+            if (departure[0] < 0 || arrival[size - 1] < 0) { return false; }
+            int previous = 0;    // the last stop with a time
+            for (int i = 1; i < size; i++) {
+                if (arrival[i] < 0) { continue; }
+                for (int k = previous + 1; k < i; k++) {
+                    int time = departure[previous] + (arrival[i] - departure[previous]) * (k - previous) / (i - previous);
+                    arrival[k] = time;
+                    departure[k] = time;
+                }
+                previous = i;
+            }
+            if (key.offsets.length < size) { key.offsets = new int[stop.length]; }
+            key.stops = stop;
+            key.size = size;
+            for (int i = 0; i < size; i++) { key.offsets[i] = (i == 0) ? 0 : arrival[i] - departure[0]; }
+            return true;
+        }
+    }
+
+    /**
+     * What makes trips the same pattern: the route, direction, stops and times from the first stop.
+     * A probe key is reused for looking up every trip; only the key of a new pattern is copied.
+     */
+    private static class PatternKey {
+        int route;
+        int direction;
+        int[] stops = new int[0];
+        int[] offsets = new int[0];
+        int size;
+        int hash;
+
+        void hash() {
+            int h = 31 * route + direction;
+            for (int i = 0; i < size; i++) { h = (h * 31 + stops[i]) * 31 + offsets[i]; }
+            hash = h;
+        }
+
+        PatternKey copy() {
+            PatternKey key = new PatternKey();
+            key.route = route;
+            key.direction = direction;
+            key.stops = Arrays.copyOf(stops, size);
+            key.offsets = Arrays.copyOf(offsets, size);
+            key.size = size;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PatternKey)) { return false; }
+            PatternKey key = (PatternKey) other;
+            return hash == key.hash && route == key.route && direction == key.direction && size == key.size
+                && Arrays.equals(stops, 0, size, key.stops, 0, size)
+                && Arrays.equals(offsets, 0, size, key.offsets, 0, size);
+        }
+    }
+
+    /** The trips of a pattern, while the feed is being read */
+    private static class PatternBuilder {
+        final PatternKey key;
+        final IntArray departures = new IntArray();
+        final IntArray services = new IntArray();
+
+        PatternBuilder(PatternKey key) { this.key = key; }
+
+        /** The pattern, with its trips in order of departure */
+        Pattern build(Line line, String routeId) {
+            long[] trips = new long[departures.size()];
+            for (int t = 0; t < trips.length; t++) {
+                trips[t] = ((long) departures.get(t) << 32) | services.get(t);
+            }
+            Arrays.sort(trips);
+            int[] departs = new int[trips.length];
+            int[] servs = new int[trips.length];
+            for (int t = 0; t < trips.length; t++) {
+                departs[t] = (int) (trips[t] >>> 32);
+                servs[t] = (int) trips[t];
+            }
+            return new Pattern(line, routeId, key.direction, departs, servs);
+        }
+    }
+
+    /** A growable array of ints */
+    private static class IntArray {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) { values = Arrays.copyOf(values, 2 * size); }
+            values[size++] = value;
+        }
+
+        void set(int i, int value) { values[i] = value; }
+
+        int get(int i) { return values[i]; }
+
+        int size() { return size; }
+    }
+
+    /**
+     * The transport type of a GTFS route_type (basic or extended)
+     */
+    private static String transpType(int routeType) {
+        if (routeType >= 100) {
+            switch (routeType / 100) {
+                case 1: case 4: return Transport.TRAIN;       // railway, urban railway
+                case 10: case 12: return Transport.FERRY;     // water, ferry
+                case 13: case 14: return Transport.CABLECAR;  // aerial lift, funicular
+                default: return Transport.BUS;
+            }
+        }
+        switch (routeType) {
+            case 1: case 2: case 12: return Transport.TRAIN;  // subway, rail, monorail
+            case 4: return Transport.FERRY;
+            case 5: case 6: case 7: return Transport.CABLECAR;  // cable tram, aerial lift, funicular
+            default: return Transport.BUS;                    // bus, trolleybus, and trams
+        }
+    }
+
+    /**
+     * Open a table of the feed, with its header read
+     * @return null if the table is not in the zip and is not required.
+     */
+    private static DelimitedReader open(ZipFile zip, String name, boolean required) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        for (Enumeration<? extends ZipEntry> e = zip.entries(); entry == null && e.hasMoreElements();) {
+            ZipEntry other = e.nextElement();
+            if (other.getName().endsWith("/" + name)) { entry = other; }
+        }
+        if (entry == null) {
+            if (required) { throw new IOException(zip.getName() + " has no " + name); }
+            return null;
+        }
+        DelimitedReader reader = new DelimitedReader(Channels.newChannel(zip.getInputStream(entry)), ',', true);
+        reader.readHeader();
+        return reader;
+    }
+
+    private static int required(DelimitedReader reader, String column) throws IOException {
+        int index = reader.column(column);
+        if (index < 0) { throw new IOException("GTFS table has no " + column + " column"); }
+        return index;
+    }
+
+    /**
+     * Import a GTFS zip and report the patterns.
+     * Argument: the zip file.
+     */
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        GtfsFeed feed = read(new File(args[0]));
+        double ms = (System.nanoTime() - start) / 1e6;
+        Graph graph = new Graph(feed.getStopMap().values(), feed.getLines());
+        System.out.printf("Imported in %.0f ms: %d stops, %d patterns, %d trips, %d edges%n", ms,
+                          graph.getStops().size(), feed.getPatterns().size(), feed.numTrips(), graph.getEdges().size());
+    }
+
+}
@@ -0,0 +1,454 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A hub labelling of the graph, for finding the cost of the shortest path between any two
+ * stops without a search.
+ *
+ * Every stop has an out label (hubs it can reach, with the cost to each) and an in label
+ * (hubs that can reach it, with the cost from each), chosen so that every shortest path
+ * from s to t passes through a hub in both the out label of s and the in label of t. The
+ * cost from s to t is then the smallest out(s)[h] + in(t)[h] over their common hubs,
+ * found by merging the two labels, which are sorted by hub.
+ *
+ * The labels are built by pruned landmark labelling: the stops are taken in order of
+ * importance (how often they are on the shortest paths from a sample of stops), and a
+ * Dijkstra search forwards and backwards from each one adds it as a hub to the labels of
+ * the stops it reaches, except where the labels so far already give the right cost, where
+ * the search is pruned. Hubs are numbered by their rank, so each label is sorted as built.
+ *
+ * The labels are kept as packed primitive arrays (start of each label, hubs, costs), and
+ * can be written to a file that read() maps into memory and queries directly. They are for
+ * one version of the graph and one cost metric ("time" or "distance").
+ */
+public class HubLabels {
+
+    private static final int MAGIC = 0x5754484C;     // "WTHL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SAMPLE_ROOTS = 64;      // number of stops whose shortest path trees order the stops
+
+    private final String timeOrDistance;
+    private final String[] stopIds;      // the id of each stop (by snapshot index)
+    private final int[] rankStop;        // the stop of each hub (by rank)
+    private final IntBuffer outStart;    // out label of stop s is entries outStart[s]..outStart[s+1]-1
+    private final IntBuffer outHub;
+    private final DoubleBuffer outCost;
+    private final IntBuffer inStart;
+    private final IntBuffer inHub;
+    private final DoubleBuffer inCost;
+    private Map<String, Integer> stopIndex;   // made when first needed
+
+    private HubLabels(String timeOrDistance, String[] stopIds, int[] rankStop,
+                      IntBuffer outStart, IntBuffer outHub, DoubleBuffer outCost,
+                      IntBuffer inStart, IntBuffer inHub, DoubleBuffer inCost) {
+        this.timeOrDistance = timeOrDistance;
+        this.stopIds = stopIds;
+        this.rankStop = rankStop;
+        this.outStart = outStart;
+        this.outHub = outHub;
+        this.outCost = outCost;
+        this.inStart = inStart;
+        this.inHub = inHub;
+        this.inCost = inCost;
+    }
+
+    /**
+     * Build the hub labels of a snapshot.
+     * @param timeOrDistance The cost metric: "time" or "distance".
+     */
+    public static HubLabels build(GraphSnapshot graph, String timeOrDistance) {
+        return new Builder(graph, timeOrDistance).build();
+    }
+
+    /** The cost metric of the labels */
+    public String getTimeOrDistance() { return timeOrDistance; }
+
+    public int numStops() { return stopIds.length; }
+
+    /** The id of a stop (by snapshot index) */
+    public String stopId(int s) { return stopIds[s]; }
+
+    /** The index of the stop with the given id, or -1 if there is none */
+    public int indexOf(String stopId) {
+        if (stopIndex == null) {
+            Map<String, Integer> index = new HashMap<String, Integer>(2 * stopIds.length);
+            for (int s = 0; s < stopIds.length; s++) { index.put(stopIds[s], s); }
+            stopIndex = index;
+        }
+        return stopIndex.getOrDefault(stopId, -1);
+    }
+
+    /**
+     * The cost of the shortest path from one stop to another (by snapshot index)
+     * @return the cost, or Double.POSITIVE_INFINITY if there is no path.
+     */
+    public double cost(int from, int to) {
+        int i = outStart.get(from), iEnd = outStart.get(from + 1);
+        int j = inStart.get(to), jEnd = inStart.get(to + 1);
+        double best = Double.POSITIVE_INFINITY;
+        while (i < iEnd && j < jEnd) {
+            int a = outHub.get(i), b = inHub.get(j);
+            if (a < b) { i++; }
+            else if (a > b) { j++; }
+            else {
+                best = Math.min(best, outCost.get(i) + inCost.get(j));
+                i++;
+                j++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The cost of the shortest path from one stop to another (by stop id)
+     * @return the cost, or Double.POSITIVE_INFINITY if there is no path or a stop is unknown.
+     */
+    public double cost(String fromId, String toId) {
+        int from = indexOf(fromId), to = indexOf(toId);
+        return (from < 0 || to < 0) ? Double.POSITIVE_INFINITY : cost(from, to);
+    }
+
+    /** The total number of entries in all the out and in labels */
+    public long numEntries() {
+        return outStart.get(stopIds.length) + (long) inStart.get(stopIds.length);
+    }
+
+    /** The average number of entries in a label */
+    public double averageLabelSize() {
+        return (stopIds.length == 0) ? 0 : numEntries() / (2.0 * stopIds.length);
+    }
+
+    /** The size in bytes of the label arrays */
+    public long labelBytes() {
+        return 4L * 2 * (stopIds.length + 1) + 12L * numEntries();
+    }
+
+    //--------------------------------------------
+    //  Building
+    //--------------------------------------------
+
+    private static class Builder {
+        private final GraphSnapshot graph;
+        private final String timeOrDistance;
+        private final double[] edgeCost;
+        private final int n;
+
+        // labels while they are built: hubs (ranks) and costs, in order of rank
+        private final int[][] outHubs, inHubs;
+        private final double[][] outCosts, inCosts;
+        private final int[] outSize, inSize;
+
+        // working storage for the searches
+        private final double[] cost;
+        private final int[] reached;
+        private final int[] settled;
+        private int search = 0;
+        private final StopHeap fringe;
+        private final double[] hubCost;    // cost to/from each hub in the label of the current root (infinite if not in it)
+
+        Builder(GraphSnapshot graph, String timeOrDistance) {
+            this.graph = graph;
+            this.timeOrDistance = timeOrDistance;
+            this.edgeCost = graph.edgeCosts(timeOrDistance);
+            this.n = graph.numStops();
+            outHubs = new int[n][4];
+            inHubs = new int[n][4];
+            outCosts = new double[n][4];
+            inCosts = new double[n][4];
+            outSize = new int[n];
+            inSize = new int[n];
+            cost = new double[n];
+            reached = new int[n];
+            settled = new int[n];
+            fringe = new StopHeap(n);
+            hubCost = new double[n];
+            Arrays.fill(hubCost, Double.POSITIVE_INFINITY);
+        }
+
+        HubLabels build() {
+            int[] rankStop = order();
+            for (int rank = 0; rank < n; rank++) {
+                int root = rankStop[rank];
+                prunedSearch(root, rank, true);
+                prunedSearch(root, rank, false);
+            }
+            String[] stopIds = new String[n];
+            for (int s = 0; s < n; s++) { stopIds[s] = graph.stop(s).getId(); }
+            int[] outStart = new int[n + 1], inStart = new int[n + 1];
+            for (int s = 0; s < n; s++) {
+                outStart[s + 1] = outStart[s] + outSize[s];
+                inStart[s + 1] = inStart[s] + inSize[s];
+            }
+            int[] outHub = new int[outStart[n]], inHub = new int[inStart[n]];
+            double[] outCost = new double[outStart[n]], inCost = new double[inStart[n]];
+            for (int s = 0; s < n; s++) {
+                System.arraycopy(outHubs[s], 0, outHub, outStart[s], outSize[s]);
+                System.arraycopy(outCosts[s], 0, outCost, outStart[s], outSize[s]);
+                System.arraycopy(inHubs[s], 0, inHub, inStart[s], inSize[s]);
+                System.arraycopy(inCosts[s], 0, inCost, inStart[s], inSize[s]);
+            }
+            return new HubLabels(timeOrDistance, stopIds, rankStop,
+                                 IntBuffer.wrap(outStart), IntBuffer.wrap(outHub), DoubleBuffer.wrap(outCost),
+                                 IntBuffer.wrap(inStart), IntBuffer.wrap(inHub), DoubleBuffer.wrap(inCost));
+        }
+
+        /**
+         * The stops in order of importance: how often each is inside the shortest paths
+         * from a sample of stops (then by degree)
+         */
+        private int[] order() {
+            long[] score = new long[n];
+            SearchWorkspace search = new SearchWorkspace(graph);
+            Random random = new Random(1);
+            for (int k = 0; k < Math.min(SAMPLE_ROOTS, n); k++) {
+                search.shortestPathsFrom(random.nextInt(n), timeOrDistance, SearchWorkspace.NONE);
+                for (int s = 0; s < n; s++) { search.forEachInteriorStop(s, stop -> score[stop] += n); }
+            }
+            for (int s = 0; s < n; s++) {
+                score[s] += (graph.outStart(s + 1) - graph.outStart(s)) + (graph.inStart(s + 1) - graph.inStart(s));
+            }
+            Integer[] stops = new Integer[n];
+            for (int s = 0; s < n; s++) { stops[s] = s; }
+            Arrays.sort(stops, (a, b) -> (score[a] != score[b]) ? Long.compare(score[b], score[a]) : Integer.compare(a, b));
+            int[] ans = new int[n];
+            for (int r = 0; r < n; r++) { ans[r] = stops[r]; }
+            return ans;
+        }
+
+        /**
+         * Dijkstra from the root (forwards, adding it to in labels, or backwards, adding it
+         * to out labels), pruned wherever the labels so far already give a cost as small.
+         */
+        private void prunedSearch(int root, int rank, boolean forwards) {
+            // the root's own label, for the pruning queries
+            int[] rootHubs = forwards ? outHubs[root] : inHubs[root];
+            double[] rootCosts = forwards ? outCosts[root] : inCosts[root];
+            int rootSize = forwards ? outSize[root] : inSize[root];
+            for (int i = 0; i < rootSize; i++) { hubCost[rootHubs[i]] = rootCosts[i]; }
+
+            search++;
+            fringe.clear();
+            reached[root] = search;
+            cost[root] = 0.0;
+            fringe.push(root, 0.0);
+            while (!fringe.isEmpty()) {
+                int current = fringe.pop();
+                if (settled[current] == search) { continue; }
+                settled[current] = search;
+                double d = cost[current];
+
+                // prune if a hub already in the labels gives a path as cheap
+                int[] hubs = forwards ? inHubs[current] : outHubs[current];
+                double[] costs = forwards ? inCosts[current] : outCosts[current];
+                int size = forwards ? inSize[current] : outSize[current];
+                boolean covered = false;
+                for (int i = 0; i < size && !covered; i++) { covered = hubCost[hubs[i]] + costs[i] <= d; }
+                if (covered) { continue; }
+                addEntry(current, rank, d, forwards);
+
+                int start = forwards ? graph.outStart(current) : graph.inStart(current);
+                int end = forwards ? graph.outStart(current + 1) : graph.inStart(current + 1);
+                for (int k = start; k < end; k++) {
+                    int e = forwards ? graph.outEdge(k) : graph.inEdge(k);
+                    int next = forwards ? graph.edgeTo(e) : graph.edgeFrom(e);
+                    if (settled[next] == search) { continue; }
+                    double total = d + edgeCost[e];
+                    if (reached[next] != search || total < cost[next]) {
+                        reached[next] = search;
+                        cost[next] = total;
+                        fringe.push(next, total);
+                    }
+                }
+            }
+            for (int i = 0; i < rootSize; i++) { hubCost[rootHubs[i]] = Double.POSITIVE_INFINITY; }
+        }
+
+        /** Add a hub to the in label (forwards) or out label of a stop */
+        private void addEntry(int stop, int rank, double d, boolean toInLabel) {
+            if (toInLabel) {
+                if (inSize[stop] == inHubs[stop].length) {
+                    inHubs[stop] = Arrays.copyOf(inHubs[stop], 2 * inSize[stop]);
+                    inCosts[stop] = Arrays.copyOf(inCosts[stop], 2 * inSize[stop]);
+                }
+                inHubs[stop][inSize[stop]] = rank;
+                inCosts[stop][inSize[stop]++] = d;
+            } else {
+                if (outSize[stop] == outHubs[stop].length) {
+                    outHubs[stop] = Arrays.copyOf(outHubs[stop], 2 * outSize[stop]);
+                    outCosts[stop] = Arrays.copyOf(outCosts[stop], 2 * outSize[stop]);
+                }
+                outHubs[stop][outSize[stop]] = rank;
+                outCosts[stop][outSize[stop]++] = d;
+            }
+        }
+    }
+
+    //--------------------------------------------
+    //  File
+    //--------------------------------------------
+
+    /*
+     * Layout (big-endian; a string is an int byte count then UTF-8 bytes):
+     *   int MAGIC, int FORMAT_VERSION, string timeOrDistance, int numStops, int numOut, int numIn,
+     *   string id of each stop, int stop of each rank,
+     *   int outStart[numStops+1], int inStart[numStops+1], int outHub[numOut], int inHub[numIn],
+     *   (padding to a multiple of 8) double outCost[numOut], double inCost[numIn]
+     */
+
+    /**
+     * Write the labels to a file. The file is written beside the target and then moved into place.
+     */
+    public void write(File file) throws IOException {
+        int n = stopIds.length;
+        int numOut = outStart.get(n), numIn = inStart.get(n);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, labelBytes() + 64L * n));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        putString(out, timeOrDistance);
+        out.writeInt(n);
+        out.writeInt(numOut);
+        out.writeInt(numIn);
+        for (String id : stopIds) { putString(out, id); }
+        for (int s : rankStop) { out.writeInt(s); }
+        for (int i = 0; i <= n; i++) { out.writeInt(outStart.get(i)); }
+        for (int i = 0; i <= n; i++) { out.writeInt(inStart.get(i)); }
+        for (int i = 0; i < numOut; i++) { out.writeInt(outHub.get(i)); }
+        for (int i = 0; i < numIn; i++) { out.writeInt(inHub.get(i)); }
+        while (out.size() % 8 != 0) { out.writeByte(0); }
+        for (int i = 0; i < numOut; i++) { out.writeDouble(outCost.get(i)); }
+        for (int i = 0; i < numIn; i++) { out.writeDouble(inCost.get(i)); }
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), bytes.toByteArray());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a file written by write() into memory. The label arrays are queried where they
+     * are in the file; only the stop ids are read.
+     * @throws IOException if the file can not be read or is not a hub label file of this format.
+     */
+    public static HubLabels read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (in.getInt() != MAGIC) { throw new IOException("not a hub label file"); }
+                int format = in.getInt();
+                if (format != FORMAT_VERSION) { throw new IOException("hub label file format " + format + ", expected " + FORMAT_VERSION); }
+                String timeOrDistance = getString(in);
+                int n = in.getInt();
+                int numOut = in.getInt();
+                int numIn = in.getInt();
+                String[] stopIds = new String[n];
+                for (int s = 0; s < n; s++) { stopIds[s] = getString(in); }
+                int[] rankStop = new int[n];
+                in.asIntBuffer().get(rankStop);
+                in.position(in.position() + 4 * n);
+                IntBuffer outStart = slice(in, n + 1).asIntBuffer();
+                IntBuffer inStart = slice(in, n + 1).asIntBuffer();
+                IntBuffer outHub = slice(in, numOut).asIntBuffer();
+                IntBuffer inHub = slice(in, numIn).asIntBuffer();
+                while (in.position() % 8 != 0) { in.get(); }
+                DoubleBuffer outCost = slice(in, 2 * numOut).asDoubleBuffer();
+                DoubleBuffer inCost = slice(in, 2 * numIn).asDoubleBuffer();
+                return new HubLabels(timeOrDistance, stopIds, rankStop, outStart, outHub, outCost, inStart, inHub, inCost);
+            } catch (RuntimeException e) {
+                throw new IOException("Broken hub label file " + file + ": " + e);
+            }
+        }
+    }
+
+    /** The next count ints of the buffer, as a buffer of their own */
+    private static ByteBuffer slice(ByteBuffer in, int count) {
+        ByteBuffer part = in.slice().limit(4 * count);
+        in.position(in.position() + 4 * count);
+        return part;
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Build the hub labels of the data files (with walking edges), check them against Dijkstra,
+     * report their size and query time, and write them to data/hublabels-<metric>.bin.
+     * Arguments (optional): walking distance in meters (default 100), cost metric (default time).
+     */
+    public static void main(String[] args) throws IOException {
+        double walkingDistance = (args.length > 0) ? Double.parseDouble(args[0]) : 100;
+        String metric = (args.length > 1) ? args[1] : "time";
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(new File("data/lines.txt"), stopMap));
+        if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+        GraphSnapshot snap = graph.snapshot();
+
+        long start = System.nanoTime();
+        HubLabels labels = build(snap, metric);
+        double buildMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("Built %s hub labels in %.0f ms: %d entries, %.1f per label, %.1f MB%n", metric, buildMs,
+                          labels.numEntries(), labels.averageLabelSize(), labels.labelBytes() / 1e6);
+
+        File file = new File("data/hublabels-" + metric + ".bin");
+        labels.write(file);
+        HubLabels mapped = read(file);
+        System.out.printf("Wrote %s (%d bytes)%n", file, file.length());
+
+        SearchWorkspace search = new SearchWorkspace(snap);
+        Random random = new Random(9);
+        int sources = 20, same = 0, checked = 0;
+        for (int k = 0; k < sources; k++) {
+            int from = random.nextInt(snap.numStops());
+            search.shortestPathsFrom(from, metric, SearchWorkspace.NONE);
+            for (int to = 0; to < snap.numStops(); to++) {
+                double expected = search.costTo(to);
+                double found = labels.cost(from, to);
+                checked++;
+                if ((found == expected || Math.abs(found - expected) <= 1e-6 * Math.max(1, expected))
+                    && Double.compare(labels.cost(from, to), mapped.cost(from, to)) == 0) {
+                    same++;
+                }
+            }
+        }
+        System.out.printf("Same cost as Dijkstra (and from the file): %d of %d%n", same, checked);
+
+        int queries = 1_000_000;
+        int[] from = new int[queries], to = new int[queries];
+        for (int q = 0; q < queries; q++) {
+            from[q] = random.nextInt(snap.numStops());
+            to[q] = random.nextInt(snap.numStops());
+        }
+        for (HubLabels which : new HubLabels[]{labels, mapped, labels, mapped}) {
+            start = System.nanoTime();
+            double sum = 0;
+            for (int q = 0; q < queries; q++) { sum += Math.min(which.cost(from[q], to[q]), 1e9); }
+            double nsPerQuery = (System.nanoTime() - start) / (double) queries;
+            System.out.printf("%s labels: %.0f ns per query (%.0f)%n", (which == labels) ? "Heap" : "Mapped", nsPerQuery, sum);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON straight to a Writer as it goes, without building the document (or its
+ * strings) in memory first. Commas between values are put in automatically:
+ *
+ *     json.beginObject().name("id").value(stop.getId()).name("stops").beginArray();
+ *     for (...) { json.value(...); }
+ *     json.endArray().endObject();
+ *
+ * Numbers that are not finite (infinity, NaN) are written as null, since JSON has no
+ * way to write them. The writer is not flushed or closed.
+ */
+public class JsonWriter {
+
+    private final Writer out;
+    private boolean[] needsComma = new boolean[8];    // for each open object or array
+    private int depth = 0;
+    private boolean afterName = false;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException { return open('{'); }
+
+    public JsonWriter endObject() throws IOException { return close('}'); }
+
+    public JsonWriter beginArray() throws IOException { return open('['); }
+
+    public JsonWriter endArray() throws IOException { return close(']'); }
+
+    /** The name of the next value in an object */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null) { out.write("null"); }
+        else { writeString(value); }
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        separate();
+        if (!Double.isFinite(value)) { out.write("null"); }
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15) { out.write(Long.toString((long) value)); }
+        else { out.write(Double.toString(value)); }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        if (depth == needsComma.length) { needsComma = Arrays.copyOf(needsComma, 2 * depth); }
+        needsComma[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0) { throw new RuntimeException("JSON " + bracket + " with nothing open"); }
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    /** Put a comma before a value if it is not the first in its object or array */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (needsComma[depth - 1]) { out.write(','); }
+            needsComma[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) { continue; }
+            out.write(value, start, i - start);
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\t': out.write("\\t"); break;
+                case '\r': out.write("\\r"); break;
+                default: out.write(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+
+}
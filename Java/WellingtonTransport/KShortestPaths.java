@@ -0,0 +1,337 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Finds the k shortest loopless paths between two stops (Yen's algorithm), for showing
+ * alternatives to the shortest path, in order of cost.
+ *
+ * Paths are told apart by the stops they go through: of the parallel edges between two
+ * stops (eg, several lines), a path uses the cheapest, so the alternatives really go
+ * different ways rather than being the same route on another bus.
+ *
+ * Yen's algorithm finds each next path by leaving the previous one at each of its stops
+ * in turn (the spur stop), and searching for the rest of the way without the stops
+ * before the spur and without the next stops that paths already found take from there.
+ * These are masks over the stops of a GraphSnapshot (reset with a search number, like
+ * the arrays of a SearchWorkspace), so the graph is never changed.
+ *
+ * All the spur searches go to the same goal, so one search backwards from the goal first
+ * gives the exact cost from every stop to the goal with nothing masked. Masking only
+ * makes paths longer, so those costs are a perfect A* estimate for the spur searches:
+ * where the shortest way on from a stop is not masked, the search goes straight along
+ * it, and stops that cannot reach the goal at all are never looked at.
+ *
+ * An instance holds the working arrays for one snapshot; like a SearchWorkspace, it must
+ * not be used by two threads at once.
+ */
+public class KShortestPaths {
+
+    private final GraphSnapshot graph;
+
+    // the search backwards from the goal
+    private final double[] toGoal;      // cost from each stop to the goal, with nothing masked
+    private final int[] nextEdge;       // first edge of the shortest path from each stop to the goal
+
+    // the spur searches
+    private final double[] cost;
+    private final int[] backEdge;
+    private final int[] reached;
+    private final int[] settled;
+    private final int[] masked;         // search number in which each stop is masked
+    private final int[] maskedNext;     // search number in which each stop may not be the first after the spur
+    private int search = 0;
+    private final StopHeap fringe;
+
+    private int spurSearches = 0;       // for reporting
+    private int stopsSettled = 0;
+
+    /**
+     * One of the k shortest paths
+     */
+    public static class Path {
+        private final GraphSnapshot graph;
+        private final int[] edges;
+        private final int[] stops;      // the stops of the path, from start to goal
+        private final double cost;
+
+        private Path(GraphSnapshot graph, int[] edges, int start, double cost) {
+            this.graph = graph;
+            this.edges = edges;
+            this.cost = cost;
+            stops = new int[edges.length + 1];
+            stops[0] = start;
+            for (int i = 0; i < edges.length; i++) { stops[i + 1] = graph.edgeTo(edges[i]); }
+        }
+
+        /** The cost of the path, in the cost metric it was found with */
+        public double getCost() { return cost; }
+
+        /** The edges of the path, in order */
+        public List<Edge> getEdges() { return graph.toEdges(edges, edges.length); }
+
+        /** The stops of the path, in order, from the start to the goal */
+        public List<Stop> getStops() {
+            List<Stop> ans = new ArrayList<Stop>(stops.length);
+            for (int s : stops) { ans.add(graph.stop(s)); }
+            return ans;
+        }
+
+        public int size() { return edges.length; }
+    }
+
+    /**
+     * Working arrays for finding paths in a snapshot
+     */
+    public KShortestPaths(GraphSnapshot graph) {
+        this.graph = graph;
+        int n = graph.numStops();
+        toGoal = new double[n];
+        nextEdge = new int[n];
+        cost = new double[n];
+        backEdge = new int[n];
+        reached = new int[n];
+        settled = new int[n];
+        masked = new int[n];
+        maskedNext = new int[n];
+        fringe = new StopHeap(n);
+    }
+
+    /**
+     * The k shortest loopless paths between two stops of a graph
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @return up to k paths, cheapest first (fewer if there are not k ways; none if there is no path).
+     */
+    public static List<Path> find(Graph graph, Stop start, Stop goal, int k, String timeOrDistance) {
+        GraphSnapshot snap = graph.snapshot();
+        int s = snap.indexOf(start), g = snap.indexOf(goal);
+        if (s < 0 || g < 0) { throw new RuntimeException("Stops are not in the graph"); }
+        return new KShortestPaths(snap).find(s, g, k, timeOrDistance);
+    }
+
+    /**
+     * The k shortest loopless paths between two stops, cheapest first
+     * @param start Index of the start stop in the snapshot.
+     * @param goal Index of the goal stop.
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     */
+    public List<Path> find(int start, int goal, int k, String timeOrDistance) {
+        return find(start, goal, k, timeOrDistance, true);
+    }
+
+    /**
+     * Yen's algorithm; without the search backwards from the goal if useGoalCosts is false
+     * (plain Dijkstra spur searches: only for checking the results).
+     */
+    List<Path> find(int start, int goal, int k, String timeOrDistance, boolean useGoalCosts) {
+        double[] edgeCost = graph.edgeCosts(timeOrDistance);
+        List<Path> found = new ArrayList<Path>();
+        if (k <= 0) { return found; }
+        searchBackFrom(goal, edgeCost);
+        if (toGoal[start] == Double.POSITIVE_INFINITY) { return found; }
+
+        // the shortest path follows the tree of the backwards search
+        List<Integer> first = new ArrayList<Integer>();
+        for (int s = start; s != goal; s = graph.edgeTo(nextEdge[s])) { first.add(nextEdge[s]); }
+        found.add(new Path(graph, toArray(first), start, toGoal[start]));
+        if (!useGoalCosts) {
+            // estimates of 0, but still leaving out the stops that cannot get to the goal
+            for (int s = 0; s < toGoal.length; s++) {
+                if (toGoal[s] != Double.POSITIVE_INFINITY) { toGoal[s] = 0; }
+            }
+        }
+
+        PriorityQueue<Path> candidates = new PriorityQueue<Path>((a, b) -> Double.compare(a.cost, b.cost));
+        Set<List<Integer>> seen = new HashSet<List<Integer>>();   // stops of the paths found or in candidates
+        seen.add(stopList(found.get(0)));
+
+        while (found.size() < k) {
+            Path last = found.get(found.size() - 1);
+            double rootCost = 0;
+            for (int i = 0; i < last.edges.length; i++) {
+                int spur = last.stops[i];
+                search++;
+                // no going back through the stops before the spur, nor on to the next stop
+                // of any path found that shares this root
+                for (int j = 0; j < i; j++) { masked[last.stops[j]] = search; }
+                for (Path path : found) {
+                    if (path.stops.length > i + 1 && sameRoot(path, last, i)) { maskedNext[path.stops[i + 1]] = search; }
+                }
+                int[] spurEdges = spurSearch(spur, goal, edgeCost);
+                if (spurEdges != null) {
+                    int[] edges = Arrays.copyOf(last.edges, i + spurEdges.length);
+                    System.arraycopy(spurEdges, 0, edges, i, spurEdges.length);
+                    Path candidate = new Path(graph, edges, start, rootCost + cost[goal]);
+                    if (seen.add(stopList(candidate))) { candidates.add(candidate); }
+                }
+                rootCost += edgeCost[last.edges[i]];
+            }
+            if (candidates.isEmpty()) { break; }
+            found.add(candidates.poll());
+        }
+        return found;
+    }
+
+    /** Whether two paths have the same first i+1 stops */
+    private static boolean sameRoot(Path a, Path b, int i) {
+        for (int j = 0; j <= i; j++) {
+            if (a.stops[j] != b.stops[j]) { return false; }
+        }
+        return true;
+    }
+
+    private static List<Integer> stopList(Path path) {
+        List<Integer> ans = new ArrayList<Integer>(path.stops.length);
+        for (int s : path.stops) { ans.add(s); }
+        return ans;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Dijkstra backwards from the goal over the whole graph, for the cost from every stop
+     * to the goal and the first edge of the way there.
+     */
+    private void searchBackFrom(int goal, double[] edgeCost) {
+        search++;
+        Arrays.fill(toGoal, Double.POSITIVE_INFINITY);
+        fringe.clear();
+        toGoal[goal] = 0;
+        nextEdge[goal] = -1;
+        fringe.push(goal, 0);
+        while (!fringe.isEmpty()) {
+            int current = fringe.pop();
+            if (settled[current] == search) { continue; }
+            settled[current] = search;
+            int end = graph.inStart(current + 1);
+            for (int k = graph.inStart(current); k < end; k++) {
+                int e = graph.inEdge(k);
+                int from = graph.edgeFrom(e);
+                double total = toGoal[current] + edgeCost[e];
+                if (total < toGoal[from]) {
+                    toGoal[from] = total;
+                    nextEdge[from] = e;
+                    fringe.push(from, total);
+                }
+            }
+        }
+    }
+
+    /**
+     * A* from the spur stop to the goal, avoiding the masked stops (and the masked next
+     * stops, for the first step), with the costs to the goal as the estimate.
+     * Afterwards cost[goal] is the cost of the way found.
+     * @return the edges of the way found, or null if there is none.
+     */
+    private int[] spurSearch(int spur, int goal, double[] edgeCost) {
+        spurSearches++;
+        fringe.clear();
+        reached[spur] = search;
+        cost[spur] = 0;
+        backEdge[spur] = -1;
+        fringe.push(spur, toGoal[spur]);
+        while (!fringe.isEmpty()) {
+            int current = fringe.pop();
+            if (settled[current] == search) { continue; }
+            settled[current] = search;
+            stopsSettled++;
+            if (current == goal) { break; }
+            int end = graph.outStart(current + 1);
+            for (int k = graph.outStart(current); k < end; k++) {
+                int e = graph.outEdge(k);
+                int to = graph.edgeTo(e);
+                if (masked[to] == search || settled[to] == search || to == spur) { continue; }
+                if (current == spur && maskedNext[to] == search) { continue; }
+                if (toGoal[to] == Double.POSITIVE_INFINITY) { continue; }   // cannot get to the goal from there
+                double total = cost[current] + edgeCost[e];
+                if (reached[to] != search || total < cost[to]) {
+                    reached[to] = search;
+                    cost[to] = total;
+                    backEdge[to] = e;
+                    fringe.push(to, total + toGoal[to]);
+                }
+            }
+        }
+        if (settled[goal] != search) { return null; }
+        int length = 0;
+        for (int e = backEdge[goal]; e >= 0; e = backEdge[graph.edgeFrom(e)]) { length++; }
+        int[] edges = new int[length];
+        for (int e = backEdge[goal]; e >= 0; e = backEdge[graph.edgeFrom(e)]) { edges[--length] = e; }
+        return edges;
+    }
+
+    /**
+     * Time finding the k shortest paths between stops far apart, and check them against
+     * plain Yen's algorithm:
+     *     java KShortestPaths [k] [pairs] [data directory]
+     */
+    public static void main(String[] args) {
+        int k = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int pairs = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        File dataDirectory = new File((args.length > 2) ? args[2] : "data");
+        Map<String, Stop> stopMap = NetworkLoader.loadStops(new File(dataDirectory, "stops.txt"));
+        Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File(dataDirectory, "lines.txt"), stopMap));
+        graph.recomputeWalkingEdges(Transport.MAX_WALKING_DISTANCE_M);
+        GraphSnapshot snap = graph.snapshot();
+        KShortestPaths paths = new KShortestPaths(snap);
+
+        // pairs of stops at least 20km apart that are joined
+        Random random = new Random(3);
+        List<int[]> trips = new ArrayList<int[]>();
+        SearchWorkspace search = new SearchWorkspace(snap);
+        while (trips.size() < pairs) {
+            int s = random.nextInt(snap.numStops()), g = random.nextInt(snap.numStops());
+            if (snap.distance(s, g) < 20000) { continue; }
+            if (search.shortestPath(s, g, "time", SearchWorkspace.NONE) == Double.POSITIVE_INFINITY) { continue; }
+            trips.add(new int[]{s, g});
+        }
+
+        for (String metric : new String[]{"time", "distance"}) {
+            for (int[] trip : trips) { paths.find(trip[0], trip[1], k, metric); }   // warm up
+            paths.spurSearches = paths.stopsSettled = 0;
+            long start = System.nanoTime();
+            int numFound = 0;
+            for (int[] trip : trips) { numFound += paths.find(trip[0], trip[1], k, metric).size(); }
+            double ms = (System.nanoTime() - start) / 1e6 / trips.size();
+            System.out.printf("%s: %d pairs, k=%d: %.2f ms per pair, %.1f paths, %d spur searches settling %.1f stops each%n",
+                              metric, trips.size(), k, ms, (double) numFound / trips.size(), paths.spurSearches,
+                              (double) paths.stopsSettled / Math.max(paths.spurSearches, 1));
+
+            // check: cheapest first, loopless, different, and the same costs as plain Yen's algorithm
+            int wrong = 0;
+            long plainStart = System.nanoTime();
+            for (int[] trip : trips.subList(0, Math.min(20, trips.size()))) {
+                List<Path> fast = paths.find(trip[0], trip[1], k, metric);
+                List<Path> plain = paths.find(trip[0], trip[1], k, metric, false);
+                boolean ok = fast.size() == plain.size();
+                Set<List<Integer>> distinct = new HashSet<List<Integer>>();
+                for (int i = 0; ok && i < fast.size(); i++) {
+                    Path path = fast.get(i);
+                    ok &= Math.abs(path.cost - plain.get(i).cost) < 1e-6;
+                    ok &= i == 0 || path.cost >= fast.get(i - 1).cost - 1e-6;   // sums of the same costs in another order
+                    ok &= new HashSet<Integer>(stopList(path)).size() == path.stops.length;
+                    ok &= distinct.add(stopList(path));
+                    ok &= path.stops[0] == trip[0] && path.stops[path.stops.length - 1] == trip[1];
+                }
+                if (!ok) { wrong++; }
+            }
+            System.out.printf("    checked %d pairs against plain Yen's algorithm (%.1f ms per pair with both): %d differ%n",
+                              Math.min(20, trips.size()), (System.nanoTime() - plainStart) / 1e6 / Math.min(20, trips.size()), wrong);
+        }
+
+        int[] trip = trips.get(0);
+        System.out.println("Alternatives from " + snap.stop(trip[0]).getName() + " to " + snap.stop(trip[1]).getName() + ":");
+        for (Path path : paths.find(trip[0], trip[1], Math.min(k, 3), "time")) {
+            System.out.printf("    %.0f s over %d edges%n", path.getCost(), path.size());
+        }
+    }
+
+}
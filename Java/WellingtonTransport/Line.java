@@ -1,6 +1,6 @@
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
 
 /**
  * Structure for holding information about a bus/train/ferry/cable-car line.
@@ -11,9 +11,11 @@ public class Line {
     private final String lineId; // Unique identifier for the line
     private final String transpType; // Type of transportation associated with the line ("bus", "train", "cablecar", "ferry").
 
-    // Paired lists with stop id and stop times. Need to make sure they remain in order
-    private List<Stop> stops;
-    private List<Integer> times;
+    // Paired arrays with stops and stop times, in order. Only the first size entries are used;
+    // the arrays grow as stops are added.
+    private Stop[] stops;
+    private int[] times;
+    private int size;
 
     /**
      * Constructor used to create and then add stops to the line.
@@ -22,8 +24,34 @@ public class Line {
     public Line(String lineId) {
         this.lineId = lineId;
         this.transpType = Transport.transpType(lineId);
-        this.stops = new ArrayList<Stop>();
-        this.times = new ArrayList<Integer>();
+        this.stops = new Stop[8];
+        this.times = new int[8];
+        this.size = 0;
+    }
+
+    /**
+     * Constructor for a line whose stops and times are already known (eg, from a loader).
+     * The arrays are kept, not copied.
+     * @param lineId Unique identifier for the line.
+     * @param stops The stops of the line, in order.
+     * @param times The time from the start of the line to each stop.
+     * @param size The number of stops (the arrays may be longer).
+     */
+    public Line(String lineId, Stop[] stops, int[] times, int size) {
+        this(lineId, Transport.transpType(lineId), stops, times, size);
+    }
+
+    /**
+     * Constructor for a line whose type is known from elsewhere (eg, the route_type of a
+     * GTFS route) rather than from its id.
+     * @param transpType One of the types in Transport (eg, Transport.BUS).
+     */
+    public Line(String lineId, String transpType, Stop[] stops, int[] times, int size) {
+        this.lineId = lineId;
+        this.transpType = transpType;
+        this.stops = stops;
+        this.times = times;
+        this.size = size;
     }
 
     /**
@@ -32,8 +60,30 @@ public class Line {
      * @param time The time from the start of the line to the current stop.
      */
     public void addStop(Stop stop, int time) {
-        this.stops.add(stop);
-        this.times.add(time);
+        if (size == stops.length) {
+            stops = Arrays.copyOf(stops, 2 * size + 1);
+            times = Arrays.copyOf(times, 2 * size + 1);
+        }
+        stops[size] = stop;
+        times[size] = time;
+        size++;
+    }
+
+    /** The number of stops on the line */
+    public int size() {
+        return size;
+    }
+
+    /** The i'th stop of the line */
+    public Stop getStop(int i) {
+        if (i >= size) { throw new IndexOutOfBoundsException(i); }
+        return stops[i];
+    }
+
+    /** The time from the start of the line to the i'th stop */
+    public int getTime(int i) {
+        if (i >= size) { throw new IndexOutOfBoundsException(i); }
+        return times[i];
     }
 
     /**
@@ -58,7 +108,7 @@ public class Line {
      */
     public String toString() {
         String s = "";
-        s += "Line: " + lineId + " ("+transpType+")\t stops: " + stops.toString() + "\t times: " + times.toString();
+        s += "Line: " + lineId + " ("+transpType+")\t stops: " + getStops().toString() + "\t times: " + getTimes().toString();
         return s;
     }
 
@@ -67,7 +117,10 @@ public class Line {
      * @return The list of stops in the line.
      */
     public List<Stop> getStops() {
-        return Collections.unmodifiableList(stops);
+        return new AbstractList<Stop>() {
+            public Stop get(int i) { return getStop(i); }
+            public int size() { return size; }
+        };
     }
 
     /**
@@ -75,7 +128,10 @@ public class Line {
      * @return The list of times in seconds.
      */
     public List<Integer> getTimes() {
-        return  Collections.unmodifiableList(times);
+        return new AbstractList<Integer>() {
+            public Integer get(int i) { return getTime(i); }
+            public int size() { return size; }
+        };
     }
 
 }
@@ -0,0 +1,104 @@
+import java.util.function.Consumer;
+
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * One layer of the map (eg, the fare zones, the edges or the stops), cached as an
+ * off-screen image so that it does not have to be redrawn on every event.
+ *
+ * The layer remembers the scale and origin that its image was drawn at.
+ * When the view has only been panned or zoomed, the image can be moved and stretched
+ * to the new view instead of being redrawn, which is what is done while the user is
+ * dragging or scrolling. The layer is redrawn properly the next time it is drawn with
+ * render set to true, or after invalidate() has been called.
+ */
+public class MapLayer {
+
+    private final Consumer<GraphicsContext> painter;   // draws the layer, using the current view
+
+    private Canvas canvas;           // off-screen canvas that the painter draws on
+    private WritableImage image;     // the last drawing of the layer
+    private boolean valid = false;   // false if the content has changed since the image was drawn
+
+    // the view that the image was drawn with
+    private double renderedScale;
+    private double renderedLon;
+    private double renderedLat;
+    private double renderedWidth;
+    private double renderedHeight;
+
+    /**
+     * Make a layer that is drawn by the given painter.
+     * The painter must draw the whole layer onto the graphics context it is given,
+     * projecting points with the controller's current scale and origin.
+     */
+    public MapLayer(Consumer<GraphicsContext> painter) {
+        this.painter = painter;
+    }
+
+    /** Record that the content of the layer has changed and it must be redrawn */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Draw the layer onto the map.
+     * @param gc The graphics context of the map canvas.
+     * @param controller The controller, which holds the current view.
+     * @param render If true, the image is redrawn when it is out of date; if false,
+     *               the old image is moved to match the current view (unless there is no image yet).
+     */
+    public void draw(GraphicsContext gc, Controller controller, boolean render) {
+        double width = controller.getMapCanvas().getWidth();
+        double height = controller.getMapCanvas().getHeight();
+        double scale = controller.getScale();
+        double lon = controller.getOrigin().getLon();
+        double lat = controller.getOrigin().getLat();
+
+        boolean sameView = image != null && scale == renderedScale && lon == renderedLon && lat == renderedLat
+            && width == renderedWidth && height == renderedHeight;
+        if (image == null || (render && (!valid || !sameView))) {
+            render(width, height, scale, lon, lat);
+            sameView = true;
+        }
+        if (sameView) {
+            gc.drawImage(image, 0, 0);
+            return;
+        }
+
+        // move and stretch the old image so that it lines up with the current view
+        double zoom = scale / renderedScale;
+        double dx = width / 2 - renderedWidth / 2 * zoom
+            + (renderedLon - lon) * scale * controller.getRatioLatLon();
+        double dy = height / 2 - renderedHeight / 2 * zoom
+            - (renderedLat - lat) * scale;
+        gc.drawImage(image, dx, dy, renderedWidth * zoom, renderedHeight * zoom);
+    }
+
+    /** Redraw the layer into its off-screen image */
+    private void render(double width, double height, double scale, double lon, double lat) {
+        if (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height) {
+            canvas = new Canvas(width, height);
+            image = null;
+        }
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, width, height);
+        painter.accept(gc);
+
+        SnapshotParameters params = new SnapshotParameters();
+        params.setFill(Color.TRANSPARENT);
+        image = canvas.snapshot(params, image);   // reuses the old image when it is the right size
+
+        renderedScale = scale;
+        renderedLon = lon;
+        renderedLat = lat;
+        renderedWidth = width;
+        renderedHeight = height;
+        valid = true;
+    }
+
+}
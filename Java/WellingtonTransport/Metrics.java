@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counters and timings of the searches and analyses, for finding out why some are slow.
+ *
+ * Metrics are off unless the program is run with -Dwt.metrics=true. ENABLED is a constant,
+ * so when it is false the JIT removes the recording code, and the counting the algorithms
+ * do in local variables for it, completely.
+ *
+ * Each kind of work (eg, "search" for SearchWorkspace) is a Phase with a fixed list of
+ * counters. The algorithm counts in local variables as it goes and records the time and
+ * counts once at the end, eg:
+ *
+ *     private static final Metrics.Phase METRICS = Metrics.phase("search", "stops settled", ...);
+ *     long started = Metrics.start();
+ *     ...
+ *     if (Metrics.ENABLED) { METRICS.record(started, settled, ...); }
+ *
+ * For each phase the number of calls is kept, and for the time and each counter the value
+ * of the last call, the largest value, and the total. All the phases can be reported as
+ * text (summary) or as JSON (toJson).
+ */
+public class Metrics {
+
+    /** Whether metrics are recorded: set by running with -Dwt.metrics=true */
+    public static final boolean ENABLED = Boolean.getBoolean("wt.metrics");
+
+    private static final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    /**
+     * The time and counters of one kind of work
+     */
+    public static class Phase {
+        private final String name;
+        private final String[] counters;
+        private long calls = 0;
+        private final long[] last;      // index 0 is the time in nanoseconds, then the counters
+        private final long[] max;
+        private final long[] total;
+
+        private Phase(String name, String[] counters) {
+            this.name = name;
+            this.counters = counters.clone();
+            last = new long[counters.length + 1];
+            max = new long[counters.length + 1];
+            total = new long[counters.length + 1];
+        }
+
+        public String getName() { return name; }
+
+        /**
+         * Record one call of the work
+         * @param started The time it started (from Metrics.start()).
+         * @param values The value of each of the phase's counters, in order.
+         */
+        public synchronized void record(long started, long... values) {
+            if (values.length != counters.length) {
+                throw new RuntimeException("Phase " + name + " has " + counters.length + " counters, not " + values.length);
+            }
+            calls++;
+            put(0, System.nanoTime() - started);
+            for (int i = 0; i < values.length; i++) { put(i + 1, values[i]); }
+        }
+
+        private void put(int i, long value) {
+            last[i] = value;
+            max[i] = Math.max(max[i], value);
+            total[i] += value;
+        }
+
+        public synchronized long getCalls() { return calls; }
+
+        /** The total of a counter over all the calls */
+        public synchronized long getTotal(String counter) {
+            for (int i = 0; i < counters.length; i++) {
+                if (counters[i].equals(counter)) { return total[i + 1]; }
+            }
+            throw new RuntimeException("Phase " + name + " has no counter " + counter);
+        }
+
+        private synchronized void reset() {
+            calls = 0;
+            for (long[] values : List.of(last, max, total)) { Arrays.fill(values, 0); }
+        }
+
+        private synchronized void appendSummary(StringBuilder out) {
+            out.append(String.format("%s: %d calls, last %.2f ms, max %.2f ms, total %.1f ms%n",
+                                     name, calls, last[0] / 1e6, max[0] / 1e6, total[0] / 1e6));
+            for (int i = 0; i < counters.length; i++) {
+                out.append(String.format("    %s: last %d, max %d, total %d%n", counters[i], last[i + 1], max[i + 1], total[i + 1]));
+            }
+        }
+
+        private synchronized void appendJson(StringBuilder out) {
+            out.append("  ").append(quote(name)).append(": {\"calls\": ").append(calls);
+            appendJsonValue(out, "nanos", 0);
+            for (int i = 0; i < counters.length; i++) { appendJsonValue(out, counters[i], i + 1); }
+            out.append("}");
+        }
+
+        private void appendJsonValue(StringBuilder out, String key, int i) {
+            out.append(", ").append(quote(key)).append(": {\"last\": ").append(last[i])
+               .append(", \"max\": ").append(max[i]).append(", \"total\": ").append(total[i]).append("}");
+        }
+    }
+
+    /**
+     * The phase with the given name, made (with the given counters) if there is none yet.
+     */
+    public static Phase phase(String name, String... counters) {
+        synchronized (phases) {
+            Phase phase = phases.get(name);
+            if (phase == null) {
+                phase = new Phase(name, counters);
+                phases.put(name, phase);
+            }
+            return phase;
+        }
+    }
+
+    /** The time now, to pass to Phase.record when the work is done (0 if metrics are off) */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** Set all the phases back to no calls */
+    public static void reset() {
+        for (Phase phase : allPhases()) { phase.reset(); }
+    }
+
+    /** A description of every phase that has been called, one line per counter */
+    public static String summary() {
+        if (!ENABLED) { return "Metrics are off (run with -Dwt.metrics=true)"; }
+        StringBuilder out = new StringBuilder();
+        for (Phase phase : allPhases()) {
+            if (phase.getCalls() > 0) { phase.appendSummary(out); }
+        }
+        return (out.length() == 0) ? "No metrics yet" : out.toString().trim();
+    }
+
+    /**
+     * All the phases as a JSON object:
+     * {"search": {"calls": 3, "nanos": {"last": .., "max": .., "total": ..}, "stops settled": {...}, ...}, ...}
+     */
+    public static String toJson() {
+        StringBuilder out = new StringBuilder("{");
+        String separator = "\n";
+        for (Phase phase : allPhases()) {
+            out.append(separator);
+            phase.appendJson(out);
+            separator = ",\n";
+        }
+        return out.append("\n}").toString();
+    }
+
+    private static List<Phase> allPhases() {
+        synchronized (phases) {
+            return new ArrayList<Phase>(phases.values());
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+}
@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes made-up transit networks of any size, written as a stops.txt and a lines.txt in the
+ * same format as the data files, for testing the program on much bigger networks.
+ *
+ * The stops are in towns: a few big towns and many small ones (sizes falling off like
+ * 1/rank), each a cluster that is densest in the middle, plus a few stops scattered in the
+ * country between them. The towns are spread out so that the density of stops is about
+ * the same whatever the size of the network.
+ *
+ * Each bus line starts at a stop that no line goes to yet, and goes from stop to stop,
+ * each time to a near stop roughly ahead of it, until it reaches its length (from a
+ * distribution like the Wellington lines) or runs out of stops ahead (after turning to one
+ * side once). Its times come from the distances at bus speed, with some time at each stop.
+ * The towns are linked by express lines between their central stops, along the shortest
+ * tree joining them, so most of the network is connected. Every line goes both ways (line
+ * ids ending _0 and _1).
+ *
+ * The same size and seed always make the same network. The benchmarks in bench/ can be
+ * run on one with -Dwt.data=<directory>.
+ */
+public class NetworkGenerator {
+
+    private static final double CENTRE_LON = 174.77;    // the networks are centred on Wellington
+    private static final double CENTRE_LAT = -41.3;
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final double STOP_AREA = 0.5e6;       // square meters of land per stop, including the country between the towns
+    private static final double STOP_SPACING = 180;      // meters between stops in a town, on average
+    private static final double COUNTRY_FRACTION = 0.03; // fraction of the stops outside the towns
+    private static final int TOWN_SIZE = 1500;           // average stops per town
+    private static final double MAX_HOP = 900;           // the furthest a line goes between stops, in meters
+    private static final double MAX_TURN = Math.toRadians(75);
+    private static final double DWELL_TIME = 15;         // seconds at each stop
+    private static final double ROWS_PER_STOP = 1.8;     // line rows (one way) per stop, as in the Wellington data
+
+    private final int numStops;
+    private final Random random;
+    private final double[] x, y;           // position of each stop, in meters east and north of the centre
+    private final int[] town;              // town of each stop (-1 in the country)
+    private double[] townX, townY;         // centre of each town
+    private int[] townCentre;              // the stop nearest the centre of each town
+    private final int[] onLines;           // number of lines through each stop
+
+    // the stops in a grid of cells of MAX_HOP meters
+    private double gridX, gridY;
+    private int cols, rows;
+    private int[] cellStart, cellStops;
+
+    private int numLines = 0;
+    private long numRows = 0;
+    private long hopCount = 0;
+    private double hopTime = 0;
+
+    /**
+     * Make the stops of a network (the lines are made as they are written)
+     * @param numStops The number of stops.
+     * @param seed The seed of the random choices.
+     */
+    public NetworkGenerator(int numStops, long seed) {
+        if (numStops < 2) { throw new RuntimeException("A network needs at least 2 stops"); }
+        this.numStops = numStops;
+        this.random = new Random(seed);
+        x = new double[numStops];
+        y = new double[numStops];
+        town = new int[numStops];
+        onLines = new int[numStops];
+        placeStops();
+        buildGrid();
+    }
+
+    public int numStops() { return numStops; }
+
+    /** The number of lines written so far (counting each direction) */
+    public int numLines() { return numLines; }
+
+    /** The number of rows written to lines.txt so far */
+    public long numRows() { return numRows; }
+
+    /** The average time between stops on the lines written so far, in seconds */
+    public double averageHopTime() { return (hopCount == 0) ? 0 : hopTime / hopCount; }
+
+    /** The number of stops that the lines written so far go to */
+    public int numStopsOnLines() {
+        int count = 0;
+        for (int s = 0; s < numStops; s++) { if (onLines[s] > 0) { count++; } }
+        return count;
+    }
+
+    /**
+     * Write the network as stops.txt and lines.txt in the directory (made if it does not exist)
+     */
+    public void write(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        try (Writer out = Files.newBufferedWriter(new File(directory, "stops.txt").toPath(), StandardCharsets.UTF_8)) {
+            writeStops(out);
+        }
+        try (Writer out = Files.newBufferedWriter(new File(directory, "lines.txt").toPath(), StandardCharsets.UTF_8)) {
+            writeLines(out);
+        }
+    }
+
+    //--------------------------------------------
+    //  Stops
+    //--------------------------------------------
+
+    private void placeStops() {
+        int numTowns = Math.max(1, (int) Math.round((double) numStops / TOWN_SIZE));
+        int countryStops = (numTowns == 1) ? 0 : (int) (numStops * COUNTRY_FRACTION);
+        double side = Math.sqrt(numStops * STOP_AREA);
+
+        // town sizes falling off like 1/rank, adding up to the stops not in the country
+        double[] weight = new double[numTowns];
+        double total = 0;
+        for (int t = 0; t < numTowns; t++) { total += weight[t] = 1.0 / (t + 1); }
+        int[] size = new int[numTowns];
+        int placed = 0;
+        for (int t = 0; t < numTowns; t++) {
+            size[t] = (int) ((numStops - countryStops) * weight[t] / total);
+            placed += size[t];
+        }
+        size[0] += numStops - countryStops - placed;
+
+        townX = new double[numTowns];
+        townY = new double[numTowns];
+        int s = 0;
+        for (int t = 0; t < numTowns; t++) {
+            townX[t] = (random.nextDouble() - 0.5) * side;
+            townY[t] = (random.nextDouble() - 0.5) * side;
+            if (t == 0 && numTowns > 1) { townX[t] = 0; townY[t] = 0; }   // the biggest town in the middle
+            // a town of n stops covers about n * STOP_SPACING^2; normally distributed, densest in the middle
+            double sigma = STOP_SPACING * Math.sqrt(size[t] / Math.PI);
+            for (int k = 0; k < size[t]; k++, s++) {
+                x[s] = townX[t] + sigma * random.nextGaussian();
+                y[s] = townY[t] + sigma * random.nextGaussian();
+                town[s] = t;
+            }
+        }
+        for (; s < numStops; s++) {
+            x[s] = (random.nextDouble() - 0.5) * side;
+            y[s] = (random.nextDouble() - 0.5) * side;
+            town[s] = -1;
+        }
+
+        townCentre = new int[numTowns];
+        double[] best = new double[numTowns];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        for (s = 0; s < numStops; s++) {
+            int t = town[s];
+            if (t < 0) { continue; }
+            double d = Math.hypot(x[s] - townX[t], y[s] - townY[t]);
+            if (d < best[t]) {
+                best[t] = d;
+                townCentre[t] = s;
+            }
+        }
+    }
+
+    private void buildGrid() {
+        double loX = Double.POSITIVE_INFINITY, loY = Double.POSITIVE_INFINITY;
+        double hiX = Double.NEGATIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+        for (int s = 0; s < numStops; s++) {
+            loX = Math.min(loX, x[s]);
+            loY = Math.min(loY, y[s]);
+            hiX = Math.max(hiX, x[s]);
+            hiY = Math.max(hiY, y[s]);
+        }
+        gridX = loX;
+        gridY = loY;
+        cols = 1 + (int) ((hiX - loX) / MAX_HOP);
+        rows = 1 + (int) ((hiY - loY) / MAX_HOP);
+        cellStart = new int[cols * rows + 1];
+        for (int s = 0; s < numStops; s++) { cellStart[cellOf(s) + 1]++; }
+        for (int c = 0; c < cols * rows; c++) { cellStart[c + 1] += cellStart[c]; }
+        int[] next = Arrays.copyOf(cellStart, cols * rows);
+        cellStops = new int[numStops];
+        for (int s = 0; s < numStops; s++) { cellStops[next[cellOf(s)]++] = s; }
+    }
+
+    private int cellOf(int s) {
+        int col = Math.min(cols - 1, (int) ((x[s] - gridX) / MAX_HOP));
+        int row = Math.min(rows - 1, (int) ((y[s] - gridY) / MAX_HOP));
+        return row * cols + col;
+    }
+
+    private void writeStops(Writer out) throws IOException {
+        out.write("stop_id\tstop_code\tstop_name\tstop_desc\tstop_lat\tstop_lon\tzone_id\tlocation_type\tparent_station\n");
+        double lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(CENTRE_LAT));
+        for (int s = 0; s < numStops; s++) {
+            String id = stopId(s);
+            String name = (town[s] < 0) ? "Country stop " + id : "Town " + (town[s] + 1) + " stop " + id;
+            double lat = CENTRE_LAT + y[s] / METERS_PER_DEGREE;
+            double lon = CENTRE_LON + x[s] / lonScale;
+            out.write(id + "\t" + id + "\t" + name + "\t" + name + "\t" + Math.round(lat * 1e8) / 1e8 + "\t"
+                      + Math.round(lon * 1e8) / 1e8 + "\t" + (town[s] + 1) + "\t0\t\n");
+        }
+    }
+
+    private static String stopId(int s) { return Integer.toString(s + 1); }
+
+    //--------------------------------------------
+    //  Lines
+    //--------------------------------------------
+
+    private void writeLines(Writer out) throws IOException {
+        out.write("line_id\tstop_id\ttime_from_start\n");
+        int[] stops = new int[200];
+        int[] times = new int[200];
+
+        // express lines between the towns, along the shortest tree joining their centres (Prim)
+        int numTowns = townCentre.length;
+        boolean[] joined = new boolean[numTowns];
+        double[] dist = new double[numTowns];
+        int[] nearest = new int[numTowns];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[0] = 0;
+        for (int k = 0; k < numTowns; k++) {
+            int t = -1;
+            for (int u = 0; u < numTowns; u++) { if (!joined[u] && (t < 0 || dist[u] < dist[t])) { t = u; } }
+            joined[t] = true;
+            if (k > 0) {
+                stops[0] = townCentre[nearest[t]];
+                stops[1] = townCentre[t];
+                times[0] = 0;
+                times[1] = (int) Math.round(dist[t] / Transport.TRAIN_SPEED_MPS + DWELL_TIME);
+                writeLine(out, "X" + k, stops, times, 2);
+            }
+            for (int u = 0; u < numTowns; u++) {
+                double d = Math.hypot(townX[t] - townX[u], townY[t] - townY[u]);
+                if (!joined[u] && d < dist[u]) {
+                    dist[u] = d;
+                    nearest[u] = t;
+                }
+            }
+        }
+
+        // bus lines, each starting at a stop no line goes to yet, until there are enough rows
+        int[] order = new int[numStops];
+        for (int s = 0; s < numStops; s++) { order[s] = s; }
+        for (int s = numStops - 1; s > 0; s--) {    // shuffle
+            int r = random.nextInt(s + 1);
+            int tmp = order[s];
+            order[s] = order[r];
+            order[r] = tmp;
+        }
+        long rowsWanted = (long) (ROWS_PER_STOP * numStops);
+        int lineNum = 0;
+        for (int pass = 0; pass < 3 && numRows / 2 < rowsWanted; pass++) {
+            for (int k = 0; k < numStops && numRows / 2 < rowsWanted; k++) {
+                int start = order[k];
+                if (pass == 0 && onLines[start] > 0) { continue; }   // later passes may start anywhere
+                int size = walkLine(start, lineLength(), stops, times);
+                if (size >= 2) { writeLine(out, Integer.toString(++lineNum), stops, times, size); }
+            }
+        }
+    }
+
+    /**
+     * A line length like those of Wellington's lines: lognormal around 28 stops, from 2 to 110
+     */
+    private int lineLength() {
+        int length = (int) Math.round(28 * Math.exp(0.6 * random.nextGaussian()));
+        return Math.max(2, Math.min(110, length));
+    }
+
+    /**
+     * Make the stops and times of a bus line, from a start stop in a random direction.
+     * Each stop is the best near stop roughly ahead, preferring stops that no line goes to.
+     * @return the number of stops on the line.
+     */
+    private int walkLine(int start, int length, int[] stops, int[] times) {
+        double heading = random.nextDouble() * 2 * Math.PI;
+        stops[0] = start;
+        times[0] = 0;
+        int size = 1;
+        double time = 0;
+        boolean turned = false;
+        while (size < length) {
+            int current = stops[size - 1];
+            int best = -1;
+            double bestScore = Double.POSITIVE_INFINITY;
+            int col = (int) ((x[current] - gridX) / MAX_HOP);
+            int row = (int) ((y[current] - gridY) / MAX_HOP);
+            for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                    for (int k = cellStart[r * cols + c]; k < cellStart[r * cols + c + 1]; k++) {
+                        int s = cellStops[k];
+                        double dx = x[s] - x[current], dy = y[s] - y[current];
+                        double d = Math.hypot(dx, dy);
+                        if (d < 40 || d > MAX_HOP) { continue; }     // not the same place, nor too far
+                        double turn = Math.abs(Math.IEEEremainder(Math.atan2(dy, dx) - heading, 2 * Math.PI));
+                        if (turn > MAX_TURN || contains(stops, size, s)) { continue; }
+                        double score = d * (1 + turn) * ((onLines[s] == 0) ? 0.5 : 1.0);
+                        if (score < bestScore) {
+                            bestScore = score;
+                            best = s;
+                        }
+                    }
+                }
+            }
+            if (best < 0 && !turned) {      // at the edge of a town: turn to one side, once
+                turned = true;
+                heading += random.nextBoolean() ? Math.PI / 2 : -Math.PI / 2;
+                continue;
+            }
+            if (best < 0) { break; }
+            double dx = x[best] - x[current], dy = y[best] - y[current];
+            heading = Math.atan2(dy, dx) + 0.3 * random.nextGaussian();
+            time += Math.hypot(dx, dy) / Transport.BUS_SPEED_MPS * (0.8 + 0.6 * random.nextDouble()) + DWELL_TIME;
+            stops[size] = best;
+            times[size++] = (int) Math.round(time);
+        }
+        return size;
+    }
+
+    private static boolean contains(int[] stops, int size, int s) {
+        for (int i = size - 1; i >= 0; i--) { if (stops[i] == s) { return true; } }
+        return false;
+    }
+
+    /** Write a line both ways, as lineId_0 and then (reversed) lineId_1 */
+    private void writeLine(Writer out, String lineId, int[] stops, int[] times, int size) throws IOException {
+        int end = times[size - 1];
+        for (int i = 0; i < size; i++) {
+            out.write(lineId + "_0\t" + stopId(stops[i]) + "\t" + times[i] + "\n");
+            onLines[stops[i]]++;
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            out.write(lineId + "_1\t" + stopId(stops[i]) + "\t" + (end - times[i]) + "\n");
+        }
+        numLines += 2;
+        numRows += 2 * size;
+        hopCount += 2 * (size - 1);
+        hopTime += 2 * end;
+    }
+
+    /**
+     * Make a network and write it, then report its size.
+     * Arguments (optional): number of stops (default 10000), seed (default 1),
+     * directory (default data/generated-<number of stops>).
+     */
+    public static void main(String[] args) throws IOException {
+        int numStops = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+        File directory = new File((args.length > 2) ? args[2] : "data/generated-" + numStops);
+
+        long start = System.nanoTime();
+        NetworkGenerator generator = new NetworkGenerator(numStops, seed);
+        generator.write(directory);
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.printf("Wrote %d stops and %d lines (%d rows) to %s in %.0f ms%n", generator.numStops(),
+                          generator.numLines(), generator.numRows(), directory, ms);
+        System.out.printf("%.1f stops per line, %.0f seconds between stops, %d stops on lines%n",
+                          (double) generator.numRows() / generator.numLines(), generator.averageHopTime(),
+                          generator.numStopsOnLines());
+    }
+
+}
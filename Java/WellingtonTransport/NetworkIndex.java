@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Spatial indexes of the stops and edges of a graph, so that drawing the map only
+ * needs to look at the stops and edges that are in view.
+ *
+ * The index is a copy: it must be rebuilt when the edges of the graph change
+ * (eg, when walking edges are added or removed).
+ *
+ * The positions of the stops and of the ends of the edges are also held packed as
+ * lon,lat pairs, so that the visible ones can be projected to the screen in one batch
+ * (see Projection.model2Screen(double[], int[], ...)) instead of one Point2D at a time.
+ */
+public class NetworkIndex {
+
+    private final List<Stop> stops;
+    private final List<Edge> edges;
+    private final GridIndex stopIndex;
+    private final GridIndex edgeIndex;
+    private final double[] stopLonLat;   // stop i is point i
+    private final double[] edgeLonLat;   // the ends of edge i are points 2i and 2i+1
+
+    /**
+     * Build the indexes for the current stops and edges of a graph.
+     */
+    public NetworkIndex(Graph graph) {
+        stops = new ArrayList<>(graph.getStops());
+        edges = new ArrayList<>(graph.getEdges());
+
+        double[] stopBoxes = new double[4 * stops.size()];
+        stopLonLat = new double[2 * stops.size()];
+        for (int i = 0; i < stops.size(); i++) {
+            GisPoint p = stops.get(i).getPoint();
+            stopBoxes[4 * i] = stopBoxes[4 * i + 2] = stopLonLat[2 * i] = p.getLon();
+            stopBoxes[4 * i + 1] = stopBoxes[4 * i + 3] = stopLonLat[2 * i + 1] = p.getLat();
+        }
+        stopIndex = new GridIndex(stopBoxes);
+
+        double[] edgeBoxes = new double[4 * edges.size()];
+        edgeLonLat = new double[4 * edges.size()];
+        for (int i = 0; i < edges.size(); i++) {
+            GisPoint from = edges.get(i).fromStop().getPoint();
+            GisPoint to = edges.get(i).toStop().getPoint();
+            edgeLonLat[4 * i] = from.getLon();
+            edgeLonLat[4 * i + 1] = from.getLat();
+            edgeLonLat[4 * i + 2] = to.getLon();
+            edgeLonLat[4 * i + 3] = to.getLat();
+            edgeBoxes[4 * i] = Math.min(from.getLon(), to.getLon());
+            edgeBoxes[4 * i + 1] = Math.min(from.getLat(), to.getLat());
+            edgeBoxes[4 * i + 2] = Math.max(from.getLon(), to.getLon());
+            edgeBoxes[4 * i + 3] = Math.max(from.getLat(), to.getLat());
+        }
+        edgeIndex = new GridIndex(edgeBoxes);
+    }
+
+    /**
+     * Call action for each stop inside the region {minLon, minLat, maxLon, maxLat}
+     */
+    public void forEachStopIn(double[] region, Consumer<Stop> action) {
+        stopIndex.query(region[0], region[1], region[2], region[3], i -> action.accept(stops.get(i)));
+    }
+
+    /**
+     * Call action for each edge whose bounding box overlaps the region {minLon, minLat, maxLon, maxLat}
+     */
+    public void forEachEdgeIn(double[] region, Consumer<Edge> action) {
+        edgeIndex.query(region[0], region[1], region[2], region[3], i -> action.accept(edges.get(i)));
+    }
+
+    /** The stop with the given index */
+    public Stop stop(int i) { return stops.get(i); }
+
+    /** The edge with the given index */
+    public Edge edge(int i) { return edges.get(i); }
+
+    /** The positions of the stops, packed as lon,lat pairs: stop i is point i */
+    public double[] stopLonLat() { return stopLonLat; }
+
+    /** The positions of the ends of the edges, packed as lon,lat pairs: edge i goes from point 2i to point 2i+1 */
+    public double[] edgeLonLat() { return edgeLonLat; }
+
+    /**
+     * The indexes of the stops inside the region {minLon, minLat, maxLon, maxLat}
+     */
+    public int[] stopsIn(double[] region) {
+        return collect(stopIndex, region);
+    }
+
+    /**
+     * The indexes of the edges whose bounding box overlaps the region {minLon, minLat, maxLon, maxLat}
+     */
+    public int[] edgesIn(double[] region) {
+        return collect(edgeIndex, region);
+    }
+
+    private static int[] collect(GridIndex grid, double[] region) {
+        int[][] found = {new int[64]};
+        int[] count = {0};
+        grid.query(region[0], region[1], region[2], region[3], i -> {
+            if (count[0] == found[0].length) { found[0] = Arrays.copyOf(found[0], count[0] * 2); }
+            found[0][count[0]++] = i;
+        });
+        return Arrays.copyOf(found[0], count[0]);
+    }
+
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the stops and lines of the network from the tab separated data files.
+ *
+ * The files are streamed with a DelimitedReader, so only one buffer of the file is in
+ * memory at a time and no String[] is made for each row. Stop and line ids are interned,
+ * so each id is one String however many rows it appears on, and the stops and times of
+ * each line are collected straight into arrays. This keeps loading fast and memory
+ * bounded even for a large stop_times file with millions of rows.
+ *
+ * The columns are found by name from the header (stop_id, stop_name, stop_lat, stop_lon;
+ * line_id, stop_id, time_from_start), or by position if the header does not name them.
+ */
+public class NetworkLoader {
+
+    /** Load the stop data from the stop file
+     * file contains:
+     *     stop_id, stop_code, stop_name, stop_desc,
+     *     stop_lat, stop_lon, zone_id, location_type,
+     *     parent_station, stop_url, stop_timezone
+     */
+    public static Map<String, Stop> loadStops(File stopsFile) {
+        Map<String, Stop> stops = new HashMap<String, Stop>();
+        try (DelimitedReader reader = DelimitedReader.openTabSeparated(stopsFile)) {
+            reader.readHeader();
+            int idCol = reader.column("stop_id", 0);
+            int nameCol = reader.column("stop_name", 2);
+            int latCol = reader.column("stop_lat", 4);
+            int lonCol = reader.column("stop_lon", 5);
+            int needed = 1 + Math.max(Math.max(idCol, nameCol), Math.max(latCol, lonCol));
+            while (reader.next()) {
+                if (reader.numFields() >= needed) {
+                    String stopId = reader.intern(idCol);
+                    String stopName = reader.getString(nameCol);
+                    double lat = reader.getDouble(latCol);
+                    double lon = reader.getDouble(lonCol);
+                    stops.put(stopId, new Stop(lon, lat, stopName, stopId));
+                }
+            }
+            System.out.println("Loaded "+ stops.size()+" stops");
+        } catch (IOException e) {
+            throw new RuntimeException("Reading the stops file failed.");
+        }
+        return stops;
+    }
+
+    /** Load the parent station of each stop that has one (eg, the platforms of a train
+     * station) from the parent_station column of the stop file.
+     * @return the parent station id of each such stop, by stop id.
+     */
+    public static Map<String, String> loadParentStations(File stopsFile) {
+        Map<String, String> parents = new HashMap<String, String>();
+        try (DelimitedReader reader = DelimitedReader.openTabSeparated(stopsFile)) {
+            reader.readHeader();
+            int idCol = reader.column("stop_id", 0);
+            int parentCol = reader.column("parent_station", 8);
+            int needed = 1 + Math.max(idCol, parentCol);
+            while (reader.next()) {
+                if (reader.numFields() >= needed && !reader.isEmpty(parentCol)) {
+                    parents.put(reader.intern(idCol), reader.intern(parentCol));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Reading the stops file failed.");
+        }
+        return parents;
+    }
+
+    /** Load the line data from the lines file
+     * File contains: line_id, stop_id, timepoint
+     * Uses the stopMap to turn the stop_id's into Stops
+     */
+    public static Collection<Line> loadLines(File lineFile, Map<String,Stop> stopMap) {
+        Collection<Line> lines = readLines(lineFile, stopMap);
+        for (Line line : lines) {
+            for (int i = 0; i < line.size(); i++) { line.getStop(i).addLine(line); }
+        }
+        System.out.println("Loaded "+ lines.size()+" lines");
+        return lines;
+    }
+
+    /** Read the lines from the lines file, like loadLines, but without adding
+     * each line to its stops (eg, to compare them with the lines already loaded).
+     */
+    public static Collection<Line> readLines(File lineFile, Map<String,Stop> stopMap) {
+        if (stopMap.isEmpty()){
+            throw new RuntimeException("loadLines given an empty stopMap.");
+        }
+        Map<String, LineBuilder> builders = new LinkedHashMap<String, LineBuilder>();
+        try (DelimitedReader reader = DelimitedReader.openTabSeparated(lineFile)) {
+            System.out.println("Reading data from: "+lineFile);
+            reader.readHeader();
+            int lineCol = reader.column("line_id", 0);
+            int stopCol = reader.column("stop_id", 1);
+            int timeCol = reader.column("time_from_start", 2);
+            int needed = 1 + Math.max(lineCol, Math.max(stopCol, timeCol));
+            LineBuilder builder = null;
+            while (reader.next()) {
+                if (reader.numFields() >= needed && !reader.isEmpty(timeCol)) {
+                    String lineId = reader.intern(lineCol);
+                    // rows for the same line are usually together, so try the last line first
+                    if (builder == null || builder.lineId != lineId) {
+                        builder = builders.computeIfAbsent(lineId, LineBuilder::new);
+                    }
+                    int time = reader.getInt(timeCol);
+                    String stopId = reader.intern(stopCol);
+                    Stop stop = stopMap.get(stopId);
+                    if (stop==null){
+                        System.out.println("Line "+lineId+" has unknown stop "+stopId+" at "+time);
+                    }
+                    else {
+                        builder.add(stop, time);
+                    }
+                }
+                else {
+                    System.out.println("Line file has broken entry: "+reader.record());
+                }
+            }
+        } catch (IOException e) {throw new RuntimeException("Loading the lines file failed.");}
+
+        Collection<Line> lines = new ArrayList<Line>(builders.size());
+        for (LineBuilder builder : builders.values()) {
+            lines.add(builder.build());
+        }
+        return lines;
+    }
+
+    /**
+     * The stops and times of a line, collected into growing arrays
+     */
+    private static class LineBuilder {
+        private final String lineId;
+        private Stop[] stops = new Stop[16];
+        private int[] times = new int[16];
+        private int size = 0;
+
+        LineBuilder(String lineId) { this.lineId = lineId; }
+
+        void add(Stop stop, int time) {
+            if (size == stops.length) {
+                stops = Arrays.copyOf(stops, 2 * size);
+                times = Arrays.copyOf(times, 2 * size);
+            }
+            stops[size] = stop;
+            times[size] = time;
+            size++;
+        }
+
+        Line build() {
+            return new Line(lineId, Arrays.copyOf(stops, size), Arrays.copyOf(times, size), size);
+        }
+    }
+
+}
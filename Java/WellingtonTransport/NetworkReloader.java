@@ -0,0 +1,253 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Applies changes to the stops and lines files to a loaded Graph, without rebuilding it.
+ *
+ * reload() reads both files again and compares them with the graph: a stop is unchanged
+ * if it has the same id, name and position, and a line if it has the same id, type,
+ * stops and times. The unchanged stops and lines are kept (the new copies are thrown
+ * away), and only the added, removed and changed ones are passed to Graph.applyChanges,
+ * which changes just the edges that involve them and makes a new version of the graph,
+ * so the next snapshot (and anything made from it) sees the new network.
+ * The added stops are given their fare zone, and the lines through the stops are
+ * replaced rather than changed, before the new version is published, so a reader on
+ * another thread never sees a stop half changed.
+ *
+ * watch() reloads whenever either file changes, on a thread of its own. Editors and
+ * copies often write a file in several steps, so it waits until there have been no
+ * changes to the directory for SETTLE_MS before reloading. If the new files cannot be
+ * read, the graph is left as it was.
+ */
+public class NetworkReloader implements Closeable {
+
+    /** How long the files must be unchanged (milliseconds) before they are reloaded */
+    public static final long SETTLE_MS = 250;
+
+    private final Graph graph;
+    private final File stopsFile;
+    private final File linesFile;
+    private final DoubleSupplier walkingDistance;
+    private final ZoneIndex zones;
+    private WatchService watcher = null;
+
+    /**
+     * What one reload changed
+     */
+    public static class Changes {
+        private final List<Stop> removedStops, addedStops;
+        private final List<Line> removedLines, addedLines;
+        private final double millis;
+
+        private Changes(List<Stop> removedStops, List<Stop> addedStops,
+                        List<Line> removedLines, List<Line> addedLines, double millis) {
+            this.removedStops = removedStops;
+            this.addedStops = addedStops;
+            this.removedLines = removedLines;
+            this.addedLines = addedLines;
+            this.millis = millis;
+        }
+
+        /** The stops that are no longer in the graph (including the old copies of changed stops) */
+        public List<Stop> getRemovedStops() { return Collections.unmodifiableList(removedStops); }
+
+        /** The stops that are new to the graph (including the new copies of changed stops) */
+        public List<Stop> getAddedStops() { return Collections.unmodifiableList(addedStops); }
+
+        public List<Line> getRemovedLines() { return Collections.unmodifiableList(removedLines); }
+
+        public List<Line> getAddedLines() { return Collections.unmodifiableList(addedLines); }
+
+        /** Whether nothing changed */
+        public boolean isEmpty() {
+            return removedStops.isEmpty() && addedStops.isEmpty() && removedLines.isEmpty() && addedLines.isEmpty();
+        }
+
+        public String toString() {
+            return String.format("Reloaded the network in %.1f ms: stops -%d +%d, lines -%d +%d",
+                                 millis, removedStops.size(), addedStops.size(), removedLines.size(), addedLines.size());
+        }
+    }
+
+    /**
+     * A reloader for a graph that was loaded from the given files
+     * @param walkingDistance The walking distance of the graph's current walking edges
+     *        (0 for none), for joining the added stops to the stops around them.
+     */
+    public NetworkReloader(Graph graph, File stopsFile, File linesFile, DoubleSupplier walkingDistance) {
+        this(graph, stopsFile, linesFile, walkingDistance, null);
+    }
+
+    /**
+     * A reloader for a graph that was loaded from the given files, whose stops have
+     * fare zones
+     * @param zones For giving the added stops their fare zones (null if the stops have none).
+     */
+    public NetworkReloader(Graph graph, File stopsFile, File linesFile, DoubleSupplier walkingDistance,
+                           ZoneIndex zones) {
+        this.graph = graph;
+        this.stopsFile = stopsFile;
+        this.linesFile = linesFile;
+        this.walkingDistance = walkingDistance;
+        this.zones = zones;
+    }
+
+    /**
+     * Read the stops and lines files again, and change the graph to match them.
+     * @return what changed.
+     */
+    public synchronized Changes reload() {
+        long start = System.nanoTime();
+        Map<String, Stop> loaded = NetworkLoader.loadStops(stopsFile);
+        if (loaded.isEmpty()) { throw new RuntimeException("The stops file has no stops"); }
+
+        Map<String, Stop> current = new HashMap<String, Stop>();
+        for (Stop stop : graph.getStops()) { current.put(stop.getId(), stop); }
+        Map<String, Stop> stopMap = new HashMap<String, Stop>();
+        List<Stop> removedStops = new ArrayList<Stop>();
+        List<Stop> addedStops = new ArrayList<Stop>();
+        for (Stop stop : loaded.values()) {
+            Stop old = current.get(stop.getId());
+            if (old != null && old.getName().equals(stop.getName()) && old.distanceTo(stop) == 0) {
+                stopMap.put(stop.getId(), old);
+            } else {
+                stopMap.put(stop.getId(), stop);
+                addedStops.add(stop);
+                if (old != null) { removedStops.add(old); }
+            }
+        }
+        for (Stop old : current.values()) {
+            if (!loaded.containsKey(old.getId())) { removedStops.add(old); }
+        }
+
+        // lines through a changed stop are changed too, since they have the new Stop
+        Map<String, Line> currentLines = new HashMap<String, Line>();
+        for (Line line : graph.getLines()) { currentLines.put(line.getId(), line); }
+        Collection<Line> lines = NetworkLoader.readLines(linesFile, stopMap);
+        List<Line> removedLines = new ArrayList<Line>();
+        List<Line> addedLines = new ArrayList<Line>();
+        Map<String, Line> byId = new HashMap<String, Line>();
+        for (Line line : lines) {
+            byId.put(line.getId(), line);
+            Line old = currentLines.get(line.getId());
+            if (old != null && sameLine(old, line)) { continue; }
+            addedLines.add(line);
+            if (old != null) { removedLines.add(old); }
+        }
+        for (Line old : currentLines.values()) {
+            if (!byId.containsKey(old.getId())) { removedLines.add(old); }
+        }
+
+        if (!removedStops.isEmpty() || !addedStops.isEmpty() || !removedLines.isEmpty() || !addedLines.isEmpty()) {
+            if (zones != null) { zones.annotate(addedStops); }
+            // the lines through each stop that has lines taken away or added
+            Map<Stop, List<Line>> removedFrom = new LinkedHashMap<Stop, List<Line>>();
+            Map<Stop, List<Line>> addedTo = new LinkedHashMap<Stop, List<Line>>();
+            for (Line line : removedLines) {
+                for (int i = 0; i < line.size(); i++) {
+                    removedFrom.computeIfAbsent(line.getStop(i), s -> new ArrayList<Line>()).add(line);
+                    addedTo.computeIfAbsent(line.getStop(i), s -> new ArrayList<Line>());
+                }
+            }
+            for (Line line : addedLines) {
+                for (int i = 0; i < line.size(); i++) {
+                    addedTo.computeIfAbsent(line.getStop(i), s -> new ArrayList<Line>()).add(line);
+                }
+            }
+            for (Map.Entry<Stop, List<Line>> entry : addedTo.entrySet()) {
+                Stop stop = entry.getKey();
+                stop.changeLines(removedFrom.getOrDefault(stop, Collections.<Line>emptyList()), entry.getValue());
+            }
+            graph.applyChanges(removedStops, addedStops, removedLines, addedLines, walkingDistance.getAsDouble());
+        }
+        return new Changes(removedStops, addedStops, removedLines, addedLines, (System.nanoTime() - start) / 1e6);
+    }
+
+    /** Whether two lines have the same type, and the same stops at the same times */
+    private static boolean sameLine(Line a, Line b) {
+        if (a.size() != b.size() || !a.getType().equals(b.getType())) { return false; }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.getStop(i) != b.getStop(i) || a.getTime(i) != b.getTime(i)) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Reload the network whenever the stops or lines file changes, until closed.
+     * @param onChange Given what changed after each reload that changed something
+     *        (on the watching thread, so a user interface must pass it to its own thread).
+     */
+    public synchronized void watch(Consumer<Changes> onChange) throws IOException {
+        if (watcher != null) { throw new RuntimeException("Already watching " + stopsFile.getParentFile()); }
+        Path directory = stopsFile.getAbsoluteFile().getParentFile().toPath();
+        if (!directory.equals(linesFile.getAbsoluteFile().getParentFile().toPath())) {
+            throw new RuntimeException("The stops and lines files must be in the same directory to be watched");
+        }
+        WatchService service = directory.getFileSystem().newWatchService();
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = service;
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    if (!isOurs(service.take())) { continue; }
+                    // wait for the writing to finish
+                    WatchKey more;
+                    while ((more = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null) { isOurs(more); }
+                    try {
+                        Changes changes = reload();
+                        System.out.println(changes);
+                        if (!changes.isEmpty()) { onChange.accept(changes); }
+                    } catch (RuntimeException e) {
+                        System.out.println("Could not reload the network, keeping the old one: " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed: stop watching
+            }
+        }, "network-reloader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Whether the events of a key include a change to the stops or lines file (and reset the key) */
+    private boolean isOurs(WatchKey key) {
+        boolean ours = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object name = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) { ours = true; }   // events were lost
+            else if (name instanceof Path) {
+                String file = ((Path) name).getFileName().toString();
+                ours |= file.equals(stopsFile.getName()) || file.equals(linesFile.getName());
+            }
+        }
+        key.reset();
+        return ours;
+    }
+
+    /** Stop watching the files */
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+}
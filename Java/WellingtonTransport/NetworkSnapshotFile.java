@@ -0,0 +1,284 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary copy of the fully built network, so the program can start without
+ * parsing the text files and rebuilding the graph.
+ *
+ * The file holds the stops, the lines, every edge of the graph (including any walking
+ * edges) as compressed adjacency arrays, and the zone outlines with their simplified
+ * copies. write() compiles it from a Graph and a Zoning; read() memory-maps it and
+ * rebuilds the objects directly, with no parsing or distance calculations.
+ *
+ * Layout (big-endian; a string is an int byte count then UTF-8 bytes):
+ *   int MAGIC, int FORMAT_VERSION, double walkingDistance
+ *   int numStops; per stop: string id, string name, double lon, double lat
+ *   int numLines; per line: string id, string type, int numStops, then (int stop, int time) for each
+ *   int numEdges; int outStart[numStops+1];
+ *     per edge, in order of from stop: int to, int line (-1 for walking), double time, double distance
+ *   string zoning type, string zoning name, int numZones; per zone: string key,
+ *     int zone, double length, double area, int numPolys; per polygon: int numLevels,
+ *     and per level: int numPoints, then lon, lat of each point
+ *
+ * If a source text file is newer than the binary file (see isUpToDate), the binary file is
+ * out of date and the text loaders should be used instead.
+ */
+public class NetworkSnapshotFile {
+
+    private static final int MAGIC = 0x57544E53;     // "WTNS"
+    private static final int FORMAT_VERSION = 2;     // change whenever the layout changes
+
+    private final double walkingDistance;
+    private final Map<String, Stop> stopMap;
+    private final Collection<Line> lines;
+    private final Graph graph;
+    private final Zoning zoning;
+
+    /**
+     * Read a network from a file written by write().
+     * @throws IOException if the file can not be read or is not a network file of this format.
+     */
+    public static NetworkSnapshotFile read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return new NetworkSnapshotFile(buffer);
+            } catch (RuntimeException e) {
+                throw new IOException("Broken network file " + file + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * True if the file exists and is newer than all the source files
+     */
+    public static boolean isUpToDate(File file, File... sources) {
+        if (!file.isFile()) { return false; }
+        for (File source : sources) {
+            if (source.lastModified() > file.lastModified()) { return false; }
+        }
+        return true;
+    }
+
+    private NetworkSnapshotFile(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC) { throw new IOException("not a network file"); }
+        int format = in.getInt();
+        if (format != FORMAT_VERSION) { throw new IOException("network file format " + format + ", expected " + FORMAT_VERSION); }
+        walkingDistance = in.getDouble();
+
+        int numStops = in.getInt();
+        Stop[] stops = new Stop[numStops];
+        stopMap = new HashMap<String, Stop>(2 * numStops);
+        for (int s = 0; s < numStops; s++) {
+            String id = getString(in);
+            String name = getString(in);
+            double lon = in.getDouble();
+            double lat = in.getDouble();
+            stops[s] = new Stop(lon, lat, name, id);
+            stopMap.put(id, stops[s]);
+        }
+
+        int numLines = in.getInt();
+        Line[] lineArray = new Line[numLines];
+        for (int l = 0; l < numLines; l++) {
+            String id = getString(in);
+            String type = getString(in);
+            int count = in.getInt();
+            Stop[] lineStops = new Stop[count];
+            int[] times = new int[count];
+            for (int k = 0; k < count; k++) {
+                lineStops[k] = stops[in.getInt()];
+                times[k] = in.getInt();
+            }
+            lineArray[l] = new Line(id, type, lineStops, times, count);
+            for (Stop stop : lineStops) { stop.addLine(lineArray[l]); }
+        }
+        lines = List.of(lineArray);
+
+        int numEdges = in.getInt();
+        int[] outStart = new int[numStops + 1];
+        for (int s = 0; s <= numStops; s++) { outStart[s] = in.getInt(); }
+        List<Edge> edges = new ArrayList<Edge>(numEdges);
+        for (int s = 0; s < numStops; s++) {
+            for (int e = outStart[s]; e < outStart[s + 1]; e++) {
+                Stop to = stops[in.getInt()];
+                int l = in.getInt();
+                Line line = (l < 0) ? null : lineArray[l];
+                String transpType = (line == null) ? Transport.WALKING : line.getType();
+                edges.add(new Edge(stops[s], to, transpType, line, in.getDouble(), in.getDouble()));
+            }
+        }
+        graph = new Graph(List.of(stops), lines, edges);
+
+        String type = getString(in);
+        String name = getString(in);
+        int numZones = in.getInt();
+        Map<String, Shape> shapes = new HashMap<String, Shape>();
+        for (int z = 0; z < numZones; z++) {
+            String key = getString(in);
+            Shape shape = new Shape(in.getInt(), in.getDouble(), in.getDouble());
+            int numPolys = in.getInt();
+            for (int p = 0; p < numPolys; p++) {
+                int numLevels = in.getInt();
+                List<double[]> levels = new ArrayList<double[]>(numLevels);
+                for (int level = 0; level < numLevels; level++) {
+                    double[] lonLat = new double[2 * in.getInt()];
+                    in.asDoubleBuffer().get(lonLat);
+                    in.position(in.position() + 8 * lonLat.length);
+                    levels.add(lonLat);
+                }
+                GeoPoly poly = new GeoPoly();
+                poly.setLevels(levels);
+                shape.addShape(poly);
+            }
+            shapes.put(key, shape);
+        }
+        zoning = new Zoning(type, name, shapes);
+    }
+
+    /**
+     * Compile a network into a file. The file is written beside the target and then
+     * moved into place, so a reader never sees half a file.
+     * @param file The file to write.
+     * @param graph The graph, with any walking edges that should be stored.
+     * @param walkingDistance The walking distance that the walking edges were made with (0 if none).
+     * @param zoning The fare zones.
+     */
+    public static void write(File file, Graph graph, double walkingDistance, Zoning zoning) throws IOException {
+        GraphSnapshot snapshot = graph.snapshot();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeDouble(walkingDistance);
+
+        int numStops = snapshot.numStops();
+        out.writeInt(numStops);
+        for (int s = 0; s < numStops; s++) {
+            Stop stop = snapshot.stop(s);
+            putString(out, stop.getId());
+            putString(out, stop.getName());
+            out.writeDouble(snapshot.lon(s));
+            out.writeDouble(snapshot.lat(s));
+        }
+
+        Map<Line, Integer> lineIndex = new HashMap<Line, Integer>();
+        out.writeInt(graph.getLines().size());
+        for (Line line : graph.getLines()) {
+            lineIndex.put(line, lineIndex.size());
+            putString(out, line.getId());
+            putString(out, line.getType());
+            out.writeInt(line.size());
+            for (int k = 0; k < line.size(); k++) {
+                out.writeInt(snapshot.indexOf(line.getStop(k)));
+                out.writeInt(line.getTime(k));
+            }
+        }
+
+        // the edges of the snapshot are already in order of their from stop
+        out.writeInt(snapshot.numEdges());
+        for (int s = 0; s <= numStops; s++) { out.writeInt(snapshot.outStart(s)); }
+        for (int e = 0; e < snapshot.numEdges(); e++) {
+            Edge edge = snapshot.edge(e);
+            out.writeInt(snapshot.edgeTo(e));
+            out.writeInt((edge.line() == null) ? -1 : lineIndex.get(edge.line()));
+            out.writeDouble(edge.time());
+            out.writeDouble(edge.distance());
+        }
+
+        putString(out, zoning.getType());
+        putString(out, zoning.getName());
+        out.writeInt(zoning.getZones().size());
+        for (Map.Entry<String, Shape> entry : zoning.getZones().entrySet()) {
+            Shape shape = entry.getValue();
+            putString(out, entry.getKey());
+            out.writeInt(shape.getZONE());
+            out.writeDouble(shape.getShape_Length());
+            out.writeDouble(shape.getShape_Area());
+            out.writeInt(shape.getShapes().size());
+            for (GeoPoly poly : shape.getShapes()) {
+                out.writeInt(Zoning.TOLERANCES.length);
+                for (int level = 0; level < Zoning.TOLERANCES.length; level++) {
+                    double[] lonLat = poly.getLonLat(level);
+                    out.writeInt(lonLat.length / 2);
+                    for (double value : lonLat) { out.writeDouble(value); }
+                }
+            }
+        }
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), bytes.toByteArray());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** The walking distance that the stored walking edges were made with (0 if there are none) */
+    public double getWalkingDistance() { return walkingDistance; }
+
+    /** The stops, indexed by stop id */
+    public Map<String, Stop> getStopMap() { return stopMap; }
+
+    public Collection<Line> getLines() { return lines; }
+
+    /** The graph, with its edges (and any walking edges) already connected */
+    public Graph getGraph() { return graph; }
+
+    public Zoning getZoning() { return zoning; }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compile the data files into data/network.bin, then time loading it both ways.
+     * Argument (optional): walking distance in meters for walking edges to store (default 0, none).
+     */
+    public static void main(String[] args) throws IOException {
+        double walkingDistance = (args.length > 0) ? Double.parseDouble(args[0]) : 0;
+        File stopsFile = new File("data/stops.txt");
+        File linesFile = new File("data/lines.txt");
+        File zonesFile = new File("data/WellingtonZones.csv");
+        File networkFile = new File("data/network.bin");
+
+        long start = System.nanoTime();
+        Map<String, Stop> stopMap = Controller.loadStops(stopsFile);
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(linesFile, stopMap));
+        if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+        Zoning zoning = new Zoning(zonesFile);
+        double textMs = (System.nanoTime() - start) / 1e6;
+
+        write(networkFile, graph, walkingDistance, zoning);
+        System.out.printf("Wrote %s: %d stops, %d lines, %d edges, %d bytes%n", networkFile,
+                          graph.getStops().size(), graph.getLines().size(), graph.getEdges().size(), networkFile.length());
+
+        start = System.nanoTime();
+        NetworkSnapshotFile network = read(networkFile);
+        double binaryMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("Loaded %d stops, %d edges, %d zones: text files %.0f ms, network file %.0f ms%n",
+                          network.getGraph().getStops().size(), network.getGraph().getEdges().size(),
+                          network.getZoning().getZones().size(), textMs, binaryMs);
+    }
+
+}
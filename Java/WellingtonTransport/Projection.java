@@ -33,6 +33,99 @@ public class Projection {
                         controller.getOrigin().getLat()));
     }
 
+    /**
+     * The region of the map that is visible on the canvas, widened by a margin
+     * @param controller Contains the canvas, scale, and origin
+     * @param marginPixels How far outside the canvas to include, in pixels
+     * @return {minLon, minLat, maxLon, maxLat}
+     */
+    public static double[] visibleRegion(Controller controller, double marginPixels) {
+        Canvas canvas = controller.getMapCanvas();
+        GisPoint topLeft = screen2Model(new Point2D(-marginPixels, -marginPixels), controller);
+        GisPoint bottomRight = screen2Model(new Point2D(canvas.getWidth() + marginPixels,
+                                                        canvas.getHeight() + marginPixels), controller);
+        return new double[]{topLeft.getLon(), bottomRight.getLat(), bottomRight.getLon(), topLeft.getLat()};
+    }
+
+    /**
+     * The projection for one frame: the canvas size, scale, ratio and origin, read
+     * from the controller once and folded into a scale and offset for each axis,
+     * so that projecting many points does not re-read them for every point.
+     */
+    public static class View {
+        private final double xScale;
+        private final double xOffset;
+        private final double yScale;
+        private final double yOffset;
+
+        View(double width, double height, double scale, double ratioLatLon, double originLon, double originLat) {
+            // x = (lon - originLon) * scale * ratio + width/2
+            xScale = scale * ratioLatLon;
+            xOffset = width / 2 - originLon * xScale;
+            // y = height - ((lat - originLat) * scale + height/2)   (remember that y is flipped)
+            yScale = -scale;
+            yOffset = height / 2 + originLat * scale;
+        }
+
+        /** Screen x of a longitude */
+        public double x(double lon) { return lon * xScale + xOffset; }
+
+        /** Screen y of a latitude */
+        public double y(double lat) { return lat * yScale + yOffset; }
+    }
+
+    /**
+     * Capture the current projection of the controller's canvas
+     */
+    public static View view(Controller controller) {
+        Canvas canvas = controller.getMapCanvas();
+        return view(canvas.getWidth(), canvas.getHeight(), controller.getScale(),
+                    controller.getRatioLatLon(), controller.getOrigin().getLon(), controller.getOrigin().getLat());
+    }
+
+    /**
+     * The projection for a canvas of the given size, scale, ratio and origin
+     */
+    public static View view(double width, double height, double scale, double ratioLatLon,
+                            double originLon, double originLat) {
+        return new View(width, height, scale, ratioLatLon, originLon, originLat);
+    }
+
+    /**
+     * Project a run of points, packed as lon,lat pairs, into screen coordinates.
+     * @param lonLat The packed points: point i is at lonLat[2i], lonLat[2i+1].
+     * @param from The first point to project.
+     * @param count The number of points to project.
+     * @param view The projection.
+     * @param xs Receives the screen x of the points, starting at xs[0].
+     * @param ys Receives the screen y of the points, starting at ys[0].
+     */
+    public static void model2Screen(double[] lonLat, int from, int count, View view, double[] xs, double[] ys) {
+        double xScale = view.xScale, xOffset = view.xOffset, yScale = view.yScale, yOffset = view.yOffset;
+        for (int i = 0, k = 2 * from; i < count; i++, k += 2) {
+            xs[i] = lonLat[k] * xScale + xOffset;
+            ys[i] = lonLat[k + 1] * yScale + yOffset;
+        }
+    }
+
+    /**
+     * Project selected points, packed as lon,lat pairs, into screen coordinates.
+     * @param lonLat The packed points: point i is at lonLat[2i], lonLat[2i+1].
+     * @param points The indexes of the points to project.
+     * @param count The number of indexes to use.
+     * @param view The projection.
+     * @param xs Receives the screen x of points[j] at xs[j].
+     * @param ys Receives the screen y of points[j] at ys[j].
+     */
+    public static void model2Screen(double[] lonLat, int[] points, int count, View view, double[] xs, double[] ys) {
+        double xScale = view.xScale, xOffset = view.xOffset, yScale = view.yScale, yOffset = view.yOffset;
+        for (int j = 0; j < count; j++) {
+            int k = 2 * points[j];
+            xs[j] = lonLat[k] * xScale + xOffset;
+            ys[j] = lonLat[k + 1] * yScale + yOffset;
+        }
+    }
+
     // Private helper methods for the projection calculations.
     private static Point2D model2Screen(GisPoint model, Canvas mapCanvas, double scale, double ratioLatLon,
             GisPoint origin) {
@@ -0,0 +1,114 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javafx.geometry.Point2D;
+
+/**
+ * Times projecting the map to the screen one point at a time (a Point2D for each point,
+ * with the view worked out again for each coordinate, as Projection.model2Screen does)
+ * against projecting packed lon,lat arrays in a batch into reused arrays.
+ *
+ * Uses the zone outlines at full detail and the ends of every edge of the network,
+ * with walking edges added. Runs without a window, using the default view.
+ * Arguments (optional): number of repetitions.
+ */
+public class ProjectionBenchmark {
+
+    // the default view of the Controller, on a canvas of the size in MapView.fxml
+    private static final double WIDTH = 800;
+    private static final double HEIGHT = 500;
+    private static final double SCALE = 5000.0;
+    private static final double RATIO = 0.73;
+    private static final double ORIGIN_LON = 174.77;
+    private static final double ORIGIN_LAT = -41.3;
+    private static final double WALKING_DISTANCE = 100;   // meters
+
+    private static double sink = 0;   // keeps the results live so the work is not optimised away
+
+    public static void main(String[] args) {
+        int reps = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+
+        Zoning zoning = new Zoning(new File("data/WellingtonZones.csv"));
+        List<double[]> outlines = new ArrayList<>();
+        for (Shape shape : zoning.getZones().values()) {
+            for (GeoPoly poly : shape.getShapes()) { outlines.add(poly.getLonLat(0)); }
+        }
+
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Collection<Line> lines = Controller.loadLines(new File("data/lines.txt"), stopMap);
+        Graph graph = new Graph(stopMap.values(), lines);
+        graph.recomputeWalkingEdges(WALKING_DISTANCE);
+        Collection<Edge> edges = graph.getEdges();
+        double[] edgeEnds = new double[4 * edges.size()];
+        int k = 0;
+        for (Edge edge : edges) {
+            edgeEnds[k++] = edge.fromStop().getPoint().getLon();
+            edgeEnds[k++] = edge.fromStop().getPoint().getLat();
+            edgeEnds[k++] = edge.toStop().getPoint().getLon();
+            edgeEnds[k++] = edge.toStop().getPoint().getLat();
+        }
+        List<double[]> edgeSet = List.of(edgeEnds);
+
+        run("zone outlines", outlines, reps);
+        run("edges", edgeSet, reps);
+        System.out.println(sink == 0 ? "" : "(checksum " + (long) sink + ")");
+    }
+
+    private static void run(String name, List<double[]> data, int reps) {
+        int points = 0;
+        for (double[] lonLat : data) { points += lonLat.length / 2; }
+        double[] xs = new double[points];
+        double[] ys = new double[points];
+        Projection.View view = Projection.view(WIDTH, HEIGHT, SCALE, RATIO, ORIGIN_LON, ORIGIN_LAT);
+
+        // check that the two ways agree, then warm up both
+        double maxDiff = 0;
+        for (double[] lonLat : data) {
+            Projection.model2Screen(lonLat, 0, lonLat.length / 2, view, xs, ys);
+            for (int i = 0; i < lonLat.length / 2; i++) {
+                Point2D p = perPoint(lonLat[2 * i], lonLat[2 * i + 1]);
+                maxDiff = Math.max(maxDiff, Math.max(Math.abs(p.getX() - xs[i]), Math.abs(p.getY() - ys[i])));
+            }
+        }
+        for (int r = 0; r < reps; r++) { projectPerPoint(data); projectBatch(data, view, xs, ys); }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < reps; r++) { projectPerPoint(data); }
+        double perPointMs = (System.nanoTime() - start) / 1e6 / reps;
+
+        start = System.nanoTime();
+        for (int r = 0; r < reps; r++) { projectBatch(data, Projection.view(WIDTH, HEIGHT, SCALE, RATIO, ORIGIN_LON, ORIGIN_LAT), xs, ys); }
+        double batchMs = (System.nanoTime() - start) / 1e6 / reps;
+
+        System.out.printf("%s: %d points, per point %.3f ms, batch %.3f ms (%.1fx), max difference %.2g px%n",
+                          name, points, perPointMs, batchMs, perPointMs / batchMs, maxDiff);
+    }
+
+    private static void projectPerPoint(List<double[]> data) {
+        for (double[] lonLat : data) {
+            for (int i = 0; i < lonLat.length / 2; i++) {
+                Point2D p = perPoint(lonLat[2 * i], lonLat[2 * i + 1]);
+                sink += p.getX() + p.getY();
+            }
+        }
+    }
+
+    private static void projectBatch(List<double[]> data, Projection.View view, double[] xs, double[] ys) {
+        for (double[] lonLat : data) {
+            int n = lonLat.length / 2;
+            Projection.model2Screen(lonLat, 0, n, view, xs, ys);
+            sink += xs[n - 1] + ys[n - 1];
+        }
+    }
+
+    // the arithmetic of Projection.model2Screen(GisPoint, Controller)
+    private static Point2D perPoint(double lon, double lat) {
+        double x = (lon - ORIGIN_LON) * (SCALE * RATIO) + WIDTH / 2;
+        double y = HEIGHT - ((lat - ORIGIN_LAT) * SCALE + HEIGHT / 2);
+        return new Point2D(x, y);
+    }
+
+}
@@ -0,0 +1,467 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server that answers routing questions about the network, with JSON:
+ *
+ *   GET /route?from=ID&amp;to=ID[&amp;mode=time|distance]   the shortest path between two stops
+ *   GET /nearest?lon=X&amp;lat=Y                           the stop closest to a point
+ *   GET /stops?prefix=TEXT[&amp;limit=N]                   the stops whose names start with the text
+ *   GET /isochrone?from=ID&amp;max=COST[&amp;mode=time|distance]
+ *                                                   the stops within a cost of a stop
+ *
+ * Run with: java RoutingServer [port] [walking distance] (defaults 8080 and 100m),
+ * or java RoutingServer --load-test [concurrent clients] [requests] to start a server on a
+ * free port, send it a mix of requests from that many clients at once, and report the
+ * p50/p99 latency of each kind of request.
+ *
+ * Requests are handled on virtual threads when the JDK has them (Java 21 and later), and
+ * on a fixed pool of threads otherwise. The searches use the same A* over a GraphSnapshot
+ * as the map does (AStar itself keeps its cost metric in a static field, so it can not be
+ * used by several requests at once); search workspaces are kept in a pool and reused. The
+ * responses are written as JSON straight to the connection (see JsonWriter).
+ */
+public class RoutingServer {
+
+    private static final int MAX_STOPS_LISTED = 1000;   // most stops returned by /stops if no limit is given
+
+    private final Graph graph;
+    private final GraphSnapshot snap;
+    private final Map<String, Stop> stopMap;
+    private final GridIndex stopIndex;                  // item i is stop i of the snapshot
+    private final ConcurrentLinkedQueue<SearchWorkspace> workspaces = new ConcurrentLinkedQueue<SearchWorkspace>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * A server for a graph (which must not change while the server is running)
+     */
+    public RoutingServer(Graph graph, Map<String, Stop> stopMap) {
+        this.graph = graph;
+        this.snap = graph.snapshot();
+        this.stopMap = stopMap;
+        double[] boxes = new double[4 * snap.numStops()];
+        for (int s = 0; s < snap.numStops(); s++) {
+            boxes[4 * s] = boxes[4 * s + 2] = snap.lon(s);
+            boxes[4 * s + 1] = boxes[4 * s + 3] = snap.lat(s);
+        }
+        stopIndex = new GridIndex(boxes);
+    }
+
+    /**
+     * Start serving on a port (0 for any free port).
+     * Streamed responses are much slower unless the sun.net.httpserver.nodelay system property
+     * is true before the first server is created (main sets it).
+     * @return the port
+     */
+    public int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/route", exchange -> handle(exchange, this::route));
+        server.createContext("/nearest", exchange -> handle(exchange, this::nearest));
+        server.createContext("/stops", exchange -> handle(exchange, this::stops));
+        server.createContext("/isochrone", exchange -> handle(exchange, this::isochrone));
+        executor = requestExecutor();
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A virtual thread per request if the JDK has them (found by reflection, since this
+     * code is built for Java 17), otherwise a fixed pool of threads.
+     */
+    private static ExecutorService requestExecutor() {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Handling requests on virtual threads");
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+            System.out.println("Handling requests on " + threads + " threads (no virtual threads in this JDK)");
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "routing-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    //--------------------------------------------
+    //  Requests
+    //--------------------------------------------
+
+    /** A request that is wrong: answered with the status code and the message */
+    private static class BadRequest extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface Handler {
+        void respond(Map<String, String> params, JsonWriter json) throws IOException;
+    }
+
+    /**
+     * Answer a request: check it before sending the headers, so that a bad request gets
+     * an error status, then stream the JSON of the answer.
+     */
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI());
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            try {
+                // the handler writes into a buffer that is only sent once it is full or done,
+                // so a BadRequest found while checking the parameters can still set the status
+                Writer out = new BufferedWriter(new OutputStreamWriter(new LazyBody(exchange), StandardCharsets.UTF_8), 8192);
+                handler.respond(params, new JsonWriter(out));
+                out.flush();
+            } catch (BadRequest e) {
+                sendError(exchange, e.status, e.getMessage());
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringWriter text = new StringWriter();
+        new JsonWriter(text).beginObject().name("error").value(message).endObject();
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * The response body, which sends the headers (200, chunked) when the first bytes are written
+     */
+    private static class LazyBody extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream body;
+
+        LazyBody(HttpExchange exchange) { this.exchange = exchange; }
+
+        private OutputStream body() throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException { body().write(b); }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { body().write(b, off, len); }
+
+        @Override
+        public void flush() throws IOException { body().flush(); }
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> params = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+        if (query == null) { return params; }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) { continue; }
+            params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                       URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) { throw new BadRequest(400, "missing parameter " + name); }
+        return value;
+    }
+
+    private static double number(Map<String, String> params, String name) {
+        try {
+            return Double.parseDouble(required(params, name));
+        } catch (NumberFormatException e) {
+            throw new BadRequest(400, "parameter " + name + " is not a number");
+        }
+    }
+
+    private static String mode(Map<String, String> params) {
+        String mode = params.getOrDefault("mode", "time");
+        if (!mode.equals("time") && !mode.equals("distance")) { throw new BadRequest(400, "mode must be time or distance"); }
+        return mode;
+    }
+
+    /** The snapshot index of the stop with the id in the parameter */
+    private int stopParam(Map<String, String> params, String name) {
+        String id = required(params, name);
+        Stop stop = stopMap.get(id);
+        int s = (stop == null) ? -1 : snap.indexOf(stop);
+        if (s < 0) { throw new BadRequest(404, "unknown stop " + id); }
+        return s;
+    }
+
+    private SearchWorkspace borrowWorkspace() {
+        SearchWorkspace search = workspaces.poll();
+        return (search != null) ? search : new SearchWorkspace(snap);
+    }
+
+    private static void writeStop(JsonWriter json, Stop stop) throws IOException {
+        json.beginObject()
+            .name("id").value(stop.getId())
+            .name("name").value(stop.getName())
+            .name("lon").value(stop.getPoint().getLon())
+            .name("lat").value(stop.getPoint().getLat())
+            .endObject();
+    }
+
+    //--------------------------------------------
+    //  Endpoints
+    //--------------------------------------------
+
+    private void route(Map<String, String> params, JsonWriter json) throws IOException {
+        int from = stopParam(params, "from");
+        int to = stopParam(params, "to");
+        String mode = mode(params);
+        SearchWorkspace search = borrowWorkspace();
+        List<Edge> path;
+        double cost;
+        try {
+            cost = search.shortestPath(from, to, mode, SearchWorkspace.NONE);
+            path = (cost == Double.POSITIVE_INFINITY) ? null : search.path(to);
+        } finally {
+            workspaces.add(search);
+        }
+        json.beginObject();
+        json.name("from");
+        writeStop(json, snap.stop(from));
+        json.name("to");
+        writeStop(json, snap.stop(to));
+        json.name("mode").value(mode);
+        json.name("found").value(path != null);
+        if (path != null) {
+            double time = 0, distance = 0;
+            for (Edge edge : path) {
+                time += edge.time();
+                distance += edge.distance();
+            }
+            json.name("cost").value(cost).name("time").value(time).name("distance").value(distance);
+            json.name("edges").beginArray();
+            for (Edge edge : path) {
+                json.beginObject()
+                    .name("from").value(edge.fromStop().getId())
+                    .name("to").value(edge.toStop().getId())
+                    .name("type").value(edge.transpType())
+                    .name("line").value((edge.line() == null) ? null : edge.line().getId())
+                    .name("time").value(edge.time())
+                    .name("distance").value(edge.distance())
+                    .endObject();
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    private void nearest(Map<String, String> params, JsonWriter json) throws IOException {
+        double lon = number(params, "lon");
+        double lat = number(params, "lat");
+        GisPoint point = new GisPoint(lon, lat);
+        // look in a box around the point, twice as big each time, until there is a stop in it;
+        // then the closest stop is within the distance to that stop
+        double radius = 0.005;
+        int[] best = {-1};
+        double[] bestDistance = {Double.POSITIVE_INFINITY};
+        while (best[0] < 0 && radius < 360) {
+            stopIndex.query(lon - radius, lat - radius, lon + radius, lat + radius, s -> {
+                double d = snap.stop(s).distanceTo(point);
+                if (d < bestDistance[0]) {
+                    bestDistance[0] = d;
+                    best[0] = s;
+                }
+            });
+            radius *= 2;
+        }
+        if (best[0] < 0) { throw new BadRequest(404, "no stops"); }
+        // a stop in a corner of the box may be further than one just outside it
+        double margin = bestDistance[0] / 111_000 / Math.max(Math.cos(Math.toRadians(Math.abs(lat))), 0.01) + 1e-9;
+        stopIndex.query(lon - margin, lat - margin, lon + margin, lat + margin, s -> {
+            double d = snap.stop(s).distanceTo(point);
+            if (d < bestDistance[0]) {
+                bestDistance[0] = d;
+                best[0] = s;
+            }
+        });
+        json.beginObject().name("stop");
+        writeStop(json, snap.stop(best[0]));
+        json.name("distance").value(bestDistance[0]).endObject();
+    }
+
+    private void stops(Map<String, String> params, JsonWriter json) throws IOException {
+        String prefix = required(params, "prefix");
+        int limit = params.containsKey("limit") ? (int) number(params, "limit") : MAX_STOPS_LISTED;
+        List<Stop> found = graph.getAllMatchingStops(prefix);
+        json.beginObject().name("count").value(found.size()).name("stops").beginArray();
+        for (int i = 0; i < Math.min(limit, found.size()); i++) { writeStop(json, found.get(i)); }
+        json.endArray().endObject();
+    }
+
+    private void isochrone(Map<String, String> params, JsonWriter json) throws IOException {
+        int from = stopParam(params, "from");
+        double max = number(params, "max");
+        String mode = mode(params);
+        SearchWorkspace search = borrowWorkspace();
+        try {
+            search.shortestPathsFrom(from, mode, SearchWorkspace.NONE);
+            json.beginObject().name("from").value(snap.stop(from).getId()).name("mode").value(mode)
+                .name("max").value(max).name("stops").beginArray();
+            for (int s = 0; s < snap.numStops(); s++) {
+                double cost = search.costTo(s);
+                if (cost > max) { continue; }
+                Stop stop = snap.stop(s);
+                json.beginObject().name("id").value(stop.getId())
+                    .name("lon").value(stop.getPoint().getLon()).name("lat").value(stop.getPoint().getLat())
+                    .name("cost").value(cost).endObject();
+            }
+            json.endArray().endObject();
+        } finally {
+            workspaces.add(search);
+        }
+    }
+
+    //--------------------------------------------
+    //  Running and load testing
+    //--------------------------------------------
+
+    /**
+     * Send requests from a number of clients at once to a server on this machine, and
+     * report the latency of each kind of request.
+     */
+    public static void loadTest(int port, Map<String, Stop> stopMap, int clients, int requests) throws InterruptedException {
+        List<Stop> stops = new ArrayList<Stop>(stopMap.values());
+        stops.sort(null);
+        String[] kinds = {"route", "nearest", "stops", "isochrone"};
+        int[] kindOf = new int[requests];
+        String[] paths = new String[requests];
+        Random random = new Random(7);
+        for (int r = 0; r < requests; r++) {
+            Stop a = stops.get(random.nextInt(stops.size()));
+            Stop b = stops.get(random.nextInt(stops.size()));
+            int pick = random.nextInt(10);     // mostly routes
+            kindOf[r] = (pick < 7) ? 0 : (pick < 8) ? 1 : (pick < 9) ? 2 : 3;
+            switch (kindOf[r]) {
+                case 0: paths[r] = "/route?from=" + encode(a.getId()) + "&to=" + encode(b.getId()); break;
+                case 1: paths[r] = "/nearest?lon=" + a.getPoint().getLon() + "&lat=" + a.getPoint().getLat(); break;
+                case 2: paths[r] = "/stops?prefix=" + encode(a.getName().substring(0, Math.min(3, a.getName().length()))) + "&limit=20"; break;
+                default: paths[r] = "/isochrone?from=" + encode(a.getId()) + "&max=900"; break;
+            }
+        }
+
+        HttpClient client = HttpClient.newBuilder().build();
+        long[] nanos = new long[requests];
+        int[] failures = new int[1];
+        AtomicInteger next = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            threads[c] = new Thread(() -> {
+                for (int r = next.getAndIncrement(); r < requests; r = next.getAndIncrement()) {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + paths[r])).build();
+                    long t = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) { synchronized (failures) { failures[0]++; } }
+                    } catch (IOException | InterruptedException e) {
+                        synchronized (failures) { failures[0]++; }
+                    }
+                    nanos[r] = System.nanoTime() - t;
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) { thread.join(); }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d requests from %d clients in %.2f s: %.0f per second, %d failed%n",
+                          requests, clients, seconds, requests / seconds, failures[0]);
+        for (int k = -1; k < kinds.length; k++) {
+            long[] these = new long[requests];
+            int count = 0;
+            for (int r = 0; r < requests; r++) { if (k < 0 || kindOf[r] == k) { these[count++] = nanos[r]; } }
+            if (count == 0) { continue; }
+            long[] sorted = Arrays.copyOf(these, count);
+            Arrays.sort(sorted);
+            System.out.printf("%-10s %6d requests  p50 %7.2f ms  p99 %7.2f ms%n", (k < 0) ? "all" : kinds[k], count,
+                              sorted[(count - 1) / 2] / 1e6, sorted[(int) Math.ceil(0.99 * count) - 1] / 1e6);
+        }
+    }
+
+    private static String encode(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Load the data files and serve, or run a load test (see the class comment)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean loadTest = args.length > 0 && args[0].equals("--load-test");
+        int port = (!loadTest && args.length > 0) ? Integer.parseInt(args[0]) : (loadTest ? 0 : 8080);
+        double walkingDistance = (!loadTest && args.length > 1) ? Double.parseDouble(args[1]) : 100;
+        // the headers and the chunks of a streamed response are separate small writes, which
+        // the Nagle algorithm would hold back for the client's delayed ack (about 40ms each)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) { System.setProperty("sun.net.httpserver.nodelay", "true"); }
+
+        Map<String, Stop> stopMap = NetworkLoader.loadStops(new File("data/stops.txt"));
+        Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File("data/lines.txt"), stopMap));
+        if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+        RoutingServer server = new RoutingServer(graph, stopMap);
+        port = server.start(port);
+        System.out.println("Serving on http://localhost:" + port + "/");
+        if (loadTest) {
+            int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+            int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+            loadTest(port, stopMap, clients, Math.min(requests, 200));     // warm up
+            System.out.println("----");
+            loadTest(port, stopMap, clients, requests);
+            server.stop();
+        }
+    }
+
+}
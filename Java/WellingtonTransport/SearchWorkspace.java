@@ -0,0 +1,245 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Reusable working storage for shortest path searches over a GraphSnapshot.
+ *
+ * A workspace holds the cost, back-pointer and fringe arrays for one search at a time,
+ * so it must not be shared between threads; each thread should have its own workspace.
+ * The arrays are reset lazily (using a search number), so starting a new search costs
+ * nothing, however large the graph is.
+ *
+ * The searches are A* (or Dijkstra, when there is no goal) over the primitive arrays of
+ * the snapshot. A search can be told to skip one stop, as if that stop were closed.
+ */
+public class SearchWorkspace {
+
+    /** Value of skipStop meaning that no stop is skipped */
+    public static final int NONE = -1;
+
+    private static final int CANCEL_CHECK = 1024;   // stops settled between polls of a cancellable search
+
+    private final GraphSnapshot graph;
+
+    private final double[] cost;     // best cost found so far to each stop
+    private final int[] backEdge;    // edge used to reach each stop (-1 for the start)
+    private final int[] reached;     // search number in which cost/backEdge were last set
+    private final int[] settled;     // search number in which each stop was settled
+    private int search = 0;          // the current search number
+
+    private final StopHeap fringe;   // stops ordered by estimated total cost; entries may be stale
+
+    private int[] pathBuffer;
+
+    private static final Metrics.Phase METRICS = Metrics.phase("search",
+        "stops settled", "edges relaxed", "stale fringe pops", "fringe peak", "heuristic evaluations");
+
+    /**
+     * Make a workspace for searching the given snapshot
+     */
+    public SearchWorkspace(GraphSnapshot graph) {
+        this.graph = graph;
+        int n = graph.numStops();
+        cost = new double[n];
+        backEdge = new int[n];
+        reached = new int[n];
+        settled = new int[n];
+        fringe = new StopHeap(n);
+        pathBuffer = new int[16];
+    }
+
+    /** The snapshot this workspace searches */
+    public GraphSnapshot getGraph() { return graph; }
+
+    /**
+     * Find the cost of the shortest path from start to goal.
+     * @param start Index of the start stop.
+     * @param goal Index of the goal stop.
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @param skipStop Index of a stop that the path may not pass through, or NONE.
+     * @return the cost of the shortest path, or Double.POSITIVE_INFINITY if there is no path.
+     *  After the call, path(goal) gives the path itself.
+     */
+    public double shortestPath(int start, int goal, String timeOrDistance, int skipStop) {
+        return shortestPath(start, goal, timeOrDistance, skipStop, null);
+    }
+
+    /**
+     * Find the cost of the shortest path from start to goal, as shortestPath above, on a
+     * background thread that may be told to stop (see TaskScheduler).
+     * @param cancelled Polled every 1024 stops settled; if it becomes true, stops with a
+     *        CancellationException. May be null.
+     */
+    public double shortestPath(int start, int goal, String timeOrDistance, int skipStop, BooleanSupplier cancelled) {
+        run(start, goal, graph.edgeCosts(timeOrDistance), GraphSnapshot.heuristicScale(timeOrDistance), skipStop,
+            null, 0, cancelled);
+        return costTo(goal);
+    }
+
+    /**
+     * Find the cost of the shortest path from start to goal, following only the edges that
+     * are flagged for the region of the goal (see ArcFlags). Finds a path of the same cost
+     * as shortestPath with the cost metric of the flags, but looks at far fewer stops.
+     * @param flags Arc flags made for the snapshot of this workspace.
+     */
+    public double shortestPath(int start, int goal, ArcFlags flags, int skipStop) {
+        if (flags.getGraph() != graph) { throw new IllegalArgumentException("Arc flags are for a different snapshot"); }
+        String timeOrDistance = flags.getTimeOrDistance();
+        run(start, goal, graph.edgeCosts(timeOrDistance), GraphSnapshot.heuristicScale(timeOrDistance), skipStop,
+            flags.edgeFlags(), 1 << flags.regionOf(goal), null);
+        return costTo(goal);
+    }
+
+    /**
+     * Find the quickest path from start to goal with the delays of a DelayOverlay,
+     * as they were published when the search started.
+     * @param delays A delay overlay for the snapshot of this workspace.
+     * @return the time of the quickest path, or Double.POSITIVE_INFINITY if there is no path.
+     */
+    public double shortestPath(int start, int goal, DelayOverlay delays, int skipStop) {
+        if (delays.getGraph() != graph) { throw new IllegalArgumentException("Delays are for a different snapshot"); }
+        run(start, goal, delays.times(), GraphSnapshot.heuristicScale("time"), skipStop, null, 0, null);
+        return costTo(goal);
+    }
+
+    /**
+     * Find the cost of the shortest paths from start to every stop (Dijkstra).
+     * After the call, costTo(s) and path(s) give the results for each stop s.
+     * @param start Index of the start stop.
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @param skipStop Index of a stop that the paths may not pass through, or NONE.
+     */
+    public void shortestPathsFrom(int start, String timeOrDistance, int skipStop) {
+        run(start, NONE, graph.edgeCosts(timeOrDistance), 0, skipStop, null, 0, null);
+    }
+
+    /**
+     * Cost of the best path to a stop found by the last search
+     * @return the cost, or Double.POSITIVE_INFINITY if the stop was not reached
+     */
+    public double costTo(int stop) {
+        return (settled[stop] == search) ? cost[stop] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * The path found by the last search from its start to the given stop.
+     * @return the list of edges, or null if the stop was not reached.
+     */
+    public List<Edge> path(int stop) {
+        int length = pathEdges(stop);
+        return (length < 0) ? null : graph.toEdges(pathBuffer, length);
+    }
+
+    /**
+     * The number of edges on the path found by the last search to the given stop,
+     * or -1 if the stop was not reached
+     */
+    public int pathLength(int stop) {
+        if (settled[stop] != search) { return -1; }
+        int length = 0;
+        for (int e = backEdge[stop]; e >= 0; e = backEdge[graph.edgeFrom(e)]) { length++; }
+        return length;
+    }
+
+    /**
+     * The total of the values of the edges (eg, graph.edgeCosts("time")) on the path found by
+     * the last search to the given stop, or Double.POSITIVE_INFINITY if the stop was not reached
+     */
+    public double sumAlongPath(int stop, double[] edgeValues) {
+        if (settled[stop] != search) { return Double.POSITIVE_INFINITY; }
+        double total = 0;
+        for (int e = backEdge[stop]; e >= 0; e = backEdge[graph.edgeFrom(e)]) { total += edgeValues[e]; }
+        return total;
+    }
+
+    /**
+     * Call visitor for each stop on the path found by the last search to the given stop,
+     * excluding the start and the stop itself.
+     */
+    public void forEachInteriorStop(int stop, IntConsumer visitor) {
+        if (settled[stop] != search) { return; }
+        int e = backEdge[stop];
+        while (e >= 0) {
+            int from = graph.edgeFrom(e);
+            e = backEdge[from];
+            if (e >= 0) { visitor.accept(from); }
+        }
+    }
+
+    /**
+     * Put the edge indexes of the path to the given stop into the path buffer (in order)
+     * @return the number of edges, or -1 if the stop was not reached
+     */
+    private int pathEdges(int stop) {
+        if (settled[stop] != search) { return -1; }
+        int length = 0;
+        for (int e = backEdge[stop]; e >= 0; e = backEdge[graph.edgeFrom(e)]) {
+            if (length == pathBuffer.length) { pathBuffer = Arrays.copyOf(pathBuffer, length * 2); }
+            pathBuffer[length++] = e;
+        }
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+            int tmp = pathBuffer[i]; pathBuffer[i] = pathBuffer[j]; pathBuffer[j] = tmp;
+        }
+        return length;
+    }
+
+    /**
+     * The search itself: A* towards goal, or Dijkstra over the whole graph if goal is NONE.
+     * If edgeFlags is not null, only the edges e with (edgeFlags[e] & goalBit) != 0 are followed.
+     * If cancelled is not null, it is polled every CANCEL_CHECK stops settled.
+     */
+    private void run(int start, int goal, double[] edgeCost, double hScale, int skipStop, int[] edgeFlags, int goalBit,
+                     BooleanSupplier cancelled) {
+        search++;
+        fringe.clear();
+        if (start == skipStop) { return; }
+        long started = Metrics.start();
+        int settledCount = 0, relaxed = 0, stale = 0, peak = 0;   // for the metrics
+        int estimates = (goal == NONE) ? 0 : 1;                     // including the start's
+        reach(start, 0.0, -1, (goal == NONE) ? 0.0 : hScale * graph.lowerBoundDistance(start, goal));
+
+        while (!fringe.isEmpty()) {
+            peak = Math.max(peak, fringe.size());
+            int current = fringe.pop();
+            if (settled[current] == search) { stale++; continue; }   // stale fringe entry
+            settled[current] = search;
+            settledCount++;
+            if (current == goal) { break; }
+            if (cancelled != null && settledCount % CANCEL_CHECK == 0 && cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+
+            double currentCost = cost[current];
+            int end = graph.outStart(current + 1);
+            for (int k = graph.outStart(current); k < end; k++) {
+                int e = graph.outEdge(k);
+                if (edgeFlags != null && (edgeFlags[e] & goalBit) == 0) { continue; }
+                int neighbour = graph.edgeTo(e);
+                if (neighbour == skipStop || settled[neighbour] == search) { continue; }
+                relaxed++;
+                double total = currentCost + edgeCost[e];
+                if (reached[neighbour] != search || total < cost[neighbour]) {
+                    double estimate = 0.0;
+                    if (goal != NONE) {
+                        estimate = hScale * graph.lowerBoundDistance(neighbour, goal);
+                        estimates++;
+                    }
+                    reach(neighbour, total, e, estimate);
+                }
+            }
+        }
+        if (Metrics.ENABLED) { METRICS.record(started, settledCount, relaxed, stale, peak, estimates); }
+    }
+
+    /** Record a (better) path to a stop and add it to the fringe */
+    private void reach(int stop, double total, int edge, double estimate) {
+        reached[stop] = search;
+        cost[stop] = total;
+        backEdge[stop] = edge;
+        fringe.push(stop, total + estimate);
+    }
+
+}
@@ -12,19 +12,24 @@ public class Stop implements Comparable<Stop> {
     private String name;
     private String id;
 
-    // data structure for holding a link to the lines that stop is part of
-    private Collection<Line> lines = new HashSet<Line>();
+    // data structure for holding a link to the lines that stop is part of.
+    // Filled in place while the stop is loaded; after that it is copy on write (changeLines).
+    private volatile Collection<Line> lines = new HashSet<Line>();
 
-    // data structure for holding the (directed) edges connecting to the stop
-    private Collection<Edge> forwardEdges = new HashSet<Edge>();
-    private Collection<Edge> backwardEdges = new HashSet<Edge>();
+    // data structure for holding the (directed) edges connecting to the stop.
+    // Copy on write: a set is never changed once it is stored here, it is replaced,
+    // so a reader can go through the edges while another thread changes them.
+    private volatile Collection<Edge> forwardEdges = new HashSet<Edge>();
+    private volatile Collection<Edge> backwardEdges = new HashSet<Edge>();
 
     // data structure for holding the set of (undirected) neighbours (stops) connected to this stop
-    private Set<Stop> neighbours = new HashSet<Stop>();
+    private volatile Set<Stop> neighbours = new HashSet<Stop>();
 
     //Field to record the different subgraphs
     private int subGraphId = -1; // used to denote which subgraph the stop belongs to. -1 to indicate no subgraphs yet.
 
+    private int zone = -1; // the fare zone the stop is in (see ZoneIndex). -1 if it is not known or outside all zones.
+
 
     /** Constructor for a stop */
     public Stop(double lon, double lat, String name, String id) {
@@ -93,11 +98,22 @@ public class Stop implements Comparable<Stop> {
     // Setting and getting the lines through this stop
     //-------------------------
 
-    /** Adding a line that goes through this stop */
+    /** Adding a line that goes through this stop (while it is being loaded, before other threads can see it) */
     public void addLine(Line line) {
         this.lines.add(line);
     }
 
+    /**
+     * Change the lines that go through this stop once it is in use (eg, when the network is
+     * reloaded). The set is replaced, not changed, so readers on other threads are not disturbed.
+     */
+    public synchronized void changeLines(Collection<Line> removed, Collection<Line> added) {
+        Collection<Line> newLines = new HashSet<Line>(lines);
+        newLines.removeAll(removed);
+        newLines.addAll(added);
+        this.lines = newLines;
+    }
+
     // get lines
     public Collection<Line> getLines() {
         return Collections.unmodifiableCollection(this.lines);
@@ -127,23 +143,71 @@ public class Stop implements Comparable<Stop> {
         return Collections.unmodifiableSet(neighbours);
     }
          
-    /** add a new forward edge  */
-    public void addForwardEdge(Edge edge) {
-        this.forwardEdges.add(edge);
+    /** add a new forward edge (this copies the edges; use addEdges to add many at once) */
+    public synchronized void addForwardEdge(Edge edge) {
+        Collection<Edge> edges = new HashSet<Edge>(forwardEdges);
+        edges.add(edge);
+        this.forwardEdges = edges;
     }
 
-    /** add a new backward edge  */
-    public void addBackwardEdge(Edge e) {
-        this.backwardEdges.add(e);
+    /** add a new backward edge (this copies the edges; use addEdges to add many at once) */
+    public synchronized void addBackwardEdge(Edge e) {
+        Collection<Edge> edges = new HashSet<Edge>(backwardEdges);
+        edges.add(e);
+        this.backwardEdges = edges;
     }
 
     /**
      * Delete forward and backward edges of the specified type.
      */
-    public void deleteEdgesOfType(String type) {
+    public synchronized void deleteEdgesOfType(String type) {
         // remove edges that are of the specified type
-        forwardEdges.removeIf((Edge e)->type.equals(e.transpType()));
-        backwardEdges.removeIf((Edge e)->type.equals(e.transpType()));
+        Collection<Edge> forward = new HashSet<Edge>(forwardEdges);
+        Collection<Edge> backward = new HashSet<Edge>(backwardEdges);
+        forward.removeIf((Edge e)->type.equals(e.transpType()));
+        backward.removeIf((Edge e)->type.equals(e.transpType()));
+        this.forwardEdges = forward;
+        this.backwardEdges = backward;
+    }
+
+    /**
+     * Add several forward and backward edges in one step.
+     */
+    public synchronized void addEdges(Collection<Edge> forward, Collection<Edge> backward) {
+        Collection<Edge> newForward = new HashSet<Edge>(forwardEdges);
+        Collection<Edge> newBackward = new HashSet<Edge>(backwardEdges);
+        newForward.addAll(forward);
+        newBackward.addAll(backward);
+        this.forwardEdges = newForward;
+        this.backwardEdges = newBackward;
+    }
+
+    /**
+     * Replace the edges of the specified type with the given edges (which must be
+     * of that type, and out of / into this stop), in one step.
+     */
+    public synchronized void replaceEdgesOfType(String type, Collection<Edge> forward, Collection<Edge> backward) {
+        Collection<Edge> newForward = new HashSet<Edge>(forward);
+        Collection<Edge> newBackward = new HashSet<Edge>(backward);
+        for (Edge e : forwardEdges) { if (!type.equals(e.transpType())) { newForward.add(e); } }
+        for (Edge e : backwardEdges) { if (!type.equals(e.transpType())) { newBackward.add(e); } }
+        this.forwardEdges = newForward;
+        this.backwardEdges = newBackward;
+    }
+
+    /**
+     * Remove some edges and add others, in one step (the removed edges may be forward
+     * or backward; edges that are not the stop's are ignored).
+     */
+    public synchronized void changeEdges(Collection<Edge> removed, Collection<Edge> forward, Collection<Edge> backward) {
+        Collection<Edge> newForward = new HashSet<Edge>(forwardEdges);
+        Collection<Edge> newBackward = new HashSet<Edge>(backwardEdges);
+        newForward.removeAll(removed);
+        newBackward.removeAll(removed);
+        newForward.addAll(forward);
+        newBackward.addAll(backward);
+        this.forwardEdges = newForward;
+        this.backwardEdges = newBackward;
     }
 
     /**
@@ -154,6 +218,11 @@ public class Stop implements Comparable<Stop> {
         neighbours.add(stop);
     }
 
+    /** Replace all the neighbouring Stops (eg, after the lines through the stop change) */
+    public void replaceNeighbours(Collection<Stop> stops) {
+        this.neighbours = new HashSet<Stop>(stops);
+    }
+
     //--------------------------------------------
     // fields and methods for finding connected components / subgraphs.
     //--------------------------------------------
@@ -169,4 +238,15 @@ public class Stop implements Comparable<Stop> {
         return subGraphId;
     }
 
+    /**
+     * @param zone the number of the fare zone the stop is in (-1 if it is outside all zones)
+     */
+    public void setZone(int zone) {
+        this.zone = zone;
+    }
+
+    public int getZone() {
+        return zone;
+    }
+
 }
@@ -0,0 +1,403 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Merges stops that are really one place (the platforms of a station, or the stops on
+ * the two sides of a road) into single station stops, and makes a smaller graph of the
+ * stations for routing and components.
+ *
+ * Stops are put in the same station if they have the same parent_station in the stop
+ * file (the station's own row joins too), and otherwise if they are within the given
+ * radius of the first stop of the station (in stop order, so each station is at most
+ * twice the radius across and the result does not depend on the order of a HashMap).
+ * A station is at the middle of its stops, and has the id and name of its parent
+ * station, or otherwise of its first stop.
+ *
+ * Each line is copied with its stops replaced by their stations, and each edge of the
+ * original graph, including the walking edges, becomes an edge between the stations of
+ * its stops; edges within a station are dropped, and of the walking edges between two
+ * stations only the quickest is kept. So two stops are joined in the reduced graph
+ * whenever they were joined in the original one.
+ *
+ * Moving between the stops of a station is not an edge of the reduced graph, so it is
+ * charged on the edges where a journey must have moved within the station: walking away
+ * from the station, and boarding a line at the station where it starts. The cost is the
+ * station's transferTime (the walk between its two stops that are furthest apart).
+ * Staying on a line through a station costs nothing, and neither does changing onto a
+ * line that passes through, since the graph cannot tell which line a path arrived on.
+ * expandPath turns a path between stations back into a path between the original stops,
+ * with a walking edge for each move within a station, so its cost is the real one.
+ */
+public class StopClustering {
+
+    /** Stops closer than this (in meters) to the first stop of a station are merged into it */
+    public static final double DEFAULT_RADIUS = 50;
+
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180; // of latitude
+
+    private final Graph original;
+    private final Graph reduced;
+    private final Map<Stop, Stop> stationOf = new HashMap<Stop, Stop>();         // original stop -> station
+    private final Map<Stop, List<Stop>> members = new HashMap<Stop, List<Stop>>(); // station -> original stops
+    private final Map<Edge, Edge> originalEdge = new HashMap<Edge, Edge>();      // station edge -> original edge
+    private final Map<Stop, Double> transferTime = new HashMap<Stop, Double>();  // station -> seconds
+
+    /**
+     * Cluster the stops of a graph, and build the graph of the stations
+     * @param graph The original graph, with the walking edges that the reduced graph should have.
+     * @param parentStations The parent station id of each stop that has one, by stop id
+     *        (see NetworkLoader.loadParentStations); may be empty.
+     * @param radius Stops within this distance (meters) of the first stop of a station are merged.
+     */
+    public StopClustering(Graph graph, Map<String, String> parentStations, double radius) {
+        this.original = graph;
+        Stop[] stops = graph.getStops().toArray(new Stop[0]);
+        int[] clusterOf = cluster(stops, parentStations, radius);
+
+        List<List<Stop>> clusters = new ArrayList<List<Stop>>();
+        for (int i = 0; i < stops.length; i++) {
+            if (clusterOf[i] == clusters.size()) { clusters.add(new ArrayList<Stop>()); }
+            clusters.get(clusterOf[i]).add(stops[i]);
+        }
+        Map<String, Stop> byId = new HashMap<String, Stop>();
+        for (Stop stop : stops) { byId.put(stop.getId(), stop); }
+
+        List<Stop> stations = new ArrayList<Stop>(clusters.size());
+        for (List<Stop> cluster : clusters) {
+            Stop first = cluster.get(0);
+            String parentId = parentStations.get(first.getId());
+            Stop named = (parentId != null && byId.containsKey(parentId)) ? byId.get(parentId) : first;
+            double lon = 0, lat = 0;
+            for (Stop stop : cluster) {
+                lon += stop.getPoint().getLon();
+                lat += stop.getPoint().getLat();
+            }
+            Stop station = new Stop(lon / cluster.size(), lat / cluster.size(), named.getName(),
+                                    (parentId != null) ? parentId : first.getId());
+            station.setZone(first.getZone());
+            for (Stop stop : cluster) { stationOf.put(stop, station); }
+            members.put(station, Collections.unmodifiableList(cluster));
+            transferTime.put(station, furthestApart(cluster) / Transport.WALKING_SPEED_MPS);
+            stations.add(station);
+        }
+
+        // the lines between the stations (a line that stops twice at a station stops there once)
+        Map<Line, Line> stationLine = new HashMap<Line, Line>();
+        for (Line line : graph.getLines()) {
+            Stop[] lineStops = new Stop[line.size()];
+            int[] times = new int[line.size()];
+            int size = 0;
+            for (int i = 0; i < line.size(); i++) {
+                Stop station = stationOf.get(line.getStop(i));
+                if (size > 0 && lineStops[size - 1] == station) { continue; }
+                lineStops[size] = station;
+                times[size] = line.getTime(i);
+                size++;
+            }
+            Line copy = new Line(line.getId(), line.getType(), lineStops, times, size);
+            for (int i = 0; i < size; i++) { lineStops[i].addLine(copy); }
+            stationLine.put(line, copy);
+        }
+
+        List<Edge> edges = new ArrayList<Edge>();
+        Map<Stop, Map<Stop, Edge>> walks = new HashMap<Stop, Map<Stop, Edge>>();  // quickest walk between stations
+        for (Edge edge : graph.getEdges()) {
+            Stop from = stationOf.get(edge.fromStop());
+            Stop to = stationOf.get(edge.toStop());
+            if (from == to) { continue; }
+            boolean walking = Transport.WALKING.equals(edge.transpType());
+            if (walking) {
+                Edge quickest = walks.computeIfAbsent(from, s -> new HashMap<Stop, Edge>()).get(to);
+                if (quickest != null && quickest.time() <= edge.time()) { continue; }
+                walks.get(from).put(to, edge);
+                continue;
+            }
+            boolean boarding = true;   // whether the line starts at this stop
+            for (Edge in : edge.fromStop().getBackwardEdges()) {
+                if (in.line() == edge.line()) { boarding = false; }
+            }
+            edges.add(stationEdge(from, to, edge, stationLine.get(edge.line()), boarding));
+        }
+        for (Map<Stop, Edge> quickest : walks.values()) {
+            for (Edge edge : quickest.values()) {
+                edges.add(stationEdge(stationOf.get(edge.fromStop()), stationOf.get(edge.toStop()), edge, null, true));
+            }
+        }
+        this.reduced = new Graph(stations, stationLine.values(), edges);
+    }
+
+    /**
+     * The edge between two stations made from an edge of the original graph
+     * @param transfer Whether to charge for moving within the station that the edge leaves.
+     */
+    private Edge stationEdge(Stop from, Stop to, Edge edge, Line line, boolean transfer) {
+        double extra = transfer ? transferTime.get(from) : 0;
+        // never shorter than the straight line between the stations, for the A* estimates
+        double distance = Math.max(edge.distance() + extra * Transport.WALKING_SPEED_MPS, from.distanceTo(to));
+        Edge stationEdge = new Edge(from, to, edge.transpType(), line, edge.time() + extra, distance);
+        originalEdge.put(stationEdge, edge);
+        return stationEdge;
+    }
+
+    /** The distance (meters) between the two stops of a list that are furthest apart */
+    private static double furthestApart(List<Stop> stops) {
+        double furthest = 0;
+        for (int i = 0; i < stops.size(); i++) {
+            for (int j = i + 1; j < stops.size(); j++) {
+                furthest = Math.max(furthest, stops.get(i).distanceTo(stops.get(j)));
+            }
+        }
+        return furthest;
+    }
+
+    /**
+     * The cluster number of each stop. Stops with a parent station are grouped by it; each
+     * other stop that is not in a cluster yet starts one, and takes the stops near it that
+     * are not in a cluster yet. Clusters are numbered in order of their first stop.
+     */
+    private static int[] cluster(Stop[] stops, Map<String, String> parentStations, double radius) {
+        int n = stops.length;
+        // group by parent station first, with the parent station's own stop
+        String[] group = new String[n];
+        Set<String> parents = new HashSet<String>(parentStations.values());
+        for (int i = 0; i < n; i++) {
+            String id = stops[i].getId();
+            group[i] = parentStations.containsKey(id) ? parentStations.get(id) : parents.contains(id) ? id : null;
+        }
+
+        double[] boxes = new double[4 * n];
+        double maxAbsLat = 0;
+        for (int i = 0; i < n; i++) {
+            GisPoint p = stops[i].getPoint();
+            boxes[4 * i] = boxes[4 * i + 2] = p.getLon();
+            boxes[4 * i + 1] = boxes[4 * i + 3] = p.getLat();
+            maxAbsLat = Math.max(maxAbsLat, Math.abs(p.getLat()));
+        }
+        GridIndex grid = new GridIndex(boxes);
+        double latMargin = 1.01 * radius / METERS_PER_DEGREE;
+        double lonMargin = latMargin / Math.max(Math.cos(Math.toRadians(maxAbsLat)), 1e-6);
+
+        int[] clusterOf = new int[n];
+        Arrays.fill(clusterOf, -1);
+        Map<String, Integer> groupCluster = new HashMap<String, Integer>();
+        int numClusters = 0;
+        List<Integer> near = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (clusterOf[i] >= 0) { continue; }
+            if (group[i] != null) {
+                Integer c = groupCluster.get(group[i]);
+                if (c == null) {
+                    c = numClusters++;
+                    groupCluster.put(group[i], c);
+                }
+                clusterOf[i] = c;
+                continue;
+            }
+            int c = numClusters++;
+            clusterOf[i] = c;
+            near.clear();
+            grid.query(boxes[4 * i] - lonMargin, boxes[4 * i + 1] - latMargin,
+                       boxes[4 * i] + lonMargin, boxes[4 * i + 1] + latMargin, near::add);
+            for (int j : near) {
+                if (clusterOf[j] < 0 && group[j] == null && stops[i].distanceTo(stops[j]) <= radius) {
+                    clusterOf[j] = c;
+                }
+            }
+        }
+
+        // number the clusters in order of their first stop
+        int[] renumber = new int[numClusters];
+        Arrays.fill(renumber, -1);
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            if (renumber[clusterOf[i]] < 0) { renumber[clusterOf[i]] = next++; }
+            clusterOf[i] = renumber[clusterOf[i]];
+        }
+        return clusterOf;
+    }
+
+    /** The graph of the stations */
+    public Graph getGraph() { return reduced; }
+
+    /** The graph that was clustered */
+    public Graph getOriginalGraph() { return original; }
+
+    /** The station that an original stop is in */
+    public Stop stationOf(Stop stop) { return stationOf.get(stop); }
+
+    /** The original stops of a station, in stop order */
+    public List<Stop> members(Stop station) {
+        return members.getOrDefault(station, Collections.<Stop>emptyList());
+    }
+
+    /**
+     * The time (seconds) to walk between the two stops of a station that are furthest apart:
+     * the cost of moving within the station, added to the edges that walk away from it
+     * and that board a line where it starts.
+     */
+    public double transferTime(Stop station) {
+        return transferTime.getOrDefault(station, 0.0);
+    }
+
+    /**
+     * Find a path between two original stops through the graph of the stations.
+     * @param search A workspace for the snapshot of the reduced graph (getGraph().snapshot()).
+     * @param timeOrDistance The way of calculating cost: "time" or "distance".
+     * @return the path between the original stops (see expandPath), or null if there is none.
+     */
+    public List<Edge> shortestPath(SearchWorkspace search, Stop from, Stop to, String timeOrDistance) {
+        GraphSnapshot snap = search.getGraph();
+        int s = snap.indexOf(stationOf(from));
+        int g = snap.indexOf(stationOf(to));
+        if (s < 0 || g < 0) { throw new RuntimeException("The workspace is not for the graph of the stations"); }
+        if (search.shortestPath(s, g, timeOrDistance, SearchWorkspace.NONE) == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        return expandPath(search.path(g), from, to);
+    }
+
+    /**
+     * Turn a path between stations into a path between original stops.
+     * Each edge becomes the edge of the original graph it was made from, and a walking edge
+     * is put in wherever the path changes stops within a station. A walking edge that was
+     * not made from the original graph (eg, from recomputeWalkingEdges on the reduced graph)
+     * becomes a walk from the stop the path arrived at to the stop it leaves from next.
+     * @param path Edges of the reduced graph, from the station of start to the station of goal.
+     * @param start The original stop the path starts at.
+     * @param goal The original stop the path ends at.
+     */
+    public List<Edge> expandPath(List<Edge> path, Stop start, Stop goal) {
+        List<Edge> expanded = new ArrayList<Edge>();
+        Stop at = start;
+        for (int i = 0; i < path.size(); i++) {
+            Edge edge = originalEdge.get(path.get(i));
+            if (edge != null) {
+                walk(expanded, at, edge.fromStop());
+                expanded.add(edge);
+                at = edge.toStop();
+                continue;
+            }
+            // walking between stations: go straight to the stop that the path goes on from
+            Stop next;
+            if (i + 1 == path.size()) { next = goal; }
+            else if (originalEdge.containsKey(path.get(i + 1))) { next = originalEdge.get(path.get(i + 1)).fromStop(); }
+            else { next = nearestMember(path.get(i).toStop(), at); }
+            walk(expanded, at, next);
+            at = next;
+        }
+        walk(expanded, at, goal);
+        return expanded;
+    }
+
+    /** The stop of a station that is closest to the given stop */
+    private Stop nearestMember(Stop station, Stop stop) {
+        Stop nearest = null;
+        for (Stop member : members(station)) {
+            if (nearest == null || stop.distanceTo(member) < stop.distanceTo(nearest)) { nearest = member; }
+        }
+        return nearest;
+    }
+
+    /** Add a walking edge from one stop to another, unless they are the same */
+    private static void walk(List<Edge> path, Stop from, Stop to) {
+        if (from == to) { return; }
+        double distance = from.distanceTo(to);
+        path.add(new Edge(from, to, Transport.WALKING, null, distance / Transport.WALKING_SPEED_MPS, distance));
+    }
+
+    /**
+     * Give each original stop the component (subgraph id) of its station, after the
+     * components of the reduced graph have been found, so they can be shown on the map.
+     */
+    public void copyComponentsToOriginal() {
+        for (Map.Entry<Stop, Stop> entry : stationOf.entrySet()) {
+            entry.getKey().setSubGraphId(entry.getValue().getSubGraphId());
+        }
+        original.setSubGraphCount(reduced.getSubGraphCount());
+    }
+
+    /**
+     * Compare the sizes, components and routes of the original and the reduced graph:
+     *     java StopClustering [data directory] [radius] [walking distance]
+     */
+    public static void main(String[] args) {
+        File dataDirectory = new File((args.length > 0) ? args[0] : "data");
+        double radius = (args.length > 1) ? Double.parseDouble(args[1]) : DEFAULT_RADIUS;
+        double walking = (args.length > 2) ? Double.parseDouble(args[2]) : Transport.MAX_WALKING_DISTANCE_M;
+
+        File stopsFile = new File(dataDirectory, "stops.txt");
+        Map<String, Stop> stopMap = NetworkLoader.loadStops(stopsFile);
+        Graph graph = new Graph(stopMap.values(), NetworkLoader.loadLines(new File(dataDirectory, "lines.txt"), stopMap));
+        graph.recomputeWalkingEdges(walking);
+
+        long start = System.nanoTime();
+        StopClustering clustering = new StopClustering(graph, NetworkLoader.loadParentStations(stopsFile), radius);
+        Graph stations = clustering.getGraph();
+        System.out.printf("Clustered within %.0fm in %.1f ms%n", radius, (System.nanoTime() - start) / 1e6);
+
+        GraphSnapshot before = graph.snapshot();
+        GraphSnapshot after = stations.snapshot();
+        System.out.printf("Stops: %d -> %d%n", before.numStops(), after.numStops());
+        System.out.printf("Edges: %d -> %d%n", before.numEdges(), after.numEdges());
+        System.out.printf("Walking edges: %d -> %d%n", countWalking(graph), countWalking(stations));
+        System.out.printf("Components: %d -> %d%n", numComponents(before), numComponents(after));
+
+        // route the same random pairs in both graphs
+        SearchWorkspace searchBefore = new SearchWorkspace(before);
+        SearchWorkspace searchAfter = new SearchWorkspace(after);
+        Random random = new Random(1);
+        int pairs = 2000, bothFound = 0, onlyOne = 0, broken = 0;
+        double ratios = 0;
+        long nanosBefore = 0, nanosAfter = 0;
+        for (int p = 0; p < pairs; p++) {
+            Stop from = before.stop(random.nextInt(before.numStops()));
+            Stop to = before.stop(random.nextInt(before.numStops()));
+            long t0 = System.nanoTime();
+            double best = searchBefore.shortestPath(before.indexOf(from), before.indexOf(to), "time", SearchWorkspace.NONE);
+            long t1 = System.nanoTime();
+            List<Edge> path = clustering.shortestPath(searchAfter, from, to, "time");
+            long t2 = System.nanoTime();
+            nanosBefore += t1 - t0;
+            nanosAfter += t2 - t1;
+            if ((best == Double.POSITIVE_INFINITY) != (path == null)) { onlyOne++; }
+            if (best == Double.POSITIVE_INFINITY || path == null) { continue; }
+            bothFound++;
+            Stop at = from;
+            double time = 0;
+            for (Edge edge : path) {
+                if (edge.fromStop() != at) { broken++; }
+                at = edge.toStop();
+                time += edge.time();
+            }
+            if (at != to) { broken++; }
+            if (best > 0) { ratios += time / best; }
+        }
+        System.out.printf("Routed %d pairs: %.3f ms per search before, %.3f ms after%n",
+                          pairs, nanosBefore / 1e6 / pairs, nanosAfter / 1e6 / pairs);
+        System.out.printf("Found by only one graph: %d; broken paths: %d; mean time of the expanded path / best: %.3f%n",
+                          onlyOne, broken, ratios / Math.max(bothFound, 1));
+    }
+
+    private static int countWalking(Graph graph) {
+        int count = 0;
+        for (Edge edge : graph.getEdges()) {
+            if (Transport.WALKING.equals(edge.transpType())) { count++; }
+        }
+        return count;
+    }
+
+    private static int numComponents(GraphSnapshot snap) {
+        int largest = -1;
+        for (int c : Components.findComponents(snap, () -> false)) { largest = Math.max(largest, c); }
+        return largest + 1;
+    }
+
+}
@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+/**
+ * A binary heap of stop indexes, ordered by a double key (smallest first).
+ * Used as the fringe of searches over a GraphSnapshot.
+ *
+ * There is no decrease-key operation: when a better path to a stop is found the stop
+ * is simply pushed again, and the search skips the stale entries when they come out.
+ * The arrays grow as needed and are kept between searches, so a heap can be reused
+ * without allocating.
+ */
+public class StopHeap {
+
+    private int[] stops;
+    private double[] keys;
+    private int size = 0;
+
+    /** Make a heap with room for the given number of entries (it grows if needed) */
+    public StopHeap(int capacity) {
+        stops = new int[Math.max(16, capacity)];
+        keys = new double[Math.max(16, capacity)];
+    }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public int size() { return size; }
+
+    /** Remove all the entries */
+    public void clear() { size = 0; }
+
+    /** The smallest key in the heap (the heap must not be empty) */
+    public double peekKey() { return keys[0]; }
+
+    /** Add a stop with the given key */
+    public void push(int stop, double key) {
+        if (size == stops.length) {
+            stops = Arrays.copyOf(stops, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) { break; }
+            stops[i] = stops[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        stops[i] = stop;
+        keys[i] = key;
+    }
+
+    /** Remove and return the stop with the smallest key (the heap must not be empty) */
+    public int pop() {
+        int top = stops[0];
+        int lastStop = stops[--size];
+        double lastKey = keys[size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) { child++; }
+            if (keys[child] >= lastKey) { break; }
+            stops[i] = stops[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        stops[i] = lastStop;
+        keys[i] = lastKey;
+        return top;
+    }
+
+}
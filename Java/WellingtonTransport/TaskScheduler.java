@@ -0,0 +1,151 @@
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javafx.application.Platform;
+
+/**
+ * Runs the heavy work of the Controller (rebuilding walking edges, finding components,
+ * searching for paths, ...) on background threads, so the JavaFX thread is free to draw.
+ *
+ * Each task has a key, such as "walking" or "route". Submitting a task cancels any
+ * earlier task with the same key, since its result would be out of date. Cancellation
+ * is cooperative: the work is given a Token and should call token.check() (or poll
+ * token.isCancelled()) every so often; a cancelled task's result is never published.
+ * A debounced task waits a short time before it starts, and is replaced if another task
+ * with its key arrives in that time, so a burst of slider events only does the work once.
+ *
+ * Results are handed to their consumer on the publishing executor, which is the JavaFX
+ * thread (Platform.runLater) unless another one is given. The work itself must not touch
+ * anything that the JavaFX thread may change: it should compute over a GraphSnapshot or
+ * other immutable data and leave applying the result to the consumer.
+ */
+public class TaskScheduler {
+
+    /**
+     * The cancellation flag of one task.
+     */
+    public static class Token {
+        private volatile boolean cancelled = false;
+
+        /** Ask the task to stop */
+        public void cancel() { cancelled = true; }
+
+        public boolean isCancelled() { return cancelled; }
+
+        /** Throw a CancellationException if the task has been cancelled */
+        public void check() {
+            if (cancelled) { throw new CancellationException(); }
+        }
+    }
+
+    private final Executor publisher;                 // where results are handed over
+    private final ExecutorService workers;            // runs the tasks
+    private final ScheduledExecutorService timer;     // delays debounced tasks
+    private final Map<String, Token> current = new ConcurrentHashMap<>();  // latest task for each key
+
+    /** Make a scheduler that publishes results on the JavaFX thread */
+    public TaskScheduler() {
+        this(Platform::runLater);
+    }
+
+    /**
+     * Make a scheduler that publishes results with the given executor.
+     * @param publisher Runs the result consumers (eg, Platform::runLater, or Runnable::run for tests).
+     */
+    public TaskScheduler(Executor publisher) {
+        this.publisher = publisher;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.workers = Executors.newFixedThreadPool(threads, daemonThreads("task"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("debounce"));
+    }
+
+    /**
+     * Start a task now, cancelling any earlier task with the same key.
+     * @param key Identifies the kind of task; a new task supersedes the old one with its key.
+     * @param work The computation, run on a background thread. It is given the task's token.
+     * @param onResult Given the result on the publishing thread, unless the task was cancelled.
+     * @return the token of the new task.
+     */
+    public <T> Token submit(String key, Function<Token, T> work, Consumer<T> onResult) {
+        Token token = replace(key);
+        workers.execute(() -> run(key, token, work, onResult));
+        return token;
+    }
+
+    /**
+     * Start a task after a delay, cancelling any earlier task with the same key.
+     * If another task with the key is submitted during the delay, this one never runs.
+     * @param delayMs How long to wait, in milliseconds.
+     */
+    public <T> Token debounce(String key, long delayMs, Function<Token, T> work, Consumer<T> onResult) {
+        Token token = replace(key);
+        timer.schedule(() -> {
+            if (!token.isCancelled()) { workers.execute(() -> run(key, token, work, onResult)); }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return token;
+    }
+
+    /** Cancel the current task with the given key (if any) */
+    public void cancel(String key) {
+        Token token = current.remove(key);
+        if (token != null) { token.cancel(); }
+    }
+
+    /** True if a task with the given key has been submitted and not yet published or cancelled */
+    public boolean isPending(String key) {
+        return current.containsKey(key);
+    }
+
+    /** Cancel all tasks and stop the threads */
+    public void shutdown() {
+        for (String key : current.keySet()) { cancel(key); }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /** Register a new token for the key, cancelling the old one */
+    private Token replace(String key) {
+        Token token = new Token();
+        Token old = current.put(key, token);
+        if (old != null) { old.cancel(); }
+        return token;
+    }
+
+    private <T> void run(String key, Token token, Function<Token, T> work, Consumer<T> onResult) {
+        if (token.isCancelled()) { return; }
+        T result;
+        try {
+            result = work.apply(token);
+        } catch (CancellationException e) {
+            return;
+        } catch (RuntimeException e) {
+            System.out.println("Task " + key + " failed: " + e);
+            current.remove(key, token);
+            return;
+        }
+        publisher.execute(() -> {
+            // only publish if nothing has superseded the task while it was being handed over
+            if (!token.isCancelled() && current.remove(key, token)) {
+                onResult.accept(result);
+            }
+        });
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
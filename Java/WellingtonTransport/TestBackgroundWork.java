@@ -0,0 +1,195 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Program to test the work that the Controller does in the background.
+ *
+ *  - TaskScheduler: a burst of debounced tasks should run once, a task that is
+ *    superseded while it is running should be cancelled and not publish its result,
+ *    and the last task should publish.
+ *  - Graph.computeWalkingEdges should find the same walking edges as comparing
+ *    every pair of stops.
+ *  - Components.findComponents on a snapshot should find the same components as
+ *    Components.findComponents on the graph (the numbering may differ).
+ *  - Graph.snapshot: readers searching snapshots while another thread keeps changing
+ *    the walking edges should only ever see whole versions of the graph.
+ *
+ * Uses the data files. Reports each check, with the expected and actual values.
+ *
+ *  Note, this testing program is not a full test of the background work
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestBackgroundWork{
+
+    public static void main(String[] args) throws Exception {
+        testScheduler();
+
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Collection<Line> lines = Controller.loadLines(new File("data/lines.txt"), stopMap);
+        Graph graph = new Graph(stopMap.values(), lines);
+        testWalkingEdges(graph);
+        testComponents(graph);
+        testConcurrentEdits(graph);
+    }
+
+    public static void testScheduler() throws Exception {
+        System.out.println("================\nTaskScheduler");
+        // results are published on this queue, and then run by the test
+        BlockingQueue<Runnable> published = new LinkedBlockingQueue<>();
+        TaskScheduler scheduler = new TaskScheduler(published::add);
+
+        // a burst of debounced tasks: only the last should run
+        AtomicInteger runs = new AtomicInteger();
+        List<Integer> results = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            final int value = i;
+            scheduler.debounce("slider", 50, token -> { runs.incrementAndGet(); return value; }, results::add);
+        }
+        published.take().run();
+        report("debounced burst: runs", 1, runs.get());
+        report("debounced burst: result", List.of(20), results);
+
+        // a long task that is superseded while it runs
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger stoppedEarly = new AtomicInteger();
+        results.clear();
+        TaskScheduler.Token first = scheduler.submit("work", token -> {
+            started.countDown();
+            for (int k = 0; k < 1000; k++) {
+                if (token.isCancelled()) { stoppedEarly.incrementAndGet(); }
+                token.check();
+                sleep(5);
+            }
+            return 1;
+        }, results::add);
+        started.await();
+        scheduler.submit("work", token -> 2, results::add);
+        published.take().run();
+        sleep(50);   // give the first task time to notice
+        report("superseded task cancelled", true, first.isCancelled());
+        report("superseded task stopped early", 1, stoppedEarly.get());
+        report("only the new result published", List.of(2), results);
+        report("nothing else published", 0, published.size());
+        report("no task pending", false, scheduler.isPending("work"));
+
+        // cancelling before a debounced task starts
+        results.clear();
+        scheduler.debounce("slider", 50, token -> 3, results::add);
+        scheduler.cancel("slider");
+        sleep(150);
+        report("cancelled before start", 0, published.size() + results.size());
+        scheduler.shutdown();
+    }
+
+    public static void testWalkingEdges(Graph graph) {
+        System.out.println("================\nWalking edges");
+        List<Stop> stops = new ArrayList<>(graph.getStops());
+        for (double dist : new double[]{0, 10, 50, 100, 250}) {
+            int expected = 0;
+            for (Stop stop1 : stops) {
+                for (Stop stop2 : stops) {
+                    if (stop1 != stop2 && stop1.distanceTo(stop2) <= dist) { expected++; }
+                }
+            }
+            List<Edge> edges = graph.computeWalkingEdges(dist, () -> false);
+            boolean allClose = edges.stream().allMatch(e -> e.distance() <= dist && e.fromStop() != e.toStop());
+            report("walking edges within " + dist + "m", expected, edges.size());
+            report("  all within distance", true, allClose);
+        }
+        try {
+            graph.computeWalkingEdges(100, () -> true);
+            report("cancelled walking edges throw", true, false);
+        } catch (CancellationException e) {
+            report("cancelled walking edges throw", true, true);
+        }
+    }
+
+    public static void testComponents(Graph graph) {
+        System.out.println("================\nComponents of a snapshot");
+        for (double dist : new double[]{0, 100}) {
+            graph.removeWalkingEdges();
+            if (dist > 0) { graph.setWalkingEdges(graph.computeWalkingEdges(dist, () -> false)); }
+            Components.findComponents(graph);
+            GraphSnapshot snapshot = new GraphSnapshot(graph);
+            int[] ids = Components.findComponents(snapshot, () -> false);
+
+            // the two numberings should match one to one
+            Map<Integer, Integer> graphToSnap = new HashMap<>();
+            Map<Integer, Integer> snapToGraph = new HashMap<>();
+            boolean same = true;
+            int count = 0;
+            for (int s = 0; s < snapshot.numStops(); s++) {
+                int g = snapshot.stop(s).getSubGraphId();
+                int id = ids[s];
+                same &= graphToSnap.computeIfAbsent(g, x -> id) == id;
+                same &= snapToGraph.computeIfAbsent(id, x -> g) == g;
+                count = Math.max(count, ids[s] + 1);
+            }
+            report("walking " + dist + "m: number of components", graph.getSubGraphCount(), count);
+            report("walking " + dist + "m: same components", true, same);
+        }
+        graph.removeWalkingEdges();
+    }
+
+    public static void testConcurrentEdits(Graph graph) throws Exception {
+        System.out.println("================\nSnapshots during edits");
+        List<Edge> walk100 = graph.computeWalkingEdges(100, () -> false);
+        List<Edge> walk250 = graph.computeWalkingEdges(250, () -> false);
+        graph.removeWalkingEdges();
+        int base = graph.snapshot().numEdges();
+        Set<Integer> wholeVersions = Set.of(base, base + walk100.size(), base + walk250.size());
+
+        AtomicInteger snapshots = new AtomicInteger();
+        AtomicInteger broken = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch writerDone = new CountDownLatch(1);
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        for (int r = 0; r < 2; r++) {
+            readers.execute(() -> {
+                try {
+                    while (writerDone.getCount() > 0) {
+                        GraphSnapshot snap = graph.snapshot();
+                        snapshots.incrementAndGet();
+                        if (!wholeVersions.contains(snap.numEdges())) { broken.incrementAndGet(); }
+                        SearchWorkspace search = new SearchWorkspace(snap);
+                        search.shortestPath(0, snap.numStops() - 1, "time", SearchWorkspace.NONE);
+                        if (!wholeVersions.contains(graph.getEdges().size())) { broken.incrementAndGet(); }
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Reader failed: " + e);
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        long versionBefore = graph.getVersion();
+        for (int k = 0; k < 30; k++) {
+            graph.setWalkingEdges((k % 2 == 0) ? walk100 : walk250);
+            sleep(5);
+        }
+        graph.removeWalkingEdges();
+        writerDone.countDown();
+        readers.shutdown();
+        readers.awaitTermination(1, TimeUnit.MINUTES);
+
+        report("versions made", 31L, graph.getVersion() - versionBefore);
+        report("readers took snapshots", true, snapshots.get() > 0);
+        report("partial versions seen", 0, broken.get());
+        report("readers failed", 0, failures.get());
+        report("snapshot shared until a change", true, graph.snapshot() == graph.snapshot());
+        report("snapshot is of the current version", graph.getVersion(), graph.snapshot().version());
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+    private static void sleep(long ms) {
+        try { Thread.sleep(ms); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+}
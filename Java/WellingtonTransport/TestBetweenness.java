@@ -0,0 +1,108 @@
+import java.util.*;
+
+
+/**
+ * Program to test the betweenness of stops (Betweenness).
+ *
+ * On small hand-built graphs whose betweenness is easy to work out:
+ *  - a line of stops, and a square with two equally short ways round it;
+ *  - two stops at the same cost from the source joined by an edge that costs nothing
+ *    (as co-located stops are, by distance), with the edge each way round, so that
+ *    whichever of the two stops the search settles first, one of the graphs has the
+ *    stop at the end of the edge settled before the stop at its start;
+ *  - two stops in the same place with edges both ways that cost nothing.
+ *
+ *  Note, this testing program is not a full test of the betweenness
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestBetweenness{
+
+    public static void main(String[] args) {
+        testLine();
+        testSquare();
+        testZeroCostEdge();
+        testZeroCostBothWays();
+    }
+
+    // S <-> A <-> T: every path between S and T passes through A
+    public static void testLine() {
+        System.out.println("================\nLine of stops");
+        Stop s = new Stop(0, 0, "S", "S");
+        Stop a = new Stop(1, 0, "A", "A");
+        Stop t = new Stop(2, 0, "T", "T");
+        GraphSnapshot graph = snapshot(List.of(s, a, t),
+                                       edge(s, a, 1), edge(a, s, 1), edge(a, t, 1), edge(t, a, 1));
+        check(graph, "distance", Map.of(s, 0.0, a, 2.0, t, 0.0));
+    }
+
+    // S -> A -> T and S -> B -> T, equally long: A and B share the credit for S to T
+    public static void testSquare() {
+        System.out.println("================\nSquare with two equally short ways round");
+        Stop s = new Stop(0, 0, "S", "S");
+        Stop a = new Stop(1, 1, "A", "A");
+        Stop b = new Stop(1, -1, "B", "B");
+        Stop t = new Stop(2, 0, "T", "T");
+        GraphSnapshot graph = snapshot(List.of(s, a, b, t),
+                                       edge(s, a, 1), edge(s, b, 1), edge(a, t, 1), edge(b, t, 1));
+        check(graph, "distance", Map.of(s, 0.0, a, 0.5, b, 0.5, t, 0.0));
+        check(graph, "time", Map.of(s, 0.0, a, 0.5, b, 0.5, t, 0.0));
+    }
+
+    // S -> A, S -> B, both 1; A -> B costs nothing; B -> T, 1.
+    //   S to B: S-B and S-A-B, so A is on half of them.
+    //   S to T: S-B-T and S-A-B-T, so A is on half and B on all.
+    //   A to T: A-B-T, so B is on it.
+    // A is 1 and B is 2. The graph with the free edge the other way round (B -> A, A -> T)
+    // is the same with A and B swapped.
+    public static void testZeroCostEdge() {
+        System.out.println("================\nEdge that costs nothing between stops at the same cost");
+        for (boolean aToB : new boolean[]{true, false}) {
+            Stop s = new Stop(0, 0, "S", "S");
+            Stop a = new Stop(1, 1, "A", "A");
+            Stop b = new Stop(1, -1, "B", "B");
+            Stop t = new Stop(2, 0, "T", "T");
+            Stop first = aToB ? a : b;
+            Stop second = aToB ? b : a;
+            System.out.println("Free edge " + first.getId() + " -> " + second.getId());
+            GraphSnapshot graph = snapshot(List.of(s, a, b, t),
+                                           edge(s, a, 1), edge(s, b, 1), edge(first, second, 0), edge(second, t, 1));
+            check(graph, "distance", Map.of(s, 0.0, first, 1.0, second, 2.0, t, 0.0));
+        }
+    }
+
+    // S -> A, 1; A <-> B, free both ways (as walking between stops in the same place); B -> T, 1.
+    //   S to B and S to T go through A; S to T and A to T go through B (and B to A is just the
+    //   free edge). A and B are both 2, whichever of them is settled first.
+    public static void testZeroCostBothWays() {
+        System.out.println("================\nEdges that cost nothing both ways");
+        Stop s = new Stop(0, 0, "S", "S");
+        Stop a = new Stop(1, 0, "A", "A");
+        Stop b = new Stop(1, 0, "B", "B");
+        Stop t = new Stop(2, 0, "T", "T");
+        GraphSnapshot graph = snapshot(List.of(s, a, b, t),
+                                       edge(s, a, 1), edge(a, b, 0), edge(b, a, 0), edge(b, t, 1));
+        check(graph, "distance", Map.of(s, 0.0, a, 2.0, b, 2.0, t, 0.0));
+    }
+
+    private static Edge edge(Stop from, Stop to, double cost) {
+        return new Edge(from, to, Transport.BUS, null, cost, cost);
+    }
+
+    private static GraphSnapshot snapshot(List<Stop> stops, Edge... edges) {
+        return new Graph(stops, new ArrayList<Line>(), List.of(edges)).snapshot();
+    }
+
+    private static void check(GraphSnapshot graph, String timeOrDistance, Map<Stop, Double> expected) {
+        double[] betweenness = Betweenness.compute(graph, timeOrDistance);
+        for (Stop stop : new TreeSet<Stop>(expected.keySet())) {
+            report(timeOrDistance + " betweenness of " + stop.getId(), expected.get(stop), betweenness[graph.indexOf(stop)]);
+        }
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
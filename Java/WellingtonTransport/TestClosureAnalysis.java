@@ -0,0 +1,130 @@
+import java.util.*;
+import java.util.stream.*;
+
+
+/**
+ * Program to test the block-cut tree and the stop closure analysis.
+ *
+ * Uses the same graph as TestArticPts. For each articulation point it reports the
+ *  sizes of the pieces that the component should split into when the stop is closed,
+ *  followed by the sizes that the code found. It then runs the closure analysis and
+ *  reports the most disruptive closures, which should be the articulation points
+ *  that strand the most stops.
+ *
+ *  Note, this testing program is not a full test of the closure analysis
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestClosureAnalysis{
+
+
+    private static String theGraph ="""
+        | Constructing the following graph for BlockCutTree and ClosureAnalysis
+        |
+        |      _B--C--D--E--F
+        |     / |   \\_|
+        |    A  G     H
+        |    \\   \\_ _/
+        |     \\    I    _N_
+        |      \\       / | \\
+        |       J-----K--L--M
+        |       |
+        |       O--P--Q  R--S--T
+        |        \\___/
+        |""";
+    private static Stop A = TestArticPts.makeStop("A", 0, 1);
+    private static Stop B = TestArticPts.makeStop("B", 1, 0);
+    private static Stop C = TestArticPts.makeStop("C", 2, 0);
+    private static Stop D = TestArticPts.makeStop("D", 3, 0);
+    private static Stop E = TestArticPts.makeStop("E", 4, 0);
+    private static Stop F = TestArticPts.makeStop("F", 5, 0);
+    private static Stop G = TestArticPts.makeStop("G", 1, 1);
+    private static Stop H = TestArticPts.makeStop("H", 2, 2);
+    private static Stop I = TestArticPts.makeStop("I", 3, 10);
+    private static Stop J = TestArticPts.makeStop("J", 1, 3);
+    private static Stop K = TestArticPts.makeStop("K", 3, 3);
+    private static Stop L = TestArticPts.makeStop("L", 4, 3);
+    private static Stop M = TestArticPts.makeStop("M", 5, 3);
+    private static Stop N = TestArticPts.makeStop("N", 4, 2);
+    private static Stop O = TestArticPts.makeStop("O", 1, 4);
+    private static Stop P = TestArticPts.makeStop("P", 2, 4);
+    private static Stop Q = TestArticPts.makeStop("Q", 3, 4);
+    private static Stop R = TestArticPts.makeStop("R", 4, 4);
+    private static Stop S = TestArticPts.makeStop("S", 5, 4);
+    private static Stop T = TestArticPts.makeStop("T", 6, 4);
+
+
+    private static Line L1 = makeLine("bus1",100, O,Q,P,O,J,A,B,C,D,E,F,E,D,C,B,A,J,O,P,Q,O);
+    private static Line L2 = makeLine("bus2",100, B,G,I,H,D,H,C,H,I,G,B);
+    private static Line L3 = makeLine("bus3",100, J,K,L,M,N,K,N,M,L,K,J);
+    private static Line L4 = makeLine("bus4",100, R,S,T,S,R);
+
+
+    private static String prefix = "| ";
+
+    public static void testClosureAnalysis(String pre){
+        if (pre!=null) {prefix = pre;}
+        System.out.println(theGraph);
+
+        Graph graph = new Graph(List.of(A,B,C,D,E,F,G,H,I,J,K,L,M,N,O,P,Q,R,S,T),
+                List.of(L1,L2,L3,L4));
+        GraphSnapshot snapshot = new GraphSnapshot(graph);
+        BlockCutTree tree = new BlockCutTree(snapshot);
+
+        report("===============");
+        report("Testing BlockCutTree: (compare the target split sizes to the sizes your code found)");
+        report("--------------");
+        reportCutVertices(snapshot, tree, List.of(A,B,D,E,J,K,O,S));
+        reportSplit(snapshot, tree, A, "[8, 8]");
+        reportSplit(snapshot, tree, B, "[7, 9]");
+        reportSplit(snapshot, tree, D, "[2, 14]");
+        reportSplit(snapshot, tree, E, "[1, 15]");
+        reportSplit(snapshot, tree, J, "[3, 4, 9]");
+        reportSplit(snapshot, tree, K, "[3, 13]");
+        reportSplit(snapshot, tree, O, "[2, 14]");
+        reportSplit(snapshot, tree, S, "[1, 1]");
+        reportSplit(snapshot, tree, C, "[16]");
+        reportSplit(snapshot, tree, T, "[2]");
+        report("Target blocks: 11   Found: " + tree.numBlocks());
+
+        report("--------------");
+        report("Testing ClosureAnalysis: the top closures should be A (8 stranded), then J and B (7)");
+        ClosureAnalysis analysis = new ClosureAnalysis(graph, "time", 200, 1L);
+        List<ClosureAnalysis.Result> results = analysis.analyseAll();
+        report("Found:  " + results.stream().limit(3).map(r -> r.getStop().getName()+"("+r.getStrandedStops()+")")
+                                   .collect(Collectors.joining(",")));
+        System.out.print(analysis.report(results, 8).lines().map(l -> prefix+l+"\n").collect(Collectors.joining()));
+        report("");
+    }
+
+    private static Line makeLine(String name, int increment, Stop... stops){
+        Line ans = new Line(name);
+        int time = 0;
+        for (Stop stop : stops){
+            ans.addStop(stop, time);
+            time+=increment;
+        }
+        return ans;
+    }
+
+    private static void report(String str){
+        System.out.println(prefix+str);
+    }
+
+    private static void reportCutVertices(GraphSnapshot snapshot, BlockCutTree tree, List<Stop> target){
+        report("Target cut vertices: "+ target.stream().map(Stop::getName).sorted().collect(Collectors.joining (",")));
+        report("Found cut vertices:  "+ IntStream.range(0, snapshot.numStops()).filter(tree::isCutVertex)
+                .mapToObj(snapshot::stop).map(Stop::getName).sorted().collect(Collectors.joining (",")));
+    }
+
+    private static void reportSplit(GraphSnapshot snapshot, BlockCutTree tree, Stop stop, String target){
+        int[] sizes = tree.splitSizes(snapshot.indexOf(stop));
+        Arrays.sort(sizes);
+        report(String.format("Closing %s: target %-10s found %s", stop.getName(), target, Arrays.toString(sizes)));
+    }
+
+    public static void main(String[] args){
+        testClosureAnalysis(null);
+    }
+
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Program to test fare-aware routing (FareRouter).
+ *
+ *  - A small network where the fast route goes through an extra zone: the fast route
+ *    should be found when fares are free, and the slow cheap one when fares matter.
+ *  - The data files: with fares free the route should take the same time as Dijkstra; as the
+ *    weight of fares goes up the fare should never go up; and the reported fare should be
+ *    the fare of the zones that the path actually travels in.
+ *
+ *  Note, this testing program is not a full test of the fare router
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestFareRouter{
+
+    public static void main(String[] args) {
+        testSmallNetwork();
+        testDataFiles();
+    }
+
+    public static void testSmallNetwork() {
+        System.out.println("================\nSmall network");
+        // A (zone 1) to D (zone 1): fast through B (zone 2), or slow through C (zone 1)
+        Stop a = zoned(new Stop(174.700, -41.30, "A", "A"), 1);
+        Stop b = zoned(new Stop(174.710, -41.29, "B", "B"), 2);
+        Stop c = zoned(new Stop(174.710, -41.31, "C", "C"), 1);
+        Stop d = zoned(new Stop(174.720, -41.30, "D", "D"), 1);
+        Line line = new Line("1_0");
+        List<Edge> edges = List.of(
+            new Edge(a, b, Transport.BUS, line, 300, 1500), new Edge(b, d, Transport.BUS, line, 300, 1500),
+            new Edge(a, c, Transport.BUS, line, 600, 1500), new Edge(c, d, Transport.BUS, line, 600, 1500));
+        GraphSnapshot snap = new GraphSnapshot(List.of(a, b, c, d), edges);
+        FareRouter router = new FareRouter(snap, new FareRouter.FareTable(2, 4));
+        int from = snap.indexOf(a), to = snap.indexOf(d);
+
+        FareRouter.Route fast = router.route(from, to, "time", 0, () -> false);
+        report("free fares: via", "B", fast.getPath().get(0).toStop().getId());
+        report("free fares: fare", 4.0, fast.getFare());
+        report("free fares: zones", List.of(1, 2), fast.getZoneList());
+        FareRouter.Route cheap = router.route(from, to, "time", 1000, () -> false);
+        report("costly fares: via", "C", cheap.getPath().get(0).toStop().getId());
+        report("costly fares: fare", 2.0, cheap.getFare());
+        report("costly fares: time", 1200.0, cheap.getTravelCost());
+        FareRouter.Route walk = router.route(to, from, "time", 1000, () -> false);
+        report("no route back", null, walk);
+    }
+
+    public static void testDataFiles() {
+        System.out.println("================\nData files");
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(new File("data/lines.txt"), stopMap));
+        graph.recomputeWalkingEdges(100);
+        new ZoneIndex(new Zoning(new File("data/WellingtonZones.csv"))).annotate(graph.getStops());
+        GraphSnapshot snap = graph.snapshot();
+        FareRouter router = new FareRouter(snap, FareRouter.WELLINGTON_FARES);
+        SearchWorkspace search = new SearchWorkspace(snap);
+
+        Random random = new Random(5);
+        int pairs = 60, routes = 0, sameTime = 0, fareNeverUp = 0, fareMatchesPath = 0, cheaper = 0;
+        long labels = 0;
+        long start = System.nanoTime();
+        for (int k = 0; k < pairs; k++) {
+            int from = random.nextInt(snap.numStops());
+            int to = random.nextInt(snap.numStops());
+            search.shortestPathsFrom(from, "time", SearchWorkspace.NONE);
+            double time = search.costTo(to);
+            FareRouter.Route free = router.route(from, to, "time", 0, () -> false);
+            if (free == null) { continue; }
+            routes++;
+            if (Math.abs(free.getTravelCost() - time) < 1e-6) { sameTime++; }
+            boolean neverUp = true;
+            boolean matches = zonesOf(free.getPath()) == free.getZones();
+            double fare = free.getFare();
+            for (double costPerDollar : new double[]{300, 3000, 30000}) {
+                FareRouter.Route route = router.route(from, to, "time", costPerDollar, () -> false);
+                labels += router.labelsMade();
+                neverUp &= route.getFare() <= fare + 1e-9;
+                matches &= zonesOf(route.getPath()) == route.getZones();
+                if (route.getFare() < fare - 1e-9) { cheaper++; }
+                fare = route.getFare();
+            }
+            if (neverUp) { fareNeverUp++; }
+            if (matches) { fareMatchesPath++; }
+        }
+        double ms = (System.nanoTime() - start) / 1e6;
+        report("free fares: same time as Dijkstra", routes, sameTime);
+        report("fare never goes up as fares matter more", routes, fareNeverUp);
+        report("zones are those of the path", routes, fareMatchesPath);
+        System.out.printf("%d routes, %d cheaper when fares matter; %.1f ms and %d labels per search%n",
+                          routes, cheaper, ms / (4 * pairs), labels / (3 * Math.max(1, routes)));
+    }
+
+    // the zones of the transit edges of a path
+    private static int zonesOf(List<Edge> path) {
+        int zones = 0;
+        for (Edge edge : path) {
+            if (edge.line() == null) { continue; }
+            for (Stop stop : new Stop[]{edge.fromStop(), edge.toStop()}) {
+                if (stop.getZone() >= 0) { zones |= 1 << stop.getZone(); }
+            }
+        }
+        return zones;
+    }
+
+    private static Stop zoned(Stop stop, int zone) {
+        stop.setZone(zone);
+        return stop;
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
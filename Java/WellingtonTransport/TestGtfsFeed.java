@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Program to test importing a GTFS feed (GtfsFeed).
+ *
+ *  - A small feed written by the test: trips with the same stops and times should share
+ *    a pattern, rows of a trip out of order should be sorted, missing times interpolated,
+ *    the route_type should give the type of the Line, and the calendar should pick the
+ *    trips that run on a date.
+ *  - The data files rewritten as a GTFS feed (each line a route with one trip): the
+ *    imported Lines should have the same stops and times as the lines from the lines file.
+ *
+ *  Note, this testing program is not a full test of the GTFS import
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestGtfsFeed{
+
+    public static void main(String[] args) throws Exception {
+        testSmallFeed();
+        testDataFiles();
+    }
+
+    public static void testSmallFeed() throws IOException {
+        System.out.println("================\nSmall feed");
+        Map<String, String> tables = new LinkedHashMap<>();
+        tables.put("feed/stops.txt", "stop_id,stop_name,stop_lat,stop_lon,location_type\n"
+                   + "A,\"Station, North\",-41.20,174.70,0\nB,Middle,-41.21,174.71,\n"
+                   + "C,South,-41.22,174.72,0\nP,Parent station,-41.20,174.70,1\n");
+        tables.put("feed/routes.txt", "route_id,route_short_name,route_long_name,route_type\n"
+                   + "R1,1,One,3\nR2,,Hutt Valley,2\n");
+        tables.put("feed/calendar.txt", "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date\n"
+                   + "WK,1,1,1,1,1,0,0,20240101,20241231\nSA,0,0,0,0,0,1,0,20240101,20241231\n");
+        tables.put("feed/calendar_dates.txt", "service_id,date,exception_type\nWK,20240205,2\nSA,20240205,1\n");
+        tables.put("feed/trips.txt", "route_id,service_id,trip_id,direction_id\n"
+                   + "R1,WK,t1,0\nR1,WK,t2,0\nR1,SA,t3,0\nR1,WK,t4,0\nR2,WK,t5,1\n");
+        tables.put("feed/stop_times.txt", "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n"
+                   // t1, t2 and t3 are the same pattern (t2 out of order); t4 is slower
+                   + "t1,08:00:00,08:00:00,A,1\nt1,08:05:00,08:05:00,B,2\nt1,08:10:00,08:10:00,C,3\n"
+                   + "t2,09:10:00,09:10:00,C,3\nt2,09:00:00,09:00:00,A,1\nt2,09:05:00,09:05:00,B,2\n"
+                   + "t3,25:30:00,25:30:00,A,1\nt3,25:35:00,25:35:00,B,2\nt3,25:40:00,25:40:00,C,3\n"
+                   + "t4,07:00:00,07:00:00,A,1\nt4,,,B,2\nt4,07:20:00,07:20:00,C,3\n"
+                   + "t5,10:00:00,10:00:00,C,1\nt5,10:07:00,10:08:00,A,2\n");
+        File zip = writeZip(tables);
+        GtfsFeed feed = GtfsFeed.read(zip);
+
+        report("stops (not the station)", Set.of("A", "B", "C"), feed.getStopMap().keySet());
+        report("quoted stop name", "Station, North", feed.getStopMap().get("A").getName());
+        report("trips", 5, feed.numTrips());
+        report("patterns", List.of("1_0 (3 stops, 3 trips)", "1_0/2 (3 stops, 1 trips)", "Hutt Valley_1 (2 stops, 1 trips)"),
+               feed.getPatterns().stream().map(Object::toString).toList());
+        GtfsFeed.Pattern first = feed.getPatterns().get(0);
+        report("departures in order", "[28800, 32400, 91800]",
+               Arrays.toString(new int[]{first.getDeparture(0), first.getDeparture(1), first.getDeparture(2)}));
+        report("times from first stop", List.of(0, 300, 600), first.getLine().getTimes());
+        report("interpolated time", List.of(0, 600, 1200), feed.getPatterns().get(1).getLine().getTimes());
+        report("time to arrival at the last stop", List.of(0, 420), feed.getPatterns().get(2).getLine().getTimes());
+        report("bus route type", Transport.BUS, first.getLine().getType());
+        report("rail route type", Transport.TRAIN, feed.getPatterns().get(2).getLine().getType());
+        report("service of a trip", "SA", feed.getServiceId(first, 2));
+        report("weekday departures", "[28800, 32400]", Arrays.toString(feed.departuresOn(first, LocalDate.of(2024, 2, 6))));
+        report("saturday departures", "[91800]", Arrays.toString(feed.departuresOn(first, LocalDate.of(2024, 2, 10))));
+        report("changed by calendar_dates", "[91800]", Arrays.toString(feed.departuresOn(first, LocalDate.of(2024, 2, 5))));
+        report("out of range", "[]", Arrays.toString(feed.departuresOn(first, LocalDate.of(2025, 2, 5))));
+
+        Graph graph = new Graph(feed.getStopMap().values(), feed.getLines());
+        report("graph edges (one for each pair of stops on a pattern)", 5, graph.getEdges().size());
+
+        // the rows of a trip must be together
+        tables.put("feed/stop_times.txt", "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n"
+                   + "t1,08:00:00,08:00:00,A,1\nt2,09:00:00,09:00:00,A,1\nt1,08:05:00,08:05:00,B,2\n");
+        try {
+            GtfsFeed.read(writeZip(tables));
+            report("scattered trip rejected", true, false);
+        } catch (IOException e) {
+            report("scattered trip rejected", true, true);
+        }
+    }
+
+    public static void testDataFiles() throws IOException {
+        System.out.println("================\nData files as a GTFS feed");
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        Collection<Line> lines = Controller.loadLines(new File("data/lines.txt"), stopMap);
+
+        StringBuilder stops = new StringBuilder("stop_id,stop_name,stop_lat,stop_lon\n");
+        for (Stop stop : stopMap.values()) {
+            stops.append(stop.getId()).append(",\"").append(stop.getName().replace("\"", "\"\"")).append("\",")
+                 .append(stop.getPoint().getLat()).append(',').append(stop.getPoint().getLon()).append('\n');
+        }
+        StringBuilder routes = new StringBuilder("route_id,route_short_name,route_type\n");
+        StringBuilder trips = new StringBuilder("route_id,service_id,trip_id,direction_id\n");
+        StringBuilder stopTimes = new StringBuilder("trip_id,arrival_time,departure_time,stop_id,stop_sequence\n");
+        Map<String, Integer> routeTypes = Map.of(Transport.BUS, 3, Transport.TRAIN, 2, Transport.FERRY, 4, Transport.CABLECAR, 7);
+        for (Line line : lines) {
+            String id = line.getId();
+            int split = id.lastIndexOf('_');
+            routes.append(id).append(',').append(id, 0, split).append(',').append(routeTypes.get(line.getType())).append('\n');
+            trips.append(id).append(",ALL,").append(id).append(',').append(id.substring(split + 1)).append('\n');
+            for (int i = 0; i < line.size(); i++) {
+                String time = clock(6 * 3600 + line.getTime(i));
+                stopTimes.append(id).append(',').append(time).append(',').append(time).append(',')
+                         .append(line.getStop(i).getId()).append(',').append(i + 1).append('\n');
+            }
+        }
+        Map<String, String> tables = new LinkedHashMap<>();
+        tables.put("stops.txt", stops.toString());
+        tables.put("routes.txt", routes.toString());
+        tables.put("trips.txt", trips.toString());
+        tables.put("stop_times.txt", stopTimes.toString());
+        GtfsFeed feed = GtfsFeed.read(writeZip(tables));
+
+        report("stops", stopMap.size(), feed.getStopMap().size());
+        report("lines", lines.size(), feed.getLines().size());
+        Map<String, Line> imported = new HashMap<>();
+        for (Line line : feed.getLines()) { imported.put(line.getId(), line); }
+        int same = 0;
+        for (Line line : lines) {
+            Line other = imported.get(line.getId());
+            if (other != null && other.getType().equals(line.getType()) && other.getTimes().equals(line.getTimes())
+                && other.getStops().stream().map(Stop::getId).toList().equals(line.getStops().stream().map(Stop::getId).toList())) {
+                same++;
+            }
+        }
+        report("lines with the same type, stops and times", lines.size(), same);
+    }
+
+    private static String clock(int seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static File writeZip(Map<String, String> tables) throws IOException {
+        File file = File.createTempFile("gtfs", ".zip");
+        file.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, String> table : tables.entrySet()) {
+                out.putNextEntry(new ZipEntry(table.getKey()));
+                out.write(table.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
@@ -0,0 +1,135 @@
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Program to test the compiled network file (NetworkSnapshotFile).
+ *
+ * Builds the network from the data files (with and without walking edges), writes it
+ *  to a temporary network file and reads it back. Reports whether the copy has the same
+ *  stops, lines (with their types), edges and zone outlines, and whether shortest paths on the copy cost the
+ *  same as on the original. Also checks that a network file is out of date when a source
+ *  file is newer, and that a file that is not a network file is rejected.
+ *
+ *  Note, this testing program is not a full test of the network file
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestNetworkFile{
+
+    public static void main(String[] args) throws Exception {
+        File stopsFile = new File("data/stops.txt");
+        File linesFile = new File("data/lines.txt");
+        Map<String, Stop> stopMap = Controller.loadStops(stopsFile);
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(linesFile, stopMap));
+        Zoning zoning = new Zoning(new File("data/WellingtonZones.csv"));
+        File file = File.createTempFile("network", ".bin");
+        file.deleteOnExit();
+
+        for (double walkingDistance : new double[]{0, 100}) {
+            System.out.println("================\nWalking distance " + walkingDistance);
+            graph.removeWalkingEdges();
+            if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+            NetworkSnapshotFile.write(file, graph, walkingDistance, zoning);
+            NetworkSnapshotFile copy = NetworkSnapshotFile.read(file);
+            compare(graph, zoning, copy, walkingDistance);
+        }
+
+        // a line whose type is not the one its id suggests (eg, the route_type of a GTFS route)
+        System.out.println("================\nLine type not from its id");
+        Stop from = new Stop(174.77, -41.28, "From", "F");
+        Stop to = new Stop(174.78, -41.28, "To", "T");
+        Line ferry = new Line("X1", Transport.FERRY, new Stop[]{from, to}, new int[]{0, 600}, 2);
+        from.addLine(ferry);
+        to.addLine(ferry);
+        NetworkSnapshotFile.write(file, new Graph(List.of(from, to), List.of(ferry)), 0, zoning);
+        NetworkSnapshotFile ferryCopy = NetworkSnapshotFile.read(file);
+        report("line type", Transport.FERRY, ferryCopy.getLines().iterator().next().getType());
+        report("edge type", Transport.FERRY, ferryCopy.getStopMap().get("F").getForwardEdges().iterator().next().transpType());
+
+        System.out.println("================\nOut of date and broken files");
+        report("up to date after writing", true, NetworkSnapshotFile.isUpToDate(file, stopsFile, linesFile));
+        File newer = File.createTempFile("stops", ".txt");
+        newer.deleteOnExit();
+        newer.setLastModified(file.lastModified() + 10000);
+        report("out of date when a source is newer", false, NetworkSnapshotFile.isUpToDate(file, stopsFile, newer));
+        report("missing file is out of date", false, NetworkSnapshotFile.isUpToDate(new File("no/such/file.bin"), stopsFile));
+        try {
+            NetworkSnapshotFile.read(stopsFile);
+            report("text file rejected", true, false);
+        } catch (java.io.IOException e) {
+            report("text file rejected", true, true);
+        }
+    }
+
+    private static void compare(Graph graph, Zoning zoning, NetworkSnapshotFile copy, double walkingDistance) {
+        Graph other = copy.getGraph();
+        report("walking distance", walkingDistance, copy.getWalkingDistance());
+        report("number of stops", graph.getStops().size(), other.getStops().size());
+        report("number of lines", graph.getLines().size(), copy.getLines().size());
+        Map<String, String> types = new HashMap<>();
+        for (Line line : graph.getLines()) { types.put(line.getId(), line.getType()); }
+        Map<String, String> copyTypes = new HashMap<>();
+        for (Line line : copy.getLines()) { copyTypes.put(line.getId(), line.getType()); }
+        report("same line types", true, types.equals(copyTypes));
+        report("number of edges", graph.getEdges().size(), other.getEdges().size());
+
+        // every stop should have the same edges, by type
+        boolean sameEdges = true;
+        boolean sameNames = true;
+        for (Stop stop : graph.getStops()) {
+            Stop same = copy.getStopMap().get(stop.getId());
+            sameNames &= same != null && same.getName().equals(stop.getName()) && same.distanceTo(stop) == 0;
+            sameEdges &= same != null && edgeSummary(stop).equals(edgeSummary(same));
+        }
+        report("same stop names and positions", true, sameNames);
+        report("same edges out of and into every stop", true, sameEdges);
+
+        // shortest paths between some pairs should cost the same
+        GraphSnapshot a = graph.snapshot();
+        GraphSnapshot b = other.snapshot();
+        SearchWorkspace searchA = new SearchWorkspace(a);
+        SearchWorkspace searchB = new SearchWorkspace(b);
+        Random random = new Random(7);
+        int sameCost = 0;
+        int pairs = 50;
+        for (int k = 0; k < pairs; k++) {
+            Stop from = a.stop(random.nextInt(a.numStops()));
+            Stop to = a.stop(random.nextInt(a.numStops()));
+            double costA = searchA.shortestPath(a.indexOf(from), a.indexOf(to), "time", SearchWorkspace.NONE);
+            double costB = searchB.shortestPath(b.indexOf(copy.getStopMap().get(from.getId())),
+                                                b.indexOf(copy.getStopMap().get(to.getId())), "time", SearchWorkspace.NONE);
+            if (Double.compare(costA, costB) == 0) { sameCost++; }
+        }
+        report("paths with the same cost", pairs, sameCost);
+
+        // the zone outlines should have the same points at every level
+        boolean sameZones = zoning.getZones().keySet().equals(copy.getZoning().getZones().keySet());
+        for (String key : zoning.getZones().keySet()) {
+            List<GeoPoly> polys = zoning.getZones().get(key).getShapes();
+            List<GeoPoly> otherPolys = copy.getZoning().getZones().get(key).getShapes();
+            sameZones &= polys.size() == otherPolys.size();
+            for (int p = 0; sameZones && p < polys.size(); p++) {
+                for (int level = 0; level < Zoning.TOLERANCES.length; level++) {
+                    sameZones &= Arrays.equals(polys.get(p).getLonLat(level), otherPolys.get(p).getLonLat(level));
+                }
+            }
+        }
+        report("same zone outlines", true, sameZones);
+    }
+
+    // the edges of a stop, as sorted strings, so they can be compared between graphs
+    private static List<String> edgeSummary(Stop stop) {
+        List<String> ans = new ArrayList<>();
+        for (Edge e : stop.getForwardEdges()) { ans.add("out " + e); }
+        for (Edge e : stop.getBackwardEdges()) { ans.add("in " + e); }
+        Collections.sort(ans);
+        return ans;
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
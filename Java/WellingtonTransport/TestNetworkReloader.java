@@ -0,0 +1,169 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Program to test reloading changed network data into a graph (NetworkReloader).
+ *
+ * Copies the stops and lines files to a temporary directory and builds a graph from them
+ *  (with walking edges). Then changes the files (a timetable correction, a line taken
+ *  away, a stop moved, and a new stop on a new line), reloads them into the graph, and
+ *  reports whether the patched graph has the same stops, edges and neighbours as a graph
+ *  built from the changed files from scratch, and whether paths cost the same in both.
+ *  Also checks that the added stops are given their fare zones, that reloading unchanged
+ *  files changes nothing, and that saving a file while the files are watched reloads it.
+ *
+ *  Note, this testing program is not a full test of the reloader
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestNetworkReloader{
+
+    private static final double WALKING_DISTANCE = 100;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("network").toFile();
+        File stopsFile = new File(dir, "stops.txt");
+        File linesFile = new File(dir, "lines.txt");
+        Files.copy(new File("data/stops.txt").toPath(), stopsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(new File("data/lines.txt").toPath(), linesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Map<String, Stop> stopMap = Controller.loadStops(stopsFile);
+        Graph graph = new Graph(stopMap.values(), Controller.loadLines(linesFile, stopMap));
+        graph.recomputeWalkingEdges(WALKING_DISTANCE);
+        ZoneIndex zones = new ZoneIndex(new Zoning(new File("data/WellingtonZones.csv")));
+        zones.annotate(graph.getStops());
+        NetworkReloader reloader = new NetworkReloader(graph, stopsFile, linesFile, () -> WALKING_DISTANCE, zones);
+
+        System.out.println("================\nUnchanged files");
+        long version = graph.getVersion();
+        report("nothing changed", true, reloader.reload().isEmpty());
+        report("same version", version, graph.getVersion());
+
+        System.out.println("================\nChanged files");
+        List<String> stops = Files.readAllLines(stopsFile.toPath(), StandardCharsets.UTF_8);
+        List<String> lines = Files.readAllLines(linesFile.toPath(), StandardCharsets.UTF_8);
+        // move the first stop 30m north
+        String[] moved = stops.get(1).split("\t", -1);
+        moved[4] = Double.toString(Double.parseDouble(moved[4]) + 30 / 111195.0);
+        stops.set(1, String.join("\t", moved));
+        // a new stop next to the second stop
+        String[] near = stops.get(2).split("\t", -1);
+        String[] added = near.clone();
+        added[0] = added[1] = "NEW1";
+        added[2] = "New Stop";
+        added[4] = Double.toString(Double.parseDouble(near[4]) + 20 / 111195.0);
+        stops.add(String.join("\t", added));
+        // a timetable correction on the first line, take away the second line, and a new line
+        String firstLine = lines.get(1).split("\t")[0];
+        String secondLine = null;
+        List<String> changedLines = new ArrayList<String>();
+        changedLines.add(lines.get(0));
+        for (String row : lines.subList(1, lines.size())) {
+            String[] fields = row.split("\t");
+            if (!fields[0].equals(firstLine) && secondLine == null) { secondLine = fields[0]; }
+            if (fields[0].equals(secondLine)) { continue; }
+            if (fields[0].equals(firstLine)) { fields[2] = Integer.toString(Integer.parseInt(fields[2]) * 2); }
+            changedLines.add(String.join("\t", fields));
+        }
+        changedLines.add("NEW_0\tNEW1\t0");
+        changedLines.add("NEW_0\t" + near[0] + "\t60");
+        changedLines.add("NEW_0\t" + moved[0] + "\t600");
+        Files.write(stopsFile.toPath(), stops, StandardCharsets.UTF_8);
+        Files.write(linesFile.toPath(), changedLines, StandardCharsets.UTF_8);
+
+        NetworkReloader.Changes changes = reloader.reload();
+        System.out.println(changes);
+        report("stops removed", 1, changes.getRemovedStops().size());
+        report("stops added", 2, changes.getAddedStops().size());
+        report("new line added", true, changes.getAddedLines().stream().anyMatch(l -> l.getId().equals("NEW_0")));
+        String removedLine = secondLine;
+        report("second line removed", true, changes.getRemovedLines().stream().anyMatch(l -> l.getId().equals(removedLine)));
+        report("version changed", true, graph.getVersion() != version);
+        report("added stops have their zones", true, changes.getAddedStops().stream().allMatch(s -> s.getZone() >= 0));
+
+        Map<String, Stop> freshMap = Controller.loadStops(stopsFile);
+        Graph fresh = new Graph(freshMap.values(), Controller.loadLines(linesFile, freshMap));
+        fresh.recomputeWalkingEdges(WALKING_DISTANCE);
+        compare(graph, fresh, freshMap);
+
+        System.out.println("================\nWatching the files");
+        reloader.reload();
+        CountDownLatch reloaded = new CountDownLatch(1);
+        reloader.watch(c -> reloaded.countDown());
+        changedLines.add("NEW_0\t" + near[0] + "\t900");
+        Files.write(linesFile.toPath(), changedLines, StandardCharsets.UTF_8);
+        report("reloaded after saving", true, reloaded.await(10, TimeUnit.SECONDS));
+        reloader.close();
+    }
+
+    private static void compare(Graph graph, Graph fresh, Map<String, Stop> freshMap) {
+        report("number of stops", fresh.getStops().size(), graph.getStops().size());
+        report("number of lines", fresh.getLines().size(), graph.getLines().size());
+        report("number of edges", fresh.getEdges().size(), graph.getEdges().size());
+
+        // every stop should have the same edges and neighbours
+        boolean sameEdges = true;
+        boolean sameNeighbours = true;
+        boolean sameLines = true;
+        for (Stop stop : graph.getStops()) {
+            Stop same = freshMap.get(stop.getId());
+            sameEdges &= same != null && edgeSummary(stop).equals(edgeSummary(same));
+            sameNeighbours &= same != null && ids(stop.getNeighbours()).equals(ids(same.getNeighbours()));
+            sameLines &= same != null && lineIds(stop).equals(lineIds(same));
+        }
+        report("same edges out of and into every stop", true, sameEdges);
+        report("same neighbours of every stop", true, sameNeighbours);
+        report("same lines through every stop", true, sameLines);
+
+        // shortest paths between some pairs should cost the same
+        GraphSnapshot a = graph.snapshot();
+        GraphSnapshot b = fresh.snapshot();
+        SearchWorkspace searchA = new SearchWorkspace(a);
+        SearchWorkspace searchB = new SearchWorkspace(b);
+        Random random = new Random(7);
+        int sameCost = 0;
+        int pairs = 100;
+        for (int k = 0; k < pairs; k++) {
+            Stop from = a.stop(random.nextInt(a.numStops()));
+            Stop to = a.stop(random.nextInt(a.numStops()));
+            double costA = searchA.shortestPath(a.indexOf(from), a.indexOf(to), "time", SearchWorkspace.NONE);
+            double costB = searchB.shortestPath(b.indexOf(freshMap.get(from.getId())),
+                                                b.indexOf(freshMap.get(to.getId())), "time", SearchWorkspace.NONE);
+            if (Double.compare(costA, costB) == 0) { sameCost++; }
+        }
+        report("paths with the same cost", pairs, sameCost);
+    }
+
+    // the edges of a stop, as sorted strings, so they can be compared between graphs
+    private static List<String> edgeSummary(Stop stop) {
+        List<String> ans = new ArrayList<>();
+        for (Edge e : stop.getForwardEdges()) { ans.add("out " + e); }
+        for (Edge e : stop.getBackwardEdges()) { ans.add("in " + e); }
+        Collections.sort(ans);
+        return ans;
+    }
+
+    private static Set<String> ids(Collection<Stop> stops) {
+        Set<String> ans = new TreeSet<>();
+        for (Stop stop : stops) { ans.add(stop.getId()); }
+        return ans;
+    }
+
+    private static Set<String> lineIds(Stop stop) {
+        Set<String> ans = new TreeSet<>();
+        for (Line line : stop.getLines()) { ans.add(line.getId()); }
+        return ans;
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
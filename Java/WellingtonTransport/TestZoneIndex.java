@@ -0,0 +1,115 @@
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Program to test finding fare zones (ZoneIndex).
+ *
+ *  - On a square with a square hole, points inside, in the hole, and outside.
+ *  - On the zones file, the zone of every stop and of many random points should be the
+ *    same as testing every polygon of every zone with all its edges.
+ *
+ * Also reports how long a lookup takes.
+ *
+ *  Note, this testing program is not a full test of the zone index
+ *  and does not attempt to find all possible errors, but it may be helpful.
+ */
+
+public class TestZoneIndex{
+
+    public static void main(String[] args) {
+        testHole();
+        testZonesFile();
+    }
+
+    public static void testHole() {
+        System.out.println("================\nSquare with a hole");
+        Shape zone = new Shape(7, 0, 0);
+        zone.addShape(new GeoPoly(new double[]{0, 0, 10, 0, 10, 10, 0, 10, 0, 0}));
+        zone.addShape(new GeoPoly(new double[]{4, 4, 6, 4, 6, 6, 4, 6, 4, 4}));
+        Zoning zoning = new Zoning("test", "test", new HashMap<>(Map.of("7", zone)));
+        ZoneIndex index = new ZoneIndex(zoning);
+        report("inside", 7, index.zoneNumberAt(2, 3));
+        report("in the hole", -1, index.zoneNumberAt(5, 5));
+        report("outside", -1, index.zoneNumberAt(11, 5));
+        report("beside the hole", 7, index.zoneNumberAt(5, 8));
+    }
+
+    public static void testZonesFile() {
+        System.out.println("================\nZones file");
+        Zoning zoning = new Zoning(new File("data/WellingtonZones.csv"));
+        ZoneIndex index = new ZoneIndex(zoning);
+        Map<String, Stop> stopMap = Controller.loadStops(new File("data/stops.txt"));
+        index.annotate(stopMap.values());
+
+        int same = 0;
+        int inZones = 0;
+        for (Stop stop : stopMap.values()) {
+            int expected = bruteForce(zoning, stop.getPoint().getLon(), stop.getPoint().getLat());
+            if (expected == stop.getZone()) { same++; }
+            if (stop.getZone() >= 0) { inZones++; }
+        }
+        report("stops in the same zone as checking every edge", stopMap.size(), same);
+        report("some stops in zones", true, inZones > stopMap.size() / 2);
+
+        double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (Shape zone : zoning.getZones().values()) {
+            for (GeoPoly poly : zone.getShapes()) {
+                double[] b = poly.getBounds();
+                box[0] = Math.min(box[0], b[0]);
+                box[1] = Math.min(box[1], b[1]);
+                box[2] = Math.max(box[2], b[2]);
+                box[3] = Math.max(box[3], b[3]);
+            }
+        }
+        Random random = new Random(11);
+        int points = 20000;
+        double[] lons = new double[points];
+        double[] lats = new double[points];
+        for (int i = 0; i < points; i++) {
+            lons[i] = box[0] + random.nextDouble() * (box[2] - box[0]);
+            lats[i] = box[1] + random.nextDouble() * (box[3] - box[1]);
+        }
+        same = 0;
+        for (int i = 0; i < points; i++) {
+            if (index.zoneNumberAt(lons[i], lats[i]) == bruteForce(zoning, lons[i], lats[i])) { same++; }
+        }
+        report("random points in the same zone as checking every edge", points, same);
+
+        long start = System.nanoTime();
+        int found = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < points; i++) { found += index.zoneNumberAt(lons[i], lats[i]); }
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / (20.0 * points);
+        System.out.printf("Lookup takes %.2f microseconds (%d)%n", micros, found);
+    }
+
+    // the zone (lowest number) with an odd number of its polygons around the point, testing every edge
+    private static int bruteForce(Zoning zoning, double lon, double lat) {
+        int ans = -1;
+        for (Shape zone : zoning.getZones().values()) {
+            boolean inside = false;
+            for (GeoPoly poly : zone.getShapes()) {
+                double[] p = poly.getLonLat(0);
+                int n = p.length / 2;
+                boolean in = false;
+                for (int k = 0, j = n - 1; k < n; j = k++) {
+                    if ((p[2 * k + 1] > lat) != (p[2 * j + 1] > lat)
+                        && lon < p[2 * k] + (lat - p[2 * k + 1]) * (p[2 * j] - p[2 * k]) / (p[2 * j + 1] - p[2 * k + 1])) {
+                        in = !in;
+                    }
+                }
+                if (n >= 3 && in) { inside = !inside; }
+            }
+            if (inside && (ans < 0 || zone.getZONE() < ans)) { ans = zone.getZONE(); }
+        }
+        return ans;
+    }
+
+    private static void report(String check, Object expected, Object actual) {
+        String result = Objects.equals(expected, actual) ? "OK   " : "WRONG";
+        System.out.println(result + " " + check + ": expected " + expected + ", found " + actual);
+    }
+
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index of the fare zone outlines, for finding the zone that a point (eg, a stop or a
+ * clicked location) is in.
+ *
+ * The bounding boxes of the polygons are kept in a GridIndex, so a lookup only tests the
+ * few polygons whose box contains the point. Each polygon is tested by counting the edges
+ * that a line going east from the point crosses (an odd count is inside). To avoid looking
+ * at every edge of a polygon with thousands of points, the edges of each polygon are sorted
+ * into horizontal bands by latitude, and only the edges in the point's band are counted.
+ *
+ * The polygons of a zone are combined by the same even-odd rule, so a polygon inside
+ * another polygon of the same zone is a hole. If zones overlap, the lowest zone number wins.
+ * A lookup takes about a microsecond and the index can be used by several threads at once.
+ */
+public class ZoneIndex {
+
+    private static final int EDGES_PER_BAND = 8;   // aim for about this many edges in each band
+
+    private final List<Shape> zones;      // in order of zone number
+    private final Band[] polys;           // the banded edges of each polygon
+    private final int[] polyZone;         // the index (in zones) of the zone of each polygon
+    private final GridIndex grid;         // the bounding boxes of the polygons
+
+    /**
+     * Build an index of the full outlines of all the zones
+     */
+    public ZoneIndex(Zoning zoning) {
+        zones = new ArrayList<Shape>(zoning.getZones().values());
+        zones.sort(Comparator.comparingInt(Shape::getZONE));
+        List<Band> bandList = new ArrayList<Band>();
+        List<Integer> zoneList = new ArrayList<Integer>();
+        for (int z = 0; z < zones.size(); z++) {
+            for (GeoPoly poly : zones.get(z).getShapes()) {
+                if (poly.size() < 3) { continue; }
+                bandList.add(new Band(poly.getLonLat(0)));
+                zoneList.add(z);
+            }
+        }
+        polys = bandList.toArray(new Band[0]);
+        polyZone = new int[polys.length];
+        double[] boxes = new double[4 * polys.length];
+        for (int p = 0; p < polys.length; p++) {
+            polyZone[p] = zoneList.get(p);
+            System.arraycopy(polys[p].bounds, 0, boxes, 4 * p, 4);
+        }
+        grid = new GridIndex(boxes);
+    }
+
+    /**
+     * The zone that contains the point, or null if it is outside all the zones
+     */
+    public Shape zoneAt(double lon, double lat) {
+        boolean[] inside = new boolean[zones.size()];
+        grid.query(lon, lat, lon, lat, p -> {
+            if (polys[p].contains(lon, lat)) { inside[polyZone[p]] = !inside[polyZone[p]]; }
+        });
+        for (int z = 0; z < inside.length; z++) {
+            if (inside[z]) { return zones.get(z); }
+        }
+        return null;
+    }
+
+    /**
+     * The number of the zone that contains the point, or -1 if it is outside all the zones
+     */
+    public int zoneNumberAt(double lon, double lat) {
+        Shape zone = zoneAt(lon, lat);
+        return (zone == null) ? -1 : zone.getZONE();
+    }
+
+    /**
+     * Set the zone of each stop
+     */
+    public void annotate(Collection<Stop> stops) {
+        for (Stop stop : stops) {
+            stop.setZone(zoneNumberAt(stop.getPoint().getLon(), stop.getPoint().getLat()));
+        }
+    }
+
+    /**
+     * The edges of one polygon, sorted into bands of latitude.
+     * Edge k goes from point k to point k+1 (and the last edge back to point 0).
+     */
+    private static class Band {
+        private final double[] lonLat;
+        private final int numPoints;
+        private final double[] bounds;    // minLon, minLat, maxLon, maxLat
+        private final double bandHeight;
+        private final int numBands;
+        private final int[] bandStart;    // the edges in band b are edges[bandStart[b]..bandStart[b+1]-1]
+        private final int[] edges;
+
+        Band(double[] lonLat) {
+            this.lonLat = lonLat;
+            this.numPoints = lonLat.length / 2;
+            double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int k = 0; k < numPoints; k++) {
+                box[0] = Math.min(box[0], lonLat[2 * k]);
+                box[1] = Math.min(box[1], lonLat[2 * k + 1]);
+                box[2] = Math.max(box[2], lonLat[2 * k]);
+                box[3] = Math.max(box[3], lonLat[2 * k + 1]);
+            }
+            bounds = box;
+            numBands = Math.max(1, numPoints / EDGES_PER_BAND);
+            bandHeight = Math.max(box[3] - box[1], 1e-12) / numBands;
+
+            // count the edges in each band, then fill the bands
+            bandStart = new int[numBands + 1];
+            for (int k = 0; k < numPoints; k++) {
+                for (int b = firstBand(k); b <= lastBand(k); b++) { bandStart[b + 1]++; }
+            }
+            for (int b = 0; b < numBands; b++) { bandStart[b + 1] += bandStart[b]; }
+            edges = new int[bandStart[numBands]];
+            int[] fill = Arrays.copyOf(bandStart, numBands);
+            for (int k = 0; k < numPoints; k++) {
+                for (int b = firstBand(k); b <= lastBand(k); b++) { edges[fill[b]++] = k; }
+            }
+        }
+
+        private int firstBand(int edge) {
+            return band(Math.min(lonLat[2 * edge + 1], lonLat[2 * next(edge) + 1]));
+        }
+
+        private int lastBand(int edge) {
+            return band(Math.max(lonLat[2 * edge + 1], lonLat[2 * next(edge) + 1]));
+        }
+
+        private int band(double lat) {
+            return Math.max(0, Math.min(numBands - 1, (int) ((lat - bounds[1]) / bandHeight)));
+        }
+
+        private int next(int point) {
+            return (point + 1 == numPoints) ? 0 : point + 1;
+        }
+
+        /** Whether the point is inside the polygon (even-odd rule) */
+        boolean contains(double lon, double lat) {
+            if (lat < bounds[1] || lat > bounds[3] || lon < bounds[0] || lon > bounds[2]) { return false; }
+            int b = band(lat);
+            boolean inside = false;
+            for (int i = bandStart[b]; i < bandStart[b + 1]; i++) {
+                int k = edges[i];
+                int j = next(k);
+                double lon1 = lonLat[2 * k], lat1 = lonLat[2 * k + 1];
+                double lon2 = lonLat[2 * j], lat2 = lonLat[2 * j + 1];
+                // does the edge cross the line going east from the point?
+                if ((lat1 > lat) != (lat2 > lat)
+                    && lon < lon1 + (lat - lat1) * (lon2 - lon1) / (lat2 - lat1)) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+
+}
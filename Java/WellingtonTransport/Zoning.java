@@ -1,7 +1,9 @@
 import java.io.File;
-import java.nio.file.Files;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
@@ -24,46 +26,147 @@ public class Zoning {
 
     private Map<String, Shape> shapes = new HashMap<String, Shape>();
 
+    // Tolerances (in degrees of latitude) of the simplified copies of the zone outlines.
+    // Level 0 is the full outline; each level after that is coarser.
+    public static final double[] TOLERANCES = {0, 0.00002, 0.0001, 0.0004, 0.0016};
+    private static final int RUN_LENGTH = 32;   // number of points in each indexed run of an outline
+
+    // for each level, the runs of the (simplified) outlines and an index of their bounding boxes
+    private List<List<Run>> runs;
+    private GridIndex[] runIndex;
+
 
     // Construct Zoning object from a geojson file
     // ID, Zone, Shape_Length, Shape_Area, coordinates
+    // The file is streamed with a DelimitedReader and the coordinates are parsed straight
+    // into a packed array for each polygon, without splitting the (very long) rows.
     public  Zoning(File geoJsonFile) {
         this.type = "shape file";
         this.name = "Wellington";
-        try {
-            // make a reader
-            List<String> dataLines = Files.readAllLines(geoJsonFile.toPath());
+        try (DelimitedReader reader = new DelimitedReader(FileChannel.open(geoJsonFile.toPath(), StandardOpenOption.READ), ',', false)) {
             //throw away the two header lines of the file.
-            dataLines.remove(1);
-            dataLines.remove(0); 
-            for (String dataLine : dataLines){
-                // tokenise the line by splitting it at ",".
-                String[] tokens = dataLine.split("[,]");
-                if (tokens.length >= 5) {
+            reader.next();
+            reader.next();
+            while (reader.next()) {
+                // the rows end with a comma, which leaves an empty last field
+                int numFields = reader.numFields();
+                while (numFields > 0 && reader.isEmpty(numFields - 1)) { numFields--; }
+                if (numFields >= 5) {
                     // process the tokens
-                    String id = tokens[0];
-                    String zone_str = tokens[1];
+                    String zone_str = reader.getString(1);
 
-                    double shapeLength = Double.parseDouble(tokens[2]);
-                    double shapeArea = Double.parseDouble(tokens[3]);
+                    double shapeLength = reader.getDouble(2);
+                    double shapeArea = reader.getDouble(3);
                     Shape zone = new Shape(Integer.valueOf(zone_str), shapeLength, shapeArea);
-                    // for loop through the coordinates
-                    GeoPoly poly = new GeoPoly();
-                    for (int i = 4; i < tokens.length; i = i + 2) {
-                        double lon = Double.parseDouble(tokens[i]);
-                        double lat = Double.parseDouble(tokens[i + 1]);
-                        poly.add(new GisPoint(lon, lat));
+                    // the coordinates are lon,lat pairs
+                    double[] lonLat = new double[2 * ((numFields - 4) / 2)];
+                    for (int k = 0; k < lonLat.length; k++) {
+                        lonLat[k] = reader.getDouble(4 + k);
                     }
                     if (shapes.get(zone_str) == null) {
                         shapes.put(zone_str, zone);
                     }
-                    shapes.get(zone_str).addShape(poly);
+                    shapes.get(zone_str).addShape(new GeoPoly(lonLat));
 
                 }
             }
         } catch (IOException e) {
             throw new RuntimeException("file reading failed.");
         }
+        buildRunIndex();
+    }
+
+    /**
+     * Construct a Zoning from zones that have already been read (eg, from a NetworkSnapshotFile).
+     * Polygons that already have simplified copies for all the TOLERANCES are not simplified again.
+     */
+    Zoning(String type, String name, Map<String, Shape> shapes) {
+        this.type = type;
+        this.name = name;
+        this.shapes = shapes;
+        buildRunIndex();
+    }
+
+    /**
+     * Part of the outline of a zone: points from..to of a (simplified) polygon,
+     * whose points are packed as lon,lat pairs.
+     */
+    public static class Run {
+        private final double[] lonLat;
+        private final int from;
+        private final int to;
+
+        Run(double[] lonLat, int from, int to) {
+            this.lonLat = lonLat;
+            this.from = from;
+            this.to = to;
+        }
+
+        /** The packed points of the whole polygon: point i is at lonLat[2i], lonLat[2i+1] */
+        public double[] getLonLat() { return lonLat; }
+        public int getFrom() { return from; }
+        public int getTo() { return to; }
+        /** Number of points in the run */
+        public int size() { return to - from + 1; }
+    }
+
+    /**
+     * Simplify all the outlines at each tolerance, split them into runs
+     * and index the bounding boxes of the runs.
+     */
+    private void buildRunIndex() {
+        runs = new ArrayList<List<Run>>();
+        runIndex = new GridIndex[TOLERANCES.length];
+        for (int level = 0; level < TOLERANCES.length; level++) {
+            List<Run> levelRuns = new ArrayList<Run>();
+            for (Shape zone : shapes.values()) {
+                for (GeoPoly poly : zone.getShapes()) {
+                    if (level == 0 && poly.numLevels() != TOLERANCES.length) { poly.simplify(TOLERANCES); }
+                    double[] lonLat = poly.getLonLat(level);
+                    int size = lonLat.length / 2;
+                    for (int from = 0; from < size - 1; from += RUN_LENGTH) {
+                        levelRuns.add(new Run(lonLat, from, Math.min(from + RUN_LENGTH, size - 1)));
+                    }
+                }
+            }
+            double[] boxes = new double[4 * levelRuns.size()];
+            for (int i = 0; i < levelRuns.size(); i++) {
+                Run run = levelRuns.get(i);
+                boxes[4 * i] = boxes[4 * i + 1] = Double.POSITIVE_INFINITY;
+                boxes[4 * i + 2] = boxes[4 * i + 3] = Double.NEGATIVE_INFINITY;
+                for (int k = run.from; k <= run.to; k++) {
+                    double lon = run.lonLat[2 * k], lat = run.lonLat[2 * k + 1];
+                    boxes[4 * i] = Math.min(boxes[4 * i], lon);
+                    boxes[4 * i + 1] = Math.min(boxes[4 * i + 1], lat);
+                    boxes[4 * i + 2] = Math.max(boxes[4 * i + 2], lon);
+                    boxes[4 * i + 3] = Math.max(boxes[4 * i + 3], lat);
+                }
+            }
+            runs.add(levelRuns);
+            runIndex[level] = new GridIndex(boxes);
+        }
+    }
+
+    /**
+     * The coarsest level of detail whose error is at most half a pixel at the given scale
+     * (pixels per degree of latitude).
+     */
+    public static int levelForScale(double scale) {
+        double allowed = 0.5 / scale;
+        int level = 0;
+        while (level + 1 < TOLERANCES.length && TOLERANCES[level + 1] <= allowed) { level++; }
+        return level;
+    }
+
+    /**
+     * The runs of the zone outlines, at the given level of detail, that overlap the region
+     * {minLon, minLat, maxLon, maxLat}
+     */
+    public List<Run> visibleRuns(int level, double[] region) {
+        List<Run> ans = new ArrayList<Run>();
+        List<Run> levelRuns = runs.get(level);
+        runIndex[level].query(region[0], region[1], region[2], region[3], i -> ans.add(levelRuns.get(i)));
+        return ans;
     }
 
     public String getType() {
@@ -146,26 +249,166 @@ class Shape {
 }
 
 // geoJson polygon
+// The points are packed as lon,lat pairs in a double[], with their bounding box.
 class GeoPoly {
-    private ArrayList<GisPoint> points;
+    private double[] lonLat;      // point i is at lonLat[2i], lonLat[2i+1]; only the first size points are used
+    private int size;
+    private double[] bounds;      // {minLon, minLat, maxLon, maxLat} of the points, made when first needed
+    private List<double[]> packed;             // simplified copies of the points, one for each tolerance
 
     public GeoPoly() {
-        this.points = new ArrayList<GisPoint>();
+        this.lonLat = new double[16];
+        this.size = 0;
     }
 
-    public GeoPoly(ArrayList<GisPoint> points) {
-        this.points = points;
+    // a polygon with the given points, packed as lon,lat pairs (the array is kept, not copied)
+    public GeoPoly(double[] lonLat) {
+        this.lonLat = lonLat;
+        this.size = lonLat.length / 2;
     }
 
-    public ArrayList<GisPoint> getPoints() {
-        return points;
+    public GeoPoly(List<GisPoint> points) {
+        this();
+        for (GisPoint point : points) { add(point); }
+    }
+
+    // number of points
+    public int size() {
+        return size;
+    }
+
+    public double getLon(int i) {
+        return lonLat[2 * i];
     }
 
-    public void setPoints(ArrayList<GisPoint> points) {
-        this.points = points;
+    public double getLat(int i) {
+        return lonLat[2 * i + 1];
+    }
+
+    // get the points (made on demand from the packed points)
+    public List<GisPoint> getPoints() {
+        List<GisPoint> points = new ArrayList<GisPoint>(size);
+        for (int i = 0; i < size; i++) { points.add(new GisPoint(getLon(i), getLat(i))); }
+        return points;
     }
 
     public void add(GisPoint point) {
-        points.add(point);
+        add(point.getLon(), point.getLat());
+    }
+
+    public void add(double lon, double lat) {
+        if (2 * size == lonLat.length) { lonLat = Arrays.copyOf(lonLat, Math.max(16, 4 * size)); }
+        lonLat[2 * size] = lon;
+        lonLat[2 * size + 1] = lat;
+        size++;
+        bounds = null;
+        packed = null;
+    }
+
+    /**
+     * The bounding box of the polygon: {minLon, minLat, maxLon, maxLat}
+     * (the simplified copies are inside it too, since they keep some of the points)
+     */
+    public double[] getBounds() {
+        if (bounds == null) {
+            double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int i = 0; i < size; i++) {
+                box[0] = Math.min(box[0], getLon(i));
+                box[1] = Math.min(box[1], getLat(i));
+                box[2] = Math.max(box[2], getLon(i));
+                box[3] = Math.max(box[3], getLat(i));
+            }
+            bounds = box;
+        }
+        return bounds;
+    }
+
+    // get the points simplified to the given level of detail, packed as lon,lat pairs
+    public double[] getLonLat(int level) {
+        if (packed == null) { simplify(new double[]{0}); }
+        return packed.get(Math.min(level, packed.size() - 1));
+    }
+
+    // number of levels of detail that have been made (0 if the polygon has not been simplified)
+    public int numLevels() {
+        return (packed == null) ? 0 : packed.size();
+    }
+
+    /**
+     * Set the points and the simplified copies from packed lon,lat arrays, one for each level
+     * (level 0 is all the points), instead of simplifying the polygon again.
+     */
+    public void setLevels(List<double[]> levels) {
+        lonLat = levels.get(0);
+        size = lonLat.length / 2;
+        bounds = null;
+        packed = new ArrayList<double[]>(levels);
+    }
+
+    /**
+     * Make simplified copies of the polygon using the Douglas-Peucker algorithm:
+     * keep the end points, then keep the point furthest from the line between them if it
+     * is further than the tolerance, and repeat on each half.
+     * @param tolerances the tolerances in degrees of latitude, one copy for each
+     */
+    public void simplify(double[] tolerances) {
+        if (lonLat.length != 2 * size) { lonLat = Arrays.copyOf(lonLat, 2 * size); }
+        packed = new ArrayList<double[]>();
+        int n = size;
+        // longitude is scaled so that distances are roughly the same in both directions
+        double lonScale = (n == 0) ? 1 : Math.cos(Math.toRadians(getLat(0)));
+        for (double tolerance : tolerances) {
+            if (tolerance <= 0 || n < 3) {
+                packed.add(lonLat);
+                continue;
+            }
+            boolean[] keep = new boolean[n];
+            keep[0] = keep[n - 1] = true;
+            int numKept = 2;
+            int[] stack = new int[2 * n];
+            int top = 0;
+            stack[top++] = 0;
+            stack[top++] = n - 1;
+            while (top > 0) {
+                int last = stack[--top];
+                int first = stack[--top];
+                double maxDist = 0;
+                int furthest = -1;
+                for (int k = first + 1; k < last; k++) {
+                    double d = segmentDistance(k, first, last, lonScale);
+                    if (d > maxDist) { maxDist = d; furthest = k; }
+                }
+                if (furthest >= 0 && maxDist > tolerance) {
+                    keep[furthest] = true;
+                    numKept++;
+                    stack[top++] = first;
+                    stack[top++] = furthest;
+                    stack[top++] = furthest;
+                    stack[top++] = last;
+                }
+            }
+            double[] kept = new double[2 * numKept];
+            int count = 0;
+            for (int k = 0; k < n; k++) {
+                if (keep[k]) {
+                    kept[count++] = getLon(k);
+                    kept[count++] = getLat(k);
+                }
+            }
+            packed.add(kept);
+        }
+    }
+
+    // distance (in degrees) from point p to the line segment from point a to point b
+    private double segmentDistance(int p, int a, int b, double lonScale) {
+        double px = getLon(p) * lonScale, py = getLat(p);
+        double ax = getLon(a) * lonScale, ay = getLat(a);
+        double bx = getLon(b) * lonScale, by = getLat(b);
+        double dx = bx - ax, dy = by - ay;
+        double lengthSq = dx * dx + dy * dy;
+        double t = (lengthSq == 0) ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSq));
+        double ex = px - (ax + t * dx), ey = py - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
     }
 }
@@ -0,0 +1,79 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import wellingtontransport.bench.Workload;
+
+/**
+ * The operations the benchmarks time (see wellingtontransport.bench.TransportBenchmarks),
+ * done with the program's classes.
+ */
+public class TransportWorkload implements Workload {
+
+    private File dataDirectory = new File("data");
+
+    @Override
+    public void setDataDirectory(File dataDirectory) { this.dataDirectory = dataDirectory; }
+
+    @Override
+    public Object loadStops() {
+        return Controller.loadStops(new File(dataDirectory, "stops.txt"));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object loadLines(Object stopMap) {
+        return Controller.loadLines(new File(dataDirectory, "lines.txt"), (Map<String, Stop>) stopMap);
+    }
+
+    @Override
+    public Object loadZoning() {
+        return new Zoning(new File(dataDirectory, "WellingtonZones.csv"));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object buildGraph(Object stopMap, Object lines) {
+        return new Graph(((Map<String, Stop>) stopMap).values(), (Collection<Line>) lines);
+    }
+
+    @Override
+    public Object loadGraph(double walkingDistance) {
+        Object stopMap = loadStops();
+        Graph graph = (Graph) buildGraph(stopMap, loadLines(stopMap));
+        if (walkingDistance > 0) { graph.recomputeWalkingEdges(walkingDistance); }
+        return graph;
+    }
+
+    @Override
+    public void recomputeWalkingEdges(Object graph, double walkingDistance) {
+        ((Graph) graph).recomputeWalkingEdges(walkingDistance);
+    }
+
+    @Override
+    public Object[] sampleStops(Object graph, int count, long seed) {
+        List<Stop> stops = new ArrayList<Stop>(((Graph) graph).getStops());   // in order of stop id
+        Collections.shuffle(stops, new Random(seed));
+        return stops.subList(0, Math.min(count, stops.size())).toArray();
+    }
+
+    @Override
+    public Object findShortestPath(Object from, Object to, String timeOrDistance) {
+        return AStar.findShortestPath((Stop) from, (Stop) to, timeOrDistance);
+    }
+
+    @Override
+    public void findComponents(Object graph) {
+        Components.findComponents((Graph) graph);
+    }
+
+    @Override
+    public Object findArticulationPoints(Object graph) {
+        return ArticulationPoints.findArticulationPoints((Graph) graph);
+    }
+
+}
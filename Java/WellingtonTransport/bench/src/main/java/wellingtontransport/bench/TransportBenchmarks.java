@@ -0,0 +1,201 @@
+package wellingtontransport.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks of the main work of WellingtonTransport on the data files: loading the files,
+ * making the graph, making the walking edges, A* searches, and finding the components and
+ * the articulation points.
+ *
+ * Each benchmark reports the average time of an operation. Run with the gc profiler
+ * (java -jar target/benchmarks.jar -prof gc, or main() below) to also report the
+ * allocation rate and bytes allocated per operation. Save a run with -rf json -rff file.json
+ * to compare later runs against it.
+ *
+ * The data directory is ../data (run from the bench directory), or the system property wt.data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmarks {
+
+    static final String DATA = System.getProperty("wt.data", "../data");
+
+    /** The number of origin-destination pairs that each A* benchmark operation searches */
+    static final int PAIRS = 50;
+
+    //--------------------------------------------
+    //  Loading
+    //--------------------------------------------
+
+    @State(Scope.Thread)
+    public static class Files {
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() { workload = Workload.load(DATA); }
+    }
+
+    /** Loading lines connects them to the stops, so each operation has its own newly loaded stops */
+    @State(Scope.Thread)
+    public static class FreshStops {
+        Workload workload;
+        Object stopMap;
+
+        @Setup(Level.Trial)
+        public void setUp() { workload = Workload.load(DATA); }
+
+        @Setup(Level.Invocation)
+        public void loadStops() { stopMap = workload.loadStops(); }
+    }
+
+    /** Making a graph connects edges to the stops, so each operation has its own newly loaded stops and lines */
+    @State(Scope.Thread)
+    public static class FreshNetwork {
+        Workload workload;
+        Object stopMap;
+        Object lines;
+
+        @Setup(Level.Trial)
+        public void setUp() { workload = Workload.load(DATA); }
+
+        @Setup(Level.Invocation)
+        public void loadNetwork() {
+            stopMap = workload.loadStops();
+            lines = workload.loadLines(stopMap);
+        }
+    }
+
+    @Benchmark
+    public Object loadStops(Files files) {
+        return files.workload.loadStops();
+    }
+
+    @Benchmark
+    public Object loadLines(FreshStops state) {
+        return state.workload.loadLines(state.stopMap);
+    }
+
+    @Benchmark
+    public Object loadZoning(Files files) {
+        return files.workload.loadZoning();
+    }
+
+    @Benchmark
+    public Object buildGraph(FreshNetwork state) {
+        return state.workload.buildGraph(state.stopMap, state.lines);
+    }
+
+    //--------------------------------------------
+    //  Walking edges
+    //--------------------------------------------
+
+    @State(Scope.Thread)
+    public static class Walking {
+        @Param({"50", "100", "200", "400"})
+        double walkingDistance;
+
+        Workload workload;
+        Object graph;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            workload = Workload.load(DATA);
+            graph = workload.loadGraph(0);
+        }
+    }
+
+    @Benchmark
+    public void recomputeWalkingEdges(Walking state) {
+        state.workload.recomputeWalkingEdges(state.graph, state.walkingDistance);
+    }
+
+    //--------------------------------------------
+    //  Searches, on the graph with 100m walking edges
+    //--------------------------------------------
+
+    @State(Scope.Thread)
+    public static class Network {
+        @Param({"time", "distance"})
+        String timeOrDistance;
+
+        Workload workload;
+        Object graph;
+        Object[] from;
+        Object[] to;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            workload = Workload.load(DATA);
+            graph = workload.loadGraph(100);
+            from = workload.sampleStops(graph, PAIRS, 1);
+            to = workload.sampleStops(graph, PAIRS, 2);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void findShortestPath(Network state, Blackhole blackhole) {
+        for (int i = 0; i < state.from.length; i++) {
+            blackhole.consume(state.workload.findShortestPath(state.from[i], state.to[i], state.timeOrDistance));
+        }
+    }
+
+    /** The graph analyses do not depend on the cost metric, so they use their own state without it */
+    @State(Scope.Thread)
+    public static class Analysis {
+        Workload workload;
+        Object graph;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            workload = Workload.load(DATA);
+            graph = workload.loadGraph(100);
+        }
+    }
+
+    @Benchmark
+    public void findComponents(Analysis state) {
+        state.workload.findComponents(state.graph);
+    }
+
+    @Benchmark
+    public Object findArticulationPoints(Analysis state) {
+        return state.workload.findArticulationPoints(state.graph);
+    }
+
+    /**
+     * Run all the benchmarks with the gc profiler, for time and allocation.
+     * Arguments (optional): a regular expression for the benchmarks to run.
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(TransportBenchmarks.class.getSimpleName() + "." + ((args.length > 0) ? args[0] : ""))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,63 @@
+package wellingtontransport.bench;
+
+import java.io.File;
+
+/**
+ * The operations of WellingtonTransport that the benchmarks time.
+ *
+ * The program's classes are in the default package, which JMH benchmarks (and any other
+ * named package) can not refer to, so they are reached through this interface, which
+ * TransportWorkload (in the default package) implements. The program's objects (stop maps,
+ * lines, graphs, stops) are passed around as Objects.
+ */
+public interface Workload {
+
+    /** Use the data files in the directory (stops.txt, lines.txt, WellingtonZones.csv) */
+    void setDataDirectory(File dataDirectory);
+
+    /** Load the stops file; returns the map from stop id to Stop */
+    Object loadStops();
+
+    /** Load the lines file, connecting its lines to the stops of a map from loadStops */
+    Object loadLines(Object stopMap);
+
+    /** Load the zones file */
+    Object loadZoning();
+
+    /** Make a Graph of the stops and lines (which must not already be in a graph) */
+    Object buildGraph(Object stopMap, Object lines);
+
+    /** Load the data files and make a Graph, with walking edges if walkingDistance is more than 0 */
+    Object loadGraph(double walkingDistance);
+
+    /** Replace the walking edges of a graph with those for a walking distance (meters) */
+    void recomputeWalkingEdges(Object graph, double walkingDistance);
+
+    /** A fixed random sample of the stops of a graph, in the same order each time for the same seed */
+    Object[] sampleStops(Object graph, int count, long seed);
+
+    /** Find the shortest path between two stops by "time" or "distance" */
+    Object findShortestPath(Object from, Object to, String timeOrDistance);
+
+    /** Find the components of a graph (marking each stop with its component) */
+    void findComponents(Object graph);
+
+    /** Find the articulation points of a graph */
+    Object findArticulationPoints(Object graph);
+
+    /**
+     * The implementation in the program's classes.
+     * The program's progress messages (System.out) are discarded from then on, so that they
+     * do not flood the benchmark output; the work of making them is still timed.
+     */
+    static Workload load(String dataDirectory) {
+        try {
+            Workload workload = (Workload) Class.forName("TransportWorkload").getDeclaredConstructor().newInstance();
+            workload.setDataDirectory(new File(dataDirectory));
+            System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+            return workload;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Can not make the workload: " + e);
+        }
+    }
+}